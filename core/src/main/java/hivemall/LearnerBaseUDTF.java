@@ -19,12 +19,19 @@
 package hivemall;
 
 import static org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory.writableFloatObjectInspector;
+import hivemall.common.HogwildTrainer;
 import hivemall.mix.MixMessage.MixEventName;
+import hivemall.mix.MixMessageBatch;
+import hivemall.mix.client.AsyncMixSender;
+import hivemall.mix.client.AsyncMixSender.FullWindowPolicy;
 import hivemall.mix.client.MixClient;
 import hivemall.model.DenseModel;
+import hivemall.model.OffHeapDenseModel;
+import hivemall.model.PrimitiveSparseModel;
 import hivemall.model.PredictionModel;
 import hivemall.model.SpaceEfficientDenseModel;
 import hivemall.model.SparseModel;
+import hivemall.model.StripedModelWrapper;
 import hivemall.model.SynchronizedModelWrapper;
 import hivemall.model.WeightValue;
 import hivemall.model.WeightValue.WeightValueWithCovar;
@@ -57,6 +64,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.FloatObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.WritableFloatObjectInspector;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Reporter;
 
 public abstract class LearnerBaseUDTF extends UDTFWithOptions {
     private static final Log logger = LogFactory.getLog(LearnerBaseUDTF.class);
@@ -65,22 +73,51 @@ public abstract class LearnerBaseUDTF extends UDTFWithOptions {
     protected boolean dense_model;
     protected int model_dims;
     protected boolean disable_halffloat;
+    protected boolean offheap_model;
+    protected String mmapModelFile;
     protected boolean is_mini_batch;
     protected int mini_batch_size;
+    protected int numThreads;
     protected String mixConnectInfo;
     protected String mixSessionName;
     protected int mixThreshold;
+    protected int mixBatchSize;
+    protected long mixFlushInterval;
+    protected boolean mixCompact;
+    protected int mixAsyncWindow;
+    protected FullWindowPolicy mixAsyncPolicy;
     protected boolean mixCancel;
     protected boolean ssl;
 
     protected MixClient mixClient;
 
+    /** The off-heap model to be shared by -mmap_model if any */
+    private OffHeapDenseModel sharedModel;
+    /** What the model shared by -mmap_model is built from */
+    private String sharedModelSource;
+    /** Runs training in parallel if -threads is more than 1 */
+    private HogwildTrainer trainer;
+
     public LearnerBaseUDTF() {}
 
     protected boolean useCovariance() {
         return false;
     }
 
+    /**
+     * @return true if features are int or bigint, which are held by a sparse model without boxing
+     */
+    protected boolean useIntegerFeatures() {
+        return false;
+    }
+
+    /**
+     * @return true if {@link #runTraining(Runnable)} can run training in parallel threads
+     */
+    protected boolean supportsParallelTraining() {
+        return false;
+    }
+
     @Override
     protected Options getOptions() {
         Options opts = new Options();
@@ -90,13 +127,36 @@ public abstract class LearnerBaseUDTF extends UDTFWithOptions {
             "The dimension of model [default: 16777216 (2^24)]");
         opts.addOption("disable_halffloat", false,
             "Toggle this option to disable the use of SpaceEfficientDenseModel");
+        opts.addOption("offheap", "offheap_model", false,
+            "Use a dense model held out of the Java heap, in direct memory up to"
+                    + " -XX:MaxDirectMemorySize (defaults to -Xmx) and in temporary files mapped"
+                    + " into memory beyond it. Implies -dense [default: false]");
+        opts.addOption("mmap_model", true,
+            "A local file through which tasks on the same node share the dense model loaded by"
+                    + " -loadmodel using mmap. The file is rebuilt when -dims or the -loadmodel file"
+                    + " changes. Implies -offheap [default: none]");
         opts.addOption("mini_batch", "mini_batch_size", true,
             "Mini batch size [default: 1]. Expecting the value in range [1,100] or so.");
+        opts.addOption("threads", "num_threads", true,
+            "The number of threads to train a model in parallel, Hogwild-style [default: 1]");
         opts.addOption("mix", "mix_servers", true, "Comma separated list of MIX servers");
         opts.addOption("mix_session", "mix_session_name", true,
             "Mix session name [default: ${mapred.job.id}]");
         opts.addOption("mix_threshold", true,
             "Threshold to mix local updates in range (0,127] [default: 3]");
+        opts.addOption("mix_batch", "mix_batch_size", true,
+            "Mix requests packed into a frame in range [1,4096] [default: 1 (no batching)]");
+        opts.addOption("mix_flush_interval", true,
+            "The maximum time in msec that a mix request waits in a batch [default: 100]");
+        opts.addOption("mix_compact", false,
+            "Send mix requests in the compact wire format using half-floats and varints."
+                    + " Requires mix servers supporting the format [default: false]");
+        opts.addOption("mix_async", "mix_async_window", true,
+            "Send mix requests from a background thread queuing up to the given number of requests"
+                    + " [default: 0 (synchronous)]");
+        opts.addOption("mix_async_policy", true,
+            "What to do for a mix request when the async window is full: drop, coalesce, or block"
+                    + " [default: block]");
         opts.addOption("mix_cancel", "enable_mix_canceling", false, "Enable mix cancel requests");
         opts.addOption("ssl", false, "Use SSL for the communication with mix servers");
         return opts;
@@ -110,10 +170,18 @@ public abstract class LearnerBaseUDTF extends UDTFWithOptions {
         boolean denseModel = false;
         int modelDims = -1;
         boolean disableHalfFloat = false;
+        boolean offheapModel = false;
+        String mmapModelFile = null;
         int miniBatchSize = 1;
+        int numThreads = 1;
         String mixConnectInfo = null;
         String mixSessionName = null;
         int mixThreshold = -1;
+        int mixBatchSize = 1;
+        long mixFlushInterval = MixClient.DEFAULT_FLUSH_INTERVAL;
+        boolean mixCompact = false;
+        int mixAsyncWindow = 0;
+        FullWindowPolicy mixAsyncPolicy = FullWindowPolicy.block;
         boolean mixCancel = false;
         boolean ssl = false;
 
@@ -124,7 +192,9 @@ public abstract class LearnerBaseUDTF extends UDTFWithOptions {
 
             modelfile = cl.getOptionValue("loadmodel");
 
-            denseModel = cl.hasOption("dense");
+            mmapModelFile = cl.getOptionValue("mmap_model");
+            offheapModel = cl.hasOption("offheap") || mmapModelFile != null;
+            denseModel = cl.hasOption("dense") || offheapModel;
             if (denseModel) {
                 modelDims = Primitives.parseInt(cl.getOptionValue("dims"), 16777216);
             }
@@ -135,6 +205,21 @@ public abstract class LearnerBaseUDTF extends UDTFWithOptions {
                 throw new UDFArgumentException("mini_batch_size must be greater than 0: "
                         + miniBatchSize);
             }
+            numThreads = Primitives.parseInt(cl.getOptionValue("num_threads"), numThreads);
+            if (numThreads <= 0) {
+                throw new UDFArgumentException("num_threads must be greater than 0: "
+                        + numThreads);
+            }
+            if (numThreads > 1) {
+                if (!supportsParallelTraining()) {
+                    throw new UDFArgumentException(getClass().getSimpleName()
+                            + " does not support -num_threads");
+                }
+                if (miniBatchSize > 1) {
+                    throw new UDFArgumentException(
+                        "-mini_batch_size cannot be used with -num_threads");
+                }
+            }
 
             mixConnectInfo = cl.getOptionValue("mix");
             mixSessionName = cl.getOptionValue("mix_session");
@@ -143,7 +228,38 @@ public abstract class LearnerBaseUDTF extends UDTFWithOptions {
                 throw new UDFArgumentException("mix_threshold must be in range (0,127]: "
                         + mixThreshold);
             }
+            mixBatchSize = Primitives.parseInt(cl.getOptionValue("mix_batch_size"), mixBatchSize);
+            if (mixBatchSize < 1 || mixBatchSize > MixMessageBatch.MAX_BATCH_SIZE) {
+                throw new UDFArgumentException("mix_batch_size must be in range [1,"
+                        + MixMessageBatch.MAX_BATCH_SIZE + "]: " + mixBatchSize);
+            }
+            mixFlushInterval = Primitives.parseLong(cl.getOptionValue("mix_flush_interval"),
+                mixFlushInterval);
+            if (mixFlushInterval <= 0L) {
+                throw new UDFArgumentException("mix_flush_interval must be greater than 0: "
+                        + mixFlushInterval);
+            }
+            mixCompact = cl.hasOption("mix_compact");
             mixCancel = cl.hasOption("mix_cancel");
+            mixAsyncWindow = Primitives.parseInt(cl.getOptionValue("mix_async_window"),
+                mixAsyncWindow);
+            if (mixAsyncWindow < 0) {
+                throw new UDFArgumentException("mix_async_window must be 0 or more: "
+                        + mixAsyncWindow);
+            }
+            String policy = cl.getOptionValue("mix_async_policy");
+            if (policy != null) {
+                try {
+                    mixAsyncPolicy = FullWindowPolicy.resolve(policy);
+                } catch (IllegalArgumentException e) {
+                    throw new UDFArgumentException(e.getMessage());
+                }
+            }
+            if (mixCancel && mixAsyncPolicy != FullWindowPolicy.block) {
+                // a dropped or coalesced update would be canceled without being mixed
+                throw new UDFArgumentException("-mix_cancel cannot be used with -mix_async_policy "
+                        + mixAsyncPolicy);
+            }
             ssl = cl.hasOption("ssl");
         }
 
@@ -151,11 +267,19 @@ public abstract class LearnerBaseUDTF extends UDTFWithOptions {
         this.dense_model = denseModel;
         this.model_dims = modelDims;
         this.disable_halffloat = disableHalfFloat;
+        this.offheap_model = offheapModel;
+        this.mmapModelFile = mmapModelFile;
         this.is_mini_batch = miniBatchSize > 1;
         this.mini_batch_size = miniBatchSize;
+        this.numThreads = numThreads;
         this.mixConnectInfo = mixConnectInfo;
         this.mixSessionName = mixSessionName;
         this.mixThreshold = mixThreshold;
+        this.mixBatchSize = mixBatchSize;
+        this.mixFlushInterval = mixFlushInterval;
+        this.mixCompact = mixCompact;
+        this.mixAsyncWindow = mixAsyncWindow;
+        this.mixAsyncPolicy = mixAsyncPolicy;
         this.mixCancel = mixCancel;
         this.ssl = ssl;
         return cl;
@@ -168,20 +292,26 @@ public abstract class LearnerBaseUDTF extends UDTFWithOptions {
     protected PredictionModel createModel(String label) {
         PredictionModel model;
         final boolean useCovar = useCovariance();
-        if (dense_model) {
+        if (dense_model && offheap_model) {
+            model = createOffHeapModel(label, useCovar);
+        } else if (dense_model) {
             if (disable_halffloat == false && model_dims > 16777216) {
                 logger.info("Build a space efficient dense model with " + model_dims
                         + " initial dimensions" + (useCovar ? " w/ covariances" : ""));
                 model = new SpaceEfficientDenseModel(model_dims, useCovar);
             } else {
-                logger.info("Build a dense model with initial with " + model_dims
-                        + " initial dimensions" + (useCovar ? " w/ covariances" : ""));
+                logger.info("Build a dense model with " + model_dims + " initial dimensions"
+                        + (useCovar ? " w/ covariances" : ""));
                 model = new DenseModel(model_dims, useCovar);
             }
+        } else if (useIntegerFeatures()) {
+            int initModelSize = getInitialModelSize();
+            logger.info("Build a primitive sparse model with an initial capacity of "
+                    + initModelSize);
+            model = new PrimitiveSparseModel(initModelSize, useCovar);
         } else {
             int initModelSize = getInitialModelSize();
-            logger.info("Build a sparse model with initial with " + initModelSize
-                    + " initial dimensions");
+            logger.info("Build a sparse model with an initial capacity of " + initModelSize);
             model = new SparseModel(initModelSize, useCovar);
         }
         if (mixConnectInfo != null) {
@@ -190,11 +320,79 @@ public abstract class LearnerBaseUDTF extends UDTFWithOptions {
             MixClient client = configureMixClient(mixConnectInfo, label, model);
             model.configureMix(client, mixCancel);
             this.mixClient = client;
+        } else if (numThreads > 1) {
+            model = new StripedModelWrapper(model, numThreads * 16);
         }
         assert (model != null);
         return model;
     }
 
+    @Nonnull
+    private OffHeapDenseModel createOffHeapModel(@Nullable String label, boolean useCovar) {
+        if (mmapModelFile != null && label == null) {
+            this.sharedModelSource = getModelSource();
+            File file = new File(mmapModelFile);
+            if (file.exists()) {
+                try {
+                    OffHeapDenseModel model = OffHeapDenseModel.map(file);
+                    if (model.hasCovariance() != useCovar) {
+                        logger.warn("Ignore " + file + " because its covariances do not match");
+                    } else if (!sharedModelSource.equals(model.getSource())) {
+                        logger.warn("Ignore " + file + " because it is built from "
+                                + model.getSource() + ", not from " + sharedModelSource);
+                    } else {
+                        this.sharedModel = model;
+                        return model;
+                    }
+                } catch (IOException e) {
+                    logger.warn("Failed to map a model: " + file, e);
+                }
+            }
+        }
+        logger.info("Build an off-heap dense model with " + model_dims + " initial dimensions"
+                + (useCovar ? " w/ covariances" : ""));
+        OffHeapDenseModel model = new OffHeapDenseModel(model_dims, useCovar);
+        if (mmapModelFile != null && label == null) {
+            this.sharedModel = model;
+        }
+        return model;
+    }
+
+    /**
+     * Identifies the model held by -mmap_model through the dimensions and the path, the length and
+     * the last modified time of the -loadmodel file, so that a file left by another model or an
+     * older version of the model is rebuilt.
+     */
+    @Nonnull
+    private String getModelSource() {
+        final StringBuilder buf = new StringBuilder("dims=").append(model_dims);
+        if (preloadedModelFile != null) {
+            final long[] stat = new long[2];
+            statFiles(new File(preloadedModelFile), stat);
+            buf.append(", loadmodel=").append(preloadedModelFile);
+            buf.append(", length=").append(stat[0]);
+            buf.append(", lastModified=").append(stat[1]);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Sums up the lengths and takes the latest modified time of the files in the given path.
+     */
+    private static void statFiles(@Nonnull final File file, @Nonnull final long[] stat) {
+        if (file.isDirectory()) {
+            final File[] files = file.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    statFiles(f, stat);
+                }
+            }
+        } else {
+            stat[0] += file.length();
+            stat[1] = Math.max(stat[1], file.lastModified());
+        }
+    }
+
     protected MixClient configureMixClient(String connectURIs, String label, PredictionModel model) {
         assert (connectURIs != null);
         assert (model != null);
@@ -203,7 +401,11 @@ public abstract class LearnerBaseUDTF extends UDTFWithOptions {
             jobId = jobId + '-' + label;
         }
         MixEventName event = useCovariance() ? MixEventName.argminKLD : MixEventName.average;
-        MixClient client = new MixClient(event, jobId, connectURIs, ssl, mixThreshold, model);
+        MixClient client = new MixClient(event, jobId, connectURIs, ssl, mixThreshold,
+            mixBatchSize, mixFlushInterval, mixCompact, model);
+        if (mixAsyncWindow > 0) {
+            client.configureAsync(mixAsyncWindow, mixAsyncPolicy);
+        }
         logger.info("Successfully configured mix client: " + connectURIs);
         return client;
     }
@@ -214,6 +416,11 @@ public abstract class LearnerBaseUDTF extends UDTFWithOptions {
 
     protected void loadPredictionModel(PredictionModel model, String filename,
             PrimitiveObjectInspector keyOI) {
+        if (sharedModel != null && sharedModel.isMapped()) {
+            logger.info("Skip loading '" + filename + "' because the model is mapped from "
+                    + mmapModelFile);
+            return;
+        }
         final StopWatch elapsed = new StopWatch();
         final long lines;
         try {
@@ -233,6 +440,15 @@ public abstract class LearnerBaseUDTF extends UDTFWithOptions {
             logger.info("Loaded " + model.size() + " features from distributed cache '" + filename
                     + "' (" + lines + " lines) in " + elapsed);
         }
+        if (sharedModel != null) {
+            File file = new File(mmapModelFile);
+            try {
+                sharedModel.save(file, sharedModelSource); // following tasks map the file
+                logger.info("Saved the loaded model to " + file);
+            } catch (IOException e) {
+                logger.warn("Failed to save the loaded model to " + file, e);
+            }
+        }
     }
 
     private static long loadPredictionModel(PredictionModel model, File file,
@@ -332,12 +548,59 @@ public abstract class LearnerBaseUDTF extends UDTFWithOptions {
         return count;
     }
 
+    /**
+     * Runs the training task in the caller thread, or hands it to a worker thread if -num_threads
+     * is more than 1. Then, the task must not use objects reused for the following rows.
+     */
+    protected final void runTraining(@Nonnull final Runnable task) throws HiveException {
+        if (numThreads <= 1) {
+            task.run();
+            return;
+        }
+        if (trainer == null) {
+            this.trainer = new HogwildTrainer(numThreads);
+        }
+        trainer.submit(task);
+    }
+
+    /**
+     * Waits for the training tasks handed to worker threads by {@link #runTraining(Runnable)}.
+     */
+    protected final void shutdownTrainer() throws HiveException {
+        if (trainer != null) {
+            HogwildTrainer t = trainer;
+            this.trainer = null;
+            t.shutdown();
+        }
+    }
+
     @Override
     public void close() throws HiveException {
+        shutdownTrainer();
         if (mixClient != null) {
             IOUtils.closeQuietly(mixClient);
+            reportMixMetrics(mixClient.getAsyncSender());
             this.mixClient = null;
         }
     }
 
+    private void reportMixMetrics(@Nullable AsyncMixSender sender) {
+        if (sender == null) {
+            return;
+        }
+        logger.info("Closed a mix client: " + sender);
+        Reporter reporter = getReporter();
+        if (reporter == null) {
+            return;
+        }
+        final String group = "hivemall.mix.MixClient$Counter";
+        setCounterValue(reporter.getCounter(group, "Max depth of the async mix queue"),
+            sender.getMaxQueueDepth());
+        incrCounter(reporter.getCounter(group, "Wait time in msec for the async mix queue"),
+            sender.getWaitTimeInMillis());
+        incrCounter(reporter.getCounter(group, "Dropped mix requests"), sender.getNumDropped());
+        incrCounter(reporter.getCounter(group, "Coalesced mix requests"),
+            sender.getNumCoalesced());
+    }
+
 }
@@ -21,6 +21,7 @@ package hivemall.classifier;
 import hivemall.LearnerBaseUDTF;
 import hivemall.model.FeatureValue;
 import hivemall.model.IWeightValue;
+import hivemall.model.MiniBatchAccumulator;
 import hivemall.model.PredictionModel;
 import hivemall.model.PredictionResult;
 import hivemall.model.WeightValue;
@@ -47,6 +48,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.Text;
 
 public abstract class BinaryOnlineClassifierUDTF extends LearnerBaseUDTF {
     private static final Log logger = LogFactory.getLog(BinaryOnlineClassifierUDTF.class);
@@ -54,10 +56,16 @@ public abstract class BinaryOnlineClassifierUDTF extends LearnerBaseUDTF {
     private ListObjectInspector featureListOI;
     private PrimitiveObjectInspector labelOI;
     private boolean parseFeature;
+    /** Reused for rows of the same number of features */
+    private FeatureValue[] probes;
 
     protected PredictionModel model;
     protected int count;
 
+    // The accumulated delta of each weight values.
+    protected transient MiniBatchAccumulator accumulated;
+    protected int sampled;
+
     @Override
     public StructObjectInspector initialize(ObjectInspector[] argOIs) throws UDFArgumentException {
         if (argOIs.length < 2) {
@@ -78,6 +86,7 @@ public abstract class BinaryOnlineClassifierUDTF extends LearnerBaseUDTF {
         }
 
         this.count = 0;
+        this.sampled = 0;
         return getReturnOI(featureOutputOI);
     }
 
@@ -90,6 +99,17 @@ public abstract class BinaryOnlineClassifierUDTF extends LearnerBaseUDTF {
         return HiveUtils.asPrimitiveObjectInspector(featureRawOI);
     }
 
+    @Override
+    protected boolean supportsParallelTraining() {
+        return true;
+    }
+
+    @Override
+    protected boolean useIntegerFeatures() {
+        ObjectInspector featureRawOI = featureListOI.getListElementObjectInspector();
+        return HiveUtils.isIntOI(featureRawOI) || HiveUtils.isBigIntOI(featureRawOI);
+    }
+
     protected StructObjectInspector getReturnOI(ObjectInspector featureRawOI) {
         ArrayList<String> fieldNames = new ArrayList<String>();
         ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
@@ -109,18 +129,36 @@ public abstract class BinaryOnlineClassifierUDTF extends LearnerBaseUDTF {
 
     @Override
     public void process(Object[] args) throws HiveException {
+        if (is_mini_batch && accumulated == null) {
+            this.accumulated = new MiniBatchAccumulator(1024);
+        }
+
         List<?> features = (List<?>) featureListOI.getList(args[0]);
         FeatureValue[] featureVector = parseFeatures(features);
         if (featureVector == null) {
             return;
         }
-        int label = PrimitiveObjectInspectorUtils.getInt(args[1], labelOI);
+        final int label = PrimitiveObjectInspectorUtils.getInt(args[1], labelOI);
         checkLabelValue(label);
 
         count++;
-        train(featureVector, label);
+        if (numThreads > 1) {
+            final FeatureValue[] x = featureVector;
+            runTraining(new Runnable() {
+                @Override
+                public void run() {
+                    train(x, label);
+                }
+            });
+        } else {
+            train(featureVector, label);
+        }
     }
 
+    /**
+     * Parses features into an array reused while rows have the same number of features. The
+     * returned array is only valid until the next call unless training runs in parallel.
+     */
     @Nullable
     protected final FeatureValue[] parseFeatures(@Nonnull final List<?> features) {
         final int size = features.size();
@@ -128,21 +166,34 @@ public abstract class BinaryOnlineClassifierUDTF extends LearnerBaseUDTF {
             return null;
         }
 
+        FeatureValue[] featureVector = probes;
+        if (numThreads > 1) {
+            featureVector = new FeatureValue[size]; // held by a worker thread
+        } else if (featureVector == null || featureVector.length != size) {
+            featureVector = new FeatureValue[size];
+            this.probes = featureVector;
+        }
         final ObjectInspector featureInspector = featureListOI.getListElementObjectInspector();
-        final FeatureValue[] featureVector = new FeatureValue[size];
         for (int i = 0; i < size; i++) {
             Object f = features.get(i);
             if (f == null) {
+                featureVector[i] = null;
                 continue;
             }
-            final FeatureValue fv;
+            FeatureValue fv = featureVector[i];
+            if (fv == null) {
+                fv = new FeatureValue();
+                featureVector[i] = fv;
+            }
             if (parseFeature) {
-                fv = FeatureValue.parse(f);
+                Text t = HiveUtils.asText(f);
+                FeatureValue.parse(t, fv);
             } else {
+                // copied because models and mix clients may keep the feature
                 Object k = ObjectInspectorUtils.copyToStandardObject(f, featureInspector);
-                fv = new FeatureValue(k, 1.f);
+                fv.setFeature(k);
+                fv.setValue(1.f);
             }
-            featureVector[i] = fv;
         }
         return featureVector;
     }
@@ -233,6 +284,34 @@ public abstract class BinaryOnlineClassifierUDTF extends LearnerBaseUDTF {
     }
 
     protected void update(@Nonnull final FeatureValue[] features, final float coeff) {
+        if (is_mini_batch) {
+            accumulateUpdate(features, coeff);
+            if (sampled >= mini_batch_size) {
+                batchUpdate();
+            }
+        } else {
+            onlineUpdate(features, coeff);
+        }
+    }
+
+    protected final void accumulateUpdate(@Nonnull final FeatureValue[] features, final float coeff) {
+        for (FeatureValue f : features) {
+            if (f == null) {
+                continue;
+            }
+            final Object k = f.getFeature();
+            final float v = f.getValueAsFloat();
+            accumulated.add(k, coeff * v);
+        }
+        sampled++;
+    }
+
+    protected final void batchUpdate() {
+        accumulated.flush(model);
+        this.sampled = 0;
+    }
+
+    protected void onlineUpdate(@Nonnull final FeatureValue[] features, final float coeff) {
         for (FeatureValue f : features) {// w[f] += y * x[f]
             if (f == null) {
                 continue;
@@ -248,7 +327,12 @@ public abstract class BinaryOnlineClassifierUDTF extends LearnerBaseUDTF {
 
     @Override
     public final void close() throws HiveException {
-        super.close();
+        shutdownTrainer();
+        if (model != null && accumulated != null) { // Update model with accumulated delta
+            batchUpdate();
+            this.accumulated = null;
+        }
+        super.close(); // mix requests of the accumulated delta are sent until the mix client closes
         if (model != null) {
             int numForwarded = 0;
             if (useCovariance()) {
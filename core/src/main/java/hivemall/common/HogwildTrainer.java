@@ -0,0 +1,112 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.common;
+
+import hivemall.utils.concurrent.NamedThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+
+/**
+ * Runs training tasks of a learner in worker threads, which update a shared model without
+ * coordination as Hogwild! does.
+ * 
+ * The caller thread trains a task by itself when the queue is full, and thus rows are never
+ * buffered more than the queue size.
+ * 
+ * @link https://arxiv.org/abs/1106.5730
+ */
+public final class HogwildTrainer {
+    private static final Log logger = LogFactory.getLog(HogwildTrainer.class);
+
+    @Nonnull
+    private final ThreadPoolExecutor exec;
+    @Nonnull
+    private final AtomicReference<Throwable> failure;
+
+    public HogwildTrainer(@Nonnegative int numThreads) {
+        this(numThreads, numThreads * 256);
+    }
+
+    public HogwildTrainer(@Nonnegative int numThreads, @Nonnegative int queueSize) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Invalid numThreads: " + numThreads);
+        }
+        this.failure = new AtomicReference<Throwable>();
+        this.exec = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("Hivemall-Hogwild",
+                true), new ThreadPoolExecutor.CallerRunsPolicy()) {
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                if (t != null) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        };
+        logger.info("Initialized " + numThreads + " threads for Hogwild training");
+    }
+
+    /**
+     * @throws HiveException if a previous task failed
+     */
+    public void submit(@Nonnull Runnable task) throws HiveException {
+        checkFailure();
+        exec.execute(task);
+    }
+
+    /**
+     * Waits for the completion of all the submitted tasks and stops the worker threads.
+     * 
+     * @throws HiveException if any task failed
+     */
+    public void shutdown() throws HiveException {
+        exec.shutdown();
+        try {
+            while (!exec.awaitTermination(1L, TimeUnit.SECONDS)) {
+                if (failure.get() != null) {
+                    exec.shutdownNow();
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            exec.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new HiveException("Interrupted while waiting for training threads", e);
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws HiveException {
+        Throwable t = failure.get();
+        if (t != null) {
+            exec.shutdownNow();
+            throw new HiveException("Training failed in a worker thread", t);
+        }
+    }
+
+}
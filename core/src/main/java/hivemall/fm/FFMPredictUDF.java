@@ -28,6 +28,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.UDFType;
@@ -39,12 +40,17 @@ import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
 
 @Description(name = "ffm_predict",
         value = "_FUNC_(string modelId, string model, array<string> features)"
                 + " returns a prediction result in double from a Field-aware Factorization Machine")
 @UDFType(deterministic = true, stateful = false)
 public final class FFMPredictUDF extends GenericUDF {
+    /**
+     * The maximum bytes of the models cached in a JVM
+     */
+    public static final String CACHE_BYTES_KEY = "hivemall.ffm_predict.cache_bytes";
 
     private StringObjectInspector _modelIdOI;
     private StringObjectInspector _modelOI;
@@ -54,12 +60,24 @@ public final class FFMPredictUDF extends GenericUDF {
     @Nullable
     private String _cachedModeId;
     @Nullable
-    private FFMPredictionModel _cachedModel;
+    private MappedFFMPredictionModel _cachedModel;
     @Nullable
     private Feature[] _probes;
 
     public FFMPredictUDF() {}
 
+    @Override
+    public void configure(MapredContext context) {
+        super.configure(context);
+
+        if (context != null) {
+            JobConf conf = context.getJobConf();
+            long maxBytes = conf.getLong(CACHE_BYTES_KEY,
+                FFMPredictionModelCache.DEFAULT_MAX_BYTES);
+            FFMPredictionModelCache.getInstance().setMaxBytes(maxBytes);
+        }
+    }
+
     @Override
     public ObjectInspector initialize(ObjectInspector[] argOIs) throws UDFArgumentException {
         if (argOIs.length != 3) {
@@ -80,27 +98,23 @@ public final class FFMPredictUDF extends GenericUDF {
             throw new HiveException("modelId is not set");
         }
 
-        final FFMPredictionModel model;
-        if (modelId.equals(_cachedModeId)) {
-            model = this._cachedModel;
-        } else {
+        MappedFFMPredictionModel model = _cachedModel;
+        if (!modelId.equals(_cachedModeId)) {
+            // model IDs are not unique across models, and thus the cache checks the model
             Text serModel = _modelOI.getPrimitiveWritableObject(args[1].get());
             if (serModel == null) {
                 throw new HiveException("Model is null for model ID: " + modelId);
             }
-            byte[] b = serModel.getBytes();
-            final int length = serModel.getLength();
             try {
-                model = FFMPredictionModel.deserialize(b, length);
-                b = null;
-            } catch (ClassNotFoundException e) {
-                throw new HiveException(e);
+                model = FFMPredictionModelCache.getInstance().get(modelId, serModel.getBytes(),
+                    serModel.getLength());
             } catch (IOException e) {
-                throw new HiveException(e);
+                throw new HiveException("Failed to load a model: " + modelId, e);
             }
             this._cachedModeId = modelId;
             this._cachedModel = model;
         }
+        assert (model != null);
 
         int numFeatures = model.getNumFeatures();
         int numFields = model.getNumFields();
@@ -125,7 +139,7 @@ public final class FFMPredictUDF extends GenericUDF {
     }
 
     private static double predict(@Nonnull final Feature[] x,
-            @Nonnull final FFMPredictionModel model) throws HiveException {
+            @Nonnull final MappedFFMPredictionModel model) throws HiveException {
         // w0
         double ret = model.getW0();
         // W
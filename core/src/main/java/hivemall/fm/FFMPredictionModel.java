@@ -274,7 +274,8 @@ public final class FFMPredictionModel implements Externalizable {
             keys[i] = ZigZagLEB128Codec.readSignedInt(in);
             long ptr = buf.allocate(entrySize);
             e.setOffset(ptr);
-            readEntry(in, factors, Vf, e);
+            e.setW(readEntry(in, Vf));
+            e.setV(Vf);
             values[i] = ptr;
         }
 
@@ -282,36 +283,35 @@ public final class FFMPredictionModel implements Externalizable {
         this._buf = buf;
     }
 
-    @Nonnull
-    private static void readEntry(@Nonnull final DataInput in, final int factors,
-            @Nonnull final float[] Vf, @Nonnull Entry dst) throws IOException {
+    /**
+     * Reads an entry written by {@link #writeEntry(Entry, int, float[], DataOutput)}.
+     * 
+     * @param Vf filled with V, or zeros if the entry has W only
+     * @return W
+     */
+    static float readEntry(@Nonnull final DataInput in, @Nonnull final float[] Vf)
+            throws IOException {
         final byte type = in.readByte();
         switch (type) {
             case HALF_FLOAT_ENTRY: {
                 float W = HalfFloat.halfFloatToFloat(in.readShort());
-                dst.setW(W);
-                for (int i = 0; i < factors; i++) {
+                for (int i = 0; i < Vf.length; i++) {
                     Vf[i] = HalfFloat.halfFloatToFloat(in.readShort());
                 }
-                dst.setV(Vf);
-                break;
+                return W;
             }
             case W_ONLY_HALF_FLOAT_ENTRY: {
-                float W = HalfFloat.halfFloatToFloat(in.readShort());
-                dst.setW(W);
-                break;
+                Arrays.fill(Vf, 0.f);
+                return HalfFloat.halfFloatToFloat(in.readShort());
             }
             case FLOAT_ENTRY: {
                 float W = in.readFloat();
-                dst.setW(W);
                 IOUtils.readFloats(in, Vf);
-                dst.setV(Vf);
-                break;
+                return W;
             }
             case W_ONLY_FLOAT_ENTRY: {
-                float W = in.readFloat();
-                dst.setW(W);
-                break;
+                Arrays.fill(Vf, 0.f);
+                return in.readFloat();
             }
             default:
                 throw new IOException("Unexpected Entry type: " + type);
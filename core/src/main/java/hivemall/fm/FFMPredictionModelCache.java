@@ -0,0 +1,239 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.fm;
+
+import hivemall.utils.hashing.HashUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A LRU cache of memory-mapped FFM models shared by the UDF instances in a JVM. Models are evicted
+ * in the least-recently-used order while the total bytes of the cached models exceed the limit.
+ * The file of an evicted model is deleted, while instances already holding the model can still
+ * read it until they release the mapping.
+ *
+ * Models are keyed by model ID, which is only the number of the task which trained the model. A
+ * {@link HashUtils#fingerprint(byte[], int, int)} of the serialized model is thus kept along with a
+ * model, and a model ID reused for another model in the same JVM is loaded again.
+ *
+ * Models are decoded out of the lock of the cache, so that loads of different models do not block
+ * each other, while concurrent loads of the same model are done once.
+ */
+@ThreadSafe
+final class FFMPredictionModelCache {
+    private static final Log LOG = LogFactory.getLog(FFMPredictionModelCache.class);
+
+    static final long DEFAULT_MAX_BYTES = 1024L * 1024L * 1024L; // 1 GiB
+
+    private static final FFMPredictionModelCache INSTANCE = new FFMPredictionModelCache(
+        DEFAULT_MAX_BYTES);
+
+    @Nonnull
+    private final LinkedHashMap<String, Entry> models;
+    /** Loads in progress keyed by model ID and fingerprint */
+    @Nonnull
+    private final ConcurrentMap<String, FutureTask<MappedFFMPredictionModel>> loading;
+    private long maxBytes;
+    private long totalBytes;
+
+    FFMPredictionModelCache(@Nonnegative long maxBytes) {
+        this.models = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        this.loading = new ConcurrentHashMap<String, FutureTask<MappedFFMPredictionModel>>();
+        this.maxBytes = maxBytes;
+        this.totalBytes = 0L;
+    }
+
+    @Nonnull
+    static FFMPredictionModelCache getInstance() {
+        return INSTANCE;
+    }
+
+    synchronized void setMaxBytes(@Nonnegative long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    synchronized int size() {
+        return models.size();
+    }
+
+    @Nullable
+    synchronized MappedFFMPredictionModel get(@Nonnull final String modelId) {
+        Entry e = models.get(modelId);
+        return (e == null) ? null : e.model;
+    }
+
+    /**
+     * Returns the cached model, or decodes the serialized model into a temporary file and caches
+     * it. Concurrent loads of the same model are done once. A cached model of the same ID but of
+     * another fingerprint is replaced.
+     */
+    @Nonnull
+    MappedFFMPredictionModel get(@Nonnull final String modelId, @Nonnull final byte[] serialized,
+            final int length) throws IOException {
+        final long fingerprint = HashUtils.fingerprint(serialized, 0, length);
+        final MappedFFMPredictionModel cached = getIfCached(modelId, fingerprint);
+        if (cached != null) {
+            return cached;
+        }
+
+        final String key = modelId + '#' + fingerprint;
+        FutureTask<MappedFFMPredictionModel> task = loading.get(key);
+        if (task == null) {
+            final Loader loader = new Loader(modelId, fingerprint, serialized, length);
+            final FutureTask<MappedFFMPredictionModel> newTask =
+                    new FutureTask<MappedFFMPredictionModel>(loader);
+            task = loading.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                try {
+                    newTask.run();
+                } finally {
+                    loading.remove(key, newTask);
+                }
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading a FFM model: " + modelId, e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to load a FFM model: " + modelId, cause);
+        }
+    }
+
+    @Nullable
+    private synchronized MappedFFMPredictionModel getIfCached(@Nonnull final String modelId,
+            final long fingerprint) {
+        final Entry cached = models.get(modelId);
+        if (cached == null || cached.fingerprint != fingerprint) {
+            return null;
+        }
+        return cached.model;
+    }
+
+    @Nonnull
+    private MappedFFMPredictionModel load(@Nonnull final String modelId, final long fingerprint,
+            @Nonnull final byte[] serialized, final int length) throws IOException {
+        // the model may have been cached since the lookup by a load just finished
+        final MappedFFMPredictionModel cached = getIfCached(modelId, fingerprint);
+        if (cached != null) {
+            return cached;
+        }
+
+        final MappedFFMPredictionModel model;
+        final File file = File.createTempFile("hivemall_ffm", ".model");
+        file.deleteOnExit();
+        try {
+            model = MappedFFMPredictionModel.create(serialized, length, file);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+
+        synchronized (this) {
+            final Entry replaced = models.put(modelId, new Entry(fingerprint, model));
+            if (replaced != null) {
+                release(modelId, replaced.model);
+            }
+            totalBytes += model.bytes();
+            evict();
+        }
+        return model;
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, Entry>> itor = models.entrySet().iterator();
+        // the most recently used model is kept even if it exceeds the limit alone
+        while (totalBytes > maxBytes && models.size() > 1) {
+            Map.Entry<String, Entry> e = itor.next();
+            itor.remove();
+            release(e.getKey(), e.getValue().model);
+        }
+    }
+
+    private void release(@Nonnull final String modelId,
+            @Nonnull final MappedFFMPredictionModel model) {
+        totalBytes -= model.bytes();
+        if (!model.getFile().delete()) {
+            LOG.warn("Failed to delete a model file: " + model.getFile().getAbsolutePath());
+        }
+        LOG.info("Evicted a FFM model '" + modelId + "' of " + model.bytes() + " bytes");
+    }
+
+    private final class Loader implements Callable<MappedFFMPredictionModel> {
+        @Nonnull
+        private final String modelId;
+        private final long fingerprint;
+        @Nonnull
+        private final byte[] serialized;
+        private final int length;
+
+        Loader(@Nonnull String modelId, long fingerprint, @Nonnull byte[] serialized, int length) {
+            this.modelId = modelId;
+            this.fingerprint = fingerprint;
+            this.serialized = serialized;
+            this.length = length;
+        }
+
+        @Override
+        public MappedFFMPredictionModel call() throws IOException {
+            return load(modelId, fingerprint, serialized, length);
+        }
+    }
+
+    private static final class Entry {
+        final long fingerprint;
+        @Nonnull
+        final MappedFFMPredictionModel model;
+
+        Entry(long fingerprint, @Nonnull MappedFFMPredictionModel model) {
+            this.fingerprint = fingerprint;
+            this.model = model;
+        }
+    }
+
+}
@@ -29,6 +29,8 @@ import hivemall.utils.math.MathUtils;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+
 public final class FFMStringFeatureMapModel extends FieldAwareFactorizationMachineModel {
     private static final int DEFAULT_MAPSIZE = 65536;
 
@@ -50,6 +52,12 @@ public final class FFMStringFeatureMapModel extends FieldAwareFactorizationMachi
 
     private final int _entrySize;
 
+    /**
+     * Whether the model is trained by multiple threads. If so, entries are created in
+     * {@link #check(Feature[])} and never removed so that the map is not modified concurrently.
+     */
+    private final boolean _sharedByThreads;
+
     public FFMStringFeatureMapModel(@Nonnull FFMHyperParameters params) {
         super(params);
         this._w0 = 0.f;
@@ -62,6 +70,7 @@ public final class FFMStringFeatureMapModel extends FieldAwareFactorizationMachi
         this._lambda1 = params.lambda1;
         this._lamdda2 = params.lamdda2;
         this._entrySize = entrySize(_factor, _useFTRL, _useAdaGrad);
+        this._sharedByThreads = params.numThreads > 1;
     }
 
     @Nonnull
@@ -219,7 +228,34 @@ public final class FFMStringFeatureMapModel extends FieldAwareFactorizationMachi
 
     protected void removeEntry(@Nonnull final Feature x) {
         int j = x.getFeatureIndex();
-        _map.remove(j);
+        if (_sharedByThreads) {
+            // reset the entry as if it were removed and then created again
+            long ptr = _map.get(j);
+            if (ptr != -1L) {
+                for (int i = 0; i < _entrySize; i++) {
+                    _buf.putByte(ptr + i, (byte) 0);
+                }
+                getEntry(ptr).setV(initV());
+            }
+        } else {
+            _map.remove(j);
+        }
+    }
+
+    /**
+     * Creates the entries that training on x may access when the model is shared by threads.
+     */
+    @Override
+    public void check(@Nonnull final Feature[] x) throws HiveException {
+        if (!_sharedByThreads) {
+            return;
+        }
+        for (Feature e : x) {
+            getEntry(e);
+            for (Feature other : x) {
+                getEntry(e, other.getField());
+            }
+        }
     }
 
     @Nonnull
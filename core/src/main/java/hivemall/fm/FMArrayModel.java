@@ -112,6 +112,11 @@ public final class FMArrayModel extends FactorizationMachineModel {
         v[f] = nextVif;
     }
 
+    @Override
+    protected float[] getV(@Nonnull final Feature x) {
+        return getV(x.getFeatureIndex(), true);
+    }
+
     @Override
     public void check(@Nonnull Feature[] x) throws HiveException {
         for (Feature e : x) {
@@ -60,6 +60,7 @@ class FMHyperParameters {
     // non-model parameters
 
     int iters = 1;
+    int numThreads = 1;
     boolean conversionCheck = true;
     double convergenceRate = 0.005d;
 
@@ -77,8 +78,9 @@ class FMHyperParameters {
                 + ", lambda=" + lambda + ", lambdaW0=" + lambdaW0 + ", lambdaW=" + lambdaW
                 + ", lambdaV=" + lambdaV + ", sigma=" + sigma + ", seed=" + seed + ", vInit="
                 + vInit + ", minTarget=" + minTarget + ", maxTarget=" + maxTarget + ", eta=" + eta
-                + ", numFeatures=" + numFeatures + ", iters=" + iters + ", conversionCheck="
-                + conversionCheck + ", convergenceRate=" + convergenceRate
+                + ", numFeatures=" + numFeatures + ", iters=" + iters + ", numThreads="
+                + numThreads + ", conversionCheck=" + conversionCheck + ", convergenceRate="
+                + convergenceRate
                 + ", adaptiveReglarization=" + adaptiveReglarization + ", validationRatio="
                 + validationRatio + ", validationThreshold=" + validationThreshold
                 + ", parseFeatureAsInt=" + parseFeatureAsInt + "]";
@@ -102,6 +104,10 @@ class FMHyperParameters {
         this.eta = EtaEstimator.get(cl, DEFAULT_ETA0);
         this.numFeatures = Primitives.parseInt(cl.getOptionValue("num_features"), numFeatures);
         this.iters = Primitives.parseInt(cl.getOptionValue("iterations"), iters);
+        this.numThreads = Primitives.parseInt(cl.getOptionValue("num_threads"), numThreads);
+        if (numThreads <= 0) {
+            throw new UDFArgumentException("num_threads must be greater than 0: " + numThreads);
+        }
         this.conversionCheck = !cl.hasOption("disable_cvtest");
         this.convergenceRate = Primitives.parseDouble(cl.getOptionValue("cv_rate"), convergenceRate);
         this.adaptiveReglarization = cl.hasOption("adaptive_regularizaion");
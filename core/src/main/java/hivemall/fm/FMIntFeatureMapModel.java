@@ -126,6 +126,13 @@ public final class FMIntFeatureMapModel extends FactorizationMachineModel {
         vi[f] = nextVif;
     }
 
+    @Override
+    protected float[] getV(@Nonnull final Feature x) {
+        int i = x.getFeatureIndex();
+        assert (i >= 1) : i;
+        return _V.get(i);
+    }
+
     @Override
     public void check(@Nonnull final Feature[] x) throws HiveException {
         for (Feature e : x) {
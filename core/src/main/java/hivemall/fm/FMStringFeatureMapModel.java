@@ -118,6 +118,19 @@ public final class FMStringFeatureMapModel extends FactorizationMachineModel {
         V[f] = nextVif;
     }
 
+    @Override
+    protected float[] getV(@Nonnull Feature x) {
+        String j = x.getFeature();
+        assert (j != null);
+
+        Entry entry = _map.get(j);
+        if (entry == null) {
+            entry = new Entry(0.f, initV());
+            _map.put(j, entry);
+        }
+        return entry.Vf;
+    }
+
     static final class Entry {
 
         float W;
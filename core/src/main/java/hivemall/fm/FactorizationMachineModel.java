@@ -104,6 +104,17 @@ public abstract class FactorizationMachineModel {
 
     protected abstract void setV(@Nonnull Feature x, int f, float nextVif);
 
+    /**
+     * Returns V of the feature as a contiguous array of the factors, through which V is read and
+     * updated in place. V is initialized if the model initializes V on access.
+     * 
+     * @return null if V of the feature does not exist, which is treated as zeros
+     */
+    @Nullable
+    protected float[] getV(@Nonnull Feature x) {
+        throw new UnsupportedOperationException();
+    }
+
     /**
      * @param f index value >= 0
      */
@@ -130,31 +141,57 @@ public abstract class FactorizationMachineModel {
     }
 
     protected double predict(@Nonnull final Feature[] x) throws HiveException {
+        return predict(x, new double[_factor]);
+    }
+
+    /**
+     * Predicts the target of x in a pass over the features. The interaction term is accumulated
+     * over contiguous V of each feature in loops that HotSpot can vectorize.
+     * 
+     * @param sumVfX filled with \sum_j V_jf * x_j for each factor f
+     */
+    protected double predict(@Nonnull final Feature[] x, @Nonnull final double[] sumVfX)
+            throws HiveException {
+        return predict(x, sumVfX, new double[_factor]);
+    }
+
+    /**
+     * Predicts the target of x without allocation, using the buffers given by the caller. The
+     * buffers are per thread as the model is shared by Hogwild workers.
+     * 
+     * @param sumVfX filled with \sum_j V_jf * x_j for each factor f
+     * @param sumV2X2 a buffer for \sum_j (V_jf * x_j)^2 of each factor f
+     */
+    protected double predict(@Nonnull final Feature[] x, @Nonnull final double[] sumVfX,
+            @Nonnull final double[] sumV2X2) throws HiveException {
+        final int k = _factor;
+        Arrays.fill(sumVfX, 0, k, 0.d);
+        Arrays.fill(sumV2X2, 0, k, 0.d);
+
         // w0
         double ret = getW0();
 
-        // W
         for (Feature e : x) {
-            double xj = e.getValue();
+            // W
+            final double xj = e.getValue();
             float w = getW(e);
             double wx = w * xj;
             ret += wx;
-        }
 
-        // V
-        for (int f = 0, k = _factor; f < k; f++) {
-            double sumVjfXj = 0.d;
-            double sumV2X2 = 0.d;
-
-            for (Feature e : x) {
-                double xj = e.getValue();
-                float vjf = getV(e, f);
-                double vx = vjf * xj;
-                sumVjfXj += vx;
-                sumV2X2 += (vx * vx);
+            // V
+            final float[] vj = getV(e);
+            if (vj == null) {
+                continue;
+            }
+            for (int f = 0; f < k; f++) {
+                double vx = vj[f] * xj;
+                sumVfX[f] += vx;
+                sumV2X2[f] += (vx * vx);
             }
-            ret += 0.5d * (sumVjfXj * sumVjfXj - sumV2X2);
-            assert (!Double.isNaN(ret));
+        }
+        for (int f = 0; f < k; f++) {
+            double sumVjfXj = sumVfX[f];
+            ret += 0.5d * (sumVjfXj * sumVjfXj - sumV2X2[f]);
         }
         if (!NumberUtils.isFinite(ret)) {
             throw new HiveException("Detected " + ret
@@ -229,21 +266,34 @@ public abstract class FactorizationMachineModel {
         setW(x, nextWi);
     }
 
-    final void updateV(final double dloss, @Nonnull final Feature x, final int f,
-            final double sumViX, final float eta) {
+    /**
+     * Updates V of the feature for all the factors in a pass over contiguous V.
+     * 
+     * @param sumVfX \sum_j V_jf * x_j for each factor f given by {@link #predict(Feature[], double[])}
+     */
+    final void updateV(final double dloss, @Nonnull final Feature x,
+            @Nonnull final double[] sumVfX, final float eta) {
+        final float[] V = getV(x);
+        if (V == null) {
+            throw new IllegalStateException("V[" + x.getFeature() + "] was null");
+        }
+        final float[] lambdaV = _lambdaV;
         final double Xi = x.getValue();
-        float Vif = getV(x, f);
-        double h = gradV(Xi, Vif, sumViX);
-        float gradV = (float) (dloss * h);
-        float LambdaVf = getLambdaV(f);
-        float nextVif = Vif - eta * (gradV + 2.f * LambdaVf * Vif);
-        if (!NumberUtils.isFinite(nextVif)) {
-            throw new IllegalStateException("Got " + nextVif + " for next V" + f + '['
-                    + x.getFeature() + "]\n" + "Xi=" + Xi + ", Vif=" + Vif + ", h=" + h
-                    + ", gradV=" + gradV + ", lambdaVf=" + LambdaVf + ", dloss=" + dloss
-                    + ", sumViX=" + sumViX + ", eta=" + eta);
+        boolean finite = true;
+        for (int f = 0, k = _factor; f < k; f++) {
+            float Vif = V[f];
+            double h = gradV(Xi, Vif, sumVfX[f]);
+            float gradV = (float) (dloss * h);
+            float nextVif = Vif - eta * (gradV + 2.f * lambdaV[f] * Vif);
+            finite &= NumberUtils.isFinite(nextVif);
+            V[f] = nextVif;
+        }
+        if (!finite) {
+            throw new IllegalStateException("Got " + Arrays.toString(V) + " for next V["
+                    + x.getFeature() + "]\n" + "Xi=" + Xi + ", dloss=" + dloss + ", sumVfX="
+                    + Arrays.toString(sumVfX) + ", lambdaV=" + Arrays.toString(lambdaV)
+                    + ", eta=" + eta);
         }
-        setV(x, f, nextVif);
     }
 
     final void updateLambdaW0(final double dloss, final float eta) {
@@ -300,15 +350,6 @@ public abstract class FactorizationMachineModel {
         }
     }
 
-    double[] sumVfX(@Nonnull final Feature[] x) {
-        final int k = _factor;
-        final double[] ret = new double[k];
-        for (int f = 0; f < k; f++) {
-            ret[f] = sumVfX(x, f);
-        }
-        return ret;
-    }
-
     private double sumVfX(@Nonnull final Feature[] x, final int f) {
         double ret = 0.d;
         for (Feature e : x) {
@@ -21,6 +21,7 @@ package hivemall.fm;
 import hivemall.UDTFWithOptions;
 import hivemall.common.ConversionState;
 import hivemall.common.EtaEstimator;
+import hivemall.common.HogwildTrainer;
 import hivemall.common.LossFunctions;
 import hivemall.common.LossFunctions.LossFunction;
 import hivemall.common.LossFunctions.LossType;
@@ -28,13 +29,10 @@ import hivemall.fm.FMStringFeatureMapModel.Entry;
 import hivemall.utils.collections.IMapIterator;
 import hivemall.utils.hadoop.HiveUtils;
 import hivemall.utils.io.FileUtils;
-import hivemall.utils.io.NioStatefullSegment;
 import hivemall.utils.lang.NumberUtils;
 import hivemall.utils.math.MathUtils;
 
 import java.io.File;
-import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
@@ -65,9 +63,8 @@ import org.apache.hadoop.mapred.Reporter;
 @Description(
         name = "train_fm",
         value = "_FUNC_(array<string> x, double y [, const string options]) - Returns a prediction model")
-public class FactorizationMachineUDTF extends UDTFWithOptions {
+public class FactorizationMachineUDTF extends UDTFWithOptions implements Cloneable {
     private static final Log LOG = LogFactory.getLog(FactorizationMachineUDTF.class);
-    private static final int INT_BYTES = Integer.SIZE / 8;
 
     protected ListObjectInspector _xOI;
     protected PrimitiveObjectInspector _yOI;
@@ -85,6 +82,7 @@ public class FactorizationMachineUDTF extends UDTFWithOptions {
 
     protected boolean _classification;
     protected int _iterations;
+    protected int _numThreads;
     protected int _factors;
     protected boolean _parseFeatureAsInt;
 
@@ -98,6 +96,10 @@ public class FactorizationMachineUDTF extends UDTFWithOptions {
     protected EtaEstimator _etaEstimator;
     protected ConversionState _cvState;
 
+    /** Buffers of \sum_j v_jf x_j and \sum_j (v_jf x_j)^2 reused for each example, per thread */
+    private double[] _sumVfXBuf;
+    private double[] _sumV2X2Buf;
+
     // ----------------------------------------
 
     protected transient FactorizationMachineModel _model;
@@ -107,9 +109,10 @@ public class FactorizationMachineUDTF extends UDTFWithOptions {
      */
     protected long _t;
 
-    // file IO
-    private ByteBuffer _inputBuf;
-    private NioStatefullSegment _fileIO;
+    /**
+     * Training examples recorded for the following iterations
+     */
+    private ReplayBuffer _replayBuf;
 
     @Override
     protected Options getOptions() {
@@ -117,6 +120,9 @@ public class FactorizationMachineUDTF extends UDTFWithOptions {
         opts.addOption("c", "classification", false, "Act as classification");
         opts.addOption("seed", true, "Seed value [default: -1 (random)]");
         opts.addOption("iters", "iterations", true, "The number of iterations [default: 1]");
+        opts.addOption("threads", "num_threads", true,
+            "The number of threads to run the iterations after the first one, Hogwild-style"
+                    + " [default: 1]");
         opts.addOption("p", "num_features", true, "The size of feature dimensions");
         opts.addOption("factor", "factors", true, "The number of the latent variables [default: 5]");
         opts.addOption("sigma", true, "The standard deviation for initializing V [default: 0.1]");
@@ -183,7 +189,10 @@ public class FactorizationMachineUDTF extends UDTFWithOptions {
 
         this._classification = params.classification;
         this._iterations = params.iters;
+        this._numThreads = params.numThreads;
         this._factors = params.factors;
+        this._sumVfXBuf = new double[params.factors];
+        this._sumV2X2Buf = new double[params.factors];
         this._parseFeatureAsInt = params.parseFeatureAsInt;
         if (params.adaptiveReglarization) {
             this._va_rand = new Random(params.seed + 31L);
@@ -295,53 +304,16 @@ public class FactorizationMachineUDTF extends UDTFWithOptions {
             return;
         }
 
-        ByteBuffer inputBuf = _inputBuf;
-        NioStatefullSegment dst = _fileIO;
-        if (inputBuf == null) {
-            final File file;
-            try {
-                file = File.createTempFile("hivemall_fm", ".sgmt");
-                file.deleteOnExit();
-                if (!file.canWrite()) {
-                    throw new UDFArgumentException("Cannot write a temporary file: "
-                            + file.getAbsolutePath());
-                }
-                LOG.info("Record training examples to a file: " + file.getAbsolutePath());
-            } catch (IOException ioe) {
-                throw new UDFArgumentException(ioe);
-            } catch (Throwable e) {
-                throw new UDFArgumentException(e);
-            }
-
-            this._inputBuf = inputBuf = ByteBuffer.allocateDirect(1024 * 1024); // 1 MiB
-            this._fileIO = dst = new NioStatefullSegment(file, false);
-        }
-
-        int xBytes = Feature.requiredBytes(x);
-        int recordBytes = (Integer.SIZE + Double.SIZE) / 8 + xBytes;
-        int requiredBytes = (Integer.SIZE / 8) + recordBytes;
-        int remain = inputBuf.remaining();
-        if (remain < requiredBytes) {
-            writeBuffer(inputBuf, dst);
+        ReplayBuffer buf = _replayBuf;
+        if (buf == null) {
+            this._replayBuf = buf = newReplayBuffer();
         }
-
-        inputBuf.putInt(recordBytes);
-        inputBuf.putInt(x.length);
-        for (Feature f : x) {
-            f.writeTo(inputBuf);
-        }
-        inputBuf.putDouble(y);
+        buf.add(x, y);
     }
 
-    private static void writeBuffer(@Nonnull ByteBuffer srcBuf, @Nonnull NioStatefullSegment dst)
-            throws HiveException {
-        srcBuf.flip();
-        try {
-            dst.write(srcBuf);
-        } catch (IOException e) {
-            throw new HiveException("Exception causes while writing a buffer to file", e);
-        }
-        srcBuf.clear();
+    @Nonnull
+    protected ReplayBuffer newReplayBuffer() {
+        return new ReplayBuffer(!_parseFeatureAsInt);
     }
 
     public void train(@Nonnull final Feature[] x, final double y,
@@ -371,7 +343,8 @@ public class FactorizationMachineUDTF extends UDTFWithOptions {
     protected void trainTheta(final Feature[] x, final double y) throws HiveException {
         final float eta = _etaEstimator.eta(_t);
 
-        final double p = _model.predict(x);
+        final double[] sumVfx = _sumVfXBuf;
+        final double p = _model.predict(x, sumVfx, _sumV2X2Buf);
         final double lossGrad = _model.dloss(p, y);
         double loss = _lossFunction.loss(p, y);
         _cvState.incrLoss(loss);
@@ -383,14 +356,11 @@ public class FactorizationMachineUDTF extends UDTFWithOptions {
         // w0 update
         _model.updateW0(lossGrad, eta);
 
-        final double[] sumVfx = _model.sumVfX(x);
         for (Feature xi : x) {
             // wi update
             _model.updateWi(lossGrad, xi, eta);
-            for (int f = 0, k = _factors; f < k; f++) {
-                // Vif update
-                _model.updateV(lossGrad, xi, f, sumVfx[f], eta);
-            }
+            // Vi update
+            _model.updateV(lossGrad, xi, sumVfx, eta);
         }
     }
 
@@ -521,10 +491,8 @@ public class FactorizationMachineUDTF extends UDTFWithOptions {
     }
 
     protected void runTrainingIteration(int iterations) throws HiveException {
-        final ByteBuffer inputBuf = this._inputBuf;
-        final NioStatefullSegment fileIO = this._fileIO;
-        assert (inputBuf != null);
-        assert (fileIO != null);
+        final ReplayBuffer replayBuf = this._replayBuf;
+        assert (replayBuf != null);
         final long numTrainingExamples = _t;
         final boolean adaregr = _va_rand != null;
 
@@ -533,141 +501,135 @@ public class FactorizationMachineUDTF extends UDTFWithOptions {
             "hivemall.fm.FactorizationMachines$Counter", "iteration");
 
         try {
-            if (fileIO.getPosition() == 0L) {// run iterations w/o temporary file
-                if (inputBuf.position() == 0) {
-                    return; // no training example
-                }
-                inputBuf.flip();
+            if (replayBuf.isEmpty()) {
+                return; // no training example
+            }
+            replayBuf.flush();
+            final File tmpFile = replayBuf.getFile();
+            if (tmpFile != null && LOG.isInfoEnabled()) {
+                LOG.info("Wrote " + numTrainingExamples
+                        + " records to a temporary file for iterative training: "
+                        + tmpFile.getAbsolutePath() + " (" + FileUtils.prettyFileSize(tmpFile)
+                        + ")");
+            }
 
-                int iter = 2;
+            int iter = 2;
+            if (_numThreads > 1) {
                 for (; iter <= iterations; iter++) {
                     reportProgress(reporter);
                     setCounterValue(iterCounter, iter);
 
-                    while (inputBuf.remaining() > 0) {
-                        int bytes = inputBuf.getInt();
-                        assert (bytes > 0) : bytes;
-                        int xLength = inputBuf.getInt();
-                        final Feature[] x = new Feature[xLength];
-                        for (int j = 0; j < xLength; j++) {
-                            x[j] = instantiateFeature(inputBuf);
-                        }
-                        double y = inputBuf.getDouble();
-                        // invoke train
-                        ++_t;
-                        train(x, y, adaregr);
-                    }
+                    runParallelIteration(replayBuf, reporter);
+
                     if (_cvState.isConverged(iter, numTrainingExamples)) {
                         break;
                     }
-                    inputBuf.rewind();
                 }
-                LOG.info("Performed " + Math.min(iter, iterations) + " iterations of "
-                        + NumberUtils.formatNumber(numTrainingExamples)
-                        + " training examples on memory (thus " + NumberUtils.formatNumber(_t)
-                        + " training updates in total) ");
-            } else {// read training examples in the temporary file and invoke train for each example
-
-                // write training examples in buffer to a temporary file
-                if (inputBuf.remaining() > 0) {
-                    writeBuffer(inputBuf, fileIO);
-                }
-                try {
-                    fileIO.flush();
-                } catch (IOException e) {
-                    throw new HiveException("Failed to flush a file: "
-                            + fileIO.getFile().getAbsolutePath(), e);
-                }
-                if (LOG.isInfoEnabled()) {
-                    File tmpFile = fileIO.getFile();
-                    LOG.info("Wrote " + numTrainingExamples
-                            + " records to a temporary file for iterative training: "
-                            + tmpFile.getAbsolutePath() + " (" + FileUtils.prettyFileSize(tmpFile)
-                            + ")");
-                }
-
-                // run iterations
-                int iter = 2;
+            } else {
+                final ReplayBuffer.ExampleHandler handler = new ReplayBuffer.ExampleHandler() {
+                    @Override
+                    public void handle(@Nonnull final Feature[] x, final double y)
+                            throws HiveException {
+                        ++_t;
+                        train(x, y, adaregr);
+                        if ((_t & 0xFFFF) == 0L) {
+                            reportProgress(reporter);
+                        }
+                    }
+                };
                 for (; iter <= iterations; iter++) {
+                    reportProgress(reporter);
                     setCounterValue(iterCounter, iter);
 
-                    inputBuf.clear();
-                    fileIO.resetPosition();
-                    while (true) {
-                        reportProgress(reporter);
-                        // TODO prefetch
-                        // writes training examples to a buffer in the temporary file
-                        final int bytesRead;
-                        try {
-                            bytesRead = fileIO.read(inputBuf);
-                        } catch (IOException e) {
-                            throw new HiveException("Failed to read a file: "
-                                    + fileIO.getFile().getAbsolutePath(), e);
-                        }
-                        if (bytesRead == 0) { // reached file EOF
-                            break;
-                        }
-                        assert (bytesRead > 0) : bytesRead;
+                    replayBuf.replay(handler);
 
-                        // reads training examples from a buffer
-                        inputBuf.flip();
-                        int remain = inputBuf.remaining();
-                        if (remain < INT_BYTES) {
-                            throw new HiveException("Illegal file format was detected");
-                        }
-                        while (remain >= INT_BYTES) {
-                            int pos = inputBuf.position();
-                            int recordBytes = inputBuf.getInt();
-                            remain -= INT_BYTES;
-                            if (remain < recordBytes) {
-                                inputBuf.position(pos);
-                                break;
-                            }
-
-                            final int xLength = inputBuf.getInt();
-                            final Feature[] x = new Feature[xLength];
-                            for (int j = 0; j < xLength; j++) {
-                                x[j] = instantiateFeature(inputBuf);
-                            }
-                            double y = inputBuf.getDouble();
-
-                            // invoke training
-                            ++_t;
-                            train(x, y, adaregr);
-
-                            remain -= recordBytes;
-                        }
-                        inputBuf.compact();
-                    }
                     if (_cvState.isConverged(iter, numTrainingExamples)) {
                         break;
                     }
                 }
-                LOG.info("Performed " + Math.min(iter, iterations) + " iterations of "
-                        + NumberUtils.formatNumber(numTrainingExamples)
-                        + " training examples on a secondary storage (thus "
-                        + NumberUtils.formatNumber(_t) + " training updates in total)");
             }
+            LOG.info("Performed " + Math.min(iter, iterations) + " iterations of "
+                    + NumberUtils.formatNumber(numTrainingExamples) + " training examples on "
+                    + (tmpFile == null ? "memory" : "a secondary storage") + " (thus "
+                    + NumberUtils.formatNumber(_t) + " training updates in total)");
         } finally {
             // delete the temporary file and release resources
-            try {
-                fileIO.close(true);
-            } catch (IOException e) {
-                throw new HiveException("Failed to close a file: "
-                        + fileIO.getFile().getAbsolutePath(), e);
+            replayBuf.close();
+            this._replayBuf = null;
+        }
+    }
+
+    /**
+     * Runs an iteration in threads, each of which replays a partition of the training examples
+     * and updates the shared model without locks as Hogwild! does. Losses of the threads are
+     * summed up into {@link #_cvState} for the convergence check.
+     * 
+     * @link https://arxiv.org/abs/1106.5730
+     */
+    private void runParallelIteration(@Nonnull final ReplayBuffer replayBuf,
+            @Nullable final Reporter reporter) throws HiveException {
+        final int numThreads = _numThreads;
+        final boolean adaregr = _va_rand != null;
+        final long t0 = _t;
+
+        final FactorizationMachineUDTF[] workers = new FactorizationMachineUDTF[numThreads];
+        final HogwildTrainer trainer = new HogwildTrainer(numThreads);
+        try {
+            for (int i = 0; i < numThreads; i++) {
+                final int partition = i;
+                final FactorizationMachineUDTF worker = newWorker();
+                // each worker counts examples as if the partitions were processed in turn
+                worker._t = t0 + 1 + partition;
+                workers[i] = worker;
+                trainer.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            replayBuf.replay(new ReplayBuffer.ExampleHandler() {
+                                @Override
+                                public void handle(@Nonnull final Feature[] x, final double y)
+                                        throws HiveException {
+                                    worker.train(x, y, adaregr);
+                                    worker._t += numThreads;
+                                    if ((worker._t & 0xFFFF) < numThreads) {
+                                        reportProgress(reporter);
+                                    }
+                                }
+                            }, partition, numThreads);
+                        } catch (HiveException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                });
             }
-            this._inputBuf = null;
-            this._fileIO = null;
+        } finally {
+            trainer.shutdown();
         }
+
+        for (FactorizationMachineUDTF worker : workers) {
+            _cvState.incrLoss(worker._cvState.getCumulativeLoss());
+        }
+        this._t = t0 + replayBuf.getNumExamples();
     }
 
+    /**
+     * Returns a trainer for a thread of parallel iterations. The trainer shares the model and the
+     * hyper-parameters with this one while it has its own counters and caches.
+     */
     @Nonnull
-    protected Feature instantiateFeature(@Nonnull final ByteBuffer input) {
-        if (_parseFeatureAsInt) {
-            return new IntFeature(input);
-        } else {
-            return new StringFeature(input);
+    protected FactorizationMachineUDTF newWorker() throws HiveException {
+        final FactorizationMachineUDTF worker;
+        try {
+            worker = (FactorizationMachineUDTF) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new HiveException(e);
         }
+        worker._probes = null;
+        worker._replayBuf = null;
+        worker._cvState = new ConversionState(false, 0.d);
+        worker._sumVfXBuf = new double[_factors];
+        worker._sumV2X2Buf = new double[_factors];
+        return worker;
     }
 
 }
@@ -27,7 +27,6 @@ import hivemall.utils.lang.NumberUtils;
 import hivemall.utils.math.MathUtils;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import javax.annotation.Nonnull;
@@ -250,8 +249,17 @@ public final class FieldAwareFactorizationMachineUDTF extends FactorizationMachi
     }
 
     @Override
-    protected IntFeature instantiateFeature(@Nonnull final ByteBuffer input) {
-        return new IntFeature(input);
+    protected ReplayBuffer newReplayBuffer() {
+        return new ReplayBuffer(false);
+    }
+
+    @Override
+    protected FieldAwareFactorizationMachineUDTF newWorker() throws HiveException {
+        final FieldAwareFactorizationMachineUDTF worker;
+        worker = (FieldAwareFactorizationMachineUDTF) super.newWorker();
+        worker._fieldList = new IntArrayList();
+        worker._sumVfX = null;
+        return worker;
     }
 
     @Override
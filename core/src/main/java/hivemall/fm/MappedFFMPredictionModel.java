@@ -0,0 +1,388 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.fm;
+
+import hivemall.utils.codec.ZigZagLEB128Codec;
+import hivemall.utils.collections.IntOpenHashTable;
+import hivemall.utils.io.Base91InputStream;
+import hivemall.utils.io.CompressionStreamFactory;
+import hivemall.utils.io.CompressionStreamFactory.CompressionAlgorithm;
+import hivemall.utils.io.FastByteArrayInputStream;
+import hivemall.utils.io.IOUtils;
+import hivemall.utils.io.NIOUtils;
+import hivemall.utils.lang.ArrayUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A read-only FFM prediction model that is memory-mapped from a flat file and read in place.
+ * 
+ * The file consists of a header followed by the keys and the slots of the open-addressing hash
+ * table of {@link FFMPredictionModel} and the entries of W and V in float. A slot holds the index
+ * of the entry or -1 for a free slot. The body is written in the native byte order by
+ * {@link #create(byte[], int, File)}, which decodes a serialized {@link FFMPredictionModel} into
+ * the file as a stream without building the model on the Java heap.
+ */
+@ThreadSafe
+public final class MappedFFMPredictionModel {
+    private static final Log LOG = LogFactory.getLog(MappedFFMPredictionModel.class);
+
+    private static final int MAGIC = 0x4846464d; // "HFFM"
+    private static final int VERSION = 1;
+    /** magic, version, w0, factors, numFeatures, numFields, size, used, byte order */
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 4 + 4 + 4 + 4;
+    private static final int FREE = -1;
+
+    @Nonnull
+    private final File file;
+    private final double w0;
+    private final int factors;
+    private final int numFeatures;
+    private final int numFields;
+    private final int used;
+
+    @Nonnull
+    private final IntBuffer keys;
+    @Nonnull
+    private final IntBuffer slots;
+    @Nonnull
+    private final FloatBuffer entries;
+    private final long bytes;
+
+    private MappedFFMPredictionModel(@Nonnull File file, double w0, int factors, int numFeatures,
+            int numFields, int used, @Nonnull IntBuffer keys, @Nonnull IntBuffer slots,
+            @Nonnull FloatBuffer entries, long bytes) {
+        this.file = file;
+        this.w0 = w0;
+        this.factors = factors;
+        this.numFeatures = numFeatures;
+        this.numFields = numFields;
+        this.used = used;
+        this.keys = keys;
+        this.slots = slots;
+        this.entries = entries;
+        this.bytes = bytes;
+    }
+
+    @Nonnull
+    public File getFile() {
+        return file;
+    }
+
+    public double getW0() {
+        return w0;
+    }
+
+    public int getNumFactors() {
+        return factors;
+    }
+
+    public int getNumFeatures() {
+        return numFeatures;
+    }
+
+    public int getNumFields() {
+        return numFields;
+    }
+
+    public int getActualNumFeatures() {
+        return used;
+    }
+
+    /**
+     * @return the number of bytes mapped
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    public float getW(@Nonnull final Feature x) {
+        int j = x.getFeatureIndex();
+
+        int entry = findEntry(j);
+        if (entry == FREE) {
+            return 0.f;
+        }
+        return entries.get(entry * (1 + factors));
+    }
+
+    /**
+     * @return true if V exists
+     */
+    public boolean getV(@Nonnull final Feature x, final int yField, @Nonnull final float[] dst) {
+        int j = Feature.toIntFeature(x, yField, numFields);
+
+        int entry = findEntry(j);
+        if (entry == FREE) {
+            return false;
+        }
+        final int offset = entry * (1 + factors) + 1;
+        for (int f = 0; f < factors; f++) {
+            dst[f] = entries.get(offset + f);
+        }
+        if (ArrayUtils.equals(dst, 0.f)) {
+            return false; // treat as null
+        }
+        return true;
+    }
+
+    /**
+     * Probes the slots in the same way as {@link hivemall.utils.collections.Int2LongOpenHashTable}.
+     * 
+     * @return the index of the entry or -1 if not found
+     */
+    private int findEntry(final int key) {
+        final IntBuffer keys = this.keys;
+        final IntBuffer slots = this.slots;
+        final int size = keys.capacity();
+
+        final int hash = key & 0x7fffffff;
+        int i = hash % size;
+        int slot = slots.get(i);
+        if (slot == FREE) {
+            return FREE;
+        }
+        if (keys.get(i) == key) {
+            return slot;
+        }
+        final int decr = 1 + (hash % (size - 2));
+        for (;;) {
+            i -= decr;
+            if (i < 0) {
+                i += size;
+            }
+            slot = slots.get(i);
+            if (slot == FREE) {
+                return FREE;
+            }
+            if (keys.get(i) == key) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Decodes a model serialized by {@link FFMPredictionModel#serialize()} into the file, and then
+     * maps the file.
+     */
+    @Nonnull
+    public static MappedFFMPredictionModel create(@Nonnull final byte[] serialized,
+            final int length, @Nonnull final File file) throws IOException {
+        final FlatFileWriter writer = new FlatFileWriter(file);
+        final FastByteArrayInputStream bis = new FastByteArrayInputStream(serialized, length);
+        InputStream in = null;
+        InputStream compressedStream = null;
+        try {
+            in = new Base91InputStream(bis);
+            compressedStream = CompressionStreamFactory.createInputStream(in,
+                CompressionAlgorithm.lzma2);
+            writer.write(new ObjectInputStream(compressedStream));
+        } finally {
+            IOUtils.closeQuietly(compressedStream);
+            IOUtils.closeQuietly(in);
+        }
+        return map(file);
+    }
+
+    /**
+     * Maps a file written by {@link #create(byte[], int, File)}.
+     */
+    @Nonnull
+    public static MappedFFMPredictionModel map(@Nonnull final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            NIOUtils.readFully(channel, header, 0L);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a FFM model file: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version + ": " + file);
+            }
+            final double w0 = header.getDouble();
+            final int factors = header.getInt();
+            final int numFeatures = header.getInt();
+            final int numFields = header.getInt();
+            final int size = header.getInt();
+            final int used = header.getInt();
+            final ByteOrder order = (header.getInt() == 0) ? ByteOrder.BIG_ENDIAN
+                    : ByteOrder.LITTLE_ENDIAN;
+            if (order != ByteOrder.nativeOrder()) {
+                throw new IOException("Unexpected byte order " + order + ": " + file);
+            }
+            final long tableBytes = size * 4L;
+            final long entryBytes = used * (1L + factors) * 4L;
+            final long expected = HEADER_BYTES + tableBytes * 2L + entryBytes;
+            if (size <= 2 || used > size || channel.size() != expected) {
+                throw new IOException("Corrupted FFM model file: " + file);
+            }
+
+            IntBuffer keys = channel.map(MapMode.READ_ONLY, HEADER_BYTES, tableBytes)
+                                    .order(order)
+                                    .asIntBuffer();
+            IntBuffer slots = channel.map(MapMode.READ_ONLY, HEADER_BYTES + tableBytes,
+                tableBytes).order(order).asIntBuffer();
+            FloatBuffer entries = channel.map(MapMode.READ_ONLY,
+                HEADER_BYTES + tableBytes * 2L, checkMappable(entryBytes, file))
+                                         .order(order)
+                                         .asFloatBuffer();
+            return new MappedFFMPredictionModel(file, w0, factors, numFeatures, numFields, used,
+                keys, slots, entries, expected);
+        } finally {
+            raf.close(); // mappings remain valid after closing the channel
+        }
+    }
+
+    private static long checkMappable(final long bytes, @Nonnull final File file)
+            throws IOException {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IOException("Too large entries to map (" + bytes + " bytes): " + file);
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads the stream written by {@link FFMPredictionModel#writeExternal(ObjectOutput)} and writes
+     * the flat file.
+     */
+    private static final class FlatFileWriter {
+
+        @Nonnull
+        private final File file;
+
+        FlatFileWriter(@Nonnull File file) {
+            this.file = file;
+        }
+
+        void write(@Nonnull final ObjectInput in) throws IOException {
+            final double w0 = in.readDouble();
+            final int factors = in.readInt();
+            final int numFeatures = in.readInt();
+            final int numFields = in.readInt();
+            final int used = in.readInt();
+            final int size = in.readInt();
+            final byte[] states = new byte[size];
+            FFMPredictionModel.readStates(in, states);
+            final long tableBytes = size * 4L;
+            checkMappable(used * (1L + factors) * 4L, file);
+
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                final FileChannel channel = raf.getChannel();
+                channel.truncate(0L);
+
+                final int[] keys = new int[size];
+                final int[] slots = new int[size];
+                final float[] Vf = new float[factors];
+                final ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 1024).order(
+                    ByteOrder.nativeOrder()); // 1 MiB
+                final int entryBytes = (1 + factors) * 4;
+                long pos = HEADER_BYTES + tableBytes * 2L;
+                int entry = 0;
+                for (int i = 0; i < size; i++) {
+                    if (states[i] != IntOpenHashTable.FULL) {
+                        slots[i] = FREE;
+                        continue;
+                    }
+                    keys[i] = ZigZagLEB128Codec.readSignedInt(in);
+                    slots[i] = entry++;
+                    float W = FFMPredictionModel.readEntry(in, Vf);
+                    if (buf.remaining() < entryBytes) {
+                        pos += write(buf, channel, pos);
+                    }
+                    buf.putFloat(W);
+                    for (float v : Vf) {
+                        buf.putFloat(v);
+                    }
+                }
+                write(buf, channel, pos);
+                if (entry != used) {
+                    throw new IOException("Expected " + used + " entries but got " + entry);
+                }
+
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putDouble(w0);
+                header.putInt(factors);
+                header.putInt(numFeatures);
+                header.putInt(numFields);
+                header.putInt(size);
+                header.putInt(used);
+                header.putInt(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 0 : 1);
+                pos = write(header, channel, 0L);
+                pos += write(keys, buf, channel, pos);
+                write(slots, buf, channel, pos);
+                channel.force(false);
+            } catch (IOException e) {
+                IOUtils.closeQuietly(raf);
+                file.delete();
+                throw e;
+            }
+            raf.close();
+            LOG.info("Wrote a FFM model of " + used + " entries to " + file.getAbsolutePath()
+                    + " (" + file.length() + " bytes)");
+        }
+
+        private static int write(@Nonnull final ByteBuffer buf, @Nonnull final FileChannel dst,
+                @Nonnegative final long pos) throws IOException {
+            buf.flip();
+            int n = NIOUtils.writeFully(dst, buf, pos);
+            buf.clear();
+            return n;
+        }
+
+        private static long write(@Nonnull final int[] src, @Nonnull final ByteBuffer buf,
+                @Nonnull final FileChannel dst, @Nonnegative long pos) throws IOException {
+            final long start = pos;
+            for (int v : src) {
+                if (buf.remaining() < 4) {
+                    pos += write(buf, dst, pos);
+                }
+                buf.putInt(v);
+            }
+            pos += write(buf, dst, pos);
+            return pos - start;
+        }
+
+    }
+
+}
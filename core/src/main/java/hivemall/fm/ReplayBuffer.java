@@ -0,0 +1,563 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.fm;
+
+import hivemall.utils.collections.DoubleArrayList;
+import hivemall.utils.collections.IntArrayList;
+import hivemall.utils.io.NioStatefullSegment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+
+/**
+ * A buffer of training examples replayed in the iterations of FM/FFM training.
+ *
+ * Examples are packed into blocks of primitive columns, i.e., the numbers of features, targets,
+ * feature indices, fields, and values. String features are replaced with indices of a dictionary.
+ * A block omits fields when no feature has a field and values when all of them are 1, and stores
+ * values in float when no precision is lost.
+ *
+ * Blocks are spilled to a temporary file when the memory buffer is full. The file is read through
+ * memory-mapped windows, each of which is loaded at once before replaying.
+ *
+ * Replayed examples are decoded into flyweight features that are reused for the following examples.
+ */
+@NotThreadSafe
+public final class ReplayBuffer {
+    private static final Log LOG = LogFactory.getLog(ReplayBuffer.class);
+
+    static final int DEFAULT_BUFFER_BYTES = 1024 * 1024; // 1 MiB
+    static final int DEFAULT_BLOCK_BYTES = 64 * 1024; // 64 KiB
+    private static final long WINDOW_BYTES = 64L * 1024L * 1024L; // 64 MiB
+
+    private static final byte HAS_FIELDS = 1;
+    private static final byte VALUES_AS_FLOAT = 2;
+    private static final byte VALUES_OMITTED = 4;
+    /** numRows, numFeatures, and flags */
+    private static final int HEADER_BYTES = 4 + 4 + 1;
+
+    private final boolean stringFeature;
+    private final int blockBytes;
+
+    @Nullable
+    private final Map<String, Integer> dictionary;
+    @Nullable
+    private final ArrayList<String> strings;
+
+    // columns of the block being recorded
+    private final IntArrayList lengths;
+    private final DoubleArrayList targets;
+    private final IntArrayList indices;
+    private final IntArrayList fields;
+    private final DoubleArrayList values;
+    private boolean hasFields;
+    private boolean allOnes;
+    private boolean floatValues;
+
+    /** Encoded blocks in memory */
+    @Nonnull
+    private final ByteBuffer buffer;
+    @Nullable
+    private NioStatefullSegment fileIO;
+    private long spilledBytes;
+
+    private long numExamples;
+    private int numBlocks;
+
+    public ReplayBuffer(boolean stringFeature) {
+        this(stringFeature, DEFAULT_BUFFER_BYTES, DEFAULT_BLOCK_BYTES);
+    }
+
+    ReplayBuffer(boolean stringFeature, @Nonnegative int bufferBytes, @Nonnegative int blockBytes) {
+        if (blockBytes > bufferBytes) {
+            throw new IllegalArgumentException("blockBytes " + blockBytes
+                    + " must be less than or equal to bufferBytes " + bufferBytes);
+        }
+        this.stringFeature = stringFeature;
+        this.blockBytes = blockBytes;
+        if (stringFeature) {
+            this.dictionary = new HashMap<String, Integer>(1024);
+            this.strings = new ArrayList<String>(1024);
+        } else {
+            this.dictionary = null;
+            this.strings = null;
+        }
+        this.lengths = new IntArrayList(1024);
+        this.targets = new DoubleArrayList(1024);
+        this.indices = new IntArrayList(8192);
+        this.fields = new IntArrayList(8192);
+        this.values = new DoubleArrayList(8192);
+        resetBlock();
+        this.buffer = ByteBuffer.allocateDirect(bufferBytes).order(ByteOrder.nativeOrder());
+        this.fileIO = null;
+        this.spilledBytes = 0L;
+        this.numExamples = 0L;
+        this.numBlocks = 0;
+    }
+
+    public long getNumExamples() {
+        return numExamples;
+    }
+
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
+    public boolean isEmpty() {
+        return numExamples == 0L;
+    }
+
+    /**
+     * @return the temporary file if blocks are spilled
+     */
+    @Nullable
+    public File getFile() {
+        return (fileIO == null) ? null : fileIO.getFile();
+    }
+
+    public void add(@Nonnull final Feature[] x, final double y) throws HiveException {
+        final int numRows = lengths.size();
+        if (numRows > 0 && maxBlockBytes(numRows + 1, indices.size() + x.length) > blockBytes) {
+            flushBlock();
+        }
+
+        lengths.add(x.length);
+        targets.add(y);
+        for (Feature f : x) {
+            if (stringFeature) {
+                indices.add(indexOf(f.getFeature()));
+            } else {
+                indices.add(f.getFeatureIndex());
+                short field = f.getField();
+                fields.add(field);
+                if (field != -1) {
+                    this.hasFields = true;
+                }
+            }
+            final double v = f.value;
+            values.add(v);
+            if (v != 1.d) {
+                this.allOnes = false;
+                if ((float) v != v) {
+                    this.floatValues = false;
+                }
+            }
+        }
+        numExamples++;
+    }
+
+    private int indexOf(@Nonnull final String feature) {
+        assert (dictionary != null);
+        assert (strings != null);
+        Integer index = dictionary.get(feature);
+        if (index == null) {
+            index = Integer.valueOf(strings.size());
+            dictionary.put(feature, index);
+            strings.add(feature);
+        }
+        return index.intValue();
+    }
+
+    private static int maxBlockBytes(final int numRows, final int numFeatures) {
+        return HEADER_BYTES + numRows * (4 + 8) + numFeatures * (4 + 2 + 8);
+    }
+
+    private void resetBlock() {
+        lengths.clear();
+        targets.clear();
+        indices.clear();
+        fields.clear();
+        values.clear();
+        this.hasFields = false;
+        this.allOnes = true;
+        this.floatValues = true;
+    }
+
+    private void flushBlock() throws HiveException {
+        final int numRows = lengths.size();
+        if (numRows == 0) {
+            return;
+        }
+        final int numFeatures = indices.size();
+        byte flags = 0;
+        int valueBytes = 8;
+        if (hasFields) {
+            flags |= HAS_FIELDS;
+        }
+        if (allOnes) {
+            flags |= VALUES_OMITTED;
+            valueBytes = 0;
+        } else if (floatValues) {
+            flags |= VALUES_AS_FLOAT;
+            valueBytes = 4;
+        }
+        final int bytes = HEADER_BYTES + numRows * (4 + 8) + numFeatures
+                * (4 + (hasFields ? 2 : 0) + valueBytes);
+
+        ByteBuffer dst = buffer;
+        if (dst.remaining() < 4 + bytes) {
+            spill(dst);
+            if (dst.remaining() < 4 + bytes) {// a huge example
+                dst = ByteBuffer.allocateDirect(4 + bytes).order(ByteOrder.nativeOrder());
+            }
+        }
+
+        dst.putInt(bytes);
+        dst.putInt(numRows);
+        dst.putInt(numFeatures);
+        dst.put(flags);
+        final int[] lengthArray = lengths.array();
+        for (int i = 0; i < numRows; i++) {
+            dst.putInt(lengthArray[i]);
+        }
+        final double[] targetArray = targets.array();
+        for (int i = 0; i < numRows; i++) {
+            dst.putDouble(targetArray[i]);
+        }
+        final int[] indexArray = indices.array();
+        for (int i = 0; i < numFeatures; i++) {
+            dst.putInt(indexArray[i]);
+        }
+        if (hasFields) {
+            final int[] fieldArray = fields.array();
+            for (int i = 0; i < numFeatures; i++) {
+                dst.putShort((short) fieldArray[i]);
+            }
+        }
+        final double[] valueArray = values.array();
+        if (valueBytes == 4) {
+            for (int i = 0; i < numFeatures; i++) {
+                dst.putFloat((float) valueArray[i]);
+            }
+        } else if (valueBytes == 8) {
+            for (int i = 0; i < numFeatures; i++) {
+                dst.putDouble(valueArray[i]);
+            }
+        }
+
+        if (dst != buffer) {
+            spill(dst);
+        }
+        numBlocks++;
+        resetBlock();
+    }
+
+    private void spill(@Nonnull final ByteBuffer src) throws HiveException {
+        if (src.position() == 0) {
+            return;
+        }
+        NioStatefullSegment dst = fileIO;
+        if (dst == null) {
+            final File file;
+            try {
+                file = File.createTempFile("hivemall_fm", ".sgmt");
+                file.deleteOnExit();
+                if (!file.canWrite()) {
+                    throw new HiveException("Cannot write a temporary file: "
+                            + file.getAbsolutePath());
+                }
+                LOG.info("Record training examples to a file: " + file.getAbsolutePath());
+            } catch (IOException e) {
+                throw new HiveException("Failed to create a temporary file", e);
+            }
+            this.fileIO = dst = new NioStatefullSegment(file, false);
+        }
+        src.flip();
+        try {
+            spilledBytes += dst.write(src);
+        } catch (IOException e) {
+            throw new HiveException("Exception causes while writing a buffer to file", e);
+        }
+        src.clear();
+    }
+
+    /**
+     * Finishes recording. Examples cannot be added after this call.
+     */
+    public void flush() throws HiveException {
+        flushBlock();
+        if (fileIO != null) {
+            spill(buffer);
+            try {
+                fileIO.flush();
+            } catch (IOException e) {
+                throw new HiveException("Failed to flush a file: "
+                        + fileIO.getFile().getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Replays all the recorded examples in order.
+     */
+    public void replay(@Nonnull final ExampleHandler handler) throws HiveException {
+        flush();
+        replay(handler, 0, 1);
+    }
+
+    /**
+     * Replays the examples of the blocks assigned to the partition, i.e., the blocks whose indices
+     * modulo numPartitions equal to the partition. Partitions can be replayed concurrently after
+     * {@link #flush()} is called.
+     */
+    public void replay(@Nonnull final ExampleHandler handler, @Nonnegative final int partition,
+            @Nonnegative final int numPartitions) throws HiveException {
+        if (partition < 0 || partition >= numPartitions) {
+            throw new IllegalArgumentException("Illegal partition " + partition + " of "
+                    + numPartitions + " partitions");
+        }
+        final Cursor cursor = new Cursor(this);
+        if (fileIO == null) {
+            final ByteBuffer blocks = buffer.duplicate().order(ByteOrder.nativeOrder());
+            blocks.flip();
+            replay(blocks, 0, partition, numPartitions, cursor, handler);
+            return;
+        }
+
+        long pos = 0L;
+        int blockIndex = 0;
+        while (pos < spilledBytes) {
+            long size = Math.min(WINDOW_BYTES, spilledBytes - pos);
+            MappedByteBuffer window = map(pos, size);
+            int last = lastBlockEnd(window);
+            if (last == 0) {// a block larger than the window
+                size = 4L + window.getInt(0);
+                window = map(pos, size);
+                last = (int) size;
+            }
+            window.load(); // read-ahead the window
+            window.limit(last);
+            blockIndex = replay(window, blockIndex, partition, numPartitions, cursor, handler);
+            pos += last;
+        }
+    }
+
+    @Nonnull
+    private MappedByteBuffer map(final long pos, final long size) throws HiveException {
+        assert (fileIO != null);
+        try {
+            MappedByteBuffer window = fileIO.map(pos, size);
+            window.order(ByteOrder.nativeOrder());
+            return window;
+        } catch (IOException e) {
+            throw new HiveException("Failed to map a file: "
+                    + fileIO.getFile().getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * @return the end of the last block fully contained in the window
+     */
+    private static int lastBlockEnd(@Nonnull final ByteBuffer window) {
+        final int limit = window.limit();
+        int pos = 0;
+        while (pos + 4 <= limit) {
+            int next = pos + 4 + window.getInt(pos);
+            if (next > limit || next < 0) {
+                break;
+            }
+            pos = next;
+        }
+        return pos;
+    }
+
+    /**
+     * @return the index of the block following the given blocks
+     */
+    private static int replay(@Nonnull final ByteBuffer blocks, int blockIndex,
+            final int partition, final int numPartitions, @Nonnull final Cursor cursor,
+            @Nonnull final ExampleHandler handler) throws HiveException {
+        int pos = blocks.position();
+        final int limit = blocks.limit();
+        while (pos < limit) {
+            final int bytes = blocks.getInt(pos);
+            if (blockIndex % numPartitions == partition) {
+                cursor.reset(blocks, pos + 4);
+                while (cursor.next()) {
+                    handler.handle(cursor.getX(), cursor.getY());
+                }
+            }
+            pos += 4 + bytes;
+            blockIndex++;
+        }
+        return blockIndex;
+    }
+
+    /**
+     * Releases the memory and deletes the temporary file if any.
+     */
+    public void close() throws HiveException {
+        resetBlock();
+        buffer.clear();
+        if (fileIO != null) {
+            try {
+                fileIO.close(true);
+            } catch (IOException e) {
+                throw new HiveException("Failed to close a file: "
+                        + fileIO.getFile().getAbsolutePath(), e);
+            } finally {
+                this.fileIO = null;
+            }
+        }
+    }
+
+    public interface ExampleHandler {
+
+        /**
+         * @param x flyweight features that are only valid in this call
+         */
+        void handle(@Nonnull Feature[] x, double y) throws HiveException;
+
+    }
+
+    /**
+     * Decodes the examples of a block into flyweight features.
+     */
+    static final class Cursor {
+
+        @Nullable
+        private final String[] strings;
+        private final boolean stringFeature;
+
+        /** Feature arrays indexed by their lengths */
+        @Nonnull
+        private Feature[][] probes;
+
+        private ByteBuffer block;
+        private int numRows;
+        private boolean hasFields;
+        private int valueBytes;
+        private int lengthPos, targetPos, indexPos, fieldPos, valuePos;
+
+        private int row;
+        private int feature;
+        private Feature[] x;
+        private double y;
+
+        Cursor(@Nonnull ReplayBuffer buf) {
+            this.stringFeature = buf.stringFeature;
+            this.strings = (buf.strings == null) ? null
+                    : buf.strings.toArray(new String[buf.strings.size()]);
+            this.probes = new Feature[32][];
+        }
+
+        void reset(@Nonnull final ByteBuffer block, final int offset) {
+            this.block = block;
+            final int numRows = block.getInt(offset);
+            final int numFeatures = block.getInt(offset + 4);
+            final byte flags = block.get(offset + 8);
+            this.numRows = numRows;
+            this.hasFields = (flags & HAS_FIELDS) != 0;
+            if ((flags & VALUES_OMITTED) != 0) {
+                this.valueBytes = 0;
+            } else if ((flags & VALUES_AS_FLOAT) != 0) {
+                this.valueBytes = 4;
+            } else {
+                this.valueBytes = 8;
+            }
+            this.lengthPos = offset + HEADER_BYTES;
+            this.targetPos = lengthPos + numRows * 4;
+            this.indexPos = targetPos + numRows * 8;
+            this.fieldPos = indexPos + numFeatures * 4;
+            this.valuePos = fieldPos + (hasFields ? numFeatures * 2 : 0);
+            this.row = 0;
+            this.feature = 0;
+        }
+
+        boolean next() {
+            if (row >= numRows) {
+                return false;
+            }
+            final ByteBuffer block = this.block;
+            final int length = block.getInt(lengthPos + row * 4);
+            this.y = block.getDouble(targetPos + row * 8);
+
+            final Feature[] x = getProbes(length);
+            for (int i = 0, j = feature; i < length; i++, j++) {
+                final Feature f = x[i];
+                final int index = block.getInt(indexPos + j * 4);
+                if (stringFeature) {
+                    f.setFeature(strings[index]);
+                } else {
+                    f.setFeatureIndex(index);
+                    f.setField(hasFields ? block.getShort(fieldPos + j * 2) : (short) -1);
+                }
+                switch (valueBytes) {
+                    case 0:
+                        f.value = 1.d;
+                        break;
+                    case 4:
+                        f.value = block.getFloat(valuePos + j * 4);
+                        break;
+                    default:
+                        f.value = block.getDouble(valuePos + j * 8);
+                        break;
+                }
+            }
+            this.x = x;
+            this.feature += length;
+            this.row++;
+            return true;
+        }
+
+        @Nonnull
+        private Feature[] getProbes(final int length) {
+            if (length >= probes.length) {
+                Feature[][] newProbes = new Feature[Math.max(length + 1, probes.length * 2)][];
+                System.arraycopy(probes, 0, newProbes, 0, probes.length);
+                this.probes = newProbes;
+            }
+            Feature[] x = probes[length];
+            if (x == null) {
+                x = new Feature[length];
+                for (int i = 0; i < length; i++) {
+                    x[i] = stringFeature ? new StringFeature("", 1.d) : new IntFeature(0, 1.d);
+                }
+                probes[length] = x;
+            }
+            return x;
+        }
+
+        @Nonnull
+        Feature[] getX() {
+            return x;
+        }
+
+        double getY() {
+            return y;
+        }
+
+    }
+
+}
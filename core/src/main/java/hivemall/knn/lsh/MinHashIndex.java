@@ -0,0 +1,405 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.knn.lsh;
+
+import hivemall.utils.collections.IntArrayList;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * An index of items by banded LSH over their MinHash signatures. Items whose signatures agree on
+ * all the rows of any band share a bucket of the band. The signatures are the ones computed by
+ * {@link MinHasher} of <tt>numBands * rowsPerBand</tt> hashes and a key group, i.e., the ones of
+ * <tt>minhash</tt> with <tt>-n numBands*rowsPerBand -k 1</tt>.
+ * 
+ * The index is kept in a compact binary form and read in place from a heap or a memory-mapped
+ * buffer:
+ * 
+ * <pre>
+ * int magic, version, numBands, rowsPerBand, numItems, numBuckets, numPostings, flags
+ * int[numItems] item ids
+ * int[numItems * numHashes] signatures
+ * long[numBuckets] bucket keys, (band &lt;&lt; 32 | unsigned band hash) in the ascending order
+ * int[numBuckets + 1] offsets of the buckets in the postings
+ * int[numPostings] item slots
+ * if features are stored,
+ *   int[numItems + 1] offsets of the features of items in the feature bytes
+ *   byte[] features, each of which is an int length followed by UTF-8 bytes
+ * </pre>
+ */
+public final class MinHashIndex {
+
+    public static final int MAGIC = 0x4D484958; // "MHIX"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 8 * 4;
+    private static final int FLAG_FEATURES = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Nonnull
+    private final ByteBuffer buf;
+    private final int numBands;
+    private final int rowsPerBand;
+    private final int numItems;
+    private final int numBuckets;
+    private final boolean hasFeatures;
+
+    private final int idsOffset;
+    private final int signaturesOffset;
+    private final int keysOffset;
+    private final int bucketsOffset;
+    private final int postingsOffset;
+    private final int featureOffsetsOffset;
+    private final int featuresOffset;
+
+    private MinHashIndex(@Nonnull ByteBuffer buf) throws IOException {
+        if (buf.limit() < HEADER_BYTES) {
+            throw new IOException("Too short index: " + buf.limit() + " bytes");
+        }
+        final int magic = buf.getInt(0);
+        if (magic != MAGIC) {
+            throw new IOException("Not a MinHash index: " + Integer.toHexString(magic));
+        }
+        final int version = buf.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported version of MinHash index: " + version);
+        }
+        this.buf = buf;
+        this.numBands = buf.getInt(8);
+        this.rowsPerBand = buf.getInt(12);
+        this.numItems = buf.getInt(16);
+        this.numBuckets = buf.getInt(20);
+        final int numPostings = buf.getInt(24);
+        this.hasFeatures = (buf.getInt(28) & FLAG_FEATURES) != 0;
+
+        this.idsOffset = HEADER_BYTES;
+        this.signaturesOffset = idsOffset + 4 * numItems;
+        this.keysOffset = signaturesOffset + 4 * numItems * numBands * rowsPerBand;
+        this.bucketsOffset = keysOffset + 8 * numBuckets;
+        this.postingsOffset = bucketsOffset + 4 * (numBuckets + 1);
+        this.featureOffsetsOffset = postingsOffset + 4 * numPostings;
+        this.featuresOffset = hasFeatures ? featureOffsetsOffset + 4 * (numItems + 1)
+                : featureOffsetsOffset;
+        final long expected = HEADER_BYTES + 4L * numItems * (1L + numBands * rowsPerBand) + 12L
+                * numBuckets + 4L + 4L * numPostings + (hasFeatures ? 4L * (numItems + 1) : 0L);
+        if (expected > buf.limit()) {
+            throw new IOException("Truncated index: " + buf.limit() + " bytes");
+        }
+    }
+
+    /**
+     * Reads an index in the buffer without copying it.
+     */
+    @Nonnull
+    public static MinHashIndex wrap(@Nonnull final ByteBuffer buf) throws IOException {
+        return new MinHashIndex(buf);
+    }
+
+    public int getNumBands() {
+        return numBands;
+    }
+
+    public int getRowsPerBand() {
+        return rowsPerBand;
+    }
+
+    public int getNumHashes() {
+        return numBands * rowsPerBand;
+    }
+
+    public int size() {
+        return numItems;
+    }
+
+    public boolean hasFeatures() {
+        return hasFeatures;
+    }
+
+    public int getItemId(final int slot) {
+        return buf.getInt(idsOffset + 4 * slot);
+    }
+
+    /**
+     * @return the number of the hash values which the item of the slot shares with the signature
+     */
+    public int countMatches(final int slot, @Nonnull final int[] signature) {
+        final int numHashes = signature.length;
+        final int offset = signaturesOffset + 4 * numHashes * slot;
+        int matches = 0;
+        for (int i = 0; i < numHashes; i++) {
+            if (buf.getInt(offset + 4 * i) == signature[i]) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return the bucket of the band hash in the band or -1 if not found
+     */
+    public int findBucket(final int band, final int bandHash) {
+        final long key = bucketKey(band, bandHash);
+        int lo = 0, hi = numBuckets - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final long k = buf.getLong(keysOffset + 8 * mid);
+            if (k < key) {
+                lo = mid + 1;
+            } else if (k > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the start offset of the bucket in the postings
+     */
+    public int getBucketStart(final int bucket) {
+        return buf.getInt(bucketsOffset + 4 * bucket);
+    }
+
+    /**
+     * @return the end offset (exclusive) of the bucket in the postings
+     */
+    public int getBucketEnd(final int bucket) {
+        return buf.getInt(bucketsOffset + 4 * (bucket + 1));
+    }
+
+    /**
+     * @return the slot of the item at the offset of the postings
+     */
+    public int getPosting(final int offset) {
+        return buf.getInt(postingsOffset + 4 * offset);
+    }
+
+    @Nonnull
+    public List<String> getFeatures(final int slot) {
+        if (!hasFeatures) {
+            throw new IllegalStateException("Features are not stored in the index");
+        }
+        final int start = featuresOffset + buf.getInt(featureOffsetsOffset + 4 * slot);
+        final int end = featuresOffset + buf.getInt(featureOffsetsOffset + 4 * (slot + 1));
+        final List<String> features = new ArrayList<String>();
+        final ByteBuffer dup = buf.duplicate();
+        dup.position(start);
+        while (dup.position() < end) {
+            final byte[] b = new byte[dup.getInt()];
+            dup.get(b);
+            features.add(new String(b, UTF_8));
+        }
+        return features;
+    }
+
+    private static long bucketKey(final int band, final int bandHash) {
+        return ((long) band << 32) | (bandHash & 0xffffffffL);
+    }
+
+    /**
+     * @return the hash of the rows of the band in the signature
+     */
+    public static int bandHash(@Nonnull final int[] signature, final int band,
+            final int rowsPerBand) {
+        int h = 1;
+        for (int i = band * rowsPerBand, end = i + rowsPerBand; i < end; i++) {
+            h = 31 * h + signature[i];
+        }
+        // finalization mix of MurmurHash3
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return the seeds of hash functions, the same as the ones of <tt>minhashes</tt>
+     */
+    @Nonnull
+    public static int[] newSeeds(@Nonnegative final int numHashes) {
+        final int[] seeds = new int[numHashes];
+        final Random rand = new Random(31L);
+        for (int i = 0; i < numHashes; i++) {
+            seeds[i] = rand.nextInt();
+        }
+        return seeds;
+    }
+
+    public static final class Builder {
+
+        private final int numBands;
+        private final int rowsPerBand;
+        private final boolean storeFeatures;
+
+        @Nonnull
+        private final IntArrayList ids;
+        @Nonnull
+        private final IntArrayList signatures;
+        @Nullable
+        private final List<byte[]> features;
+        private long featureBytes;
+
+        public Builder(@Nonnegative int numBands, @Nonnegative int rowsPerBand,
+                boolean storeFeatures) {
+            if (numBands < 1) {
+                throw new IllegalArgumentException("Invalid numBands: " + numBands);
+            }
+            if (rowsPerBand < 1) {
+                throw new IllegalArgumentException("Invalid rowsPerBand: " + rowsPerBand);
+            }
+            this.numBands = numBands;
+            this.rowsPerBand = rowsPerBand;
+            this.storeFeatures = storeFeatures;
+            this.ids = new IntArrayList(1024);
+            this.signatures = new IntArrayList(1024 * numBands * rowsPerBand);
+            this.features = storeFeatures ? new ArrayList<byte[]>(1024) : null;
+            this.featureBytes = 0L;
+        }
+
+        public int size() {
+            return ids.size();
+        }
+
+        public void add(final int itemId, @Nonnull final int[] signature,
+                @Nullable final List<String> itemFeatures) {
+            if (signature.length != numBands * rowsPerBand) {
+                throw new IllegalArgumentException("Expected " + (numBands * rowsPerBand)
+                        + " hashes but was " + signature.length);
+            }
+            ids.add(itemId);
+            signatures.add(signature);
+            if (storeFeatures) {
+                final byte[][] encoded = new byte[itemFeatures == null ? 0 : itemFeatures.size()][];
+                int bytes = 0;
+                for (int i = 0; i < encoded.length; i++) {
+                    encoded[i] = itemFeatures.get(i).getBytes(UTF_8);
+                    bytes += 4 + encoded[i].length;
+                }
+                final ByteBuffer b = ByteBuffer.allocate(bytes);
+                for (byte[] e : encoded) {
+                    b.putInt(e.length);
+                    b.put(e);
+                }
+                features.add(b.array());
+                this.featureBytes += bytes;
+            }
+        }
+
+        /**
+         * @return the serialized index
+         */
+        @Nonnull
+        public byte[] build() {
+            final int numItems = ids.size();
+            final int numHashes = numBands * rowsPerBand;
+            final int[] sigs = signatures.array();
+
+            // (flipped band hash << 32 | slot) for each band, sorted by the unsigned band hash
+            final long[] entries = new long[numItems * numBands];
+            final int[] hashes = new int[numHashes];
+            for (int slot = 0; slot < numItems; slot++) {
+                System.arraycopy(sigs, slot * numHashes, hashes, 0, numHashes);
+                for (int band = 0; band < numBands; band++) {
+                    int h = bandHash(hashes, band, rowsPerBand);
+                    entries[band * numItems + slot] = ((long) (h ^ 0x80000000) << 32) | slot;
+                }
+            }
+            int numBuckets = 0;
+            for (int band = 0; band < numBands; band++) {
+                final int from = band * numItems, to = from + numItems;
+                Arrays.sort(entries, from, to);
+                for (int i = from; i < to; i++) {
+                    if (i == from || (entries[i] >>> 32) != (entries[i - 1] >>> 32)) {
+                        numBuckets++;
+                    }
+                }
+            }
+            final int numPostings = entries.length;
+
+            final long bytes = HEADER_BYTES + 4L * numItems + 4L * numItems * numHashes + 8L
+                    * numBuckets + 4L * (numBuckets + 1) + 4L * numPostings
+                    + (storeFeatures ? 4L * (numItems + 1) + featureBytes : 0L);
+            if (bytes > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Too large index: " + bytes + " bytes");
+            }
+            final ByteBuffer out = ByteBuffer.allocate((int) bytes);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(numBands);
+            out.putInt(rowsPerBand);
+            out.putInt(numItems);
+            out.putInt(numBuckets);
+            out.putInt(numPostings);
+            out.putInt(storeFeatures ? FLAG_FEATURES : 0);
+            for (int i = 0; i < numItems; i++) {
+                out.putInt(ids.fastGet(i));
+            }
+            for (int i = 0, n = numItems * numHashes; i < n; i++) {
+                out.putInt(sigs[i]);
+            }
+            final int[] offsets = new int[numBuckets + 1];
+            int b = 0;
+            for (int band = 0; band < numBands; band++) {
+                final int from = band * numItems, to = from + numItems;
+                for (int i = from; i < to; i++) {
+                    if (i == from || (entries[i] >>> 32) != (entries[i - 1] >>> 32)) {
+                        int h = (int) (entries[i] >>> 32) ^ 0x80000000;
+                        out.putLong(bucketKey(band, h));
+                        offsets[b++] = i;
+                    }
+                }
+            }
+            offsets[numBuckets] = numPostings;
+            for (int offset : offsets) {
+                out.putInt(offset);
+            }
+            for (long e : entries) {
+                out.putInt((int) e);
+            }
+            if (storeFeatures) {
+                int offset = 0;
+                out.putInt(offset);
+                for (byte[] f : features) {
+                    offset += f.length;
+                    out.putInt(offset);
+                }
+                for (byte[] f : features) {
+                    out.put(f);
+                }
+            }
+            assert (!out.hasRemaining());
+            return out.array();
+        }
+
+    }
+
+}
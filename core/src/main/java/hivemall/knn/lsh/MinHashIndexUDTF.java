@@ -0,0 +1,182 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.knn.lsh;
+
+import hivemall.UDTFWithOptions;
+import hivemall.utils.codec.Base91;
+import hivemall.utils.hadoop.HiveUtils;
+import hivemall.utils.lang.Primitives;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Builds a {@link MinHashIndex} of the items given to a task. Each task outputs an index of its
+ * items, and <tt>minhash_search</tt> searches the indexes of all the tasks.
+ */
+@Description(
+        name = "minhash_index",
+        value = "_FUNC_(int item, array<int|bigint|string> features [, constant string options])"
+                + " - Returns a relation <int num_items, string index> of a MinHash LSH index of the items")
+public final class MinHashIndexUDTF extends UDTFWithOptions {
+    private static final Log logger = LogFactory.getLog(MinHashIndexUDTF.class);
+
+    private PrimitiveObjectInspector itemOI;
+    private ListObjectInspector featureListOI;
+    private PrimitiveObjectInspector featureOI;
+
+    private int numBands;
+    private int rowsPerBand;
+    private boolean storeFeatures;
+
+    private MinHasher hasher;
+    private int[] signature;
+    private MinHashIndex.Builder builder;
+
+    @Override
+    protected Options getOptions() {
+        Options opts = new Options();
+        opts.addOption("b", "bands", true, "The number of bands [default: 16]");
+        opts.addOption("r", "rows", true, "The number of MinHash values in a band [default: 4]");
+        opts.addOption("store_features", false,
+            "Store the features of items in the index for re-ranking");
+        return opts;
+    }
+
+    @Override
+    protected CommandLine processOptions(ObjectInspector[] argOIs) throws UDFArgumentException {
+        int numBands = 16;
+        int rowsPerBand = 4;
+        boolean storeFeatures = false;
+
+        CommandLine cl = null;
+        if (argOIs.length >= 3) {
+            String rawArgs = HiveUtils.getConstString(argOIs[2]);
+            cl = parseOptions(rawArgs);
+            numBands = Primitives.parseInt(cl.getOptionValue("bands"), numBands);
+            if (numBands < 1) {
+                throw new UDFArgumentException("-bands must be positive: " + numBands);
+            }
+            rowsPerBand = Primitives.parseInt(cl.getOptionValue("rows"), rowsPerBand);
+            if (rowsPerBand < 1) {
+                throw new UDFArgumentException("-rows must be positive: " + rowsPerBand);
+            }
+            storeFeatures = cl.hasOption("store_features");
+        }
+
+        this.numBands = numBands;
+        this.rowsPerBand = rowsPerBand;
+        this.storeFeatures = storeFeatures;
+        return cl;
+    }
+
+    @Override
+    public StructObjectInspector initialize(ObjectInspector[] argOIs) throws UDFArgumentException {
+        if (argOIs.length != 2 && argOIs.length != 3) {
+            throw new UDFArgumentException(
+                "_FUNC_ takes 2 or 3 arguments: int item, array<int|bigint|string> features [, constant string options]");
+        }
+        this.itemOI = HiveUtils.asIntCompatibleOI(argOIs[0]);
+        this.featureListOI = HiveUtils.asListOI(argOIs[1]);
+        this.featureOI = MinHasher.asFeatureOI(featureListOI);
+
+        processOptions(argOIs);
+
+        this.hasher = new MinHasher(numBands * rowsPerBand, 1, false);
+        this.signature = new int[numBands * rowsPerBand];
+        this.builder = new MinHashIndex.Builder(numBands, rowsPerBand, storeFeatures);
+
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        fieldNames.add("num_items");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+        fieldNames.add("index");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableStringObjectInspector);
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+    }
+
+    @Override
+    public void process(Object[] args) throws HiveException {
+        if (args[0] == null) {
+            return;
+        }
+        final int item = PrimitiveObjectInspectorUtils.getInt(args[0], itemOI);
+        final MinHasher hasher = this.hasher;
+        hasher.reset();
+        if (hasher.addAll(args[1], featureListOI, featureOI) == 0) {
+            return;
+        }
+        final int[] signature = this.signature;
+        hasher.getSignatures(signature);
+        builder.add(item, signature, storeFeatures ? toStringList(args[1], featureListOI) : null);
+    }
+
+    @Nonnull
+    static List<String> toStringList(@Nullable final Object arg,
+            @Nonnull final ListObjectInspector listOI) {
+        final List<?> list = (arg == null) ? null : listOI.getList(arg);
+        if (list == null) {
+            return new ArrayList<String>(0);
+        }
+        final List<String> features = new ArrayList<String>(list.size());
+        for (Object o : list) {
+            if (o != null) {
+                features.add(o.toString());
+            }
+        }
+        return features;
+    }
+
+    @Override
+    public void close() throws HiveException {
+        final int numItems = builder.size();
+        if (numItems == 0) {
+            return;
+        }
+        byte[] b = builder.build();
+        this.builder = null;
+        final int bytes = b.length;
+        b = Base91.encode(b);
+        logger.info("Built a MinHash index of " + numItems + " items in " + bytes
+                + " bytes (encoded in " + b.length + " bytes) with " + numBands + " bands x "
+                + rowsPerBand + " rows");
+        forward(new Object[] {new IntWritable(numItems), new Text(b)});
+    }
+
+}
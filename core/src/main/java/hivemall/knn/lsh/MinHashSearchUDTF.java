@@ -0,0 +1,506 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.knn.lsh;
+
+import hivemall.UDTFWithOptions;
+import hivemall.knn.similarity.CosineSimilarityUDF;
+import hivemall.knn.similarity.JaccardIndexUDF;
+import hivemall.utils.codec.Base91;
+import hivemall.utils.collections.BoundedIntDoubleHeap;
+import hivemall.utils.hadoop.HadoopUtils;
+import hivemall.utils.hadoop.HiveUtils;
+import hivemall.utils.io.IOUtils;
+import hivemall.utils.io.NIOUtils;
+import hivemall.utils.lang.Primitives;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.IntWritable;
+
+/**
+ * Searches the items of similar features in the indexes built by <tt>minhash_index</tt>, instead
+ * of joining all the pairs of items sharing MinHash signatures.
+ */
+@Description(
+        name = "minhash_search",
+        value = "_FUNC_(ANY id, array<int|bigint|string> features, const string options)"
+                + " - Returns a relation <ANY id, int item, int rank, double similarity> of the top-k similar items")
+public final class MinHashSearchUDTF extends UDTFWithOptions {
+    private static final Log logger = LogFactory.getLog(MinHashSearchUDTF.class);
+
+    private ObjectInspector idOI;
+    private ListObjectInspector featureListOI;
+    private PrimitiveObjectInspector featureOI;
+
+    private String indexFile;
+    private int topK;
+    private int maxBucketSize;
+    private boolean mmap;
+    @Nullable
+    private String rerank;
+    private int numCandidates;
+    private boolean excludeSelf;
+
+    // Indexes
+    @Nullable
+    private MinHashIndex[] segments;
+    /** The global index of the first item of each segment */
+    @Nullable
+    private int[] bases;
+    /** The last query which visited each item, to dedup candidates */
+    @Nullable
+    private int[][] visited;
+    private int numQueries;
+    private MinHasher hasher;
+    private int numBands;
+    private int rowsPerBand;
+    /** Buffers mapped by -mmap, released on close */
+    @Nullable
+    private List<ByteBuffer> mappedBuffers;
+    /** Files holding indexes decoded for -mmap, deleted on close */
+    @Nullable
+    private List<File> tempFiles;
+
+    private int[] signature;
+    private BoundedIntDoubleHeap candidates;
+    @Nullable
+    private BoundedIntDoubleHeap reranked;
+    private int[] keys;
+    private double[] scores;
+    private Object[] forwardObjs;
+
+    @Override
+    protected Options getOptions() {
+        Options opts = new Options();
+        opts.addOption("index", true, "The path to the index table or its file on the local"
+                + " filesystem, e.g., a file added to the distributed cache");
+        opts.addOption("k", "topk", true, "The number of similar items to return [default: 10]");
+        opts.addOption("max_bucket_size", true,
+            "Skip the buckets having more items than this, which are too popular to discriminate"
+                    + " similar items [default: 10000]");
+        opts.addOption("mmap", false,
+            "Map the index into memory instead of reading it onto the Java heap");
+        opts.addOption("rerank", true, "Re-rank candidates by the exact similarity of features"
+                + " stored with -store_features [jaccard, cosine]");
+        opts.addOption("candidates", true,
+            "The number of candidates to re-rank [default: 4 * k]");
+        opts.addOption("exclude_self", false, "Exclude the item of the same id as the query");
+        return opts;
+    }
+
+    @Override
+    protected CommandLine processOptions(ObjectInspector[] argOIs) throws UDFArgumentException {
+        String rawArgs = HiveUtils.getConstString(argOIs[2]);
+        CommandLine cl = parseOptions(rawArgs);
+
+        String indexFile = cl.getOptionValue("index");
+        if (indexFile == null) {
+            throw new UDFArgumentException("-index is required");
+        }
+        int topK = Primitives.parseInt(cl.getOptionValue("topk"), 10);
+        if (topK < 1) {
+            throw new UDFArgumentException("-k must be positive: " + topK);
+        }
+        int maxBucketSize = Primitives.parseInt(cl.getOptionValue("max_bucket_size"), 10000);
+        if (maxBucketSize < 1) {
+            throw new UDFArgumentException("-max_bucket_size must be positive: "
+                    + maxBucketSize);
+        }
+        String rerank = cl.getOptionValue("rerank");
+        if (rerank != null) {
+            rerank = rerank.toLowerCase();
+            if (!"jaccard".equals(rerank) && !"cosine".equals(rerank)) {
+                throw new UDFArgumentException("Unsupported -rerank: " + rerank);
+            }
+        }
+        int numCandidates = Primitives.parseInt(cl.getOptionValue("candidates"), 4 * topK);
+        if (numCandidates < topK) {
+            throw new UDFArgumentException("-candidates must not be less than -k: "
+                    + numCandidates);
+        }
+
+        this.indexFile = indexFile;
+        this.topK = topK;
+        this.maxBucketSize = maxBucketSize;
+        this.mmap = cl.hasOption("mmap");
+        this.rerank = rerank;
+        this.numCandidates = (rerank == null) ? topK : numCandidates;
+        this.excludeSelf = cl.hasOption("exclude_self");
+        return cl;
+    }
+
+    @Override
+    public StructObjectInspector initialize(ObjectInspector[] argOIs) throws UDFArgumentException {
+        if (argOIs.length != 3) {
+            throw new UDFArgumentException(
+                "_FUNC_ takes 3 arguments: ANY id, array<int|bigint|string> features, const string options");
+        }
+        this.idOI = argOIs[0];
+        this.featureListOI = HiveUtils.asListOI(argOIs[1]);
+        this.featureOI = MinHasher.asFeatureOI(featureListOI);
+
+        processOptions(argOIs);
+
+        if (excludeSelf) {
+            HiveUtils.asIntCompatibleOI(idOI);
+        }
+
+        this.segments = null;
+        this.candidates = new BoundedIntDoubleHeap(numCandidates);
+        this.reranked = (rerank == null) ? null : new BoundedIntDoubleHeap(topK);
+        this.keys = new int[numCandidates];
+        this.scores = new double[numCandidates];
+        this.forwardObjs = new Object[] {null, new IntWritable(), new IntWritable(),
+                new DoubleWritable()};
+
+        final ArrayList<String> fieldNames = new ArrayList<String>();
+        final ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        fieldNames.add("id");
+        fieldOIs.add(ObjectInspectorUtils.getStandardObjectInspector(idOI,
+            ObjectInspectorCopyOption.WRITABLE));
+        fieldNames.add("item");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+        fieldNames.add("rank");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+        fieldNames.add("similarity");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableDoubleObjectInspector);
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+    }
+
+    @Override
+    public void process(Object[] args) throws HiveException {
+        if (segments == null) {
+            loadIndexes();
+        }
+        final MinHasher hasher = this.hasher;
+        hasher.reset();
+        if (hasher.addAll(args[1], featureListOI, featureOI) == 0) {
+            return;
+        }
+        final int[] signature = this.signature;
+        hasher.getSignatures(signature);
+
+        final int query = ++numQueries;
+        final boolean excludeSelf = this.excludeSelf && args[0] != null;
+        final int self = excludeSelf ? PrimitiveObjectInspectorUtils.getInt(args[0],
+            (PrimitiveObjectInspector) idOI) : 0;
+        final double numHashes = signature.length;
+        final BoundedIntDoubleHeap candidates = this.candidates;
+        for (int s = 0; s < segments.length; s++) {
+            final MinHashIndex index = segments[s];
+            final int[] visited = this.visited[s];
+            final int base = bases[s];
+            for (int band = 0; band < numBands; band++) {
+                final int bucket = index.findBucket(band,
+                    MinHashIndex.bandHash(signature, band, rowsPerBand));
+                if (bucket == -1) {
+                    continue;
+                }
+                final int start = index.getBucketStart(bucket);
+                final int end = index.getBucketEnd(bucket);
+                if (end - start > maxBucketSize) {
+                    continue;
+                }
+                for (int i = start; i < end; i++) {
+                    final int slot = index.getPosting(i);
+                    if (visited[slot] == query) {
+                        continue;
+                    }
+                    visited[slot] = query;
+                    if (excludeSelf && index.getItemId(slot) == self) {
+                        continue;
+                    }
+                    double similarity = index.countMatches(slot, signature) / numHashes;
+                    candidates.offer(base + slot, similarity);
+                }
+            }
+        }
+
+        int n = candidates.drainDescending(keys, scores);
+        if (rerank != null) {
+            n = rerank(MinHashIndexUDTF.toStringList(args[1], featureListOI), n);
+        }
+
+        final Object[] forwardObjs = this.forwardObjs;
+        forwardObjs[0] = ObjectInspectorUtils.copyToStandardObject(args[0], idOI,
+            ObjectInspectorCopyOption.WRITABLE);
+        final IntWritable item = (IntWritable) forwardObjs[1];
+        final IntWritable rank = (IntWritable) forwardObjs[2];
+        final DoubleWritable similarity = (DoubleWritable) forwardObjs[3];
+        for (int i = 0; i < n; i++) {
+            final int s = segmentOf(keys[i]);
+            item.set(segments[s].getItemId(keys[i] - bases[s]));
+            rank.set(i + 1);
+            similarity.set(scores[i]);
+            forward(forwardObjs);
+        }
+    }
+
+    /**
+     * Re-ranks the n candidates in keys by the exact similarity of features.
+     * 
+     * @return the number of re-ranked items in keys and scores
+     */
+    private int rerank(@Nonnull final List<String> features, final int n) {
+        final boolean jaccard = "jaccard".equals(rerank);
+        final JaccardIndexUDF jaccardIndex = jaccard ? new JaccardIndexUDF() : null;
+        final BoundedIntDoubleHeap reranked = this.reranked;
+        for (int i = 0; i < n; i++) {
+            final int key = keys[i];
+            final int s = segmentOf(key);
+            final List<String> itemFeatures = segments[s].getFeatures(key - bases[s]);
+            final double similarity;
+            if (jaccard) {
+                similarity = jaccardIndex.evaluate(features, itemFeatures).get();
+            } else {
+                similarity = CosineSimilarityUDF.cosineSimilarity(features, itemFeatures);
+            }
+            reranked.offer(key, similarity);
+        }
+        return reranked.drainDescending(keys, scores);
+    }
+
+    private int segmentOf(final int key) {
+        final int i = Arrays.binarySearch(bases, key);
+        return (i >= 0) ? i : -i - 2;
+    }
+
+    private void loadIndexes() throws HiveException {
+        final File file = new File(indexFile);
+        if (!file.exists()) {
+            throw new HiveException("Index file does not exist: " + file.getAbsolutePath());
+        }
+        final List<MinHashIndex> segments = new ArrayList<MinHashIndex>();
+        this.mappedBuffers = new ArrayList<ByteBuffer>();
+        this.tempFiles = new ArrayList<File>();
+        try {
+            loadIndexes(file, segments);
+        } catch (IOException e) {
+            releaseMappings();
+            throw new HiveException("Failed to load an index: " + file.getAbsolutePath(), e);
+        }
+        if (segments.isEmpty()) {
+            throw new HiveException("No index was found in " + file.getAbsolutePath());
+        }
+
+        final int numSegments = segments.size();
+        final int[] bases = new int[numSegments];
+        final int[][] visited = new int[numSegments][];
+        long numItems = 0L;
+        final MinHashIndex first = segments.get(0);
+        for (int s = 0; s < numSegments; s++) {
+            final MinHashIndex index = segments.get(s);
+            if (index.getNumBands() != first.getNumBands()
+                    || index.getRowsPerBand() != first.getRowsPerBand()) {
+                throw new HiveException("Indexes of different bands/rows were found in "
+                        + file.getAbsolutePath());
+            }
+            if (rerank != null && !index.hasFeatures()) {
+                throw new HiveException("-rerank requires an index built with -store_features");
+            }
+            bases[s] = (int) numItems;
+            visited[s] = new int[index.size()];
+            numItems += index.size();
+            if (numItems > Integer.MAX_VALUE) {
+                throw new HiveException("Too many items in " + file.getAbsolutePath());
+            }
+        }
+
+        this.segments = segments.toArray(new MinHashIndex[numSegments]);
+        this.bases = bases;
+        this.visited = visited;
+        this.numQueries = 0;
+        this.numBands = first.getNumBands();
+        this.rowsPerBand = first.getRowsPerBand();
+        this.hasher = new MinHasher(first.getNumHashes(), 1, false);
+        this.signature = new int[first.getNumHashes()];
+        logger.info("Loaded " + numSegments + " indexes of " + numItems + " items with "
+                + numBands + " bands x " + rowsPerBand + " rows from " + file.getAbsolutePath()
+                + (mmap ? " (mapped)" : ""));
+    }
+
+    /**
+     * Loads the indexes in a file written by {@link MinHashIndex.Builder} as is, or in lines of
+     * <tt>[num_items,] index</tt> output by <tt>minhash_index</tt>.
+     */
+    private void loadIndexes(@Nonnull final File file, @Nonnull final List<MinHashIndex> segments)
+            throws IOException {
+        final String name = file.getName();
+        if (name.endsWith(".crc") || name.startsWith(".") || name.startsWith("_")) {
+            return;
+        }
+        if (file.isDirectory()) {
+            final File[] files = file.listFiles();
+            Arrays.sort(files);
+            for (File f : files) {
+                loadIndexes(f, segments);
+            }
+            return;
+        }
+        if (isBinaryIndex(file)) {
+            segments.add(MinHashIndex.wrap(mmap ? mapIndex(file) : read(file)));
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = HadoopUtils.getBufferedReader(file);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final String[] fields = line.split("[\001\t]");
+                final byte[] b = Base91.decode(fields[fields.length - 1].getBytes("UTF-8"));
+                final ByteBuffer buf;
+                if (mmap) {
+                    File tmp = File.createTempFile("hivemall_minhash", ".idx");
+                    tmp.deleteOnExit();
+                    tempFiles.add(tmp);
+                    write(b, tmp);
+                    buf = mapIndex(tmp);
+                } else {
+                    buf = ByteBuffer.wrap(b);
+                }
+                segments.add(MinHashIndex.wrap(buf));
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    private static boolean isBinaryIndex(@Nonnull final File file) throws IOException {
+        if (file.length() < 4) {
+            return false;
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return raf.readInt() == MinHashIndex.MAGIC;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Nonnull
+    private ByteBuffer mapIndex(@Nonnull final File file) throws IOException {
+        final ByteBuffer buf = map(file);
+        mappedBuffers.add(buf);
+        return buf;
+    }
+
+    @Nonnull
+    private static ByteBuffer map(@Nonnull final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return raf.getChannel().map(MapMode.READ_ONLY, 0L, raf.length());
+        } finally {
+            raf.close(); // the mapping remains valid after closing the channel
+        }
+    }
+
+    @Nonnull
+    private static ByteBuffer read(@Nonnull final File file) throws IOException {
+        final long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Too large index to read onto the heap, use -mmap: "
+                    + file.getAbsolutePath() + " (" + length + " bytes)");
+        }
+        final ByteBuffer buf = ByteBuffer.allocate((int) length);
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            NIOUtils.readFully(raf.getChannel(), buf, 0L);
+        } finally {
+            raf.close();
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static void write(@Nonnull final byte[] b, @Nonnull final File file)
+            throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            NIOUtils.writeFully(channel, ByteBuffer.wrap(b), 0L);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Unmaps the indexes and deletes the temporary files now, as executors like LLAP and Spark
+     * reuse a JVM for many tasks. The indexes must not be accessed afterwards.
+     */
+    private void releaseMappings() {
+        final List<ByteBuffer> buffers = mappedBuffers;
+        if (buffers != null) {
+            this.mappedBuffers = null;
+            for (ByteBuffer buf : buffers) {
+                NIOUtils.release(buf);
+            }
+        }
+        final List<File> files = tempFiles;
+        if (files != null) {
+            this.tempFiles = null;
+            for (File f : files) {
+                if (!f.delete()) {
+                    logger.warn("Failed to delete a temporary index file: " + f.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws HiveException {
+        this.segments = null;
+        this.bases = null;
+        this.visited = null;
+        releaseMappings();
+    }
+
+}
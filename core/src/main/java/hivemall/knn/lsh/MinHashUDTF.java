@@ -18,31 +18,25 @@
  */
 package hivemall.knn.lsh;
 
-import static hivemall.HivemallConstants.BIGINT_TYPE_NAME;
-import static hivemall.HivemallConstants.INT_TYPE_NAME;
-import static hivemall.HivemallConstants.STRING_TYPE_NAME;
 import hivemall.UDTFWithOptions;
-import hivemall.model.FeatureValue;
 import hivemall.utils.hadoop.HiveUtils;
-import hivemall.utils.hashing.HashFunction;
-import hivemall.utils.hashing.HashFunctionFactory;
+import hivemall.utils.lang.Primitives;
 
 import java.util.ArrayList;
-import java.util.List;
-import java.util.PriorityQueue;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
-import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.UDFType;
 import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.IntWritable;
 
 /**
  * A Minhash implementation that outputs n different k-depth Signatures.
@@ -56,12 +50,14 @@ public final class MinHashUDTF extends UDTFWithOptions {
 
     private ObjectInspector itemOI;
     private ListObjectInspector featureListOI;
-    private boolean parseFeature;
+    private PrimitiveObjectInspector featureOI;
     private Object[] forwardObjs;
 
     private int num_hashes = 5;
     private int num_keygroups = 2;
-    private HashFunction[] hashFuncs;
+    private boolean one_permutation = false;
+    private MinHasher hasher;
+    private int[] signatures;
 
     @Override
     public StructObjectInspector initialize(ObjectInspector[] argOIs) throws UDFArgumentException {
@@ -72,23 +68,19 @@ public final class MinHashUDTF extends UDTFWithOptions {
         this.itemOI = argOIs[0];
 
         this.featureListOI = (ListObjectInspector) argOIs[1];
-        ObjectInspector featureRawOI = featureListOI.getListElementObjectInspector();
-        String keyTypeName = featureRawOI.getTypeName();
-        if (!STRING_TYPE_NAME.equals(keyTypeName) && !INT_TYPE_NAME.equals(keyTypeName)
-                && !BIGINT_TYPE_NAME.equals(keyTypeName)) {
-            throw new UDFArgumentTypeException(0,
-                "1st argument must be Map of key type [Int|BitInt|Text]: " + keyTypeName);
-        }
-        this.parseFeature = STRING_TYPE_NAME.equals(keyTypeName);
-        this.forwardObjs = new Object[2];
+        this.featureOI = MinHasher.asFeatureOI(featureListOI);
+        this.forwardObjs = new Object[] {new IntWritable(), null};
 
         processOptions(argOIs);
 
+        this.hasher = new MinHasher(num_hashes, num_keygroups, one_permutation);
+        this.signatures = new int[num_hashes];
+
         ArrayList<String> fieldNames = new ArrayList<String>();
         ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
 
         fieldNames.add("clusterid");
-        fieldOIs.add(PrimitiveObjectInspectorFactory.javaIntObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
         fieldNames.add("item");
         fieldOIs.add(itemOI);
 
@@ -101,6 +93,8 @@ public final class MinHashUDTF extends UDTFWithOptions {
         opts.addOption("n", "hashes", true,
             "Generate N sets of minhash values for each row (DEFAULT: 5)");
         opts.addOption("k", "keygroups", true, "Use K minhash value (DEFAULT: 2)");
+        opts.addOption("oph", "one_permutation", false,
+            "Hash each feature once into one of N bins instead of hashing it N times");
         return opts;
     }
 
@@ -111,86 +105,35 @@ public final class MinHashUDTF extends UDTFWithOptions {
             String rawArgs = HiveUtils.getConstString(argOIs[2]);
             cl = parseOptions(rawArgs);
 
-            String numHashes = cl.getOptionValue("hashes");
-            if (numHashes != null) {
-                this.num_hashes = Integer.parseInt(numHashes);
+            this.num_hashes = Primitives.parseInt(cl.getOptionValue("hashes"), num_hashes);
+            if (num_hashes < 1) {
+                throw new UDFArgumentException("-hashes must be positive: " + num_hashes);
             }
-
-            String numKeygroups = cl.getOptionValue("keygroups");
-            if (numKeygroups != null) {
-                this.num_keygroups = Integer.parseInt(numKeygroups);
+            this.num_keygroups = Primitives.parseInt(cl.getOptionValue("keygroups"),
+                num_keygroups);
+            if (num_keygroups < 1) {
+                throw new UDFArgumentException("-keygroups must be positive: " + num_keygroups);
             }
+            this.one_permutation = cl.hasOption("one_permutation");
         }
-
-        this.hashFuncs = HashFunctionFactory.create(num_hashes);
-
         return cl;
     }
 
     @Override
     public void process(Object[] args) throws HiveException {
+        final MinHasher hasher = this.hasher;
+        hasher.reset();
+        hasher.addAll(args[1], featureListOI, featureOI);
+        final int[] signatures = this.signatures;
+        hasher.getSignatures(signatures);
+
         final Object[] forwardObjs = this.forwardObjs;
+        final IntWritable clusterid = (IntWritable) forwardObjs[0];
         forwardObjs[1] = args[0];
-        List<?> features = (List<?>) featureListOI.getList(args[1]);
-        ObjectInspector featureInspector = featureListOI.getListElementObjectInspector();
-        List<FeatureValue> ftvec = parseFeatures(features, featureInspector, parseFeature);
-
-        computeAndForwardSignatures(ftvec, forwardObjs);
-    }
-
-    private void computeAndForwardSignatures(List<FeatureValue> features, Object[] forwardObjs)
-            throws HiveException {
-        final PriorityQueue<Integer> minhashes = new PriorityQueue<Integer>();
-        // Compute N sets K minhash values
         for (int i = 0; i < num_hashes; i++) {
-            float weightedMinHashValues = Float.MAX_VALUE;
-
-            for (FeatureValue fv : features) {
-                Object f = fv.getFeature();
-                int hashIndex = Math.abs(hashFuncs[i].hash(f));
-                float w = fv.getValueAsFloat();
-                float hashValue = calcWeightedHashValue(hashIndex, w);
-                if (hashValue < weightedMinHashValues) {
-                    weightedMinHashValues = hashValue;
-                    minhashes.offer(hashIndex);
-                }
-            }
-
-            forwardObjs[0] = getSignature(minhashes, num_keygroups);
+            clusterid.set(signatures[i]);
             forward(forwardObjs);
-
-            minhashes.clear();
-        }
-    }
-
-    /**
-     * For a larger w, hash value tends to be smaller and tends to be selected as minhash.
-     */
-    private static float calcWeightedHashValue(final int hashIndex, final float w)
-            throws HiveException {
-        if (w < 0.f) {
-            throw new HiveException("Non-negative value is not accepted for a feature weight");
-        }
-        if (w == 0.f) {
-            return Float.MAX_VALUE;
-        } else {
-            return hashIndex / w;
-        }
-    }
-
-    private static int getSignature(PriorityQueue<Integer> candidates, int keyGroups) {
-        final int numCandidates = candidates.size();
-        if (numCandidates == 0) {
-            return 0;
-        }
-
-        final int size = Math.min(numCandidates, keyGroups);
-        int result = 1;
-        for (int i = 0; i < size; i++) {
-            int nextmin = candidates.poll();
-            result = (31 * result) + nextmin;
         }
-        return result & 0x7FFFFFFF;
     }
 
     @Override
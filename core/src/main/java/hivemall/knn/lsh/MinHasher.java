@@ -0,0 +1,309 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.knn.lsh;
+
+import static hivemall.HivemallConstants.BIGINT_TYPE_NAME;
+import static hivemall.HivemallConstants.INT_TYPE_NAME;
+import static hivemall.HivemallConstants.STRING_TYPE_NAME;
+import hivemall.model.FeatureValue;
+import hivemall.utils.hashing.MurmurHash3;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Computes the MinHash signatures of a row in one pass over its features without allocation.
+ * 
+ * For each hash function, every feature of which the weighted hash value is the least so far
+ * becomes a candidate, and a signature is the hash of the K least candidates (K is the key groups).
+ * Only the K least candidates of each hash function are kept in a sorted primitive array.
+ * 
+ * In the one permutation hashing mode, each feature is hashed once and falls into one of the N
+ * bins by its hash value, instead of being hashed N times. Empty bins borrow the signature of the
+ * nearest non-empty bin to the right, mixed with the distance to it.
+ */
+public final class MinHasher {
+
+    /** The longest decimal of a long, "-9223372036854775808" */
+    private static final int MAX_DECIMAL_LENGTH = 20;
+
+    private final int numHashes;
+    private final int keyGroups;
+    private final boolean onePermutation;
+    @Nonnull
+    private final int[] seeds;
+
+    /** The least weighted hash value so far of each hash function */
+    @Nonnull
+    private final float[] minValues;
+    /** The K least candidates of each hash function in the ascending order */
+    @Nonnull
+    private final int[] candidates;
+    @Nonnull
+    private final int[] numCandidates;
+    @Nonnull
+    private final byte[] decimal;
+
+    public MinHasher(@Nonnegative int numHashes, @Nonnegative int keyGroups,
+            boolean onePermutation) {
+        if (numHashes < 1) {
+            throw new IllegalArgumentException("Invalid numHashes: " + numHashes);
+        }
+        if (keyGroups < 1) {
+            throw new IllegalArgumentException("Invalid keyGroups: " + keyGroups);
+        }
+        this.numHashes = numHashes;
+        this.keyGroups = keyGroups;
+        this.onePermutation = onePermutation;
+        this.seeds = MinHashIndex.newSeeds(onePermutation ? 1 : numHashes);
+        this.minValues = new float[numHashes];
+        this.candidates = new int[numHashes * keyGroups];
+        this.numCandidates = new int[numHashes];
+        this.decimal = new byte[MAX_DECIMAL_LENGTH];
+        reset();
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    /**
+     * Clears the features added for the next row.
+     */
+    public void reset() {
+        Arrays.fill(minValues, Float.MAX_VALUE);
+        Arrays.fill(numCandidates, 0);
+    }
+
+    /**
+     * Adds a feature in UTF-8 bytes.
+     */
+    public void add(@Nonnull final byte[] bytes, final int offset, final int length,
+            final float weight) throws HiveException {
+        checkWeight(weight);
+        if (onePermutation) {
+            int h = MurmurHash3.murmurhash3_x86_32(bytes, offset, length, seeds[0]);
+            update(bin(h), Math.abs(h), weight);
+        } else {
+            for (int i = 0; i < numHashes; i++) {
+                int h = MurmurHash3.murmurhash3_x86_32(bytes, offset, length, seeds[i]);
+                update(i, Math.abs(h), weight);
+            }
+        }
+    }
+
+    public void add(@Nonnull final String feature, final float weight) throws HiveException {
+        add(feature, 0, feature.length(), weight);
+    }
+
+    /**
+     * Adds a feature in the range of the string.
+     */
+    public void add(@Nonnull final String feature, final int offset, final int length,
+            final float weight) throws HiveException {
+        checkWeight(weight);
+        if (onePermutation) {
+            int h = MurmurHash3.murmurhash3_x86_32(feature, offset, length, seeds[0]);
+            update(bin(h), Math.abs(h), weight);
+        } else {
+            for (int i = 0; i < numHashes; i++) {
+                int h = MurmurHash3.murmurhash3_x86_32(feature, offset, length, seeds[i]);
+                update(i, Math.abs(h), weight);
+            }
+        }
+    }
+
+    /**
+     * Adds an integer feature, hashed as its decimal representation.
+     */
+    public void add(long feature, final float weight) throws HiveException {
+        final byte[] buf = this.decimal;
+        int pos = buf.length;
+        final boolean negative = feature < 0L;
+        if (!negative) {
+            feature = -feature; // negate not to overflow on Long.MIN_VALUE
+        }
+        do {
+            buf[--pos] = (byte) ('0' - (feature % 10L));
+            feature /= 10L;
+        } while (feature != 0L);
+        if (negative) {
+            buf[--pos] = '-';
+        }
+        add(buf, pos, buf.length - pos, weight);
+    }
+
+    /**
+     * Adds "feature[:weight]" in the bytes of the text without decoding them into a String.
+     */
+    public void add(@Nonnull final Text t) throws HiveException {
+        final byte[] bytes = t.getBytes();
+        final int length = t.getLength();
+        int pos = -1;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == ':') { // never appears in multi-byte UTF-8 sequences
+                pos = i;
+                break;
+            }
+        }
+        if (pos == 0) {
+            throw new IllegalArgumentException("Invalid feature value representation: " + t);
+        }
+        if (pos > 0) {
+            float w = (float) FeatureValue.parseDouble(bytes, pos + 1, length);
+            add(bytes, 0, pos, w);
+        } else {
+            add(bytes, 0, length, 1.f);
+        }
+    }
+
+    /**
+     * Adds the features in the list, each of which is an integer or "feature[:weight]".
+     * 
+     * @return the number of features added
+     */
+    public int addAll(@Nullable final Object featureList,
+            @Nonnull final ListObjectInspector listOI,
+            @Nonnull final PrimitiveObjectInspector featureOI) throws HiveException {
+        final int size = (featureList == null) ? 0 : listOI.getListLength(featureList);
+        final boolean parseFeature = STRING_TYPE_NAME.equals(featureOI.getTypeName());
+        int added = 0;
+        for (int i = 0; i < size; i++) {
+            Object f = listOI.getListElement(featureList, i);
+            if (f == null) {
+                continue;
+            }
+            if (parseFeature) {
+                add(((StringObjectInspector) featureOI).getPrimitiveWritableObject(f));
+            } else {
+                add(PrimitiveObjectInspectorUtils.getLong(f, featureOI), 1.f);
+            }
+            added++;
+        }
+        return added;
+    }
+
+    /**
+     * @return the inspector of the features in the list, which are int, bigint, or string
+     */
+    @Nonnull
+    public static PrimitiveObjectInspector asFeatureOI(@Nonnull final ListObjectInspector listOI)
+            throws UDFArgumentTypeException {
+        ObjectInspector featureRawOI = listOI.getListElementObjectInspector();
+        String keyTypeName = featureRawOI.getTypeName();
+        if (!STRING_TYPE_NAME.equals(keyTypeName) && !INT_TYPE_NAME.equals(keyTypeName)
+                && !BIGINT_TYPE_NAME.equals(keyTypeName)) {
+            throw new UDFArgumentTypeException(0,
+                "1st argument must be Map of key type [Int|BitInt|Text]: " + keyTypeName);
+        }
+        return (PrimitiveObjectInspector) featureRawOI;
+    }
+
+    private static void checkWeight(final float weight) throws HiveException {
+        if (weight < 0.f) {
+            throw new HiveException("Non-negative value is not accepted for a feature weight");
+        }
+    }
+
+    private int bin(final int hash) {
+        return (int) (((hash & 0xffffffffL) * numHashes) >>> 32);
+    }
+
+    /**
+     * For a larger weight, hash value tends to be smaller and tends to be selected as minhash.
+     */
+    private void update(final int i, final int hashIndex, final float weight) {
+        if (weight == 0.f) {
+            return;
+        }
+        final float hashValue = hashIndex / weight;
+        if (hashValue < minValues[i]) {
+            minValues[i] = hashValue;
+            offer(i, hashIndex);
+        }
+    }
+
+    private void offer(final int i, final int hashIndex) {
+        final int[] candidates = this.candidates;
+        final int from = i * keyGroups;
+        int size = numCandidates[i];
+        if (size == keyGroups) {
+            if (hashIndex >= candidates[from + size - 1]) {
+                return;
+            }
+            size--; // drop the largest
+        } else {
+            numCandidates[i] = size + 1;
+        }
+        int j = from + size;
+        for (; j > from && candidates[j - 1] > hashIndex; j--) {
+            candidates[j] = candidates[j - 1];
+        }
+        candidates[j] = hashIndex;
+    }
+
+    /**
+     * Puts the signatures of the features added since the last {@link #reset()} into dst.
+     */
+    public void getSignatures(@Nonnull final int[] dst) {
+        final int numHashes = this.numHashes;
+        int lastFilled = -1;
+        for (int i = 0; i < numHashes; i++) {
+            final int size = numCandidates[i];
+            if (size == 0) {
+                dst[i] = 0;
+                continue;
+            }
+            final int from = i * keyGroups;
+            int result = 1;
+            for (int j = from, end = from + size; j < end; j++) {
+                result = (31 * result) + candidates[j];
+            }
+            dst[i] = result & 0x7FFFFFFF;
+            lastFilled = i;
+        }
+        if (!onePermutation || lastFilled == -1) {
+            return;
+        }
+        // densification of empty bins from right to left, wrapping around
+        int next = lastFilled;
+        for (int n = 0; n < numHashes; n++) {
+            final int i = (lastFilled - n + numHashes) % numHashes;
+            if (numCandidates[i] != 0) {
+                next = i;
+                continue;
+            }
+            final int distance = (next - i + numHashes) % numHashes;
+            dst[i] = ((31 * dst[next]) + distance) & 0x7FFFFFFF;
+        }
+    }
+
+}
@@ -19,14 +19,9 @@
 package hivemall.knn.lsh;
 
 import static hivemall.utils.hadoop.WritableUtils.val;
-import hivemall.model.FeatureValue;
-import hivemall.utils.hashing.MurmurHash3;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Random;
 
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDF;
@@ -40,19 +35,20 @@ import org.apache.hadoop.io.IntWritable;
 @UDFType(deterministic = true, stateful = false)
 public final class MinHashesUDF extends UDF {
 
-    private int[] _seeds = null;
-
-    private int[] prepareSeeds(final int numHashes) {
-        int[] seeds = this._seeds;
-        if (seeds == null || seeds.length != numHashes) {
-            seeds = new int[numHashes];
-            final Random rand = new Random(31L);
-            for (int i = 0; i < numHashes; i++) {
-                seeds[i] = rand.nextInt();
-            }
-            this._seeds = seeds;
+    private MinHasher _hasher = null;
+    private int _keyGroups = -1;
+    private int[] _signatures = null;
+
+    private MinHasher prepareHasher(final int numHashes, final int keyGroups) {
+        MinHasher hasher = this._hasher;
+        if (hasher == null || hasher.getNumHashes() != numHashes || _keyGroups != keyGroups) {
+            hasher = new MinHasher(numHashes, keyGroups, false);
+            this._hasher = hasher;
+            this._keyGroups = keyGroups;
+            this._signatures = new int[numHashes];
         }
-        return seeds;
+        hasher.reset();
+        return hasher;
     }
 
     public List<IntWritable> evaluate(List<Integer> features) throws HiveException {
@@ -61,9 +57,13 @@ public final class MinHashesUDF extends UDF {
 
     public List<IntWritable> evaluate(List<Integer> features, int numHashes, int keyGroups)
             throws HiveException {
-        int[] seeds = prepareSeeds(numHashes);
-        List<FeatureValue> featureList = parseFeatures(features);
-        return computeSignatures(featureList, numHashes, keyGroups, seeds);
+        final MinHasher hasher = prepareHasher(numHashes, keyGroups);
+        for (Integer f : features) {
+            if (f != null) {
+                hasher.add(f.longValue(), 1.f);
+            }
+        }
+        return getSignatures(hasher);
     }
 
     public List<IntWritable> evaluate(List<String> features, boolean noWeight) throws HiveException {
@@ -72,94 +72,32 @@ public final class MinHashesUDF extends UDF {
 
     public List<IntWritable> evaluate(List<String> features, int numHashes, int keyGroups,
             boolean noWeight) throws HiveException {
-        int[] seeds = prepareSeeds(numHashes);
-        List<FeatureValue> featureList = parseFeatures(features, noWeight);
-        return computeSignatures(featureList, numHashes, keyGroups, seeds);
-    }
-
-    private static List<FeatureValue> parseFeatures(final List<Integer> features) {
-        final List<FeatureValue> ftvec = new ArrayList<FeatureValue>(features.size());
-        for (Integer f : features) {
-            if (f != null) {
-                FeatureValue fv = new FeatureValue(f, 1.f);
-                ftvec.add(fv);
-            }
-        }
-        return ftvec;
-    }
-
-    private static List<FeatureValue> parseFeatures(final List<String> features,
-            final boolean noWeight) {
-        final List<FeatureValue> ftvec = new ArrayList<FeatureValue>(features.size());
+        final MinHasher hasher = prepareHasher(numHashes, keyGroups);
         for (String f : features) {
             if (f == null) {
                 continue;
             }
-            final FeatureValue fv;
-            if (noWeight) {
-                fv = new FeatureValue(f, 1.f);
+            final int pos = noWeight ? -1 : f.indexOf(':');
+            if (pos == 0) {
+                throw new IllegalArgumentException("Invalid feature value representation: " + f);
+            }
+            if (pos > 0) {
+                float w = (float) Double.parseDouble(f.substring(pos + 1));
+                hasher.add(f, 0, pos, w);
             } else {
-                fv = FeatureValue.parse(f);
+                hasher.add(f, 1.f);
             }
-            ftvec.add(fv);
         }
-        return ftvec;
+        return getSignatures(hasher);
     }
 
-    private static List<IntWritable> computeSignatures(final List<FeatureValue> features,
-            final int numHashes, final int keyGroups, final int[] seeds) throws HiveException {
-        final IntWritable[] hashes = new IntWritable[numHashes];
-        final PriorityQueue<Integer> minhashes = new PriorityQueue<Integer>();
-        // Compute N sets K minhash values
-        for (int i = 0; i < numHashes; i++) {
-            float weightedMinHashValues = Float.MAX_VALUE;
-            for (FeatureValue fv : features) {
-                Object f = fv.getFeature();
-                assert (f != null);
-                String fs = f.toString();
-                int hashIndex = Math.abs(MurmurHash3.murmurhash3_x86_32(fs, seeds[i]));
-                float w = fv.getValueAsFloat();
-                float hashValue = calcWeightedHashValue(hashIndex, w);
-                if (hashValue < weightedMinHashValues) {
-                    weightedMinHashValues = hashValue;
-                    minhashes.offer(hashIndex);
-                }
-            }
-
-            hashes[i] = val(getSignature(minhashes, keyGroups));
-            minhashes.clear();
+    private List<IntWritable> getSignatures(final MinHasher hasher) {
+        final int[] signatures = _signatures;
+        hasher.getSignatures(signatures);
+        final IntWritable[] hashes = new IntWritable[signatures.length];
+        for (int i = 0; i < signatures.length; i++) {
+            hashes[i] = val(signatures[i]);
         }
-
         return Arrays.asList(hashes);
     }
-
-    /**
-     * For a larger w, hash value tends to be smaller and tends to be selected as minhash.
-     */
-    private static float calcWeightedHashValue(final int hashIndex, final float w)
-            throws HiveException {
-        if (w < 0.f) {
-            throw new HiveException("Non-negative value is not accepted for a feature weight");
-        }
-        if (w == 0.f) {
-            return Float.MAX_VALUE;
-        } else {
-            return hashIndex / w;
-        }
-    }
-
-    private static int getSignature(PriorityQueue<Integer> candidates, int keyGroups) {
-        final int numCandidates = candidates.size();
-        if (numCandidates == 0) {
-            return 0;
-        }
-
-        final int size = Math.min(numCandidates, keyGroups);
-        int result = 1;
-        for (int i = 0; i < size; i++) {
-            int nextmin = candidates.poll();
-            result = (31 * result) + nextmin;
-        }
-        return result & 0x7FFFFFFF;
-    }
 }
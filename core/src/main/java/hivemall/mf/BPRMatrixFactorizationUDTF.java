@@ -62,7 +62,7 @@ import org.apache.hadoop.mapred.Reporter;
 @Description(name = "train_bprmf",
         value = "_FUNC_(INT user, INT posItem, INT negItem [, String options])"
                 + " - Returns a relation <INT i, FLOAT Pi, FLOAT Qi [, FLOAT Bi]>")
-public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements RatingInitilizer {
+public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements Cloneable {
     private static final Log LOG = LogFactory.getLog(OnlineMatrixFactorizationUDTF.class);
     private static final int RECORD_BYTES = (Integer.SIZE + Integer.SIZE + Integer.SIZE) / 8;
 
@@ -77,6 +77,10 @@ public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements
     protected boolean useBiasClause;
     /** The number of iterations */
     protected int iterations;
+    /** The number of threads to run the iterations after the first one */
+    protected int numThreads;
+    /** The seed to partition training examples into blocks */
+    protected long seed;
 
     protected LossFunction lossFunction;
     /** Initialization strategy of rank matrix */
@@ -102,8 +106,6 @@ public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements
     protected ByteBuffer inputBuf;
     private long lastWritePos;
 
-    private float[] uProbe, iProbe, jProbe;
-
     public BPRMatrixFactorizationUDTF() {
         this.factor = 10;
         this.regU = 0.0025f;
@@ -112,6 +114,8 @@ public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements
         this.regBias = 0.01f;
         this.useBiasClause = true;
         this.iterations = 30;
+        this.numThreads = 1;
+        this.seed = -1L;
     }
 
     public enum LossFunction {
@@ -139,6 +143,12 @@ public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements
         Options opts = new Options();
         opts.addOption("k", "factor", true, "The number of latent factor [default: 10]");
         opts.addOption("iter", "iterations", true, "The number of iterations [default: 30]");
+        opts.addOption("threads", "num_threads", true,
+            "The number of threads to run the iterations after the first one over"
+                    + " non-conflicting blocks of users and items, which hold a copy of"
+                    + " the training examples on the heap [default: 1]");
+        opts.addOption("seed", true,
+            "Seed value to partition training examples into blocks [default: -1 (random)]");
         opts.addOption("loss", "loss_function", true,
             "Loss function [default: lnLogistic, logistic, sigmoid]");
         // initialization
@@ -197,6 +207,12 @@ public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements
                 throw new UDFArgumentException(
                     "'-iterations' must be greater than or equals to 1: " + iterations);
             }
+            this.numThreads = Primitives.parseInt(cl.getOptionValue("num_threads"), numThreads);
+            if (numThreads < 1) {
+                throw new UDFArgumentException(
+                    "'-num_threads' must be greater than or equals to 1: " + numThreads);
+            }
+            this.seed = Primitives.parseLong(cl.getOptionValue("seed"), seed);
             lossFuncName = cl.getOptionValue("loss_function");
 
             float reg = Primitives.parseFloat(cl.getOptionValue("reg"), 0.0025f);
@@ -214,6 +230,9 @@ public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements
             this.useBiasClause = !cl.hasOption("no_bias");
         }
 
+        if (seed == -1L) {
+            this.seed = System.nanoTime();
+        }
         this.lossFunction = LossFunction.resolve(lossFuncName);
         this.rankInit = RankInitScheme.resolve(rankInitOpt);
         rankInit.setMaxInitValue(maxInitValue);
@@ -237,12 +256,9 @@ public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements
 
         processOptions(argOIs);
 
-        this.model = new FactorizedModel(this, factor, rankInit);
+        this.model = new FactorizedModel(factor, rankInit, false);
         this.count = 0L;
         this.lastWritePos = 0L;
-        this.uProbe = new float[factor];
-        this.iProbe = new float[factor];
-        this.jProbe = new float[factor];
 
         if (mapredContext != null && iterations > 1) {
             // invoke only at task node (initialize is also invoked in compilation)
@@ -309,37 +325,43 @@ public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements
     }
 
     protected void train(final int u, final int i, final int j) {
-        Rating[] user = model.getUserVector(u, true);
-        Rating[] itemI = model.getItemVector(i, true);
-        Rating[] itemJ = model.getItemVector(j, true);
-
-        copyToProbe(user, uProbe);
-        copyToProbe(itemI, iProbe);
-        copyToProbe(itemJ, jProbe);
-
-        double x_uij = predict(u, i, uProbe, iProbe) - predict(u, j, uProbe, jProbe);
+        final int userSlot = model.getUserSlot(u, true);
+        final int itemISlot = model.getItemSlot(i, true);
+        final int itemJSlot = model.getItemSlot(j, true);
+        final FactorStore users = model.users();
+        final FactorStore items = model.items();
+        final float[] W = users.weights(userSlot);
+        final int wOffset = users.offset(userSlot);
+        final float[] HI = items.weights(itemISlot);
+        final int hiOffset = items.offset(itemISlot);
+        final float[] HJ = items.weights(itemJSlot);
+        final int hjOffset = items.offset(itemJSlot);
+
+        double x_uij = predict(u, i, itemISlot, W, wOffset, HI, hiOffset)
+                - predict(u, j, itemJSlot, W, wOffset, HJ, hjOffset);
 
         final double dloss = dloss(x_uij, lossFunction);
         final float eta = eta();
         for (int k = 0, size = factor; k < size; k++) {
-            float w_uf = uProbe[k];
-            float h_if = iProbe[k];
-            float h_jf = jProbe[k];
+            float w_uf = W[wOffset + k];
+            float h_if = HI[hiOffset + k];
+            float h_jf = HJ[hjOffset + k];
 
-            updateUserRating(user[k], w_uf, h_if, h_jf, dloss, eta);
-            updateItemRating(itemI[k], w_uf, h_if, dloss, eta, regI); // positive item
-            updateItemRating(itemJ[k], w_uf, h_jf, -dloss, eta, regJ); // negative item
+            updateUserRating(users, userSlot, wOffset + k, w_uf, h_if, h_jf, dloss, eta);
+            updateItemRating(items, itemISlot, hiOffset + k, w_uf, h_if, dloss, eta, regI); // positive item
+            updateItemRating(items, itemJSlot, hjOffset + k, w_uf, h_jf, -dloss, eta, regJ); // negative item
         }
         if (useBiasClause) {
-            updateBias(i, j, dloss, eta);
+            updateBias(itemISlot, itemJSlot, dloss, eta);
         }
     }
 
-    protected double predict(final int user, final int item, @Nonnull final float[] userProbe,
-            @Nonnull final float[] itemProbe) {
-        double ret = model.getItemBias(item);
+    protected double predict(final int user, final int item, final int itemSlot,
+            @Nonnull final float[] W, final int wOffset, @Nonnull final float[] H,
+            final int hOffset) {
+        double ret = model.items().getBias(itemSlot);
         for (int k = 0, size = factor; k < size; k++) {
-            ret += userProbe[k] * itemProbe[k];
+            ret += W[wOffset + k] * H[hOffset + k];
         }
         if (!NumberUtils.isFinite(ret)) {
             throw new IllegalStateException("Detected " + ret + " in predict where user=" + user
@@ -371,47 +393,57 @@ public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements
         return etaEstimator.eta(count);
     }
 
-    protected void updateUserRating(final Rating rating, final float w_uf, final float h_if,
-            final float h_jf, final double dloss, final float eta) {
+    /**
+     * Updates <tt>users.weights(userSlot)[index]</tt> in place.
+     */
+    protected void updateUserRating(@Nonnull final FactorStore users, final int userSlot,
+            final int index, final float w_uf, final float h_if, final float h_jf,
+            final double dloss, final float eta) {
         double grad = dloss * (h_if - h_jf) - regU * w_uf;
         float delta = (float) (eta * grad);
         float newWeight = w_uf + delta;
         if (!NumberUtils.isFinite(newWeight)) {
             throw new IllegalStateException("Detected " + newWeight + " for w_uf");
         }
-        rating.setWeight(newWeight);
+        users.weights(userSlot)[index] = newWeight;
         cvState.incrLoss(regU * w_uf * w_uf);
     }
 
-    protected void updateItemRating(final Rating rating, final float w_uf, final float h_f,
-            final double dloss, final float eta, final float reg) {
+    /**
+     * Updates <tt>items.weights(itemSlot)[index]</tt> in place.
+     */
+    protected void updateItemRating(@Nonnull final FactorStore items, final int itemSlot,
+            final int index, final float w_uf, final float h_f, final double dloss,
+            final float eta, final float reg) {
         double grad = dloss * w_uf - reg * h_f;
         float delta = (float) (eta * grad);
         float newWeight = h_f + delta;
         if (!NumberUtils.isFinite(newWeight)) {
             throw new IllegalStateException("Detected " + newWeight + " for h_f");
         }
-        rating.setWeight(newWeight);
+        items.weights(itemSlot)[index] = newWeight;
         cvState.incrLoss(reg * h_f * h_f);
     }
 
-    protected void updateBias(final int i, final int j, final double dloss, final float eta) {
-        float Bi = model.getItemBias(i);
+    protected void updateBias(final int itemISlot, final int itemJSlot, final double dloss,
+            final float eta) {
+        final FactorStore items = model.items();
+        float Bi = items.getBias(itemISlot);
         double Gi = dloss - regBias * Bi;
         Bi += eta * Gi;
         if (!NumberUtils.isFinite(Bi)) {
             throw new IllegalStateException("Detected " + Bi + " for Bi");
         }
-        model.setItemBias(i, Bi);
+        items.setBias(itemISlot, Bi);
         cvState.incrLoss(regBias * Bi * Bi);
 
-        float Bj = model.getItemBias(j);
+        float Bj = items.getBias(itemJSlot);
         double Gj = -dloss - regBias * Bj;
         Bj += eta * Gj;
         if (!NumberUtils.isFinite(Bj)) {
             throw new IllegalStateException("Detected " + Bj + " for Bj");
         }
-        model.setItemBias(j, Bj);
+        items.setBias(itemJSlot, Bj);
         cvState.incrLoss(regBias * Bj * Bj);
     }
 
@@ -432,25 +464,27 @@ public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements
             final FloatWritable Bi = useBiasClause ? new FloatWritable() : null;
             final Object[] forwardObj = new Object[] {idx, Pu, Qi, Bi};
 
+            final FactorStore users = model.users();
+            final FactorStore items = model.items();
             int numForwarded = 0;
             for (int i = model.getMinIndex(), maxIdx = model.getMaxIndex(); i <= maxIdx; i++) {
                 idx.set(i);
-                Rating[] userRatings = model.getUserVector(i);
-                if (userRatings == null) {
+                int userSlot = users.find(i);
+                if (userSlot == -1) {
                     forwardObj[1] = null;
                 } else {
                     forwardObj[1] = Pu;
-                    copyTo(userRatings, Pu);
+                    OnlineMatrixFactorizationUDTF.copyTo(users, userSlot, Pu);
                 }
-                Rating[] itemRatings = model.getItemVector(i);
-                if (itemRatings == null) {
+                int itemSlot = items.find(i);
+                if (itemSlot == -1) {
                     forwardObj[2] = null;
                 } else {
                     forwardObj[2] = Qi;
-                    copyTo(itemRatings, Qi);
+                    OnlineMatrixFactorizationUDTF.copyTo(items, itemSlot, Qi);
                 }
                 if (useBiasClause) {
-                    Bi.set(model.getItemBias(i));
+                    Bi.set(itemSlot == -1 ? 0.f : items.getBias(itemSlot));
                 }
                 forward(forwardObj);
                 numForwarded++;
@@ -479,6 +513,14 @@ public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements
                 }
                 inputBuf.flip();
 
+                if (numThreads > 1) {
+                    final BlockScheduler blocks = newBlockScheduler();
+                    addRecords(inputBuf, blocks);
+                    runParallelIterations(blocks, iterations, numTrainingExamples, reporter,
+                        iterCounter);
+                    return;
+                }
+
                 int iter = 2;
                 for (; iter <= iterations; iter++) {
                     reportProgress(reporter);
@@ -530,6 +572,36 @@ public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements
                             + ")");
                 }
 
+                if (numThreads > 1 && !BlockScheduler.fitsInHeap(fileIO.getFile().length())) {
+                    LOG.warn("Run iterations in a single thread because the blocks of "
+                            + FileUtils.prettyFileSize(fileIO.getFile())
+                            + " of training examples would not fit in the heap");
+                } else if (numThreads > 1) {
+                    final BlockScheduler blocks = newBlockScheduler();
+                    inputBuf.clear();
+                    long seekPos = 0L;
+                    while (true) {
+                        reportProgress(reporter);
+                        final int bytesRead;
+                        try {
+                            bytesRead = fileIO.read(seekPos, inputBuf);
+                        } catch (IOException e) {
+                            throw new HiveException("Failed to read a file: "
+                                    + fileIO.getFile().getAbsolutePath(), e);
+                        }
+                        if (bytesRead == 0) { // reached file EOF
+                            break;
+                        }
+                        seekPos += bytesRead;
+                        inputBuf.flip();
+                        addRecords(inputBuf, blocks);
+                        inputBuf.compact();
+                    }
+                    runParallelIterations(blocks, iterations, numTrainingExamples, reporter,
+                        iterCounter);
+                    return;
+                }
+
                 // run iterations
                 int iter = 2;
                 for (; iter <= iterations; iter++) {
@@ -597,9 +669,119 @@ public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements
         }
     }
 
-    @Override
-    public Rating newRating(float v) {
-        return new Rating(v);
+    @Nonnull
+    private BlockScheduler newBlockScheduler() {
+        return new BlockScheduler(numThreads, 3, seed);
+    }
+
+    /**
+     * Adds the whole records in the buffer to the blocks. A record of which the positive and the
+     * negative items fall in different column blocks is trained in the pair strata after the
+     * strata.
+     */
+    private static void addRecords(@Nonnull final ByteBuffer buf,
+            @Nonnull final BlockScheduler blocks) {
+        final int[] record = new int[3];
+        while (buf.remaining() >= RECORD_BYTES) {
+            int u = buf.getInt();
+            int i = buf.getInt();
+            int j = buf.getInt();
+            record[0] = u;
+            record[1] = i;
+            record[2] = j;
+            blocks.add(u, i, j, record);
+        }
+    }
+
+    /**
+     * Runs the iterations after the first one in {@link #numThreads} threads, each of which trains
+     * the examples of a row block of users in a stratum. As the positive and the negative items of
+     * an example fall in different column blocks in <tt>(numThreads - 1) / numThreads</tt> of the
+     * examples, such examples are trained in the pair strata by up to <tt>numThreads / 2</tt>
+     * threads. Losses of the threads are summed up into {@link #cvState} for the convergence check.
+     */
+    private void runParallelIterations(@Nonnull final BlockScheduler blocks,
+            final int iterations, final long numTrainingExamples,
+            @Nullable final Reporter reporter, @Nullable final Counter iterCounter)
+            throws HiveException {
+        final int numBlocks = blocks.getNumBlocks();
+        final BPRMatrixFactorizationUDTF[] workers = new BPRMatrixFactorizationUDTF[numBlocks];
+        final BlockScheduler.Worker[] handlers = new BlockScheduler.Worker[numBlocks];
+        for (int b = 0; b < numBlocks; b++) {
+            final BPRMatrixFactorizationUDTF worker = newWorker();
+            workers[b] = worker;
+            handlers[b] = new BlockScheduler.Worker() {
+                @Override
+                public void handle(@Nonnull final int[] records, final int offset) {
+                    worker.train(records[offset], records[offset + 1], records[offset + 2]);
+                    worker.count += numBlocks;
+                }
+            };
+        }
+        final long numResiduals = blocks.getNumResidualRecords();
+        LOG.info("Partitioned " + NumberUtils.formatNumber(blocks.getNumRecords())
+                + " training examples into " + numBlocks + "x" + numBlocks + " blocks ("
+                + NumberUtils.formatNumber(numResiduals) + " examples across column blocks)");
+
+        int iter = 2;
+        try {
+            for (; iter <= iterations; iter++) {
+                reportProgress(reporter);
+                setCounterValue(iterCounter, iter);
+
+                // each worker counts examples as if the row blocks were processed in turn
+                final long t0 = count;
+                for (int b = 0; b < numBlocks; b++) {
+                    BPRMatrixFactorizationUDTF worker = workers[b];
+                    worker.count = t0 + 1 + b;
+                    worker.cvState = new ConversionState(false, 0.d);
+                }
+                for (int stratum : blocks.strata(iter)) {
+                    blocks.runStratum(stratum, handlers);
+                    reportProgress(reporter);
+                }
+                blocks.runPairStrata(handlers);
+                for (BPRMatrixFactorizationUDTF worker : workers) {
+                    cvState.incrLoss(worker.cvState.getCumulativeLoss());
+                }
+                this.count = t0 + blocks.getNumRecords();
+
+                cvState.multiplyLoss(0.5d);
+                cvState.logState(iter, eta());
+                if (cvState.isConverged(iter, numTrainingExamples)) {
+                    break;
+                }
+                if (cvState.isLossIncreased()) {
+                    etaEstimator.update(1.1f);
+                } else {
+                    etaEstimator.update(0.5f);
+                }
+            }
+        } finally {
+            blocks.close();
+        }
+        LOG.info("Performed " + Math.min(iter, iterations) + " iterations of "
+                + NumberUtils.formatNumber(numTrainingExamples) + " training examples in "
+                + numBlocks + " threads (thus " + NumberUtils.formatNumber(count)
+                + " training updates in total)");
+    }
+
+    /**
+     * Returns a trainer for a thread of parallel iterations. The trainer shares the model and the
+     * hyper-parameters with this one while it has its own counters.
+     */
+    @Nonnull
+    protected BPRMatrixFactorizationUDTF newWorker() throws HiveException {
+        final BPRMatrixFactorizationUDTF worker;
+        try {
+            worker = (BPRMatrixFactorizationUDTF) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new HiveException(e);
+        }
+        worker.fileIO = null;
+        worker.inputBuf = null;
+        worker.cvState = new ConversionState(false, 0.d);
+        return worker;
     }
 
     // ----------------------------------------------
@@ -630,17 +812,4 @@ public final class BPRMatrixFactorizationUDTF extends UDTFWithOptions implements
         srcBuf.clear();
     }
 
-    @Nonnull
-    private final void copyToProbe(@Nonnull final Rating[] rating, @Nonnull float[] probe) {
-        for (int k = 0, size = factor; k < size; k++) {
-            probe[k] = rating[k].getWeight();
-        }
-    }
-
-    private static void copyTo(@Nonnull final Rating[] rating, @Nonnull final FloatWritable[] dst) {
-        for (int k = 0, size = rating.length; k < size; k++) {
-            float w = rating[k].getWeight();
-            dst[k].set(w);
-        }
-    }
 }
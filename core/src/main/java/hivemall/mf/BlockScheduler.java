@@ -0,0 +1,362 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.mf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+
+/**
+ * Partitions training examples of matrix factorization into a grid of
+ * <tt>numBlocks x numBlocks</tt> blocks by their users (rows) and items (columns) and runs an
+ * epoch as a sequence of strata as DSGD does. The blocks of a stratum share no row nor column,
+ * and thus the threads processing them in parallel never update the same factors.
+ * 
+ * An example is a fixed-width record of ints. Records of a block are processed in the order of
+ * insertion by the worker of the row block, and the order of strata in an epoch is shuffled by
+ * the seed. Results are therefore deterministic for a seed regardless of thread scheduling.
+ * 
+ * @link http://dl.acm.org/citation.cfm?id=2020426
+ */
+public final class BlockScheduler {
+
+    public interface Worker {
+        void handle(@Nonnull int[] records, @Nonnegative int offset) throws HiveException;
+    }
+
+    @Nonnegative
+    private final int numBlocks;
+    @Nonnegative
+    private final int width;
+    private final long seed;
+
+    /** numBlocks * numBlocks blocks in the row-major order */
+    @Nonnull
+    private final int[][] blocks;
+    @Nonnull
+    private final int[] sizes;
+    /** numBlocks * numPairs cells of a row block and a pair of column blocks */
+    @Nonnull
+    private final int[][] pairBlocks;
+    @Nonnull
+    private final int[] pairSizes;
+    /** Pairs of column blocks sharing no block, for each round of the pair strata */
+    @Nonnull
+    private final int[][][] rounds;
+    private long numRecords;
+    private long numResidualRecords;
+
+    @Nullable
+    private ForkJoinPool pool;
+
+    public BlockScheduler(@Nonnegative int numBlocks, @Nonnegative int width, long seed) {
+        if (numBlocks < 1) {
+            throw new IllegalArgumentException("Invalid numBlocks: " + numBlocks);
+        }
+        if (width < 1) {
+            throw new IllegalArgumentException("Invalid width: " + width);
+        }
+        this.numBlocks = numBlocks;
+        this.width = width;
+        this.seed = seed;
+        final int n = numBlocks * numBlocks;
+        this.blocks = new int[n][];
+        for (int i = 0; i < n; i++) {
+            blocks[i] = new int[width * 64];
+        }
+        this.sizes = new int[n];
+        final int numPairs = numBlocks * (numBlocks - 1) / 2;
+        this.pairBlocks = new int[numBlocks * numPairs][];
+        this.pairSizes = new int[numBlocks * numPairs];
+        this.rounds = roundRobin(numBlocks);
+        this.numRecords = 0L;
+        this.numResidualRecords = 0L;
+    }
+
+    /**
+     * Schedules the pairs of <tt>n</tt> blocks into rounds of disjoint pairs by the circle method.
+     * A bye block is added when <tt>n</tt> is odd.
+     */
+    @Nonnull
+    static int[][][] roundRobin(@Nonnegative final int n) {
+        final int m = (n % 2 == 0) ? n : n + 1;
+        final int[][][] rounds = new int[m - 1][][];
+        final List<int[]> pairs = new ArrayList<int[]>(m / 2);
+        for (int r = 0; r < m - 1; r++) {
+            pairs.clear();
+            addPair(pairs, m - 1, r, n);
+            for (int k = 1; k < m / 2; k++) {
+                addPair(pairs, (r + k) % (m - 1), (r - k + m - 1) % (m - 1), n);
+            }
+            rounds[r] = pairs.toArray(new int[pairs.size()][]);
+        }
+        return rounds;
+    }
+
+    private static void addPair(@Nonnull final List<int[]> pairs, final int a, final int b,
+            final int n) {
+        if (a >= n || b >= n) {
+            return; // bye
+        }
+        pairs.add(new int[] {Math.min(a, b), Math.max(a, b)});
+    }
+
+    @Nonnegative
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
+    /**
+     * @return the number of records including ones spanning two column blocks
+     */
+    public long getNumRecords() {
+        return numRecords;
+    }
+
+    /**
+     * @return the number of records spanning two column blocks
+     */
+    public long getNumResidualRecords() {
+        return numResidualRecords;
+    }
+
+    public int rowBlock(final int row) {
+        return block(row, seed, numBlocks);
+    }
+
+    public int columnBlock(final int col) {
+        return block(col, ~seed, numBlocks);
+    }
+
+    private static int block(final int id, final long seed, final int numBlocks) {
+        long h = (id ^ seed) * 0x9E3779B97F4A7C15L;
+        h ^= (h >>> 32);
+        return (int) ((h & 0x7fffffffL) % numBlocks);
+    }
+
+    /**
+     * Adds a record to the block of the row and the column.
+     */
+    public void add(final int row, final int col, @Nonnull final int[] record) {
+        final int b = rowBlock(row) * numBlocks + columnBlock(col);
+        this.blocks[b] = append(blocks[b], sizes[b], record, width);
+        sizes[b] += width;
+        numRecords++;
+    }
+
+    /**
+     * Adds a record which updates the factors of two columns, e.g., the positive and the negative
+     * items of BPR, to the block of the row and the columns if they fall in the same column block,
+     * or to the cell of the row block and the pair of the column blocks otherwise.
+     */
+    public void add(final int row, final int col1, final int col2, @Nonnull final int[] record) {
+        final int c1 = columnBlock(col1);
+        final int c2 = columnBlock(col2);
+        if (c1 == c2) {
+            add(row, col1, record);
+            return;
+        }
+        final int b = rowBlock(row) * (pairSizes.length / numBlocks)
+                + pairIndex(Math.min(c1, c2), Math.max(c1, c2));
+        this.pairBlocks[b] = append(pairBlocks[b], pairSizes[b], record, width);
+        pairSizes[b] += width;
+        numRecords++;
+        numResidualRecords++;
+    }
+
+    private int pairIndex(final int c1, final int c2) {
+        assert (c1 < c2) : c1 + " >= " + c2;
+        return c1 * numBlocks - c1 * (c1 + 1) / 2 + (c2 - c1 - 1);
+    }
+
+    @Nonnull
+    private static int[] append(@Nullable int[] dst, final int size, @Nonnull final int[] record,
+            final int width) {
+        if (dst == null) {
+            dst = new int[width * 64];
+        } else if (size + width > dst.length) {
+            dst = Arrays.copyOf(dst, Math.max(dst.length * 2, size + width));
+        }
+        System.arraycopy(record, 0, dst, size, width);
+        return dst;
+    }
+
+    /**
+     * @return the order of the strata of an epoch, shuffled by the seed and the epoch
+     */
+    @Nonnull
+    public int[] strata(final int epoch) {
+        final int[] order = new int[numBlocks];
+        for (int i = 0; i < numBlocks; i++) {
+            order[i] = i;
+        }
+        final Random rnd = new Random(seed * 31L + epoch);
+        for (int i = numBlocks - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        return order;
+    }
+
+    /**
+     * Processes the blocks <tt>(b, (b + stratum) % numBlocks)</tt> for each row block <tt>b</tt>
+     * in parallel, by <tt>workers[b]</tt>, and waits for all of them.
+     */
+    public void runStratum(final int stratum, @Nonnull final Worker[] workers)
+            throws HiveException {
+        if (workers.length != numBlocks) {
+            throw new IllegalArgumentException("Expected " + numBlocks + " workers but was "
+                    + workers.length);
+        }
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numBlocks);
+        for (int row = 0; row < numBlocks; row++) {
+            final int b = row * numBlocks + (row + stratum) % numBlocks;
+            final int size = sizes[b];
+            if (size == 0) {
+                continue;
+            }
+            final int[] block = blocks[b];
+            final Worker worker = workers[row];
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws HiveException {
+                    run(worker, block, size, width);
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    /**
+     * Processes the cells of the records spanning two column blocks in the pair strata. A pair
+     * stratum assigns the disjoint pairs of column blocks of a round to distinct row blocks, and
+     * thus runs up to <tt>numBlocks / 2</tt> cells in parallel. A cell is processed by the worker
+     * of its row block.
+     */
+    public void runPairStrata(@Nonnull final Worker[] workers) throws HiveException {
+        if (workers.length != numBlocks) {
+            throw new IllegalArgumentException("Expected " + numBlocks + " workers but was "
+                    + workers.length);
+        }
+        if (numResidualRecords == 0L) {
+            return;
+        }
+        final int numPairs = pairSizes.length / numBlocks;
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numBlocks / 2);
+        for (int[][] pairs : rounds) {
+            for (int shift = 0; shift < numBlocks; shift++) {
+                tasks.clear();
+                for (int k = 0; k < pairs.length; k++) {
+                    final int row = (k + shift) % numBlocks;
+                    final int b = row * numPairs + pairIndex(pairs[k][0], pairs[k][1]);
+                    final int size = pairSizes[b];
+                    if (size == 0) {
+                        continue;
+                    }
+                    final int[] block = pairBlocks[b];
+                    final Worker worker = workers[row];
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws HiveException {
+                            run(worker, block, size, width);
+                            return null;
+                        }
+                    });
+                }
+                invokeAll(tasks);
+            }
+        }
+    }
+
+    private void invokeAll(@Nonnull final List<Callable<Void>> tasks) throws HiveException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        if (tasks.size() == 1) {
+            try {
+                tasks.get(0).call();
+            } catch (HiveException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new HiveException(e);
+            }
+            return;
+        }
+
+        ForkJoinPool pool = this.pool;
+        if (pool == null) {
+            pool = new ForkJoinPool(numBlocks);
+            this.pool = pool;
+        }
+        final List<Future<Void>> futures = pool.invokeAll(tasks);
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new HiveException("Training failed in a worker thread", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new HiveException("Interrupted while waiting for training threads", e);
+            }
+        }
+    }
+
+    private static void run(@Nonnull final Worker worker, @Nonnull final int[] records,
+            final int size, final int width) throws HiveException {
+        for (int offset = 0; offset < size; offset += width) {
+            worker.handle(records, offset);
+        }
+    }
+
+    /**
+     * Returns whether the blocks of records of the given size in bytes, including the transient
+     * copies on growing the blocks, are expected to fit in the available heap.
+     */
+    public static boolean fitsInHeap(final long recordBytes) {
+        final Runtime rt = Runtime.getRuntime();
+        long used = rt.totalMemory() - rt.freeMemory();
+        long available = rt.maxMemory() - used;
+        return recordBytes * 2L < available;
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+            this.pool = null;
+        }
+    }
+
+}
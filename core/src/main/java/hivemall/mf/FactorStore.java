@@ -0,0 +1,163 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.mf;
+
+import hivemall.utils.collections.Int2IntOpenHashTable;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Latent vectors of users or items. Each vector is a contiguous slice of <tt>factor + 1</tt>
+ * floats in a page of vectors, and its bias follows the factors in the slice. The sums of squared
+ * gradients of AdaGrad, if kept, are stored in parallel pages of the same layout. Vectors are
+ * looked up through a primitive table from indexes to slots.
+ *
+ * The values of a slot are in <tt>weights(slot)[offset(slot) .. offset(slot) + factor]</tt> and
+ * are updated in place.
+ */
+@NotThreadSafe
+public final class FactorStore {
+
+    private static final int PAGE_SHIFT = 12; // 4096 vectors in a page
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    @Nonnegative
+    private final int factor;
+    /** factor + 1 for the bias */
+    @Nonnegative
+    private final int stride;
+
+    @Nonnull
+    private final Int2IntOpenHashTable slots;
+    @Nonnull
+    private float[][] weights;
+    /** null unless AdaGrad is used */
+    private float[][] sqgrads;
+    private int size;
+
+    public FactorStore(@Nonnegative int factor, boolean sqgrads, @Nonnegative int expectedSize) {
+        this.factor = factor;
+        this.stride = factor + 1;
+        this.slots = new Int2IntOpenHashTable(Math.max(expectedSize, 16));
+        slots.defaultReturnValue(-1);
+        this.weights = new float[4][];
+        this.sqgrads = sqgrads ? new float[4][] : null;
+        this.size = 0;
+    }
+
+    @Nonnegative
+    public int getFactor() {
+        return factor;
+    }
+
+    /**
+     * @return the number of vectors
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean hasSumOfSquaredGradients() {
+        return sqgrads != null;
+    }
+
+    /**
+     * @return the slot of the index or -1 if not found
+     */
+    public int find(final int index) {
+        return slots.get(index);
+    }
+
+    /**
+     * Adds a zero-filled vector of the index.
+     * 
+     * @return the slot of the new vector
+     */
+    public int add(final int index) {
+        final int slot = size;
+        final int page = slot >>> PAGE_SHIFT;
+        if (page == weights.length) {
+            int newLength = page * 2;
+            this.weights = Arrays.copyOf(weights, newLength);
+            if (sqgrads != null) {
+                this.sqgrads = Arrays.copyOf(sqgrads, newLength);
+            }
+        }
+        if (weights[page] == null) {
+            weights[page] = new float[PAGE_SIZE * stride];
+            if (sqgrads != null) {
+                sqgrads[page] = new float[PAGE_SIZE * stride];
+            }
+        }
+        slots.put(index, slot);
+        this.size = slot + 1;
+        return slot;
+    }
+
+    /**
+     * @return the page holding the vector of the slot
+     */
+    @Nonnull
+    public float[] weights(final int slot) {
+        return weights[slot >>> PAGE_SHIFT];
+    }
+
+    /**
+     * @return the page holding the sums of squared gradients of the slot
+     */
+    @Nonnull
+    public float[] sqgrads(final int slot) {
+        return sqgrads[slot >>> PAGE_SHIFT];
+    }
+
+    /**
+     * @return the offset of the vector of the slot in its page
+     */
+    public int offset(final int slot) {
+        return (slot & PAGE_MASK) * stride;
+    }
+
+    /**
+     * @return the offset of the bias of the slot in its page
+     */
+    public int biasOffset(final int slot) {
+        return (slot & PAGE_MASK) * stride + factor;
+    }
+
+    public float getBias(final int slot) {
+        return weights[slot >>> PAGE_SHIFT][biasOffset(slot)];
+    }
+
+    public void setBias(final int slot, final float value) {
+        weights[slot >>> PAGE_SHIFT][biasOffset(slot)] = value;
+    }
+
+    /**
+     * Copies the vector of the slot to dst.
+     */
+    public void copyTo(final int slot, @Nonnull final float[] dst) {
+        System.arraycopy(weights(slot), offset(slot), dst, 0, factor);
+    }
+
+}
@@ -18,7 +18,6 @@
  */
 package hivemall.mf;
 
-import hivemall.utils.collections.IntOpenHashMap;
 import hivemall.utils.math.MathUtils;
 
 import java.util.Random;
@@ -28,11 +27,13 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 
+/**
+ * Latent vectors and biases of users and items kept in {@link FactorStore}s. Vectors are created
+ * on the first access with <tt>init=true</tt> and then updated in place.
+ */
 @NotThreadSafe
 public final class FactorizedModel {
 
-    @Nonnull
-    private final RatingInitilizer ratingInitializer;
     @Nonnegative
     private final int factor;
 
@@ -40,37 +41,38 @@ public final class FactorizedModel {
     private final RankInitScheme initScheme;
 
     private int minIndex, maxIndex;
+    private float meanRating;
+    private float meanRatingSqGrad;
     @Nonnull
-    private Rating meanRating;
-    private IntOpenHashMap<Rating[]> users;
-    private IntOpenHashMap<Rating[]> items;
-    private IntOpenHashMap<Rating> userBias;
-    private IntOpenHashMap<Rating> itemBias;
+    private final FactorStore users;
+    @Nonnull
+    private final FactorStore items;
 
     private final Random[] randU, randI;
 
-    public FactorizedModel(@Nonnull RatingInitilizer ratingInitializer, @Nonnegative int factor,
-            @Nonnull RankInitScheme initScheme) {
-        this(ratingInitializer, factor, 0.f, initScheme, 136861);
+    public FactorizedModel(@Nonnegative int factor, @Nonnull RankInitScheme initScheme,
+            boolean sqgrads) {
+        this(factor, 0.f, initScheme, sqgrads, 136861);
     }
 
-    public FactorizedModel(@Nonnull RatingInitilizer ratingInitializer, @Nonnegative int factor,
-            float meanRating, @Nonnull RankInitScheme initScheme) {
-        this(ratingInitializer, factor, meanRating, initScheme, 136861);
+    public FactorizedModel(@Nonnegative int factor, float meanRating,
+            @Nonnull RankInitScheme initScheme, boolean sqgrads) {
+        this(factor, meanRating, initScheme, sqgrads, 136861);
     }
 
-    public FactorizedModel(@Nonnull RatingInitilizer ratingInitializer, @Nonnegative int factor,
-            float meanRating, @Nonnull RankInitScheme initScheme, int expectedSize) {
-        this.ratingInitializer = ratingInitializer;
+    /**
+     * @param sqgrads whether to keep the sums of squared gradients for AdaGrad
+     */
+    public FactorizedModel(@Nonnegative int factor, float meanRating,
+            @Nonnull RankInitScheme initScheme, boolean sqgrads, int expectedSize) {
         this.factor = factor;
         this.initScheme = initScheme;
         this.minIndex = 0;
         this.maxIndex = 0;
-        this.meanRating = ratingInitializer.newRating(meanRating);
-        this.users = new IntOpenHashMap<Rating[]>(expectedSize);
-        this.items = new IntOpenHashMap<Rating[]>(expectedSize);
-        this.userBias = new IntOpenHashMap<Rating>(expectedSize);
-        this.itemBias = new IntOpenHashMap<Rating>(expectedSize);
+        this.meanRating = meanRating;
+        this.meanRatingSqGrad = 0.f;
+        this.users = new FactorStore(factor, sqgrads, expectedSize);
+        this.items = new FactorStore(factor, sqgrads, expectedSize);
         this.randU = newRandoms(factor, 31L);
         this.randI = newRandoms(factor, 41L);
     }
@@ -121,149 +123,131 @@ public final class FactorizedModel {
         return maxIndex;
     }
 
-    @Nonnull
-    public Rating meanRating() {
-        return meanRating;
+    @Nonnegative
+    public int getFactor() {
+        return factor;
     }
 
     public float getMeanRating() {
-        return meanRating.getWeight();
+        return meanRating;
     }
 
     public void setMeanRating(float rating) {
-        meanRating.setWeight(rating);
+        this.meanRating = rating;
     }
 
-    @Nullable
-    public Rating[] getUserVector(int u) {
-        return getUserVector(u, false);
+    public float getMeanRatingSumOfSquaredGradients() {
+        return meanRatingSqGrad;
     }
 
-    @Nullable
-    public Rating[] getUserVector(int u, boolean init) {
-        Rating[] v = users.get(u);
-        if (init && v == null) {
-            v = new Rating[factor];
-            switch (initScheme) {
-                case random:
-                    uniformFill(v, randU[0], initScheme.maxInitValue, ratingInitializer);
-                    break;
-                case gaussian:
-                    gaussianFill(v, randU, initScheme.initStdDev, ratingInitializer);
-                    break;
-                default:
-                    throw new IllegalStateException("Unsupported rank initialization scheme: "
-                            + initScheme);
+    public void setMeanRatingSumOfSquaredGradients(float sqgrad) {
+        this.meanRatingSqGrad = sqgrad;
+    }
 
-            }
-            users.put(u, v);
+    @Nonnull
+    public FactorStore users() {
+        return users;
+    }
+
+    @Nonnull
+    public FactorStore items() {
+        return items;
+    }
+
+    /**
+     * @return the slot of the user vector in {@link #users()}, or -1 if not found
+     */
+    public int getUserSlot(int u) {
+        return users.find(u);
+    }
+
+    /**
+     * @return the slot of the user vector in {@link #users()}, or -1 if not found and not init
+     */
+    public int getUserSlot(int u, boolean init) {
+        int slot = users.find(u);
+        if (init && slot == -1) {
+            slot = users.add(u);
+            fill(users, slot, randU);
             this.maxIndex = Math.max(maxIndex, u);
             this.minIndex = Math.min(minIndex, u);
         }
-        return v;
+        return slot;
     }
 
-    @Nullable
-    public Rating[] getItemVector(int i) {
-        return getItemVector(i, false);
+    /**
+     * @return the slot of the item vector in {@link #items()}, or -1 if not found
+     */
+    public int getItemSlot(int i) {
+        return items.find(i);
     }
 
-    @Nullable
-    public Rating[] getItemVector(int i, boolean init) {
-        Rating[] v = items.get(i);
-        if (init && v == null) {
-            v = new Rating[factor];
-            switch (initScheme) {
-                case random:
-                    uniformFill(v, randI[0], initScheme.maxInitValue, ratingInitializer);
-                    break;
-                case gaussian:
-                    gaussianFill(v, randI, initScheme.initStdDev, ratingInitializer);
-                    break;
-                default:
-                    throw new IllegalStateException("Unsupported rank initialization scheme: "
-                            + initScheme);
-
-            }
-            items.put(i, v);
+    /**
+     * @return the slot of the item vector in {@link #items()}, or -1 if not found and not init
+     */
+    public int getItemSlot(int i, boolean init) {
+        int slot = items.find(i);
+        if (init && slot == -1) {
+            slot = items.add(i);
+            fill(items, slot, randI);
             this.maxIndex = Math.max(maxIndex, i);
             this.minIndex = Math.min(minIndex, i);
         }
-        return v;
-    }
-
-    @Nonnull
-    public Rating userBias(int u) {
-        Rating b = userBias.get(u);
-        if (b == null) {
-            b = ratingInitializer.newRating(0.f); // dummy
-            userBias.put(u, b);
-        }
-        return b;
+        return slot;
     }
 
     public float getUserBias(int u) {
-        Rating b = userBias.get(u);
-        if (b == null) {
+        int slot = users.find(u);
+        if (slot == -1) {
             return 0.f;
         }
-        return b.getWeight();
+        return users.getBias(slot);
     }
 
     public void setUserBias(int u, float value) {
-        Rating b = userBias.get(u);
-        if (b == null) {
-            b = ratingInitializer.newRating(value);
-            userBias.put(u, b);
-        }
-        b.setWeight(value);
-    }
-
-    @Nonnull
-    public Rating itemBias(int i) {
-        Rating b = itemBias.get(i);
-        if (b == null) {
-            b = ratingInitializer.newRating(0.f); // dummy
-            itemBias.put(i, b);
-        }
-        return b;
-    }
-
-    @Nullable
-    public Rating getItemBiasObject(int i) {
-        return itemBias.get(i);
+        users.setBias(getUserSlot(u, true), value);
     }
 
     public float getItemBias(int i) {
-        Rating b = itemBias.get(i);
-        if (b == null) {
+        int slot = items.find(i);
+        if (slot == -1) {
             return 0.f;
         }
-        return b.getWeight();
+        return items.getBias(slot);
     }
 
     public void setItemBias(int i, float value) {
-        Rating b = itemBias.get(i);
-        if (b == null) {
-            b = ratingInitializer.newRating(value);
-            itemBias.put(i, b);
+        items.setBias(getItemSlot(i, true), value);
+    }
+
+    private void fill(@Nonnull final FactorStore store, final int slot,
+            @Nonnull final Random[] rand) {
+        final float[] weights = store.weights(slot);
+        final int offset = store.offset(slot);
+        switch (initScheme) {
+            case random:
+                uniformFill(weights, offset, factor, rand[0], initScheme.maxInitValue);
+                break;
+            case gaussian:
+                gaussianFill(weights, offset, factor, rand, initScheme.initStdDev);
+                break;
+            default:
+                throw new IllegalStateException("Unsupported rank initialization scheme: "
+                        + initScheme);
         }
-        b.setWeight(value);
     }
 
-    private static void uniformFill(final Rating[] a, final Random rand, final float maxInitValue,
-            final RatingInitilizer init) {
-        for (int i = 0, len = a.length; i < len; i++) {
-            float v = rand.nextFloat() * maxInitValue / len;
-            a[i] = init.newRating(v);
+    private static void uniformFill(final float[] a, final int offset, final int len,
+            final Random rand, final float maxInitValue) {
+        for (int k = 0; k < len; k++) {
+            a[offset + k] = rand.nextFloat() * maxInitValue / len;
         }
     }
 
-    private static void gaussianFill(final Rating[] a, final Random[] rand, final double stddev,
-            final RatingInitilizer init) {
-        for (int i = 0, len = a.length; i < len; i++) {
-            float v = (float) MathUtils.gaussian(0.d, stddev, rand[i]);
-            a[i] = init.newRating(v);
+    private static void gaussianFill(final float[] a, final int offset, final int len,
+            final Random[] rand, final double stddev) {
+        for (int k = 0; k < len; k++) {
+            a[offset + k] = (float) MathUtils.gaussian(0.d, stddev, rand[k]);
         }
     }
 
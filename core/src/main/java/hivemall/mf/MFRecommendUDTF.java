@@ -0,0 +1,536 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.mf;
+
+import hivemall.UDTFWithOptions;
+import hivemall.utils.collections.BoundedIntDoubleHeap;
+import hivemall.utils.collections.DoubleArrayList;
+import hivemall.utils.collections.IntArrayList;
+import hivemall.utils.hadoop.HadoopUtils;
+import hivemall.utils.hadoop.HiveUtils;
+import hivemall.utils.io.IOUtils;
+import hivemall.utils.lang.Primitives;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.IntWritable;
+
+/**
+ * Recommends the top-k items of each user by a model of <tt>train_mf_sgd</tt>,
+ * <tt>train_mf_adagrad</tt>, or <tt>train_bprmf</tt>, instead of scoring the cross join of users
+ * and items by <tt>mf_predict</tt> and taking <tt>each_top_k</tt>.
+ * 
+ * The item factors are read once from the model table given by <tt>-model</tt>, e.g., by
+ * <tt>add file hdfs:///user/hive/warehouse/mf_model</tt>, into a contiguous array. Users are
+ * buffered into batches and scored block by block of items so that a block stays in CPU caches
+ * across the users of a batch. With <tt>-pruning</tt>, items are sorted by the norms of their
+ * factors and an item is skipped when <tt>Bi + |Pu| |Qi|</tt>, an upper bound of its score, cannot
+ * enter the top-k of the user.
+ */
+@Description(
+        name = "mf_recommend",
+        value = "_FUNC_(ANY user, array<float> Pu [, double Bu], const string options)"
+                + " - Returns a relation <ANY user, INT item, INT rank, DOUBLE score> of the top-k items of the user")
+public final class MFRecommendUDTF extends UDTFWithOptions {
+    private static final Log logger = LogFactory.getLog(MFRecommendUDTF.class);
+
+    /** The bytes of item factors scored at a time */
+    private static final int ITEM_BLOCK_BYTES = 64 * 1024;
+
+    private ObjectInspector userOI;
+    private ListObjectInspector factorListOI;
+    private PrimitiveObjectInspector factorElemOI;
+    @Nullable
+    private PrimitiveObjectInspector userBiasOI;
+
+    private String modelFile;
+    private int topK;
+    private boolean pruning;
+    private int batchSize;
+
+    // Item model
+    private int numItems;
+    private int factor;
+    @Nullable
+    private int[] itemIds;
+    /** Factors of items in the row-major order */
+    @Nullable
+    private float[] itemFactors;
+    @Nullable
+    private double[] itemBiases;
+    /** |Qi| of items, only for pruning */
+    @Nullable
+    private double[] itemNorms;
+    /** Suffix maximums of itemBiases and itemNorms, only for pruning */
+    @Nullable
+    private double[] maxBiases, maxNorms;
+    /** The mean rating of the model or 0 */
+    private double meanRating;
+
+    // Batch of users
+    @Nullable
+    private Object[] users;
+    @Nullable
+    private float[][] userFactors;
+    @Nullable
+    private double[] userBiases;
+    @Nullable
+    private BoundedIntDoubleHeap[] heaps;
+    private int numRows;
+
+    @Override
+    protected Options getOptions() {
+        Options opts = new Options();
+        opts.addOption("model", true, "The path to the model table or its file on the local"
+                + " filesystem, e.g., a file added to the distributed cache");
+        opts.addOption("k", "topk", true, "The number of items to recommend [default: 10]");
+        opts.addOption("pruning", false,
+            "Skip items which cannot enter the top-k by the norms of their factors");
+        opts.addOption("batch", "batch_size", true,
+            "The number of users to score at a time [default: 64]");
+        return opts;
+    }
+
+    @Override
+    protected CommandLine processOptions(ObjectInspector[] argOIs) throws UDFArgumentException {
+        String modelFile = null;
+        int topK = 10;
+        boolean pruning = false;
+        int batchSize = 64;
+
+        CommandLine cl = null;
+        if (argOIs.length >= 3) {
+            String rawArgs = HiveUtils.getConstString(argOIs[argOIs.length - 1]);
+            cl = parseOptions(rawArgs);
+            modelFile = cl.getOptionValue("model");
+            topK = Primitives.parseInt(cl.getOptionValue("topk"), topK);
+            if (topK < 1) {
+                throw new UDFArgumentException("-k must be positive: " + topK);
+            }
+            pruning = cl.hasOption("pruning");
+            batchSize = Primitives.parseInt(cl.getOptionValue("batch_size"), batchSize);
+            if (batchSize < 1) {
+                throw new UDFArgumentException("batch_size must be positive: " + batchSize);
+            }
+        }
+        if (modelFile == null) {
+            throw new UDFArgumentException("-model is required");
+        }
+
+        this.modelFile = modelFile;
+        this.topK = topK;
+        this.pruning = pruning;
+        this.batchSize = batchSize;
+        return cl;
+    }
+
+    @Override
+    public StructObjectInspector initialize(ObjectInspector[] argOIs) throws UDFArgumentException {
+        if (argOIs.length != 3 && argOIs.length != 4) {
+            throw new UDFArgumentException(
+                "_FUNC_ takes 3 or 4 arguments: ANY user, array<float> Pu [, double Bu], const string options");
+        }
+        this.userOI = argOIs[0];
+        ListObjectInspector listOI = HiveUtils.asListOI(argOIs[1]);
+        this.factorListOI = listOI;
+        this.factorElemOI = HiveUtils.asDoubleCompatibleOI(listOI.getListElementObjectInspector());
+        this.userBiasOI = (argOIs.length == 4) ? HiveUtils.asDoubleCompatibleOI(argOIs[2])
+                : null;
+
+        processOptions(argOIs);
+
+        this.itemFactors = null;
+        this.users = new Object[batchSize];
+        this.userFactors = new float[batchSize][];
+        this.userBiases = new double[batchSize];
+        this.heaps = new BoundedIntDoubleHeap[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            heaps[i] = new BoundedIntDoubleHeap(topK);
+        }
+        this.numRows = 0;
+
+        final ArrayList<String> fieldNames = new ArrayList<String>();
+        final ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        fieldNames.add("user");
+        fieldOIs.add(ObjectInspectorUtils.getStandardObjectInspector(userOI,
+            ObjectInspectorCopyOption.WRITABLE));
+        fieldNames.add("item");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+        fieldNames.add("rank");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+        fieldNames.add("score");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableDoubleObjectInspector);
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+    }
+
+    @Override
+    public void process(Object[] args) throws HiveException {
+        if (itemFactors == null) {
+            loadItems();
+        }
+        final float[] Pu = new float[factor];
+        final Object arg1 = args[1];
+        if (arg1 != null) {
+            final int size = factorListOI.getListLength(arg1);
+            if (size != 0) {// Pu is empty when the user is not in the training data
+                if (size != factor) {
+                    throw new HiveException("|Pu| " + size + " was not equal to |Qi| " + factor);
+                }
+                for (int k = 0; k < size; k++) {
+                    Object o = factorListOI.getListElement(arg1, k);
+                    if (o != null) {
+                        Pu[k] = (float) PrimitiveObjectInspectorUtils.getDouble(o, factorElemOI);
+                    }
+                }
+            }
+        }
+        double Bu = 0.d;
+        if (userBiasOI != null && args[2] != null) {
+            Bu = PrimitiveObjectInspectorUtils.getDouble(args[2], userBiasOI);
+        }
+
+        users[numRows] = ObjectInspectorUtils.copyToStandardObject(args[0], userOI,
+            ObjectInspectorCopyOption.WRITABLE);
+        userFactors[numRows] = Pu;
+        userBiases[numRows] = Bu;
+        if (++numRows == batchSize) {
+            recommendBatch();
+        }
+    }
+
+    private void loadItems() throws HiveException {
+        final File file = new File(modelFile);
+        if (!file.exists()) {
+            throw new HiveException("Model file does not exist: " + file.getAbsolutePath());
+        }
+        final IntArrayList ids = new IntArrayList(1024);
+        final List<float[]> factors = new ArrayList<float[]>(1024);
+        final DoubleArrayList biases = new DoubleArrayList(1024);
+        try {
+            loadItems(file, ids, factors, biases);
+        } catch (IOException e) {
+            throw new HiveException("Failed to load a model: " + file.getAbsolutePath(), e);
+        }
+        final int numItems = ids.size();
+        if (numItems == 0) {
+            throw new HiveException("No item was found in " + file.getAbsolutePath());
+        }
+        final int factor = factors.get(0).length;
+        if ((long) numItems * factor > Integer.MAX_VALUE) {
+            throw new HiveException("Too many item factors to load: " + numItems + " items x "
+                    + factor + " factors");
+        }
+
+        // the order of items to lay out, by descending norms for pruning
+        final int[] order = new int[numItems];
+        final double[] norms = pruning ? new double[numItems] : null;
+        if (pruning) {
+            final long[] keys = new long[numItems];
+            for (int i = 0; i < numItems; i++) {
+                double norm = norm(factors.get(i));
+                norms[i] = norm;
+                keys[i] = ((long) Float.floatToIntBits((float) norm) << 32) | i;
+            }
+            Arrays.sort(keys); // non-negative floats are ordered as their bits
+            for (int i = 0; i < numItems; i++) {
+                order[i] = (int) keys[numItems - 1 - i];
+            }
+        } else {
+            for (int i = 0; i < numItems; i++) {
+                order[i] = i;
+            }
+        }
+
+        final int[] itemIds = new int[numItems];
+        final float[] itemFactors = new float[numItems * factor];
+        final double[] itemBiases = new double[numItems];
+        final double[] itemNorms = pruning ? new double[numItems] : null;
+        for (int i = 0; i < numItems; i++) {
+            final int src = order[i];
+            itemIds[i] = ids.get(src);
+            final float[] Qi = factors.get(src);
+            if (Qi.length != factor) {
+                throw new HiveException("|Qi| " + Qi.length + " of item " + itemIds[i]
+                        + " was not equal to " + factor);
+            }
+            System.arraycopy(Qi, 0, itemFactors, i * factor, factor);
+            factors.set(src, null); // help GC
+            itemBiases[i] = biases.get(src);
+            if (pruning) {
+                itemNorms[i] = norms[src];
+            }
+        }
+        if (pruning) {
+            final double[] maxBiases = new double[numItems];
+            final double[] maxNorms = new double[numItems];
+            double maxBias = Double.NEGATIVE_INFINITY, maxNorm = 0.d;
+            for (int i = numItems - 1; i >= 0; i--) {
+                maxBias = Math.max(maxBias, itemBiases[i]);
+                maxNorm = Math.max(maxNorm, itemNorms[i]);
+                maxBiases[i] = maxBias;
+                maxNorms[i] = maxNorm;
+            }
+            this.maxBiases = maxBiases;
+            this.maxNorms = maxNorms;
+        }
+
+        this.numItems = numItems;
+        this.factor = factor;
+        this.itemIds = itemIds;
+        this.itemBiases = itemBiases;
+        this.itemNorms = itemNorms;
+        this.itemFactors = itemFactors;
+        logger.info("Loaded " + numItems + " items of " + factor + " factors from "
+                + file.getAbsolutePath());
+    }
+
+    /**
+     * Loads the items in lines of <tt>idx, Pu, Qi [, Bu, Bi [, mu]]</tt> (MF) or
+     * <tt>idx, Pu, Qi [, Bi]</tt> (BPR) delimited by '\001' (the default of Hive text tables) or
+     * tabs. Lines without Qi are skipped.
+     */
+    private void loadItems(@Nonnull final File file, @Nonnull final IntArrayList ids,
+            @Nonnull final List<float[]> factors, @Nonnull final DoubleArrayList biases)
+            throws IOException, HiveException {
+        final String name = file.getName();
+        if (name.endsWith(".crc") || name.startsWith(".") || name.startsWith("_")) {
+            return;
+        }
+        if (file.isDirectory()) {
+            final File[] files = file.listFiles();
+            Arrays.sort(files);
+            for (File f : files) {
+                loadItems(f, ids, factors, biases);
+            }
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = HadoopUtils.getBufferedReader(file);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final String[] fields = line.split("[\001\t]", -1);
+                if (fields.length < 3) {
+                    throw new HiveException("Illegal model line in " + file.getAbsolutePath()
+                            + ": " + line);
+                }
+                final float[] Qi = parseFactors(fields[2]);
+                if (Qi == null) {
+                    continue;
+                }
+                final int idx;
+                try {
+                    idx = Integer.parseInt(fields[0]);
+                } catch (NumberFormatException e) {
+                    throw new HiveException("Illegal item index: " + fields[0], e);
+                }
+                final double Bi;
+                if (fields.length == 4) {// BPR
+                    Bi = parseDouble(fields[3]);
+                } else if (fields.length >= 5) {// MF
+                    Bi = parseDouble(fields[4]);
+                    if (fields.length >= 6) {
+                        this.meanRating = parseDouble(fields[5]);
+                    }
+                } else {
+                    Bi = 0.d;
+                }
+                ids.add(idx);
+                factors.add(Qi);
+                biases.add(Bi);
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Parses an array delimited by '\002' or one printed as <tt>[x1,x2,...]</tt>.
+     */
+    @Nullable
+    private static float[] parseFactors(@Nonnull String s) throws HiveException {
+        s = s.trim();
+        if (s.startsWith("[") && s.endsWith("]")) {
+            s = s.substring(1, s.length() - 1).trim();
+        }
+        if (s.isEmpty() || "\\N".equals(s) || "null".equals(s)) {
+            return null;
+        }
+        final String[] elems = s.split("[\002,]");
+        final float[] ary = new float[elems.length];
+        for (int i = 0; i < elems.length; i++) {
+            try {
+                ary[i] = Float.parseFloat(elems[i].trim());
+            } catch (NumberFormatException e) {
+                throw new HiveException("Illegal factor: " + elems[i], e);
+            }
+        }
+        return ary;
+    }
+
+    private static double parseDouble(@Nonnull String s) throws HiveException {
+        s = s.trim();
+        if (s.isEmpty() || "\\N".equals(s) || "null".equals(s)) {
+            return 0.d;
+        }
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            throw new HiveException("Illegal bias: " + s, e);
+        }
+    }
+
+    private static double norm(@Nonnull final float[] v) {
+        double sum = 0.d;
+        for (float x : v) {
+            sum += (double) x * x;
+        }
+        return Math.sqrt(sum);
+    }
+
+    private void recommendBatch() throws HiveException {
+        final int numRows = this.numRows;
+        final int numItems = this.numItems;
+        final int factor = this.factor;
+        final float[] Q = itemFactors;
+        final double[] B = itemBiases;
+        final BoundedIntDoubleHeap[] heaps = this.heaps;
+
+        final double[] userNorms = new double[numRows];
+        final boolean[] done = new boolean[numRows];
+        for (int r = 0; r < numRows; r++) {
+            heaps[r].clear();
+            if (pruning) {
+                userNorms[r] = norm(userFactors[r]);
+            }
+        }
+
+        // score block by block of items to keep a block in CPU caches across the users
+        final int blockSize = Math.max(16, ITEM_BLOCK_BYTES / (factor * 4));
+        for (int start = 0; start < numItems; start += blockSize) {
+            final int end = Math.min(start + blockSize, numItems);
+            int numActive = 0;
+            for (int r = 0; r < numRows; r++) {
+                if (done[r]) {
+                    continue;
+                }
+                final float[] Pu = userFactors[r];
+                final BoundedIntDoubleHeap heap = heaps[r];
+                if (pruning) {
+                    final double unorm = userNorms[r];
+                    if (maxBiases[start] + unorm * maxNorms[start] <= heap.threshold()) {
+                        done[r] = true; // no remaining item can enter the top-k
+                        continue;
+                    }
+                    final double[] norms = itemNorms;
+                    for (int j = start; j < end; j++) {
+                        if (B[j] + unorm * norms[j] <= heap.threshold()) {
+                            continue;
+                        }
+                        heap.offer(j, score(Pu, Q, j * factor, factor, B[j]));
+                    }
+                } else {
+                    for (int j = start; j < end; j++) {
+                        heap.offer(j, score(Pu, Q, j * factor, factor, B[j]));
+                    }
+                }
+                numActive++;
+            }
+            if (numActive == 0) {
+                break;
+            }
+        }
+
+        final int[] slots = new int[topK];
+        final double[] scores = new double[topK];
+        final IntWritable item = new IntWritable();
+        final IntWritable rank = new IntWritable();
+        final DoubleWritable score = new DoubleWritable();
+        final Object[] forwardObjs = new Object[] {null, item, rank, score};
+        for (int r = 0; r < numRows; r++) {
+            final int n = heaps[r].drainDescending(slots, scores);
+            final double offset = userBiases[r] + meanRating;
+            forwardObjs[0] = users[r];
+            for (int i = 0; i < n; i++) {
+                item.set(itemIds[slots[i]]);
+                rank.set(i + 1);
+                score.set(scores[i] + offset);
+                forward(forwardObjs);
+            }
+            users[r] = null;
+            userFactors[r] = null;
+        }
+        this.numRows = 0;
+    }
+
+    private static double score(@Nonnull final float[] Pu, @Nonnull final float[] Q,
+            final int offset, final int factor, final double Bi) {
+        double ret = Bi;
+        for (int k = 0; k < factor; k++) {
+            ret += (double) Pu[k] * Q[offset + k];
+        }
+        return ret;
+    }
+
+    @Override
+    public void close() throws HiveException {
+        if (numRows > 0) {
+            recommendBatch();
+        }
+        this.itemIds = null;
+        this.itemFactors = null;
+        this.itemBiases = null;
+        this.itemNorms = null;
+        this.maxBiases = null;
+        this.maxNorms = null;
+        this.users = null;
+        this.userFactors = null;
+        this.heaps = null;
+    }
+
+}
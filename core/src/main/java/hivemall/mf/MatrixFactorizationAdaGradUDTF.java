@@ -18,7 +18,6 @@
  */
 package hivemall.mf;
 
-import hivemall.mf.Rating.RatingWithSquaredGrad;
 import hivemall.utils.lang.Primitives;
 
 import org.apache.commons.cli.CommandLine;
@@ -52,8 +51,8 @@ public final class MatrixFactorizationAdaGradUDTF extends OnlineMatrixFactorizat
     }
 
     @Override
-    public Rating newRating(float v) {
-        return new RatingWithSquaredGrad(v);
+    protected boolean useSumOfSquaredGradients() {
+        return true;
     }
 
     @Override
@@ -72,49 +71,59 @@ public final class MatrixFactorizationAdaGradUDTF extends OnlineMatrixFactorizat
     }
 
     @Override
-    protected void updateItemRating(Rating rating, float Pu, float Qi, double err, float eta) {
+    protected void updateItemRating(FactorStore items, int itemSlot, int index, float Pu,
+            float Qi, double err, float eta) {
         double gradient = err * Pu - lambda * Qi;
-        updateRating(rating, Qi, gradient);
+        updateRating(items, itemSlot, index, Qi, gradient);
         cvState.incrLoss(lambda * Qi * Qi);
     }
 
     @Override
-    protected void updateUserRating(Rating rating, float Pu, float Qi, double err, float eta) {
+    protected void updateUserRating(FactorStore users, int userSlot, int index, float Pu,
+            float Qi, double err, float eta) {
         double gradient = err * Qi - lambda * Pu;
-        updateRating(rating, Pu, gradient);
+        updateRating(users, userSlot, index, Pu, gradient);
         cvState.incrLoss(lambda * Pu * Pu);
     }
 
     @Override
     protected void updateMeanRating(double err, float eta) {
         assert updateMeanRating;
-        Rating mean = model.meanRating();
-        float oldMean = mean.getWeight();
-        updateRating(mean, oldMean, err);
+        float oldMean = model.getMeanRating();
+        double scaled_sum_gg = model.getMeanRatingSumOfSquaredGradients() + err * (err / scaling);
+        float delta = (float) (eta(scaled_sum_gg) * err);
+        model.setMeanRating(oldMean + delta);
+        model.setMeanRatingSumOfSquaredGradients((float) scaled_sum_gg);
     }
 
     @Override
-    protected void updateBias(int user, int item, double err, float eta) {
-        Rating ratingBu = model.userBias(user);
-        float Bu = ratingBu.getWeight();
+    protected void updateBias(int userSlot, int itemSlot, double err, float eta) {
+        final FactorStore users = model.users();
+        int indexBu = users.biasOffset(userSlot);
+        float Bu = users.weights(userSlot)[indexBu];
         double Gu = err - lambda * Bu;
-        updateRating(ratingBu, Bu, Gu);
+        updateRating(users, userSlot, indexBu, Bu, Gu);
         cvState.incrLoss(lambda * Bu * Bu);
 
-        Rating ratingBi = model.itemBias(item);
-        float Bi = ratingBi.getWeight();
+        final FactorStore items = model.items();
+        int indexBi = items.biasOffset(itemSlot);
+        float Bi = items.weights(itemSlot)[indexBi];
         double Gi = err - lambda * Bi;
-        updateRating(ratingBi, Bi, Gi);
+        updateRating(items, itemSlot, indexBi, Bi, Gi);
         cvState.incrLoss(lambda * Bi * Bi);
     }
 
-    private void updateRating(final Rating rating, final float oldWeight, final double gradient) {
+    /**
+     * Updates a weight and its sum of squared gradients at the index of the slot in place.
+     */
+    private void updateRating(final FactorStore store, final int slot, final int index,
+            final float oldWeight, final double gradient) {
+        final float[] sqgrads = store.sqgrads(slot);
         double gg = gradient * (gradient / scaling);
-        double scaled_sum_gg = rating.getSumOfSquaredGradients() + gg;
+        double scaled_sum_gg = sqgrads[index] + gg;
         float delta = (float) (eta(scaled_sum_gg) * gradient);
-        float newWeight = oldWeight + delta;
-        rating.setWeight(newWeight);
-        rating.setSumOfSquaredGradients(scaled_sum_gg);
+        store.weights(slot)[index] = oldWeight + delta;
+        sqgrads[index] = (float) scaled_sum_gg;
     }
 
     private float eta(final double scaledSumOfSquaredGradients) {
@@ -34,6 +34,7 @@ import java.util.ArrayList;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
@@ -52,8 +53,7 @@ import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.mapred.Counters.Counter;
 import org.apache.hadoop.mapred.Reporter;
 
-public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions implements
-        RatingInitilizer {
+public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions implements Cloneable {
     private static final Log logger = LogFactory.getLog(OnlineMatrixFactorizationUDTF.class);
     private static final int RECORD_BYTES = (Integer.SIZE + Integer.SIZE + Double.SIZE) / 8;
 
@@ -70,6 +70,10 @@ public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions impl
     protected int iterations;
     /** Whether to use bias clause */
     protected boolean useBiasClause;
+    /** The number of threads to run the iterations after the first one */
+    protected int numThreads;
+    /** The seed to partition training examples into blocks */
+    protected long seed;
 
     /** Initialization strategy of rank matrix */
     protected RankInitScheme rankInit;
@@ -92,7 +96,11 @@ public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions impl
     protected ByteBuffer inputBuf;
     private long lastWritePos;
 
-    private float[] userProbe, itemProbe;
+    // Used by the workers of parallel iterations
+    /** Whether to defer updates of the mean rating until the end of a stratum */
+    private boolean deferMeanRating;
+    private double sumMeanErrors;
+    private long numMeanErrors;
 
     public OnlineMatrixFactorizationUDTF() {
         this.factor = 10;
@@ -101,6 +109,8 @@ public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions impl
         this.updateMeanRating = false;
         this.iterations = 1;
         this.useBiasClause = true;
+        this.numThreads = 1;
+        this.seed = -1L;
     }
 
     @Override
@@ -123,6 +133,12 @@ public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions impl
         opts.addOption("cv_rate", "convergence_rate", true,
             "Threshold to determine convergence [default: 0.005]");
         opts.addOption("disable_bias", "no_bias", false, "Turn off bias clause");
+        opts.addOption("threads", "num_threads", true,
+            "The number of threads to run the iterations after the first one over"
+                    + " non-conflicting blocks of users and items, which hold a copy of"
+                    + " the training examples on the heap [default: 1]");
+        opts.addOption("seed", true,
+            "Seed value to partition training examples into blocks [default: -1 (random)]");
         return opts;
     }
 
@@ -157,6 +173,15 @@ public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions impl
             if (noBias && updateMeanRating) {
                 throw new UDFArgumentException("Cannot set both `update_mean` and `no_bias` option");
             }
+            this.numThreads = Primitives.parseInt(cl.getOptionValue("num_threads"), 1);
+            if (numThreads < 1) {
+                throw new UDFArgumentException(
+                    "'-num_threads' must be greater than or equals to 1: " + numThreads);
+            }
+            this.seed = Primitives.parseLong(cl.getOptionValue("seed"), -1L);
+        }
+        if (seed == -1L) {
+            this.seed = System.nanoTime();
         }
         this.rankInit = RankInitScheme.resolve(rankInitOpt);
         rankInit.setMaxInitValue(maxInitValue);
@@ -178,11 +203,9 @@ public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions impl
 
         processOptions(argOIs);
 
-        this.model = new FactorizedModel(this, factor, meanRating, rankInit);
+        this.model = new FactorizedModel(factor, meanRating, rankInit, useSumOfSquaredGradients());
         this.count = 0L;
         this.lastWritePos = 0L;
-        this.userProbe = new float[factor];
-        this.itemProbe = new float[factor];
 
         if (mapredContext != null && iterations > 1) {
             // invoke only at task node (initialize is also invoked in compilation)
@@ -224,9 +247,11 @@ public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions impl
         return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
     }
 
-    @Override
-    public Rating newRating(float v) {
-        return new Rating(v);
+    /**
+     * @return whether the model keeps the sums of squared gradients for AdaGrad
+     */
+    protected boolean useSumOfSquaredGradients() {
+        return false;
     }
 
     @Override
@@ -248,49 +273,40 @@ public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions impl
         train(user, item, rating);
     }
 
-    @Nonnull
-    protected final float[] copyToUserProbe(@Nonnull final Rating[] rating) {
-        for (int k = 0, size = factor; k < size; k++) {
-            userProbe[k] = rating[k].getWeight();
-        }
-        return userProbe;
-    }
-
-    @Nonnull
-    protected final float[] copyToItemProbe(@Nonnull final Rating[] rating) {
-        for (int k = 0, size = factor; k < size; k++) {
-            itemProbe[k] = rating[k].getWeight();
-        }
-        return itemProbe;
-    }
-
     protected void train(final int user, final int item, final double rating) throws HiveException {
-        final Rating[] users = model.getUserVector(user, true);
-        assert (users != null);
-        final Rating[] items = model.getItemVector(item, true);
-        assert (items != null);
-        final float[] userProbe = copyToUserProbe(users);
-        final float[] itemProbe = copyToItemProbe(items);
-
-        final double err = rating - predict(user, item, userProbe, itemProbe);
+        final int userSlot = model.getUserSlot(user, true);
+        final int itemSlot = model.getItemSlot(item, true);
+        final FactorStore users = model.users();
+        final FactorStore items = model.items();
+        final float[] P = users.weights(userSlot);
+        final int pOffset = users.offset(userSlot);
+        final float[] Q = items.weights(itemSlot);
+        final int qOffset = items.offset(itemSlot);
+
+        final double err = rating - predict(userSlot, itemSlot, P, pOffset, Q, qOffset);
         cvState.incrError(Math.abs(err));
         cvState.incrLoss(err * err);
 
         final float eta = eta();
         for (int k = 0, size = factor; k < size; k++) {
-            float Pu = userProbe[k];
-            float Qi = itemProbe[k];
-            updateItemRating(items[k], Pu, Qi, err, eta);
-            updateUserRating(users[k], Pu, Qi, err, eta);
+            float Pu = P[pOffset + k];
+            float Qi = Q[qOffset + k];
+            updateItemRating(items, itemSlot, qOffset + k, Pu, Qi, err, eta);
+            updateUserRating(users, userSlot, pOffset + k, Pu, Qi, err, eta);
         }
         if (useBiasClause) {
-            updateBias(user, item, err, eta);
+            updateBias(userSlot, itemSlot, err, eta);
             if (updateMeanRating) {
-                updateMeanRating(err, eta);
+                if (deferMeanRating) {
+                    this.sumMeanErrors += err;
+                    this.numMeanErrors++;
+                } else {
+                    updateMeanRating(err, eta);
+                }
             }
         }
 
-        onUpdate(user, item, users, items, err);
+        onUpdate(user, item, userSlot, itemSlot, err);
     }
 
     protected void beforeTrain(final long rowNum, final int user, final int item,
@@ -309,58 +325,64 @@ public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions impl
         }
     }
 
-    protected void onUpdate(final int user, final int item, final Rating[] users,
-            final Rating[] items, final double err) throws HiveException {}
+    protected void onUpdate(final int user, final int item, final int userSlot,
+            final int itemSlot, final double err) throws HiveException {}
 
-    protected double predict(final int user, final int item, final float[] userProbe,
-            final float[] itemProbe) {
-        double ret = bias(user, item);
+    protected double predict(final int userSlot, final int itemSlot, @Nonnull final float[] P,
+            final int pOffset, @Nonnull final float[] Q, final int qOffset) {
+        double ret = bias(userSlot, itemSlot);
         for (int k = 0, size = factor; k < size; k++) {
-            ret += userProbe[k] * itemProbe[k];
+            ret += P[pOffset + k] * Q[qOffset + k];
         }
         return ret;
     }
 
     protected double predict(final int user, final int item) throws HiveException {
-        final Rating[] users = model.getUserVector(user);
-        if (users == null) {
+        final int userSlot = model.getUserSlot(user);
+        if (userSlot == -1) {
             throw new HiveException("User rating is not found: " + user);
         }
-        final Rating[] items = model.getItemVector(item);
-        if (items == null) {
+        final int itemSlot = model.getItemSlot(item);
+        if (itemSlot == -1) {
             throw new HiveException("Item rating is not found: " + item);
         }
-        double ret = bias(user, item);
-        for (int k = 0, size = factor; k < size; k++) {
-            ret += users[k].getWeight() * items[k].getWeight();
-        }
-        return ret;
+        final FactorStore users = model.users();
+        final FactorStore items = model.items();
+        return predict(userSlot, itemSlot, users.weights(userSlot), users.offset(userSlot),
+            items.weights(itemSlot), items.offset(itemSlot));
     }
 
-    protected double bias(final int user, final int item) {
+    protected double bias(final int userSlot, final int itemSlot) {
         if (useBiasClause == false) {
             return model.getMeanRating();
         }
-        return model.getMeanRating() + model.getUserBias(user) + model.getItemBias(item);
+        return model.getMeanRating() + model.users().getBias(userSlot)
+                + model.items().getBias(itemSlot);
     }
 
     protected float eta() {
         return 1.f; // dummy
     }
 
-    protected void updateItemRating(final Rating rating, final float Pu, final float Qi,
-            final double err, final float eta) {
+    /**
+     * Updates <tt>items.weights(itemSlot)[index]</tt> in place.
+     */
+    protected void updateItemRating(@Nonnull final FactorStore items, final int itemSlot,
+            final int index, final float Pu, final float Qi, final double err, final float eta) {
         double grad = err * Pu - lambda * Qi;
         float newQi = Qi + (float) (eta * grad);
-        rating.setWeight(newQi);
+        items.weights(itemSlot)[index] = newQi;
         cvState.incrLoss(lambda * Qi * Qi);
     }
 
-    protected void updateUserRating(final Rating rating, final float Pu, final float Qi,
-            final double err, final float eta) {
+    /**
+     * Updates <tt>users.weights(userSlot)[index]</tt> in place.
+     */
+    protected void updateUserRating(@Nonnull final FactorStore users, final int userSlot,
+            final int index, final float Pu, final float Qi, final double err, final float eta) {
         double grad = err * Qi - lambda * Pu;
         float newPu = Pu + (float) (eta * grad);
-        rating.setWeight(newPu);
+        users.weights(userSlot)[index] = newPu;
         cvState.incrLoss(lambda * Pu * Pu);
     }
 
@@ -371,18 +393,21 @@ public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions impl
         model.setMeanRating(mean);
     }
 
-    protected void updateBias(final int user, final int item, final double err, final float eta) {
+    protected void updateBias(final int userSlot, final int itemSlot, final double err,
+            final float eta) {
         assert useBiasClause;
-        float Bu = model.getUserBias(user);
+        final FactorStore users = model.users();
+        float Bu = users.getBias(userSlot);
         double Gu = err - lambda * Bu;
         Bu += eta * Gu;
-        model.setUserBias(user, Bu);
+        users.setBias(userSlot, Bu);
         cvState.incrLoss(lambda * Bu * Bu);
 
-        float Bi = model.getItemBias(item);
+        final FactorStore items = model.items();
+        float Bi = items.getBias(itemSlot);
         double Gi = err - lambda * Bi;
         Bi += eta * Gi;
-        model.setItemBias(item, Bi);
+        items.setBias(itemSlot, Bi);
         cvState.incrLoss(lambda * Bi * Bi);
     }
 
@@ -414,26 +439,28 @@ public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions impl
                     forwardObj = new Object[] {idx, Pu, Qi};
                 }
             }
+            final FactorStore users = model.users();
+            final FactorStore items = model.items();
             int numForwarded = 0;
             for (int i = model.getMinIndex(), maxIdx = model.getMaxIndex(); i <= maxIdx; i++) {
                 idx.set(i);
-                Rating[] userRatings = model.getUserVector(i);
-                if (userRatings == null) {
+                int userSlot = users.find(i);
+                if (userSlot == -1) {
                     forwardObj[1] = null;
                 } else {
                     forwardObj[1] = Pu;
-                    copyTo(userRatings, Pu);
+                    copyTo(users, userSlot, Pu);
                 }
-                Rating[] itemRatings = model.getItemVector(i);
-                if (itemRatings == null) {
+                int itemSlot = items.find(i);
+                if (itemSlot == -1) {
                     forwardObj[2] = null;
                 } else {
                     forwardObj[2] = Qi;
-                    copyTo(itemRatings, Qi);
+                    copyTo(items, itemSlot, Qi);
                 }
                 if (useBiasClause) {
-                    Bu.set(model.getUserBias(i));
-                    Bi.set(model.getItemBias(i));
+                    Bu.set(userSlot == -1 ? 0.f : users.getBias(userSlot));
+                    Bi.set(itemSlot == -1 ? 0.f : items.getBias(itemSlot));
                 }
                 forward(forwardObj);
                 numForwarded++;
@@ -477,6 +504,14 @@ public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions impl
                 }
                 inputBuf.flip();
 
+                if (numThreads > 1) {
+                    final BlockScheduler blocks = newBlockScheduler();
+                    addRecords(inputBuf, blocks);
+                    runParallelIterations(blocks, iterations, numTrainingExamples, reporter,
+                        iterCounter);
+                    return;
+                }
+
                 int iter = 2;
                 for (; iter <= iterations; iter++) {
                     reportProgress(reporter);
@@ -522,6 +557,36 @@ public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions impl
                             + ")");
                 }
 
+                if (numThreads > 1 && !BlockScheduler.fitsInHeap(fileIO.getFile().length())) {
+                    logger.warn("Run iterations in a single thread because the blocks of "
+                            + FileUtils.prettyFileSize(fileIO.getFile())
+                            + " of training examples would not fit in the heap");
+                } else if (numThreads > 1) {
+                    final BlockScheduler blocks = newBlockScheduler();
+                    inputBuf.clear();
+                    long seekPos = 0L;
+                    while (true) {
+                        reportProgress(reporter);
+                        final int bytesRead;
+                        try {
+                            bytesRead = fileIO.read(seekPos, inputBuf);
+                        } catch (IOException e) {
+                            throw new HiveException("Failed to read a file: "
+                                    + fileIO.getFile().getAbsolutePath(), e);
+                        }
+                        if (bytesRead == 0) { // reached file EOF
+                            break;
+                        }
+                        seekPos += bytesRead;
+                        inputBuf.flip();
+                        addRecords(inputBuf, blocks);
+                        inputBuf.compact();
+                    }
+                    runParallelIterations(blocks, iterations, numTrainingExamples, reporter,
+                        iterCounter);
+                    return;
+                }
+
                 // run iterations
                 int iter = 2;
                 for (; iter <= iterations; iter++) {
@@ -583,10 +648,141 @@ public abstract class OnlineMatrixFactorizationUDTF extends UDTFWithOptions impl
         }
     }
 
-    private static void copyTo(@Nonnull final Rating[] rating, @Nonnull final FloatWritable[] dst) {
-        for (int k = 0, size = rating.length; k < size; k++) {
-            float w = rating[k].getWeight();
-            dst[k].set(w);
+    @Nonnull
+    private BlockScheduler newBlockScheduler() {
+        // user, item, and the higher and lower bits of rating
+        return new BlockScheduler(numThreads, 4, seed);
+    }
+
+    /**
+     * Adds the whole records in the buffer to the blocks.
+     */
+    private static void addRecords(@Nonnull final ByteBuffer buf,
+            @Nonnull final BlockScheduler blocks) {
+        final int[] record = new int[4];
+        while (buf.remaining() >= RECORD_BYTES) {
+            int user = buf.getInt();
+            int item = buf.getInt();
+            long bits = Double.doubleToRawLongBits(buf.getDouble());
+            record[0] = user;
+            record[1] = item;
+            record[2] = (int) (bits >>> 32);
+            record[3] = (int) bits;
+            blocks.add(user, item, record);
+        }
+    }
+
+    /**
+     * Runs the iterations after the first one in {@link #numThreads} threads, each of which trains
+     * the examples of a row block of users in a stratum. Losses of the threads are summed up into
+     * {@link #cvState} for the convergence check. The mean rating, which is shared by all the
+     * examples, is updated by the average error of a stratum at the end of the stratum.
+     */
+    private void runParallelIterations(@Nonnull final BlockScheduler blocks,
+            final int iterations, final long numTrainingExamples,
+            @Nullable final Reporter reporter, @Nullable final Counter iterCounter)
+            throws HiveException {
+        final int numBlocks = blocks.getNumBlocks();
+        final OnlineMatrixFactorizationUDTF[] workers = new OnlineMatrixFactorizationUDTF[numBlocks];
+        final BlockScheduler.Worker[] handlers = new BlockScheduler.Worker[numBlocks];
+        for (int b = 0; b < numBlocks; b++) {
+            final OnlineMatrixFactorizationUDTF worker = newWorker();
+            workers[b] = worker;
+            handlers[b] = new BlockScheduler.Worker() {
+                @Override
+                public void handle(@Nonnull final int[] records, final int offset)
+                        throws HiveException {
+                    int user = records[offset];
+                    int item = records[offset + 1];
+                    long bits = ((long) records[offset + 2] << 32)
+                            | (records[offset + 3] & 0xffffffffL);
+                    worker.train(user, item, Double.longBitsToDouble(bits));
+                    worker.count += numBlocks;
+                }
+            };
+        }
+
+        int iter = 2;
+        try {
+            for (; iter <= iterations; iter++) {
+                reportProgress(reporter);
+                setCounterValue(iterCounter, iter);
+
+                // each worker counts examples as if the row blocks were processed in turn
+                final long t0 = count;
+                for (int b = 0; b < numBlocks; b++) {
+                    OnlineMatrixFactorizationUDTF worker = workers[b];
+                    worker.count = t0 + 1 + b;
+                    worker.cvState = new ConversionState(false, 0.d);
+                }
+                for (int stratum : blocks.strata(iter)) {
+                    blocks.runStratum(stratum, handlers);
+                    if (updateMeanRating) {
+                        updateMeanRating(workers);
+                    }
+                    reportProgress(reporter);
+                }
+                for (OnlineMatrixFactorizationUDTF worker : workers) {
+                    cvState.incrError(worker.cvState.getTotalErrors());
+                    cvState.incrLoss(worker.cvState.getCumulativeLoss());
+                }
+                this.count = t0 + blocks.getNumRecords();
+
+                cvState.multiplyLoss(0.5d);
+                if (cvState.isConverged(iter, numTrainingExamples)) {
+                    break;
+                }
+            }
+        } finally {
+            blocks.close();
+        }
+        logger.info("Performed " + Math.min(iter, iterations) + " iterations of "
+                + NumberUtils.formatNumber(numTrainingExamples) + " training examples in "
+                + numBlocks + " threads (thus " + NumberUtils.formatNumber(count)
+                + " training updates in total)");
+    }
+
+    private void updateMeanRating(@Nonnull final OnlineMatrixFactorizationUDTF[] workers) {
+        double sumErrors = 0.d;
+        long numErrors = 0L;
+        for (OnlineMatrixFactorizationUDTF worker : workers) {
+            sumErrors += worker.sumMeanErrors;
+            numErrors += worker.numMeanErrors;
+            worker.sumMeanErrors = 0.d;
+            worker.numMeanErrors = 0L;
+        }
+        if (numErrors > 0L) {
+            updateMeanRating(sumErrors / numErrors, eta());
+        }
+    }
+
+    /**
+     * Returns a trainer for a thread of parallel iterations. The trainer shares the model and the
+     * hyper-parameters with this one while it has its own counters.
+     */
+    @Nonnull
+    protected OnlineMatrixFactorizationUDTF newWorker() throws HiveException {
+        final OnlineMatrixFactorizationUDTF worker;
+        try {
+            worker = (OnlineMatrixFactorizationUDTF) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new HiveException(e);
+        }
+        worker.fileIO = null;
+        worker.inputBuf = null;
+        worker.cvState = new ConversionState(false, 0.d);
+        worker.deferMeanRating = true;
+        worker.sumMeanErrors = 0.d;
+        worker.numMeanErrors = 0L;
+        return worker;
+    }
+
+    static void copyTo(@Nonnull final FactorStore store, final int slot,
+            @Nonnull final FloatWritable[] dst) {
+        final float[] weights = store.weights(slot);
+        final int offset = store.offset(slot);
+        for (int k = 0, size = dst.length; k < size; k++) {
+            dst[k].set(weights[offset + k]);
         }
     }
 
@@ -0,0 +1,203 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.mix;
+
+import hivemall.mix.MixMessage.MixEventName;
+import hivemall.utils.lang.Preconditions;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A set of mix requests (or responses) of the same event and group that is sent in a single
+ * frame. Entries are kept in parallel primitive arrays to avoid a {@link MixMessage} object per
+ * feature.
+ */
+public final class MixMessageBatch {
+    public static final int MAX_BATCH_SIZE = 4096;
+
+    @Nonnull
+    private final MixEventName event;
+    @Nullable
+    private String groupID;
+    /** Whether to be sent in the compact wire format */
+    private boolean compact;
+    /** Whether forwarded from another mix server holding a replica */
+    private boolean forwarded;
+
+    @Nonnull
+    private Object[] features;
+    @Nonnull
+    private float[] weights;
+    @Nonnull
+    private float[] covariances;
+    @Nonnull
+    private short[] clocks;
+    @Nonnull
+    private byte[] deltaUpdates;
+    @Nonnull
+    private boolean[] cancelRequests;
+
+    private int size;
+
+    public MixMessageBatch(@Nonnull MixEventName event, @Nonnegative int initialCapacity) {
+        Preconditions.checkArgument(initialCapacity > 0, "Illegal initialCapacity: "
+                + initialCapacity);
+        this.event = event;
+        int capacity = Math.min(initialCapacity, MAX_BATCH_SIZE);
+        this.features = new Object[capacity];
+        this.weights = new float[capacity];
+        this.covariances = new float[capacity];
+        this.clocks = new short[capacity];
+        this.deltaUpdates = new byte[capacity];
+        this.cancelRequests = new boolean[capacity];
+        this.size = 0;
+    }
+
+    @Nonnull
+    public MixEventName getEvent() {
+        return event;
+    }
+
+    @Nullable
+    public String getGroupID() {
+        return groupID;
+    }
+
+    public void setGroupID(@Nullable String groupID) {
+        this.groupID = groupID;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Sends this batch in the compact wire format, where weights and covariances are half-floats
+     * if representable, and features and clocks are variable-length integers.
+     */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    public boolean isForwarded() {
+        return forwarded;
+    }
+
+    /**
+     * Marks this batch as forwarded among mix servers. The receiver mixes it without replying or
+     * forwarding it again.
+     */
+    public void setForwarded(boolean forwarded) {
+        this.forwarded = forwarded;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size >= MAX_BATCH_SIZE;
+    }
+
+    public void add(@Nonnull Object feature, float weight, float covariance, short clock,
+            int deltaUpdates, boolean cancelRequest) {
+        if (feature == null) {
+            throw new IllegalArgumentException("feature is null");
+        }
+        if (deltaUpdates < 0 || deltaUpdates > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Illegal deletaUpdates: " + deltaUpdates);
+        }
+        if (size >= MAX_BATCH_SIZE) {
+            throw new IllegalStateException("Batch is full: " + size);
+        }
+        if (size == features.length) {
+            expand();
+        }
+        final int i = size;
+        this.features[i] = feature;
+        this.weights[i] = weight;
+        this.covariances[i] = covariance;
+        this.clocks[i] = clock;
+        this.deltaUpdates[i] = (byte) deltaUpdates;
+        this.cancelRequests[i] = cancelRequest;
+        this.size = i + 1;
+    }
+
+    /**
+     * Overwrites the model of the i-th entry. Used to reuse a request entry for its response.
+     */
+    public void set(final int i, final float weight, final float covariance, final short clock) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException("Index " + i + " >= size " + size);
+        }
+        this.weights[i] = weight;
+        this.covariances[i] = covariance;
+        this.clocks[i] = clock;
+    }
+
+    private void expand() {
+        final int newCapacity = Math.min(features.length * 2, MAX_BATCH_SIZE);
+        this.features = Arrays.copyOf(features, newCapacity);
+        this.weights = Arrays.copyOf(weights, newCapacity);
+        this.covariances = Arrays.copyOf(covariances, newCapacity);
+        this.clocks = Arrays.copyOf(clocks, newCapacity);
+        this.deltaUpdates = Arrays.copyOf(deltaUpdates, newCapacity);
+        this.cancelRequests = Arrays.copyOf(cancelRequests, newCapacity);
+    }
+
+    @Nonnull
+    public Object getFeature(final int i) {
+        return features[i];
+    }
+
+    public float getWeight(final int i) {
+        return weights[i];
+    }
+
+    public float getCovariance(final int i) {
+        return covariances[i];
+    }
+
+    public short getClock(final int i) {
+        return clocks[i];
+    }
+
+    public int getDeltaUpdates(final int i) {
+        return deltaUpdates[i];
+    }
+
+    public boolean isCancelRequest(final int i) {
+        return cancelRequests[i];
+    }
+
+    @Override
+    public String toString() {
+        return "MixMessageBatch [event=" + event + ", size=" + size + ", groupID=" + groupID
+                + ", compact=" + compact + "]";
+    }
+
+}
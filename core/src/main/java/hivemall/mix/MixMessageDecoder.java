@@ -18,14 +18,23 @@
  */
 package hivemall.mix;
 
+import static hivemall.mix.MixMessageEncoder.BATCH_FRAME;
+import static hivemall.mix.MixMessageEncoder.CANCEL_FLAG;
+import static hivemall.mix.MixMessageEncoder.COMPACT_BATCH_FRAME;
+import static hivemall.mix.MixMessageEncoder.FLAG_BITS;
+import static hivemall.mix.MixMessageEncoder.FORWARDED_BATCH_FRAME;
+import static hivemall.mix.MixMessageEncoder.FULL_FLOAT_FLAG;
 import static hivemall.mix.MixMessageEncoder.INTEGER_TYPE;
 import static hivemall.mix.MixMessageEncoder.INT_WRITABLE_TYPE;
 import static hivemall.mix.MixMessageEncoder.LONG_WRITABLE_TYPE;
 import static hivemall.mix.MixMessageEncoder.STRING_TYPE;
 import static hivemall.mix.MixMessageEncoder.TEXT_TYPE;
 import hivemall.mix.MixMessage.MixEventName;
+import hivemall.utils.codec.ZigZagLEB128Codec;
+import hivemall.utils.lang.HalfFloat;
 import hivemall.utils.lang.StringUtils;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 
@@ -38,17 +47,26 @@ import org.apache.hadoop.io.Text;
 public final class MixMessageDecoder extends LengthFieldBasedFrameDecoder {
 
     public MixMessageDecoder() {
-        super(1048576/* 1MiB */, 0, 4, 0, 4);
+        super(4194304/* 4MiB */, 0, 4, 0, 4);
     }
 
     @Override
-    protected MixMessage decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+    protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
         ByteBuf frame = (ByteBuf) super.decode(ctx, in);
         if (frame == null) {
             return null;
         }
 
         byte b = frame.readByte();
+        if (b == BATCH_FRAME) {
+            return decodeBatch(frame);
+        } else if (b == COMPACT_BATCH_FRAME) {
+            return decodeCompactBatch(frame);
+        } else if (b == FORWARDED_BATCH_FRAME) {
+            MixMessageBatch batch = decodeBatch(frame);
+            batch.setForwarded(true);
+            return batch;
+        }
         MixEventName event = MixEventName.resolve(b);
         Object feature = decodeObject(frame);
         float weight = frame.readFloat();
@@ -64,6 +82,96 @@ public final class MixMessageDecoder extends LengthFieldBasedFrameDecoder {
         return msg;
     }
 
+    private static MixMessageBatch decodeBatch(final ByteBuf frame) throws IOException {
+        byte b = frame.readByte();
+        MixEventName event = MixEventName.resolve(b);
+        String groupID = readString(frame);
+        final int size = frame.readInt();
+        if (size < 0 || size > MixMessageBatch.MAX_BATCH_SIZE) {
+            throw new IllegalStateException("Illegal batch size: " + size);
+        }
+
+        MixMessageBatch batch = new MixMessageBatch(event, Math.max(1, size));
+        batch.setGroupID(groupID);
+        for (int i = 0; i < size; i++) {
+            Object feature = decodeObject(frame);
+            float weight = frame.readFloat();
+            float covariance = frame.readFloat();
+            short clock = frame.readShort();
+            int deltaUpdates = frame.readByte();
+            boolean cancelRequest = frame.readBoolean();
+            batch.add(feature, weight, covariance, clock, deltaUpdates, cancelRequest);
+        }
+        return batch;
+    }
+
+    private static MixMessageBatch decodeCompactBatch(final ByteBuf frame) throws IOException {
+        byte b = frame.readByte();
+        MixEventName event = MixEventName.resolve(b);
+        String groupID = readString(frame);
+        final ByteBufInputStream is = new ByteBufInputStream(frame);
+        final int size = ZigZagLEB128Codec.readUnsignedInt(is);
+        if (size < 0 || size > MixMessageBatch.MAX_BATCH_SIZE) {
+            throw new IllegalStateException("Illegal batch size: " + size);
+        }
+
+        MixMessageBatch batch = new MixMessageBatch(event, Math.max(1, size));
+        batch.setGroupID(groupID);
+        batch.setCompact(true);
+        final boolean hasCovariance = (event != MixEventName.average);
+        for (int i = 0; i < size; i++) {
+            Object feature = decodeCompactObject(frame, is);
+            int flags = ZigZagLEB128Codec.readUnsignedInt(is);
+            final float weight, covariance;
+            if ((flags & FULL_FLOAT_FLAG) != 0) {
+                weight = frame.readFloat();
+                covariance = hasCovariance ? frame.readFloat() : 1.f;
+            } else {
+                weight = HalfFloat.halfFloatToFloat(frame.readShort());
+                covariance = hasCovariance ? HalfFloat.halfFloatToFloat(frame.readShort()) : 1.f;
+            }
+            short clock = (short) ZigZagLEB128Codec.readUnsignedInt(is);
+            int deltaUpdates = flags >>> FLAG_BITS;
+            boolean cancelRequest = (flags & CANCEL_FLAG) != 0;
+            batch.add(feature, weight, covariance, clock, deltaUpdates, cancelRequest);
+        }
+        return batch;
+    }
+
+    private static Object decodeCompactObject(final ByteBuf in, final ByteBufInputStream is)
+            throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case INTEGER_TYPE: {
+                int i = ZigZagLEB128Codec.readSignedInt(is);
+                return Integer.valueOf(i);
+            }
+            case TEXT_TYPE: {
+                int length = ZigZagLEB128Codec.readUnsignedInt(is);
+                byte[] b = new byte[length];
+                in.readBytes(b, 0, length);
+                return new Text(b);
+            }
+            case STRING_TYPE: {
+                int length = ZigZagLEB128Codec.readUnsignedInt(is);
+                byte[] b = new byte[length];
+                in.readBytes(b, 0, length);
+                return StringUtils.toString(b);
+            }
+            case INT_WRITABLE_TYPE: {
+                int i = ZigZagLEB128Codec.readSignedInt(is);
+                return new IntWritable(i);
+            }
+            case LONG_WRITABLE_TYPE: {
+                long l = ZigZagLEB128Codec.readSignedLong(is);
+                return new LongWritable(l);
+            }
+            default:
+                break;
+        }
+        throw new IllegalStateException("Illegal type: " + type);
+    }
+
     private static Object decodeObject(final ByteBuf in) throws IOException {
         final byte type = in.readByte();
         switch (type) {
@@ -19,8 +19,11 @@
 package hivemall.mix;
 
 import hivemall.mix.MixMessage.MixEventName;
+import hivemall.utils.codec.ZigZagLEB128Codec;
+import hivemall.utils.lang.HalfFloat;
 import hivemall.utils.lang.StringUtils;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
 
@@ -30,9 +33,27 @@ import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 
-public final class MixMessageEncoder extends MessageToByteEncoder<MixMessage> {
+public final class MixMessageEncoder extends MessageToByteEncoder<Object> {
     private static final byte[] LENGTH_PLACEHOLDER = new byte[4];
 
+    /** Marks a frame holding a {@link MixMessageBatch}. Distinct from any MixEventName ID */
+    static final byte BATCH_FRAME = -1;
+    /**
+     * Marks a frame holding a {@link MixMessageBatch} in the compact format. A server replies in
+     * the format of the request, and thus old clients keep receiving {@link #BATCH_FRAME}.
+     */
+    static final byte COMPACT_BATCH_FRAME = -2;
+    /**
+     * Marks a frame holding a {@link MixMessageBatch} forwarded from another mix server. The body
+     * is the same as {@link #BATCH_FRAME}.
+     */
+    static final byte FORWARDED_BATCH_FRAME = -3;
+
+    /** Bit flags packed with deltaUpdates in a compact entry */
+    static final int CANCEL_FLAG = 1;
+    static final int FULL_FLOAT_FLAG = 1 << 1;
+    static final int FLAG_BITS = 2;
+
     static final byte INTEGER_TYPE = 1;
     static final byte TEXT_TYPE = 2;
     static final byte STRING_TYPE = 3;
@@ -40,11 +61,29 @@ public final class MixMessageEncoder extends MessageToByteEncoder<MixMessage> {
     static final byte LONG_WRITABLE_TYPE = 5;
 
     public MixMessageEncoder() {
-        super(MixMessage.class, true);
+        super(Object.class, true);
     }
 
     @Override
-    protected void encode(ChannelHandlerContext ctx, MixMessage msg, ByteBuf out) throws Exception {
+    public boolean acceptOutboundMessage(Object msg) throws Exception {
+        return (msg instanceof MixMessage) || (msg instanceof MixMessageBatch);
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Object msg, ByteBuf out) throws Exception {
+        if (msg instanceof MixMessageBatch) {
+            MixMessageBatch batch = (MixMessageBatch) msg;
+            if (batch.isCompact() && !batch.isForwarded()) {
+                encodeCompactBatch(batch, out);
+            } else {
+                encodeBatch(batch, out);
+            }
+        } else {
+            encodeMessage((MixMessage) msg, out);
+        }
+    }
+
+    private static void encodeMessage(final MixMessage msg, final ByteBuf out) throws IOException {
         int startIdx = out.writerIndex();
         out.writeBytes(LENGTH_PLACEHOLDER);
 
@@ -77,6 +116,129 @@ public final class MixMessageEncoder extends MessageToByteEncoder<MixMessage> {
         out.setInt(startIdx, endIdx - startIdx - 4);
     }
 
+    private static void encodeBatch(final MixMessageBatch batch, final ByteBuf out)
+            throws IOException {
+        int startIdx = out.writerIndex();
+        out.writeBytes(LENGTH_PLACEHOLDER);
+
+        out.writeByte(batch.isForwarded() ? FORWARDED_BATCH_FRAME : BATCH_FRAME);
+        MixEventName event = batch.getEvent();
+        out.writeByte(event.getID());
+        String groupId = batch.getGroupID();
+        writeString(groupId, out);
+
+        final int size = batch.size();
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            encodeObject(batch.getFeature(i), out);
+            out.writeFloat(batch.getWeight(i));
+            out.writeFloat(batch.getCovariance(i));
+            out.writeShort(batch.getClock(i));
+            out.writeByte(batch.getDeltaUpdates(i)); // deltaUpdates is in range [0,127]
+            out.writeBoolean(batch.isCancelRequest(i));
+        }
+
+        int endIdx = out.writerIndex();
+        out.setInt(startIdx, endIdx - startIdx - 4);
+    }
+
+    /**
+     * Encodes a batch in the compact format, where an entry consists of a feature, varint
+     * (deltaUpdates &lt;&lt; 2 | flags), a weight and a covariance in half-floats (or floats if
+     * not representable) and a varint clock. Covariances are omitted for
+     * {@link MixEventName#average} as they are not used.
+     */
+    private static void encodeCompactBatch(final MixMessageBatch batch, final ByteBuf out)
+            throws IOException {
+        int startIdx = out.writerIndex();
+        out.writeBytes(LENGTH_PLACEHOLDER);
+
+        out.writeByte(COMPACT_BATCH_FRAME);
+        MixEventName event = batch.getEvent();
+        out.writeByte(event.getID());
+        String groupId = batch.getGroupID();
+        writeString(groupId, out);
+
+        final boolean hasCovariance = (event != MixEventName.average);
+        final ByteBufOutputStream os = new ByteBufOutputStream(out);
+        final int size = batch.size();
+        ZigZagLEB128Codec.writeUnsignedInt(size, os);
+        for (int i = 0; i < size; i++) {
+            encodeCompactObject(batch.getFeature(i), os);
+
+            final float weight = batch.getWeight(i);
+            final float covariance = hasCovariance ? batch.getCovariance(i) : 1.f;
+            final boolean fullFloat = !isRepresentableAsHalfFloat(weight)
+                    || !isRepresentableAsHalfFloat(covariance);
+            int flags = batch.getDeltaUpdates(i) << FLAG_BITS;
+            if (batch.isCancelRequest(i)) {
+                flags |= CANCEL_FLAG;
+            }
+            if (fullFloat) {
+                flags |= FULL_FLOAT_FLAG;
+            }
+            ZigZagLEB128Codec.writeUnsignedInt(flags, os);
+            if (fullFloat) {
+                out.writeFloat(weight);
+                if (hasCovariance) {
+                    out.writeFloat(covariance);
+                }
+            } else {
+                out.writeShort(HalfFloat.floatToHalfFloat(weight));
+                if (hasCovariance) {
+                    out.writeShort(HalfFloat.floatToHalfFloat(covariance));
+                }
+            }
+            ZigZagLEB128Codec.writeUnsignedInt(batch.getClock(i) & 0xFFFF, os);
+        }
+
+        int endIdx = out.writerIndex();
+        out.setInt(startIdx, endIdx - startIdx - 4);
+    }
+
+    /**
+     * Small nonzero values are sent as floats because they would flush to zero (or lose precision)
+     * in half-floats, and argminKLD divides by covariances.
+     */
+    private static boolean isRepresentableAsHalfFloat(final float f) {
+        if (!HalfFloat.isRepresentable(f, true)) {
+            return false;
+        }
+        return f == 0.f || Math.abs(f) >= HalfFloat.MIN_NORMAL;
+    }
+
+    private static void encodeCompactObject(final Object obj, final ByteBufOutputStream os)
+            throws IOException {
+        assert (obj != null);
+        final ByteBuf buf = os.buffer();
+        if (obj instanceof Integer) {
+            Integer i = (Integer) obj;
+            buf.writeByte(INTEGER_TYPE);
+            ZigZagLEB128Codec.writeSignedInt(i.intValue(), os);
+        } else if (obj instanceof Text) {
+            Text t = (Text) obj;
+            int length = t.getLength();
+            buf.writeByte(TEXT_TYPE);
+            ZigZagLEB128Codec.writeUnsignedInt(length, os);
+            buf.writeBytes(t.getBytes(), 0, length);
+        } else if (obj instanceof String) {
+            byte[] b = StringUtils.getBytes((String) obj);
+            buf.writeByte(STRING_TYPE);
+            ZigZagLEB128Codec.writeUnsignedInt(b.length, os);
+            buf.writeBytes(b);
+        } else if (obj instanceof IntWritable) {
+            IntWritable i = (IntWritable) obj;
+            buf.writeByte(INT_WRITABLE_TYPE);
+            ZigZagLEB128Codec.writeSignedInt(i.get(), os);
+        } else if (obj instanceof LongWritable) {
+            LongWritable l = (LongWritable) obj;
+            buf.writeByte(LONG_WRITABLE_TYPE);
+            ZigZagLEB128Codec.writeSignedLong(l.get(), os);
+        } else {
+            throw new IllegalStateException("Unexpected type: " + obj.getClass().getName());
+        }
+    }
+
     private static void encodeObject(final Object obj, final ByteBuf buf) throws IOException {
         assert (obj != null);
         if (obj instanceof Integer) {
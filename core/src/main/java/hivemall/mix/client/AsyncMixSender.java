@@ -0,0 +1,352 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.mix.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Sends mix requests of a {@link MixClient} from a dedicated thread so that learners never wait
+ * for connections or slow mix servers. Requests are kept in a lock-free queue bounded by a window
+ * size, and {@link FullWindowPolicy} decides what to do when the window is full.
+ */
+@ThreadSafe
+public final class AsyncMixSender implements Closeable {
+
+    public enum FullWindowPolicy {
+        /** Discards the update */
+        drop,
+        /**
+         * Merges updates into a pending request of the same feature, and discards the update if
+         * none is pending
+         */
+        coalesce,
+        /** Waits until the sender thread makes room */
+        block;
+
+        @Nonnull
+        public static FullWindowPolicy resolve(@Nonnull String name) {
+            for (FullWindowPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(name)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("Unexpected policy: " + name);
+        }
+    }
+
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    @Nonnull
+    private final MixClient client;
+    private final int windowSize;
+    @Nonnull
+    private final FullWindowPolicy policy;
+
+    @Nonnull
+    private final ConcurrentLinkedQueue<Request> queue;
+    /** The number of requests in the queue that is bounded by windowSize */
+    @Nonnull
+    private final AtomicInteger depth;
+    /** Requests in the queue by features. Used for {@link FullWindowPolicy#coalesce} */
+    @Nullable
+    private final ConcurrentMap<Object, Request> pending;
+
+    @Nonnull
+    private final Thread sender;
+    /** Whether the sender thread is (about to be) parked for an empty queue */
+    private volatile boolean senderParked;
+    /** A learner thread waiting for room in the window */
+    @Nullable
+    private volatile Thread waiter;
+    private volatile boolean closed;
+    @Nullable
+    private volatile Throwable error;
+
+    // metrics
+    private volatile int maxDepth;
+    @Nonnull
+    private final AtomicLong waitTimeInNanos;
+    @Nonnull
+    private final AtomicLong numDropped;
+    @Nonnull
+    private final AtomicLong numCoalesced;
+
+    AsyncMixSender(@Nonnull MixClient client, @Nonnegative int windowSize,
+            @Nonnull FullWindowPolicy policy) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Invalid windowSize: " + windowSize);
+        }
+        this.client = client;
+        this.windowSize = windowSize;
+        this.policy = policy;
+        this.queue = new ConcurrentLinkedQueue<Request>();
+        this.depth = new AtomicInteger(0);
+        this.pending = (policy == FullWindowPolicy.coalesce)
+                ? new ConcurrentHashMap<Object, Request>() : null;
+        this.maxDepth = 0;
+        this.waitTimeInNanos = new AtomicLong(0L);
+        this.numDropped = new AtomicLong(0L);
+        this.numCoalesced = new AtomicLong(0L);
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "AsyncMixSender");
+        t.setDaemon(true);
+        t.start();
+        this.sender = t;
+    }
+
+    /**
+     * @return true if the update was queued, coalesced or dropped, that is, the caller can reset
+     *         its deltaUpdates
+     */
+    boolean offer(@Nonnull final Object feature, final float weight, final float covar,
+            final short clock, final int deltaUpdates, final boolean cancelRequest)
+            throws Exception {
+        checkState();
+
+        if (pending != null && !cancelRequest) {
+            Request req = pending.get(feature);
+            if (req != null && req.merge(weight, covar, clock, deltaUpdates)) {
+                numCoalesced.getAndIncrement();
+                return true;
+            }
+        }
+
+        if (!tryAcquire()) {
+            if (policy != FullWindowPolicy.block && !cancelRequest) {
+                numDropped.getAndIncrement();
+                return true;
+            }
+            // cancel requests are never dropped
+            final long startTime = System.nanoTime();
+            this.waiter = Thread.currentThread();
+            try {
+                do {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                    checkState();
+                } while (!tryAcquire());
+            } finally {
+                this.waiter = null;
+            }
+            waitTimeInNanos.getAndAdd(System.nanoTime() - startTime);
+        }
+
+        final Request req = new Request(feature, weight, covar, clock, deltaUpdates,
+            cancelRequest);
+        if (pending != null && !cancelRequest) {
+            pending.put(feature, req);
+        }
+        queue.offer(req);
+        if (senderParked) {
+            LockSupport.unpark(sender);
+        }
+        return true;
+    }
+
+    private boolean tryAcquire() {
+        for (;;) {
+            final int d = depth.get();
+            if (d >= windowSize) {
+                return false;
+            }
+            if (depth.compareAndSet(d, d + 1)) {
+                if (d + 1 > maxDepth) {
+                    this.maxDepth = d + 1; // races are benign
+                }
+                return true;
+            }
+        }
+    }
+
+    private void checkState() throws Exception {
+        final Throwable e = error;
+        if (e != null) {
+            throw new IOException("Failed to send mix requests", e);
+        }
+        if (closed) {
+            throw new IllegalStateException("AsyncMixSender is already closed");
+        }
+    }
+
+    private void drain() {
+        for (;;) {
+            final Request req = queue.poll();
+            if (req == null) {
+                if (closed) {
+                    return;
+                }
+                this.senderParked = true;
+                if (queue.isEmpty()) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                this.senderParked = false;
+                continue;
+            }
+            if (pending != null && !req.cancelRequest) {
+                pending.remove(req.feature, req);
+            }
+            req.take();
+            final int d = depth.decrementAndGet();
+            final Thread t = waiter;
+            if (t != null && d <= (windowSize >>> 1)) {
+                LockSupport.unpark(t); // wakes up a blocked learner after draining a half
+            }
+            try {
+                if (req.cancelRequest) {
+                    client.sendCancelRequest(req.feature, req.weight, req.covar, req.deltaUpdates);
+                } else {
+                    client.sendUpdate(req.feature, req.weight, req.covar, req.clock,
+                        req.deltaUpdates);
+                }
+            } catch (Throwable e) {
+                this.error = e;
+                queue.clear();
+                depth.set(0);
+                return;
+            }
+        }
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    @Nonnull
+    public FullWindowPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxDepth;
+    }
+
+    public long getWaitTimeInMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitTimeInNanos.get());
+    }
+
+    public long getNumDropped() {
+        return numDropped.get();
+    }
+
+    public long getNumCoalesced() {
+        return numCoalesced.get();
+    }
+
+    /**
+     * Sends the remaining requests and stops the sender thread.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        this.closed = true;
+        LockSupport.unpark(sender);
+        try {
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending the remaining mix requests", e);
+        }
+        final Throwable e = error;
+        if (e != null) {
+            throw new IOException("Failed to send mix requests", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncMixSender [windowSize=" + windowSize + ", policy=" + policy + ", maxDepth="
+                + maxDepth + ", waitTimeInMillis=" + getWaitTimeInMillis() + ", numDropped="
+                + numDropped + ", numCoalesced=" + numCoalesced + "]";
+    }
+
+    private static final class Request {
+
+        @Nonnull
+        final Object feature;
+        final boolean cancelRequest;
+        @GuardedBy("this")
+        float weight;
+        @GuardedBy("this")
+        float covar;
+        @GuardedBy("this")
+        short clock;
+        @GuardedBy("this")
+        int deltaUpdates;
+        /** Whether the sender thread took this request */
+        @GuardedBy("this")
+        boolean taken;
+
+        Request(@Nonnull Object feature, float weight, float covar, short clock,
+                int deltaUpdates, boolean cancelRequest) {
+            this.feature = feature;
+            this.weight = weight;
+            this.covar = covar;
+            this.clock = clock;
+            this.deltaUpdates = deltaUpdates;
+            this.cancelRequest = cancelRequest;
+            this.taken = false;
+        }
+
+        /**
+         * Replaces the model by the latest one and accumulates deltaUpdates.
+         *
+         * @return false if already taken by the sender thread
+         */
+        synchronized boolean merge(float weight, float covar, short clock, int deltaUpdates) {
+            if (taken) {
+                return false;
+            }
+            this.weight = weight;
+            this.covar = covar;
+            this.clock = clock;
+            this.deltaUpdates = Math.min(this.deltaUpdates + deltaUpdates, Byte.MAX_VALUE);
+            return true;
+        }
+
+        synchronized void take() {
+            this.taken = true;
+        }
+
+    }
+
+}
@@ -21,13 +21,16 @@ package hivemall.mix.client;
 import hivemall.model.ModelUpdateHandler;
 import hivemall.mix.MixMessage;
 import hivemall.mix.MixMessage.MixEventName;
+import hivemall.mix.MixMessageBatch;
 import hivemall.mix.MixedModel;
 import hivemall.mix.MixedWeight;
 import hivemall.mix.NodeInfo;
+import hivemall.mix.client.AsyncMixSender.FullWindowPolicy;
 import hivemall.utils.hadoop.HadoopUtils;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -38,15 +41,26 @@ import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.net.ssl.SSLException;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 public final class MixClient implements ModelUpdateHandler, Closeable {
     public static final String DUMMY_JOB_ID = "__DUMMY_JOB_ID__";
+    public static final long DEFAULT_FLUSH_INTERVAL = 100L;
+    private static final Log logger = LogFactory.getLog(MixClient.class);
 
     private final MixEventName event;
     private String groupID;
@@ -54,41 +68,128 @@ public final class MixClient implements ModelUpdateHandler, Closeable {
     private final int mixThreshold;
     private final MixRequestRouter router;
     private final MixClientHandler msgHandler;
+    private final Map<NodeInfo, Bootstrap> bootstrapMap;
     private final Map<NodeInfo, Channel> channelMap;
 
+    /** The number of requests packed into a frame. Requests are sent one by one when 1 */
+    private final int batchSize;
+    /** The maximum time in millis that a request waits in a batch before being sent */
+    private final long flushInterval;
+    private final Map<NodeInfo, RequestBuffer> bufferMap;
+    /** Whether to send requests in the compact wire format */
+    private final boolean compact;
+
+    /** Sends requests in the background if configured */
+    @Nullable
+    private AsyncMixSender asyncSender;
+
     private boolean initialized = false;
     private EventLoopGroup workers;
 
     public MixClient(@Nonnull MixEventName event, @CheckForNull String groupID,
             @Nonnull String connectURIs, boolean ssl, int mixThreshold, @Nonnull MixedModel model) {
+        this(event, groupID, connectURIs, ssl, mixThreshold, 1, DEFAULT_FLUSH_INTERVAL, model);
+    }
+
+    public MixClient(@Nonnull MixEventName event, @CheckForNull String groupID,
+            @Nonnull String connectURIs, boolean ssl, int mixThreshold,
+            @Nonnegative int batchSize, @Nonnegative long flushInterval,
+            @Nonnull MixedModel model) {
+        this(event, groupID, connectURIs, ssl, mixThreshold, batchSize, flushInterval, false,
+            model);
+    }
+
+    /**
+     * @param compact send requests in the compact wire format that mix servers of older versions
+     *        do not understand. Requests are sent as batches even if batchSize is 1.
+     */
+    public MixClient(@Nonnull MixEventName event, @CheckForNull String groupID,
+            @Nonnull String connectURIs, boolean ssl, int mixThreshold,
+            @Nonnegative int batchSize, @Nonnegative long flushInterval, boolean compact,
+            @Nonnull MixedModel model) {
         if (groupID == null) {
             throw new IllegalArgumentException("groupID is null");
         }
         if (mixThreshold < 1 || mixThreshold > Byte.MAX_VALUE) {
             throw new IllegalArgumentException("Invalid mixThreshold: " + mixThreshold);
         }
+        if (batchSize < 1 || batchSize > MixMessageBatch.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Invalid batchSize: " + batchSize);
+        }
+        if (flushInterval < 1L) {
+            throw new IllegalArgumentException("Invalid flushInterval: " + flushInterval);
+        }
         this.event = event;
         this.groupID = groupID;
         this.router = new MixRequestRouter(connectURIs);
         this.ssl = ssl;
         this.mixThreshold = mixThreshold;
         this.msgHandler = new MixClientHandler(model);
-        this.channelMap = new HashMap<NodeInfo, Channel>();
+        this.bootstrapMap = new HashMap<NodeInfo, Bootstrap>();
+        this.channelMap = new ConcurrentHashMap<NodeInfo, Channel>();
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.bufferMap = new HashMap<NodeInfo, RequestBuffer>();
+        this.compact = compact;
     }
 
     private void initialize() throws Exception {
         EventLoopGroup workerGroup = new NioEventLoopGroup();
         NodeInfo[] serverNodes = router.getAllNodes();
+        int numConnected = 0;
         for (NodeInfo node : serverNodes) {
             Bootstrap b = new Bootstrap();
-            configureBootstrap(b, workerGroup, node);
+            configureBootstrap(b, workerGroup);
+            bootstrapMap.put(node, b);
+            if (connect(node) != null) {
+                numConnected++;
+            }
+            if (isBatchEnabled()) {
+                bufferMap.put(node, new RequestBuffer(node));
+            }
+        }
+        if (numConnected == 0) {
+            workerGroup.shutdownGracefully();
+            throw new IOException("Failed to connect to any of mix servers: "
+                    + Arrays.toString(serverNodes));
+        }
+        if (isBatchEnabled()) {
+            // flush requests staying in a batch longer than flushInterval
+            workerGroup.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    flushExpired();
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
         }
         this.workers = workerGroup;
         this.initialized = true;
     }
 
-    private void configureBootstrap(Bootstrap b, EventLoopGroup workerGroup, NodeInfo server)
-            throws SSLException, InterruptedException {
+    /**
+     * Sends mix requests from a dedicated thread. Learners queue up to windowSize requests and
+     * then follow the given policy. Must be called before the first update.
+     */
+    public void configureAsync(@Nonnegative int windowSize, @Nonnull FullWindowPolicy policy) {
+        if (asyncSender != null) {
+            throw new IllegalStateException("Already configured: " + asyncSender);
+        }
+        this.asyncSender = new AsyncMixSender(this, windowSize, policy);
+    }
+
+    /**
+     * @return the sender of requests if {@link #configureAsync(int, FullWindowPolicy)} is called
+     */
+    @Nullable
+    public AsyncMixSender getAsyncSender() {
+        return asyncSender;
+    }
+
+    private boolean isBatchEnabled() {
+        return batchSize > 1 || compact;
+    }
+
+    private void configureBootstrap(Bootstrap b, EventLoopGroup workerGroup) throws SSLException {
         // Configure SSL.
         final SslContext sslCtx;
         if (ssl) {
@@ -102,12 +203,59 @@ public final class MixClient implements ModelUpdateHandler, Closeable {
         b.option(ChannelOption.TCP_NODELAY, true);
         b.channel(NioSocketChannel.class);
         b.handler(new MixClientInitializer(msgHandler, sslCtx));
+    }
 
-        SocketAddress remoteAddr = server.getSocketAddress();
-        ChannelFuture channelFuture = b.connect(remoteAddr).sync();
+    /**
+     * @return null if failed to connect, where the server is marked down
+     */
+    @Nullable
+    private Channel connect(@Nonnull final NodeInfo server) throws InterruptedException {
+        final Bootstrap b = bootstrapMap.get(server);
+        final SocketAddress remoteAddr = server.getSocketAddress();
+        final ChannelFuture channelFuture = b.connect(remoteAddr).await();
+        if (!channelFuture.isSuccess()) {
+            logger.warn("Failed to connect to a mix server: " + server, channelFuture.cause());
+            router.markDown(server);
+            return null;
+        }
         Channel channel = channelFuture.channel();
-
         channelMap.put(server, channel);
+        router.markUp(server);
+        return channel;
+    }
+
+    /**
+     * Returns the active channel to the server, reconnecting if the server is not marked down.
+     * 
+     * @return null if the server is not available
+     */
+    @Nullable
+    private Channel getChannel(@Nonnull final NodeInfo server) throws InterruptedException {
+        final Channel ch = channelMap.get(server);
+        if (ch != null && ch.isActive()) {
+            return ch;
+        }
+        if (!router.isAlive(server)) {
+            return null;
+        }
+        if (ch != null) {
+            ch.close();
+        }
+        return connect(server);
+    }
+
+    private void write(@Nonnull final Channel ch, @Nonnull final NodeInfo server,
+            @Nonnull final Object msg) {
+        ch.writeAndFlush(msg).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    // requests in flight are lost but following ones fail over to the replica
+                    logger.warn("Failed to send mix requests to " + server, future.cause());
+                    router.markDown(server);
+                }
+            }
+        }); // send asynchronously in the background
     }
 
     /**
@@ -121,48 +269,210 @@ public final class MixClient implements ModelUpdateHandler, Closeable {
             return false; // avoid mixing
         }
 
+        if (asyncSender != null) {
+            return asyncSender.offer(feature, weight, covar, clock, deltaUpdates, false);
+        }
+        sendUpdate(feature, weight, covar, clock, deltaUpdates);
+        return true;
+    }
+
+    void sendUpdate(@Nonnull Object feature, float weight, float covar, short clock,
+            int deltaUpdates) throws Exception {
         if (!initialized) {
             replaceGroupIDIfRequired();
             initialize(); // initialize connections to mix servers
         }
 
+        if (isBatchEnabled()) {
+            NodeInfo server = router.selectNode(feature);
+            enqueue(server, feature, weight, covar, clock, deltaUpdates, false);
+            return;
+        }
+
         MixMessage msg = new MixMessage(event, feature, weight, covar, clock, deltaUpdates);
         msg.setGroupID(groupID);
+        send(msg);
+    }
 
-        NodeInfo server = router.selectNode(msg);
-        Channel ch = channelMap.get(server);
-        if (!ch.isActive()) {// reconnect
-            SocketAddress remoteAddr = server.getSocketAddress();
-            ch.connect(remoteAddr).sync();
+    /**
+     * Sends a message to the first available replica of the feature.
+     */
+    private void send(@Nonnull final MixMessage msg) throws Exception {
+        final int numNodes = router.getAllNodes().length;
+        for (int i = 0; i < numNodes; i++) {
+            NodeInfo server = router.selectNode(msg);
+            Channel ch = getChannel(server);
+            if (ch != null) {
+                write(ch, server, msg);
+                return;
+            }
         }
-
-        //ch.writeAndFlush(msg).sync();
-        ch.writeAndFlush(msg); // send asynchronously in the background
-        return true;
+        throw new IOException("No mix server is available: "
+                + Arrays.toString(router.getAllNodes()));
     }
 
     @Override
     public void sendCancelRequest(@Nonnull Object feature, @Nonnull MixedWeight mixed)
             throws Exception {
-        assert (initialized);
-
         float weight = mixed.getWeight();
         float covar = mixed.getCovar();
         int deltaUpdates = mixed.getDeltaUpdates();
 
+        if (asyncSender != null) {
+            asyncSender.offer(feature, weight, covar, (short) 0 /* dummy clock */, deltaUpdates,
+                true);
+            return;
+        }
+        sendCancelRequest(feature, weight, covar, deltaUpdates);
+    }
+
+    void sendCancelRequest(@Nonnull Object feature, float weight, float covar, int deltaUpdates)
+            throws Exception {
+        assert (initialized);
+
+        if (isBatchEnabled()) {
+            NodeInfo server = router.selectNode(feature);
+            enqueue(server, feature, weight, covar, (short) 0 /* dummy clock */, deltaUpdates,
+                true);
+            return;
+        }
+
         MixMessage msg = new MixMessage(event, feature, weight, covar, deltaUpdates, true);
         assert (groupID != null);
         msg.setGroupID(groupID);
 
-        // TODO REVIEWME consider mix server faults (what if mix server dead? Do not send cancel request?)
-        NodeInfo server = router.selectNode(msg);
-        Channel ch = channelMap.get(server);
-        if (!ch.isActive()) {// reconnect
-            SocketAddress remoteAddr = server.getSocketAddress();
-            ch.connect(remoteAddr).sync();
+        // A cancel request failed over to a replica is ignored there unless the replica
+        // received the original contribution through cross-forwarding among mix servers.
+        send(msg);
+    }
+
+    private void enqueue(@Nonnull NodeInfo server, @Nonnull Object feature, float weight,
+            float covar, short clock, int deltaUpdates, boolean cancelRequest) throws Exception {
+        final RequestBuffer buf = bufferMap.get(server);
+        synchronized (buf) {
+            MixMessageBatch batch = buf.batch;
+            if (batch == null) {
+                batch = new MixMessageBatch(event, batchSize);
+                batch.setCompact(compact);
+                buf.batch = batch;
+                buf.firstEnqueued = System.currentTimeMillis();
+            }
+            batch.add(feature, weight, covar, clock, deltaUpdates, cancelRequest);
+            if (batch.size() < batchSize) {
+                return;
+            }
         }
+        flush(buf, false);
+    }
 
-        ch.writeAndFlush(msg); // send asynchronously in the background
+    /**
+     * Sends the pending batch of the buffer, or re-enqueues its requests to the next replicas if
+     * the server is not available.
+     */
+    private void flush(@Nonnull final RequestBuffer buf, final boolean force) throws Exception {
+        // (re)connects outside the lock, which the event loop flushing expired batches waits for
+        final Channel ch = getChannel(buf.server);
+        MixMessageBatch undeliverable = null;
+        synchronized (buf) {
+            if (!flush(buf, ch, force)) {
+                undeliverable = buf.batch;
+                buf.batch = null;
+            }
+        }
+        if (undeliverable != null) {
+            reroute(undeliverable); // outside the lock to avoid deadlocks among buffers
+        }
+    }
+
+    /**
+     * Sends the pending batch unless the channel is congested. While the channel is not writable,
+     * requests keep being packed into the current batch until it reaches
+     * {@link MixMessageBatch#MAX_BATCH_SIZE}.
+     * 
+     * @param ch the channel to the server of the buffer, or null if not available
+     * @return false if the server is not available, where the batch is left in the buffer
+     */
+    @GuardedBy("buf")
+    private boolean flush(@Nonnull final RequestBuffer buf, @Nullable final Channel ch,
+            final boolean force) {
+        final MixMessageBatch batch = buf.batch;
+        if (batch == null || batch.isEmpty()) {
+            return true;
+        }
+        final NodeInfo server = buf.server;
+        if (ch == null) {
+            return false;
+        }
+        if (!force && !ch.isWritable() && !batch.isFull()) {
+            return true; // backpressure
+        }
+        batch.setGroupID(groupID);
+        buf.batch = null;
+        write(ch, server, batch);
+        return true;
+    }
+
+    /**
+     * Re-enqueues the requests of a batch whose server is down to their next replicas.
+     */
+    private void reroute(@Nonnull final MixMessageBatch batch) throws Exception {
+        for (int i = 0, size = batch.size(); i < size; i++) {
+            Object feature = batch.getFeature(i);
+            NodeInfo server = router.selectNode(feature);
+            if (!router.isAlive(server)) {
+                throw new IOException("No mix server is available: "
+                        + Arrays.toString(router.getAllNodes()));
+            }
+            enqueue(server, feature, batch.getWeight(i), batch.getCovariance(i),
+                batch.getClock(i), batch.getDeltaUpdates(i), batch.isCancelRequest(i));
+        }
+    }
+
+    /**
+     * Invoked by an event loop thread. Must not block, and thus batches of inactive channels are
+     * left to the learner thread. Must not throw either, or the following runs are cancelled.
+     */
+    private void flushExpired() {
+        final long now = System.currentTimeMillis();
+        for (RequestBuffer buf : bufferMap.values()) {
+            synchronized (buf) {
+                if (buf.batch == null) {
+                    continue;
+                }
+                if (now - buf.firstEnqueued < flushInterval) {
+                    continue;
+                }
+                Channel ch = channelMap.get(buf.server);
+                if (ch == null || !ch.isActive()) {
+                    continue;
+                }
+                try {
+                    flush(buf, ch, false);
+                } catch (RuntimeException e) {
+                    // the learner thread reroutes the batch on the next flush
+                    logger.error("Failed to flush mix requests to " + buf.server, e);
+                    router.markDown(buf.server);
+                }
+            }
+        }
+    }
+
+    private void flushAll() throws Exception {
+        boolean pending;
+        do {
+            // flushing a buffer may reroute requests to the buffers already flushed
+            for (RequestBuffer buf : bufferMap.values()) {
+                flush(buf, true);
+            }
+            pending = false;
+            for (RequestBuffer buf : bufferMap.values()) {
+                synchronized (buf) {
+                    if (buf.batch != null && !buf.batch.isEmpty()) {
+                        pending = true;
+                    }
+                }
+            }
+        } while (pending);
     }
 
     private void replaceGroupIDIfRequired() {
@@ -174,7 +484,15 @@ public final class MixClient implements ModelUpdateHandler, Closeable {
 
     @Override
     public void close() throws IOException {
+        if (asyncSender != null) {
+            asyncSender.close(); // sends the remaining requests
+        }
         if (workers != null) {
+            try {
+                flushAll();
+            } catch (Exception e) {
+                throw new IOException("Failed to flush pending mix requests", e);
+            }
             for (Channel ch : channelMap.values()) {
                 ch.close();
             }
@@ -184,4 +502,20 @@ public final class MixClient implements ModelUpdateHandler, Closeable {
         }
     }
 
+    private static final class RequestBuffer {
+
+        @Nonnull
+        final NodeInfo server;
+        @Nullable
+        @GuardedBy("this")
+        MixMessageBatch batch;
+        @GuardedBy("this")
+        long firstEnqueued;
+
+        RequestBuffer(@Nonnull NodeInfo server) {
+            this.server = server;
+        }
+
+    }
+
 }
@@ -19,13 +19,14 @@
 package hivemall.mix.client;
 
 import hivemall.mix.MixMessage;
+import hivemall.mix.MixMessageBatch;
 import hivemall.mix.MixedModel;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 
 @Sharable
-public final class MixClientHandler extends SimpleChannelInboundHandler<MixMessage> {
+public final class MixClientHandler extends SimpleChannelInboundHandler<Object> {
 
     private final MixedModel model;
 
@@ -38,7 +39,20 @@ public final class MixClientHandler extends SimpleChannelInboundHandler<MixMessa
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, MixMessage msg) throws Exception {
+    public boolean acceptInboundMessage(Object msg) throws Exception {
+        return (msg instanceof MixMessage) || (msg instanceof MixMessageBatch);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof MixMessageBatch) {
+            onResponse((MixMessageBatch) msg);
+        } else {
+            onResponse((MixMessage) msg);
+        }
+    }
+
+    private void onResponse(final MixMessage msg) {
         Object feature = msg.getFeature();
         float weight = msg.getWeight();
         short clock = msg.getClock();
@@ -46,4 +60,14 @@ public final class MixClientHandler extends SimpleChannelInboundHandler<MixMessa
         model.set(feature, weight, covar, clock);
     }
 
+    private void onResponse(final MixMessageBatch batch) {
+        for (int i = 0, size = batch.size(); i < size; i++) {
+            Object feature = batch.getFeature(i);
+            float weight = batch.getWeight(i);
+            short clock = batch.getClock(i);
+            float covar = batch.getCovariance(i);
+            model.set(feature, weight, covar, clock);
+        }
+    }
+
 }
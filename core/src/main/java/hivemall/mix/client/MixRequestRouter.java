@@ -21,16 +21,87 @@ package hivemall.mix.client;
 import hivemall.mix.MixEnv;
 import hivemall.mix.MixMessage;
 import hivemall.mix.NodeInfo;
+import hivemall.utils.hashing.MurmurHash3;
 import hivemall.utils.net.NetUtils;
 
 import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Routes features to mix servers by consistent hashing with virtual nodes, so that adding or
+ * removing a server remaps only the features of the neighboring virtual nodes. A server marked
+ * down is skipped for a retry interval, and its features fail over to the next server on the
+ * ring, which is the secondary replica.
+ */
+@ThreadSafe
 public final class MixRequestRouter {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+    public static final long DEFAULT_RETRY_INTERVAL = 10000L; // 10 sec
 
     private final int numNodes;
     private final NodeInfo[] nodes;
+    private final Map<NodeInfo, Integer> nodeIndexes;
+
+    /** Sorted hash values of virtual nodes */
+    private final int[] ringHashes;
+    /** Node indexes of virtual nodes */
+    private final int[] ringNodes;
+
+    /** The time in millis until which a node is considered to be down */
+    private final AtomicLongArray downUntil;
+    private final long retryInterval;
 
     public MixRequestRouter(String connectInfo) {
+        this(parseNodes(connectInfo), DEFAULT_VIRTUAL_NODES, DEFAULT_RETRY_INTERVAL);
+    }
+
+    public MixRequestRouter(@Nonnull NodeInfo[] nodes, @Nonnegative int virtualNodes,
+            @Nonnegative long retryInterval) {
+        final int numNodes = nodes.length;
+        if (numNodes < 1) {
+            throw new IllegalArgumentException("No node is given");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Invalid virtualNodes: " + virtualNodes);
+        }
+        this.numNodes = numNodes;
+        this.nodes = nodes;
+        this.nodeIndexes = new HashMap<NodeInfo, Integer>(numNodes * 2);
+        for (int i = 0; i < numNodes; i++) {
+            nodeIndexes.put(nodes[i], Integer.valueOf(i));
+        }
+
+        // build a hash ring
+        final int ringSize = numNodes * virtualNodes;
+        final long[] ring = new long[ringSize];
+        for (int i = 0, k = 0; i < numNodes; i++) {
+            String key = nodes[i].getAddress().getHostAddress() + ':' + nodes[i].getPort();
+            for (int j = 0; j < virtualNodes; j++) {
+                int h = MurmurHash3.murmurhash3_x86_32(key + '#' + j);
+                ring[k++] = ((long) h << 32) | i; // sort by hash, then by node index
+            }
+        }
+        Arrays.sort(ring);
+        this.ringHashes = new int[ringSize];
+        this.ringNodes = new int[ringSize];
+        for (int k = 0; k < ringSize; k++) {
+            ringHashes[k] = (int) (ring[k] >> 32);
+            ringNodes[k] = (int) ring[k];
+        }
+
+        this.downUntil = new AtomicLongArray(numNodes);
+        this.retryInterval = retryInterval;
+    }
+
+    @Nonnull
+    private static NodeInfo[] parseNodes(String connectInfo) {
         if (connectInfo == null) {
             throw new IllegalArgumentException();
         }
@@ -39,14 +110,13 @@ public final class MixRequestRouter {
         if (numEndpoints < 1) {
             throw new IllegalArgumentException("Invalid connectInfo: " + connectInfo);
         }
-        this.numNodes = numEndpoints;
         NodeInfo[] nodes = new NodeInfo[numEndpoints];
         for (int i = 0; i < numEndpoints; i++) {
             InetSocketAddress addr = NetUtils.getInetSocketAddress(endpoints[i],
                 MixEnv.MIXSERV_DEFAULT_PORT);
             nodes[i] = new NodeInfo(addr);
         }
-        this.nodes = nodes;
+        return nodes;
     }
 
     public NodeInfo[] getAllNodes() {
@@ -56,9 +126,88 @@ public final class MixRequestRouter {
     public NodeInfo selectNode(MixMessage msg) {
         assert (msg != null);
         Object feature = msg.getFeature();
-        int hashcode = feature.hashCode();
-        int index = (hashcode & Integer.MAX_VALUE) % numNodes;
-        return nodes[index];
+        return selectNode(feature);
+    }
+
+    /**
+     * @return the first alive node on the ring, or the primary node if all nodes are down
+     */
+    public NodeInfo selectNode(Object feature) {
+        assert (feature != null);
+        final int start = ringIndex(feature);
+        final int ringSize = ringNodes.length;
+        final long now = System.currentTimeMillis();
+        for (int k = 0; k < ringSize; k++) {
+            int i = ringNodes[(start + k) % ringSize];
+            if (downUntil.get(i) <= now) {
+                return nodes[i];
+            }
+        }
+        return nodes[ringNodes[start]];
+    }
+
+    /**
+     * @return distinct nodes in the order of the ring regardless of their health, where the first
+     *         one is the primary
+     */
+    @Nonnull
+    public NodeInfo[] selectReplicas(@Nonnull Object feature, @Nonnegative int numReplicas) {
+        final int n = Math.min(numReplicas, numNodes);
+        final NodeInfo[] replicas = new NodeInfo[n];
+        final int start = ringIndex(feature);
+        final int ringSize = ringNodes.length;
+        final boolean[] selected = new boolean[numNodes];
+        for (int k = 0, found = 0; found < n; k++) {
+            int i = ringNodes[(start + k) % ringSize];
+            if (!selected[i]) {
+                selected[i] = true;
+                replicas[found++] = nodes[i];
+            }
+        }
+        return replicas;
+    }
+
+    private int ringIndex(@Nonnull final Object feature) {
+        final int h = hash(feature.hashCode());
+        int k = Arrays.binarySearch(ringHashes, h);
+        if (k < 0) {
+            k = -(k + 1); // the first virtual node whose hash is greater than h
+        }
+        return (k == ringHashes.length) ? 0 : k;
+    }
+
+    public boolean isAlive(@Nonnull NodeInfo node) {
+        return downUntil.get(indexOf(node)) <= System.currentTimeMillis();
+    }
+
+    /**
+     * Marks the node down. Its features are routed to the next node until the retry interval
+     * elapses.
+     */
+    public void markDown(@Nonnull NodeInfo node) {
+        downUntil.set(indexOf(node), System.currentTimeMillis() + retryInterval);
+    }
+
+    public void markUp(@Nonnull NodeInfo node) {
+        downUntil.set(indexOf(node), 0L);
+    }
+
+    private int indexOf(@Nonnull NodeInfo node) {
+        Integer i = nodeIndexes.get(node);
+        if (i == null) {
+            throw new IllegalArgumentException("Unknown node: " + node);
+        }
+        return i.intValue();
+    }
+
+    private static int hash(int h) {
+        // MurmurHash3 fmix32 to spread sequential feature indexes over the ring
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
     }
 
 }
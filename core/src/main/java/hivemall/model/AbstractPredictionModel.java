@@ -126,62 +126,51 @@ public abstract class AbstractPredictionModel implements PredictionModel {
             if (!value.isTouched()) {
                 return;
             }
-            final float weight = value.get();
-            final short clock = value.getClock();
-            final int deltaUpdates = value.getDeltaUpdates();
-            if (value.hasCovariance()) {
-                final float covar = value.getCovariance();
-                final boolean requestSent;
-                try {
-                    requestSent = handler.onUpdate(feature, weight, covar, clock, deltaUpdates);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-                if (requestSent) {
-                    if (cancelMixRequest) {
-                        MixedWeight prevMixed = mixedRequests_o.get(feature);
-                        if (prevMixed == null) {
-                            prevMixed = new WeightWithCovar(weight, covar);
-                            mixedRequests_o.put(feature, prevMixed);
-                        } else {
-                            try {
-                                handler.sendCancelRequest(feature, prevMixed);
-                            } catch (Exception e) {
-                                throw new RuntimeException(e);
-                            }
-                            prevMixed.setWeight(weight);
-                            prevMixed.setCovar(covar);
-                        }
-                    }
-                    value.setDeltaUpdates(BYTE0);
-                }
+            final boolean hasCovar = value.hasCovariance();
+            final float covar = hasCovar ? value.getCovariance() : 1.f;
+            if (onUpdate(feature, value.get(), covar, value.getClock(), value.getDeltaUpdates(),
+                hasCovar)) {
+                value.setDeltaUpdates(BYTE0);
+            }
+        }
+    }
+
+    /**
+     * @return true if a mix request is sent, where the caller has to reset deltaUpdates of the
+     *         feature
+     */
+    protected final boolean onUpdate(final Object feature, final float weight, final float covar,
+            final short clock, final int deltaUpdates, final boolean hasCovar) {
+        if (handler == null || deltaUpdates < 1) {
+            return false;
+        }
+        final boolean requestSent;
+        try {
+            requestSent = handler.onUpdate(feature, weight, covar, clock, deltaUpdates);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        if (requestSent && cancelMixRequest) {
+            MixedWeight prevMixed = mixedRequests_o.get(feature);
+            if (prevMixed == null) {
+                prevMixed = hasCovar ? new WeightWithCovar(weight, covar) : new WeightWithDelta(
+                    weight, deltaUpdates);
+                mixedRequests_o.put(feature, prevMixed);
             } else {
-                final boolean requestSent;
                 try {
-                    requestSent = handler.onUpdate(feature, weight, 1.f, clock, deltaUpdates);
+                    handler.sendCancelRequest(feature, prevMixed);
                 } catch (Exception e) {
                     throw new RuntimeException(e);
                 }
-                if (requestSent) {
-                    if (cancelMixRequest) {
-                        MixedWeight prevMixed = mixedRequests_o.get(feature);
-                        if (prevMixed == null) {
-                            prevMixed = new WeightWithDelta(weight, deltaUpdates);
-                            mixedRequests_o.put(feature, prevMixed);
-                        } else {
-                            try {
-                                handler.sendCancelRequest(feature, prevMixed);
-                            } catch (Exception e) {
-                                throw new RuntimeException(e);
-                            }
-                            prevMixed.setWeight(weight);
-                            prevMixed.setDeltaUpdates(deltaUpdates);
-                        }
-                    }
-                    value.setDeltaUpdates(BYTE0);
+                prevMixed.setWeight(weight);
+                if (hasCovar) {
+                    prevMixed.setCovar(covar);
+                } else {
+                    prevMixed.setDeltaUpdates(deltaUpdates);
                 }
             }
         }
+        return requestSent;
     }
 
     /**
@@ -18,12 +18,18 @@
  */
 package hivemall.model;
 
+import java.nio.charset.StandardCharsets;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.apache.hadoop.io.Text;
 
 public final class FeatureValue {
+    /** The maximum number of significant digits that a double represents exactly */
+    private static final int MAX_EXACT_DIGITS = 15;
+    private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+            1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
 
     private/* final */Object feature;
     private/* final */double value;
@@ -53,6 +59,10 @@ public final class FeatureValue {
         return (float) value;
     }
 
+    public void setFeature(Object feature) {
+        this.feature = feature;
+    }
+
     public void setValue(float value) {
         this.value = value;
     }
@@ -92,6 +102,85 @@ public final class FeatureValue {
         return new FeatureValue(feature, weight);
     }
 
+    /**
+     * Parses "feature[:value]" in the bytes of the text without decoding them into a String. The
+     * feature is set to the probe as a new {@link Text}.
+     */
+    public static void parse(@Nonnull final Text t, @Nonnull final FeatureValue probe)
+            throws IllegalArgumentException {
+        final byte[] bytes = t.getBytes();
+        final int length = t.getLength();
+
+        int pos = -1;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == ':') { // never appears in multi-byte UTF-8 sequences
+                pos = i;
+                break;
+            }
+        }
+        if (pos == 0) {
+            throw new IllegalArgumentException("Invalid feature value representation: " + t);
+        }
+
+        final Text feature = new Text();
+        if (pos > 0) {
+            feature.set(bytes, 0, pos);
+            probe.value = parseDouble(bytes, pos + 1, length);
+        } else {
+            feature.set(bytes, 0, length);
+            probe.value = 1.d;
+        }
+        probe.feature = feature;
+    }
+
+    /**
+     * Parses plain decimals such as "-0.125" with up to 15 significant digits directly, where
+     * both the digits and the power of ten are exact in double, and thus the quotient is rounded
+     * correctly as {@link Double#parseDouble(String)} does. Other forms fall back to it.
+     */
+    public static double parseDouble(@Nonnull final byte[] bytes, final int start,
+            final int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = (bytes[i] == '-');
+            i++;
+        }
+        long digits = 0L;
+        int numDigits = 0, scale = 0;
+        boolean seenDigit = false, seenPoint = false;
+        for (; i < end; i++) {
+            final byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                seenDigit = true;
+                if (digits != 0L || b != '0') {
+                    if (++numDigits > MAX_EXACT_DIGITS) {
+                        return parseDoubleSlow(bytes, start, end);
+                    }
+                    digits = digits * 10L + (b - '0');
+                }
+                if (seenPoint) {
+                    scale++;
+                }
+            } else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                return parseDoubleSlow(bytes, start, end); // exponent, NaN, etc.
+            }
+        }
+        if (!seenDigit || scale >= POW10.length) {
+            return parseDoubleSlow(bytes, start, end);
+        }
+        double d = (scale == 0) ? digits : digits / POW10[scale];
+        return negative ? -d : d;
+    }
+
+    private static double parseDoubleSlow(@Nonnull final byte[] bytes, final int start,
+            final int end) {
+        String s = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+        return Double.parseDouble(s);
+    }
+
     @Nonnull
     public static FeatureValue parseFeatureAsString(@Nonnull final Text t) {
         String s = t.toString();
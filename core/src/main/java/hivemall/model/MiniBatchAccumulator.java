@@ -0,0 +1,279 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.model;
+
+import hivemall.utils.math.Primes;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Accumulates the weight deltas of a mini-batch in an open-addressing hash table with double
+ * hashing. The deltas of each feature are averaged and added to the model by {@link #flush}, which
+ * resets the table for the next mini-batch without reallocating it.
+ *
+ * Integer features are flushed in ascending order so that writes to the model are sequential.
+ */
+public final class MiniBatchAccumulator {
+
+    private static final float LOAD_FACTOR = 0.7f;
+    private static final float GROW_FACTOR = 2.0f;
+
+    /** null for free slots */
+    private Object[] keys;
+    private int[] hashes;
+    private double[] sums;
+    private int[] counts;
+
+    /** The slots in use, in the order of insertion */
+    private int[] slots;
+    private int used;
+    private int threshold;
+
+    private boolean integerKeys;
+    /** Buffer to sort integer features */
+    private long[] sortKeys;
+
+    public MiniBatchAccumulator() {
+        this(1024);
+    }
+
+    public MiniBatchAccumulator(@Nonnegative int size) {
+        int capacity = Primes.findLeastPrimeNumber(Math.max(size, 3));
+        this.keys = new Object[capacity];
+        this.hashes = new int[capacity];
+        this.sums = new double[capacity];
+        this.counts = new int[capacity];
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+        this.slots = new int[threshold + 1];
+        this.used = 0;
+        this.integerKeys = true;
+        this.sortKeys = null;
+    }
+
+    public int size() {
+        return used;
+    }
+
+    public boolean isEmpty() {
+        return used == 0;
+    }
+
+    public void add(@Nonnull final Object feature, final float delta) {
+        final boolean intKey = PrimitiveSparseModel.isIntegerFeature(feature);
+        final int hash = hash(feature, intKey);
+        final int i = findSlot(feature, hash);
+        if (keys[i] != null) {
+            sums[i] += delta;
+            counts[i]++;
+            return;
+        }
+        keys[i] = feature;
+        hashes[i] = hash;
+        sums[i] = delta;
+        counts[i] = 1;
+        slots[used++] = i;
+        if (!intKey) {
+            this.integerKeys = false;
+        }
+        if (used > threshold) {
+            rehash(Math.round(keys.length * GROW_FACTOR));
+        }
+    }
+
+    /**
+     * @return the averaged delta of the feature or 0 if not accumulated
+     */
+    public float get(@Nonnull final Object feature) {
+        boolean intKey = PrimitiveSparseModel.isIntegerFeature(feature);
+        int i = findSlot(feature, hash(feature, intKey));
+        if (keys[i] == null) {
+            return 0.f;
+        }
+        return (float) (sums[i] / counts[i]);
+    }
+
+    private static int hash(@Nonnull final Object feature, final boolean intKey) {
+        if (intKey) {
+            return PrimitiveSparseModel.keyHash(PrimitiveSparseModel.toKey(feature));
+        } else {
+            return PrimitiveSparseModel.keyHash(feature.hashCode());
+        }
+    }
+
+    /**
+     * @return the slot of the feature or the free slot to put it
+     */
+    private int findSlot(@Nonnull final Object feature, final int hash) {
+        final Object[] keys = this.keys;
+        final int length = keys.length;
+        int i = hash % length;
+        Object k = keys[i];
+        if (k == null || (hashes[i] == hash && k.equals(feature))) {
+            return i;
+        }
+        final int decr = 1 + (hash % (length - 2));
+        for (;;) {
+            i -= decr;
+            if (i < 0) {
+                i += length;
+            }
+            k = keys[i];
+            if (k == null || (hashes[i] == hash && k.equals(feature))) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * Adds the averaged deltas to the weights of the model and clears this accumulator.
+     */
+    public void flush(@Nonnull final PredictionModel model) {
+        if (used == 0) {
+            return;
+        }
+        if (integerKeys && used > 1) {
+            sortSlots();
+        }
+        for (int n = 0; n < used; n++) {
+            final int i = slots[n];
+            final Object x = keys[i];
+            final float delta = (float) (sums[i] / counts[i]);
+
+            float old_w = model.getWeight(x);
+            float new_w = old_w + delta;
+            model.set(x, new WeightValue(new_w));
+        }
+        clear();
+    }
+
+    public void clear() {
+        final Object[] keys = this.keys;
+        for (int n = 0; n < used; n++) {
+            keys[slots[n]] = null;
+        }
+        this.used = 0;
+        this.integerKeys = true;
+    }
+
+    private void sortSlots() {
+        long[] buf = sortKeys;
+        if (buf == null || buf.length < used) {
+            buf = new long[slots.length];
+            this.sortKeys = buf;
+        }
+        for (int n = 0; n < used; n++) {
+            buf[n] = PrimitiveSparseModel.toKey(keys[slots[n]]);
+        }
+        sort(buf, slots, 0, used - 1);
+    }
+
+    /**
+     * Sorts keys in ascending order along with slots.
+     */
+    private static void sort(final long[] keys, final int[] slots, int lo, int hi) {
+        while (hi - lo > 16) {
+            final long pivot = median(keys[lo], keys[(lo + hi) >>> 1], keys[hi]);
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, slots, i++, j--);
+                }
+            }
+            // recurse into the smaller partition to bound the stack depth
+            if (j - lo < hi - i) {
+                sort(keys, slots, lo, j);
+                lo = i;
+            } else {
+                sort(keys, slots, i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {// insertion sort
+            for (int j = i; j > lo && keys[j - 1] > keys[j]; j--) {
+                swap(keys, slots, j - 1, j);
+            }
+        }
+    }
+
+    private static long median(final long a, final long b, final long c) {
+        if (a < b) {
+            return b < c ? b : (a < c ? c : a);
+        } else {
+            return a < c ? a : (b < c ? c : b);
+        }
+    }
+
+    private static void swap(final long[] keys, final int[] slots, final int i, final int j) {
+        long k = keys[i];
+        keys[i] = keys[j];
+        keys[j] = k;
+        int s = slots[i];
+        slots[i] = slots[j];
+        slots[j] = s;
+    }
+
+    private void rehash(final int newCapacity) {
+        final int capacity = Primes.findLeastPrimeNumber(newCapacity);
+        final Object[] oldKeys = keys;
+        final int[] oldHashes = hashes;
+        final double[] oldSums = sums;
+        final int[] oldCounts = counts;
+        final int[] oldSlots = slots;
+
+        final Object[] newKeys = new Object[capacity];
+        final int[] newHashes = new int[capacity];
+        final double[] newSums = new double[capacity];
+        final int[] newCounts = new int[capacity];
+        final int newThreshold = (int) (capacity * LOAD_FACTOR);
+        final int[] newSlots = new int[newThreshold + 1];
+        for (int n = 0; n < used; n++) {
+            final int old = oldSlots[n];
+            final int hash = oldHashes[old];
+            int i = hash % capacity;
+            if (newKeys[i] != null) {
+                final int decr = 1 + (hash % (capacity - 2));
+                do {
+                    i -= decr;
+                    if (i < 0) {
+                        i += capacity;
+                    }
+                } while (newKeys[i] != null);
+            }
+            newKeys[i] = oldKeys[old];
+            newHashes[i] = hash;
+            newSums[i] = oldSums[old];
+            newCounts[i] = oldCounts[old];
+            newSlots[n] = i;
+        }
+        this.keys = newKeys;
+        this.hashes = newHashes;
+        this.sums = newSums;
+        this.counts = newCounts;
+        this.slots = newSlots;
+        this.threshold = newThreshold;
+    }
+
+}
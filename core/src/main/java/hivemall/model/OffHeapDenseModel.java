@@ -0,0 +1,604 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.model;
+
+import hivemall.model.WeightValue.WeightValueParamsF1;
+import hivemall.model.WeightValue.WeightValueParamsF2;
+import hivemall.model.WeightValue.WeightValueWithCovar;
+import hivemall.utils.collections.IMapIterator;
+import hivemall.utils.hadoop.HiveUtils;
+import hivemall.utils.io.IOUtils;
+import hivemall.utils.io.NIOUtils;
+import hivemall.utils.lang.Copyable;
+import hivemall.utils.lang.StringUtils;
+import hivemall.utils.math.MathUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A dense model holding its values in direct buffers out of the Java heap, so that a large model
+ * neither requires a large heap nor adds GC pressure.
+ *
+ * Note that direct buffers are limited by -XX:MaxDirectMemorySize, which defaults to the maximum
+ * heap size (-Xmx). A buffer exceeding the available direct memory is instead backed by a
+ * temporary file mapped into memory, which is not limited by the JVM but may be written back to
+ * the disk by the OS. Buffers replaced on expanding the model are freed immediately.
+ *
+ * A model saved by {@link #save(File, String)} can be mapped by {@link #map(File)}. The file is
+ * mapped copy-on-write, and thus tasks on the same node share the physical pages of the model until
+ * they update it. The file records the source the model was built from, so that a stale file can
+ * be told from the expected one through {@link #getSource()}.
+ */
+public final class OffHeapDenseModel extends AbstractPredictionModel {
+    private static final Log logger = LogFactory.getLog(OffHeapDenseModel.class);
+
+    private static final int MAGIC = 0x484d444d; // "HMDM"
+    private static final int VERSION = 2;
+    /** Bytes of the header before the source, which is followed by the values aligned to 8 bytes */
+    private static final int HEADER_BYTES = 20;
+    /** The maximum number of elements in a buffer */
+    private static final int MAX_SIZE = Integer.MAX_VALUE / 4;
+
+    private int size;
+    private ByteBuffer weights;
+    @Nullable
+    private ByteBuffer covars;
+
+    // optional values for adagrad
+    @Nullable
+    private ByteBuffer sum_of_squared_gradients;
+    // optional value for adadelta
+    @Nullable
+    private ByteBuffer sum_of_squared_delta_x;
+    // optional value for adagrad+rda
+    @Nullable
+    private ByteBuffer sum_of_gradients;
+
+    // optional value for MIX
+    @Nullable
+    private ByteBuffer clocks;
+    @Nullable
+    private ByteBuffer deltaUpdates;
+
+    /** Whether weights and covariances are mapped from a file */
+    private boolean mapped;
+    /** The source recorded in the mapped file if any */
+    @Nullable
+    private String source;
+
+    public OffHeapDenseModel(int ndims) {
+        this(ndims, false);
+    }
+
+    public OffHeapDenseModel(int ndims, boolean withCovar) {
+        super();
+        int size = ndims + 1;
+        if (size <= 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Invalid ndims: " + ndims);
+        }
+        this.size = size;
+        this.weights = allocate(size, 4);
+        if (withCovar) {
+            ByteBuffer covars = allocate(size, 4);
+            fill(covars, 0, size, 1.f);
+            this.covars = covars;
+        } else {
+            this.covars = null;
+        }
+        this.sum_of_squared_gradients = null;
+        this.sum_of_squared_delta_x = null;
+        this.sum_of_gradients = null;
+        this.clocks = null;
+        this.deltaUpdates = null;
+        this.mapped = false;
+        this.source = null;
+    }
+
+    private OffHeapDenseModel(int size, @Nonnull ByteBuffer weights, @Nullable ByteBuffer covars,
+            @Nonnull String source) {
+        super();
+        this.size = size;
+        this.weights = weights;
+        this.covars = covars;
+        this.mapped = true;
+        this.source = source;
+    }
+
+    @Override
+    protected boolean isDenseModel() {
+        return true;
+    }
+
+    /**
+     * @return true if the weights are still shared with the file given to {@link #map(File)}
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * @return the source given to {@link #save(File, String)} of the file mapped if any
+     */
+    @Nullable
+    public String getSource() {
+        return source;
+    }
+
+    @Override
+    public boolean hasCovariance() {
+        return covars != null;
+    }
+
+    @Override
+    public void configureParams(boolean sum_of_squared_gradients, boolean sum_of_squared_delta_x,
+            boolean sum_of_gradients) {
+        if (sum_of_squared_gradients) {
+            this.sum_of_squared_gradients = allocate(size, 4);
+        }
+        if (sum_of_squared_delta_x) {
+            this.sum_of_squared_delta_x = allocate(size, 4);
+        }
+        if (sum_of_gradients) {
+            this.sum_of_gradients = allocate(size, 4);
+        }
+    }
+
+    @Override
+    public void configureClock() {
+        if (clocks == null) {
+            this.clocks = allocate(size, 2);
+            this.deltaUpdates = allocate(size, 1);
+        }
+    }
+
+    @Override
+    public boolean hasClock() {
+        return clocks != null;
+    }
+
+    @Override
+    public void resetDeltaUpdates(int feature) {
+        deltaUpdates.put(feature, (byte) 0);
+    }
+
+    private void ensureCapacity(final int index) {
+        if (index >= size) {
+            int bits = MathUtils.bitsRequired(index);
+            int newSize = (1 << bits) + 1;
+            if (newSize <= 0 || newSize > MAX_SIZE) {
+                throw new IllegalArgumentException("Feature index out of range: " + index);
+            }
+            int oldSize = size;
+            logger.info("Expands off-heap buffers from " + oldSize + " to " + newSize + " ("
+                    + bits + " bits)");
+            this.size = newSize;
+            this.weights = expand(weights, newSize, 4);
+            if (covars != null) {
+                this.covars = expand(covars, newSize, 4);
+                fill(covars, oldSize, newSize, 1.f);
+            }
+            if (sum_of_squared_gradients != null) {
+                this.sum_of_squared_gradients = expand(sum_of_squared_gradients, newSize, 4);
+            }
+            if (sum_of_squared_delta_x != null) {
+                this.sum_of_squared_delta_x = expand(sum_of_squared_delta_x, newSize, 4);
+            }
+            if (sum_of_gradients != null) {
+                this.sum_of_gradients = expand(sum_of_gradients, newSize, 4);
+            }
+            if (clocks != null) {
+                this.clocks = expand(clocks, newSize, 2);
+                this.deltaUpdates = expand(deltaUpdates, newSize, 1);
+            }
+            this.mapped = false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T extends IWeightValue> T get(Object feature) {
+        final int i = HiveUtils.parseInt(feature);
+        if (i >= size) {
+            return null;
+        }
+        final int offset = i << 2;
+        if (sum_of_squared_gradients != null) {
+            if (sum_of_squared_delta_x != null) {
+                return (T) new WeightValueParamsF2(weights.getFloat(offset),
+                    sum_of_squared_gradients.getFloat(offset),
+                    sum_of_squared_delta_x.getFloat(offset));
+            } else if (sum_of_gradients != null) {
+                return (T) new WeightValueParamsF2(weights.getFloat(offset),
+                    sum_of_squared_gradients.getFloat(offset), sum_of_gradients.getFloat(offset));
+            } else {
+                return (T) new WeightValueParamsF1(weights.getFloat(offset),
+                    sum_of_squared_gradients.getFloat(offset));
+            }
+        } else if (covars != null) {
+            return (T) new WeightValueWithCovar(weights.getFloat(offset), covars.getFloat(offset));
+        } else {
+            return (T) new WeightValue(weights.getFloat(offset));
+        }
+    }
+
+    @Override
+    public <T extends IWeightValue> void set(Object feature, T value) {
+        int i = HiveUtils.parseInt(feature);
+        ensureCapacity(i);
+        final int offset = i << 2;
+        float weight = value.get();
+        weights.putFloat(offset, weight);
+        float covar = 1.f;
+        boolean hasCovar = value.hasCovariance();
+        if (hasCovar) {
+            covar = value.getCovariance();
+            covars.putFloat(offset, covar);
+        }
+        if (sum_of_squared_gradients != null) {
+            sum_of_squared_gradients.putFloat(offset, value.getSumOfSquaredGradients());
+        }
+        if (sum_of_squared_delta_x != null) {
+            sum_of_squared_delta_x.putFloat(offset, value.getSumOfSquaredDeltaX());
+        }
+        if (sum_of_gradients != null) {
+            sum_of_gradients.putFloat(offset, value.getSumOfGradients());
+        }
+        short clock = 0;
+        int delta = 0;
+        if (clocks != null && value.isTouched()) {
+            clock = (short) (clocks.getShort(i << 1) + 1);
+            clocks.putShort(i << 1, clock);
+            delta = deltaUpdates.get(i) + 1;
+            assert (delta > 0) : delta;
+            deltaUpdates.put(i, (byte) delta);
+        }
+
+        onUpdate(i, weight, covar, clock, delta, hasCovar);
+    }
+
+    @Override
+    public void delete(@Nonnull Object feature) {
+        final int i = HiveUtils.parseInt(feature);
+        if (i >= size) {
+            return;
+        }
+        final int offset = i << 2;
+        weights.putFloat(offset, 0.f);
+        if (covars != null) {
+            covars.putFloat(offset, 1.f);
+        }
+        if (sum_of_squared_gradients != null) {
+            sum_of_squared_gradients.putFloat(offset, 0.f);
+        }
+        if (sum_of_squared_delta_x != null) {
+            sum_of_squared_delta_x.putFloat(offset, 0.f);
+        }
+        if (sum_of_gradients != null) {
+            sum_of_gradients.putFloat(offset, 0.f);
+        }
+        // avoid clock/delta
+    }
+
+    @Override
+    public float getWeight(Object feature) {
+        int i = HiveUtils.parseInt(feature);
+        if (i >= size) {
+            return 0f;
+        }
+        return weights.getFloat(i << 2);
+    }
+
+    @Override
+    public float getCovariance(Object feature) {
+        int i = HiveUtils.parseInt(feature);
+        if (i >= size) {
+            return 1f;
+        }
+        return covars.getFloat(i << 2);
+    }
+
+    @Override
+    protected void _set(Object feature, float weight, short clock) {
+        int i = ((Integer) feature).intValue();
+        ensureCapacity(i);
+        weights.putFloat(i << 2, weight);
+        clocks.putShort(i << 1, clock);
+        deltaUpdates.put(i, (byte) 0);
+    }
+
+    @Override
+    protected void _set(Object feature, float weight, float covar, short clock) {
+        int i = ((Integer) feature).intValue();
+        ensureCapacity(i);
+        weights.putFloat(i << 2, weight);
+        covars.putFloat(i << 2, covar);
+        clocks.putShort(i << 1, clock);
+        deltaUpdates.put(i, (byte) 0);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object feature) {
+        int i = HiveUtils.parseInt(feature);
+        if (i >= size) {
+            return false;
+        }
+        float w = weights.getFloat(i << 2);
+        return w != 0.f;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <K, V extends IWeightValue> IMapIterator<K, V> entries() {
+        return (IMapIterator<K, V>) new Itr();
+    }
+
+    /**
+     * Saves the weights and covariances to the file in the native byte order. The file is
+     * replaced atomically, so that tasks mapping the file never see a partial one.
+     * 
+     * @param source identifies what the model is built from, e.g., the options and the model file
+     *        loaded
+     */
+    public void save(@Nonnull final File file, @Nonnull final String source) throws IOException {
+        final byte[] sourceBytes = StringUtils.getBytes(source);
+        final int offset = getOffset(sourceBytes.length);
+        final File dir = file.getAbsoluteFile().getParentFile();
+        final File tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(tmpFile, "rw");
+            final FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(offset);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(size);
+            header.put((byte) (covars == null ? 0 : 1));
+            header.put((byte) (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 0 : 1));
+            header.putShort((short) 0); // reserved
+            header.putInt(sourceBytes.length);
+            header.put(sourceBytes);
+            header.clear();
+            long position = NIOUtils.writeFully(channel, header, 0L);
+            position += NIOUtils.writeFully(channel, region(weights, size), position);
+            if (covars != null) {
+                NIOUtils.writeFully(channel, region(covars, size), position);
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(raf);
+            tmpFile.delete();
+            throw e;
+        }
+        raf.close();
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps a model saved by {@link #save(File)}. Updates to the returned model are private to
+     * this process, and never written back to the file.
+     */
+    @Nonnull
+    public static OffHeapDenseModel map(@Nonnull final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw"); // required by MapMode.PRIVATE
+        try {
+            final FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException("Not a dense model file: " + file);
+            }
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            NIOUtils.readFully(channel, header, 0L);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a dense model file: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version + ": " + file);
+            }
+            final int size = header.getInt();
+            final boolean hasCovar = header.get() != 0;
+            final ByteOrder order = (header.get() == 0) ? ByteOrder.BIG_ENDIAN
+                    : ByteOrder.LITTLE_ENDIAN;
+            if (order != ByteOrder.nativeOrder()) {
+                throw new IOException("Unexpected byte order " + order + ": " + file);
+            }
+            header.getShort(); // reserved
+            final int sourceLength = header.getInt();
+            final long bytes = size * 4L;
+            if (size <= 0 || size > MAX_SIZE || sourceLength < 0 || sourceLength > MAX_SIZE) {
+                throw new IOException("Corrupted dense model file: " + file);
+            }
+            final int offset = getOffset(sourceLength);
+            final long expected = offset + (hasCovar ? bytes * 2L : bytes);
+            if (channel.size() != expected) {
+                throw new IOException("Corrupted dense model file: " + file);
+            }
+            final ByteBuffer sourceBuf = ByteBuffer.allocate(sourceLength);
+            NIOUtils.readFully(channel, sourceBuf, HEADER_BYTES);
+            final String source = StringUtils.toString(sourceBuf.array());
+            ByteBuffer weights = channel.map(MapMode.PRIVATE, offset, bytes).order(order);
+            ByteBuffer covars = hasCovar ? channel.map(MapMode.PRIVATE, offset + bytes,
+                bytes).order(order) : null;
+            logger.info("Mapped a dense model of " + size + " dimensions"
+                    + (hasCovar ? " w/ covariances" : "") + " from " + file);
+            return new OffHeapDenseModel(size, weights, covars, source);
+        } finally {
+            raf.close(); // mappings remain valid after closing the channel
+        }
+    }
+
+    /**
+     * @return the position of the values following a source of the given bytes
+     */
+    private static int getOffset(@Nonnegative final int sourceBytes) {
+        return (HEADER_BYTES + sourceBytes + 7) & ~7;
+    }
+
+    @Nonnull
+    private static ByteBuffer region(@Nonnull final ByteBuffer src, @Nonnegative final int size) {
+        ByteBuffer dup = src.duplicate();
+        dup.clear().limit(size << 2);
+        return dup;
+    }
+
+    @Nonnull
+    private static ByteBuffer allocate(@Nonnegative final int size, @Nonnegative final int bytes) {
+        final int capacity = size * bytes;
+        if (capacity > NIOUtils.getAvailableDirectMemory()) {
+            return allocateMapped(capacity);
+        }
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Allocates a buffer backed by a temporary file, which is deleted while it is still mapped.
+     */
+    @Nonnull
+    private static ByteBuffer allocateMapped(@Nonnegative final int capacity) {
+        File file = null;
+        RandomAccessFile raf = null;
+        try {
+            file = File.createTempFile("hivemall_offheap", ".bin");
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(capacity);
+            ByteBuffer buf = raf.getChannel().map(MapMode.READ_WRITE, 0L, capacity);
+            logger.info("Mapped a temporary file of " + capacity
+                    + " bytes for an off-heap buffer as it exceeds the available direct memory: "
+                    + file.getAbsolutePath());
+            return buf.order(ByteOrder.nativeOrder());
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to map a temporary file of " + capacity
+                    + " bytes", e);
+        } finally {
+            IOUtils.closeQuietly(raf); // the mapping remains valid after closing the channel
+            if (file != null && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Copies the buffer into a larger one and frees the source. Direct buffers cannot be resized
+     * in place, but the copy is done out of the Java heap. The model is expanded by a single
+     * thread, e.g., holding all the locks of {@link StripedModelWrapper}, and thus no other thread
+     * accesses the source afterwards.
+     */
+    @Nonnull
+    private static ByteBuffer expand(@Nonnull final ByteBuffer src,
+            @Nonnegative final int newSize, @Nonnegative final int bytes) {
+        ByteBuffer dst = allocate(newSize, bytes);
+        ByteBuffer dup = src.duplicate();
+        dup.clear();
+        dst.put(dup);
+        dst.clear();
+        NIOUtils.release(src);
+        return dst;
+    }
+
+    private static void fill(@Nonnull final ByteBuffer buf, final int from, final int to,
+            final float value) {
+        for (int i = from; i < to; i++) {
+            buf.putFloat(i << 2, value);
+        }
+    }
+
+    private final class Itr implements IMapIterator<Number, IWeightValue> {
+
+        private int cursor;
+        private final WeightValueWithCovar tmpWeight;
+
+        private Itr() {
+            this.cursor = -1;
+            this.tmpWeight = new WeightValueWithCovar();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor < size;
+        }
+
+        @Override
+        public int next() {
+            ++cursor;
+            if (!hasNext()) {
+                return -1;
+            }
+            return cursor;
+        }
+
+        @Override
+        public Integer getKey() {
+            return cursor;
+        }
+
+        @Override
+        public IWeightValue getValue() {
+            final int offset = cursor << 2;
+            if (covars == null) {
+                float w = weights.getFloat(offset);
+                WeightValue v = new WeightValue(w);
+                v.setTouched(w != 0f);
+                return v;
+            } else {
+                float w = weights.getFloat(offset);
+                float cov = covars.getFloat(offset);
+                WeightValueWithCovar v = new WeightValueWithCovar(w, cov);
+                v.setTouched(w != 0.f || cov != 1.f);
+                return v;
+            }
+        }
+
+        @Override
+        public <T extends Copyable<IWeightValue>> void getValue(T probe) {
+            final int offset = cursor << 2;
+            float w = weights.getFloat(offset);
+            tmpWeight.value = w;
+            float cov = 1.f;
+            if (covars != null) {
+                cov = covars.getFloat(offset);
+                tmpWeight.setCovariance(cov);
+            }
+            tmpWeight.setTouched(w != 0.f || cov != 1.f);
+            probe.copyFrom(tmpWeight);
+        }
+
+    }
+
+}
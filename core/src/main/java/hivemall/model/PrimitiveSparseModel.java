@@ -0,0 +1,535 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.model;
+
+import hivemall.model.WeightValue.WeightValueParamsF1;
+import hivemall.model.WeightValue.WeightValueParamsF2;
+import hivemall.model.WeightValue.WeightValueWithCovar;
+import hivemall.utils.collections.IMapIterator;
+import hivemall.utils.lang.Copyable;
+import hivemall.utils.math.Primes;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+
+/**
+ * A sparse model for int or bigint features, such as hashed features. Keys and values are held in
+ * primitive arrays of an open-addressing hash table with double hashing, and thus a feature costs
+ * neither a boxed key nor an {@link IWeightValue} object. {@link #getWeight(Object)},
+ * {@link #set(Object, IWeightValue)} and {@link #set(Object, float, float, short)} allocate
+ * nothing unless mix requests are sent.
+ */
+public final class PrimitiveSparseModel extends AbstractPredictionModel {
+    private static final Log logger = LogFactory.getLog(PrimitiveSparseModel.class);
+
+    private static final byte FREE = 0;
+    private static final byte FULL = 1;
+    private static final byte REMOVED = 2;
+    /** FULL and updated in training */
+    private static final byte TOUCHED = 3;
+
+    private static final float LOAD_FACTOR = 0.7f;
+    private static final float GROW_FACTOR = 2.0f;
+
+    // the types of keys to be returned by entries()
+    private static final byte UNKNOWN_KEY = 0;
+    private static final byte INTEGER_KEY = 1;
+    private static final byte LONG_KEY = 2;
+    private static final byte INT_WRITABLE_KEY = 3;
+    private static final byte LONG_WRITABLE_KEY = 4;
+
+    private final boolean hasCovar;
+    private byte keyType;
+
+    private int used;
+    private int removed;
+    private int threshold;
+
+    private long[] keys;
+    private byte[] states;
+    private float[] weights;
+    @Nullable
+    private float[] covars;
+
+    // optional values for adagrad
+    @Nullable
+    private float[] sum_of_squared_gradients;
+    // optional value for adadelta
+    @Nullable
+    private float[] sum_of_squared_delta_x;
+    // optional value for adagrad+rda
+    @Nullable
+    private float[] sum_of_gradients;
+
+    // optional value for MIX
+    @Nullable
+    private short[] clocks;
+    @Nullable
+    private byte[] deltaUpdates;
+
+    public PrimitiveSparseModel(int size, boolean hasCovar) {
+        super();
+        this.hasCovar = hasCovar;
+        this.keyType = UNKNOWN_KEY;
+        int capacity = Primes.findLeastPrimeNumber(Math.max(3, Math.round(size / LOAD_FACTOR)));
+        this.keys = new long[capacity];
+        this.states = new byte[capacity];
+        this.weights = new float[capacity];
+        if (hasCovar) {
+            this.covars = new float[capacity];
+        }
+        this.used = 0;
+        this.removed = 0;
+        this.threshold = Math.round(capacity * LOAD_FACTOR);
+    }
+
+    @Override
+    protected boolean isDenseModel() {
+        return false;
+    }
+
+    @Override
+    public boolean hasCovariance() {
+        return hasCovar;
+    }
+
+    @Override
+    public void configureParams(boolean sum_of_squared_gradients, boolean sum_of_squared_delta_x,
+            boolean sum_of_gradients) {
+        final int capacity = keys.length;
+        if (sum_of_squared_gradients) {
+            this.sum_of_squared_gradients = new float[capacity];
+        }
+        if (sum_of_squared_delta_x) {
+            this.sum_of_squared_delta_x = new float[capacity];
+        }
+        if (sum_of_gradients) {
+            this.sum_of_gradients = new float[capacity];
+        }
+    }
+
+    @Override
+    public void configureClock() {
+        if (clocks == null) {
+            this.clocks = new short[keys.length];
+            this.deltaUpdates = new byte[keys.length];
+        }
+    }
+
+    @Override
+    public boolean hasClock() {
+        return clocks != null;
+    }
+
+    /**
+     * @return true if the feature can be held by this model
+     */
+    public static boolean isIntegerFeature(@Nonnull final Object feature) {
+        return feature instanceof Integer || feature instanceof Long
+                || feature instanceof IntWritable || feature instanceof LongWritable;
+    }
+
+    static long toKey(@Nonnull final Object feature) {
+        if (feature instanceof Integer) {
+            return ((Integer) feature).intValue();
+        } else if (feature instanceof IntWritable) {
+            return ((IntWritable) feature).get();
+        } else if (feature instanceof Long) {
+            return ((Long) feature).longValue();
+        } else if (feature instanceof LongWritable) {
+            return ((LongWritable) feature).get();
+        }
+        throw new IllegalArgumentException("Unexpected feature type: "
+                + feature.getClass().getName());
+    }
+
+    private void detectKeyType(@Nonnull final Object feature) {
+        if (feature instanceof Integer) {
+            this.keyType = INTEGER_KEY;
+        } else if (feature instanceof IntWritable) {
+            this.keyType = INT_WRITABLE_KEY;
+        } else if (feature instanceof Long) {
+            this.keyType = LONG_KEY;
+        } else if (feature instanceof LongWritable) {
+            this.keyType = LONG_WRITABLE_KEY;
+        }
+    }
+
+    private int find(final long key) {
+        final long[] keys = this.keys;
+        final byte[] states = this.states;
+        final int length = keys.length;
+
+        final int hash = keyHash(key);
+        int i = hash % length;
+        if (states[i] == FREE) {
+            return -1;
+        }
+        if (states[i] != REMOVED && keys[i] == key) {
+            return i;
+        }
+        final int decr = 1 + (hash % (length - 2));
+        for (;;) {
+            i -= decr;
+            if (i < 0) {
+                i += length;
+            }
+            if (states[i] == FREE) {
+                return -1;
+            }
+            if (states[i] != REMOVED && keys[i] == key) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * @return the slot index of the key that is newly allocated if absent
+     */
+    private int getOrAdd(final long key) {
+        int i = find(key);
+        if (i >= 0) {
+            return i;
+        }
+        if ((used + removed + 1) >= threshold) {
+            int newCapacity = Math.round((used + 1) * GROW_FACTOR / LOAD_FACTOR);
+            rehash(Primes.findLeastPrimeNumber(Math.max(3, newCapacity)));
+        }
+        i = findFreeSlot(keys, states, key);
+        if (states[i] == REMOVED) {
+            removed--;
+        }
+        keys[i] = key;
+        states[i] = FULL;
+        weights[i] = 0.f;
+        if (covars != null) {
+            covars[i] = 1.f;
+        }
+        if (sum_of_squared_gradients != null) {
+            sum_of_squared_gradients[i] = 0.f;
+        }
+        if (sum_of_squared_delta_x != null) {
+            sum_of_squared_delta_x[i] = 0.f;
+        }
+        if (sum_of_gradients != null) {
+            sum_of_gradients[i] = 0.f;
+        }
+        if (clocks != null) {
+            clocks[i] = 0;
+            deltaUpdates[i] = 0;
+        }
+        used++;
+        return i;
+    }
+
+    private static int findFreeSlot(final long[] keys, final byte[] states, final long key) {
+        final int length = keys.length;
+        final int hash = keyHash(key);
+        int i = hash % length;
+        if (states[i] == FREE || states[i] == REMOVED) {
+            return i;
+        }
+        final int decr = 1 + (hash % (length - 2));
+        for (;;) {
+            i -= decr;
+            if (i < 0) {
+                i += length;
+            }
+            if (states[i] == FREE || states[i] == REMOVED) {
+                return i;
+            }
+        }
+    }
+
+    private void rehash(final int newCapacity) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Expands internal arrays from " + keys.length + " to " + newCapacity);
+        }
+        final long[] oldKeys = keys;
+        final byte[] oldStates = states;
+        final float[] oldWeights = weights;
+        final float[] oldCovars = covars;
+        final float[] oldSumOfSquaredGradients = sum_of_squared_gradients;
+        final float[] oldSumOfSquaredDeltaX = sum_of_squared_delta_x;
+        final float[] oldSumOfGradients = sum_of_gradients;
+        final short[] oldClocks = clocks;
+        final byte[] oldDeltaUpdates = deltaUpdates;
+
+        this.keys = new long[newCapacity];
+        this.states = new byte[newCapacity];
+        this.weights = new float[newCapacity];
+        this.covars = (oldCovars == null) ? null : new float[newCapacity];
+        this.sum_of_squared_gradients = (oldSumOfSquaredGradients == null) ? null
+                : new float[newCapacity];
+        this.sum_of_squared_delta_x = (oldSumOfSquaredDeltaX == null) ? null
+                : new float[newCapacity];
+        this.sum_of_gradients = (oldSumOfGradients == null) ? null : new float[newCapacity];
+        this.clocks = (oldClocks == null) ? null : new short[newCapacity];
+        this.deltaUpdates = (oldDeltaUpdates == null) ? null : new byte[newCapacity];
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldStates[i] != FULL && oldStates[i] != TOUCHED) {
+                continue;
+            }
+            long k = oldKeys[i];
+            int j = findFreeSlot(keys, states, k);
+            keys[j] = k;
+            states[j] = oldStates[i];
+            weights[j] = oldWeights[i];
+            if (oldCovars != null) {
+                covars[j] = oldCovars[i];
+            }
+            if (oldSumOfSquaredGradients != null) {
+                sum_of_squared_gradients[j] = oldSumOfSquaredGradients[i];
+            }
+            if (oldSumOfSquaredDeltaX != null) {
+                sum_of_squared_delta_x[j] = oldSumOfSquaredDeltaX[i];
+            }
+            if (oldSumOfGradients != null) {
+                sum_of_gradients[j] = oldSumOfGradients[i];
+            }
+            if (oldClocks != null) {
+                clocks[j] = oldClocks[i];
+                deltaUpdates[j] = oldDeltaUpdates[i];
+            }
+        }
+        this.removed = 0;
+        this.threshold = Math.round(newCapacity * LOAD_FACTOR);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T extends IWeightValue> T get(final Object feature) {
+        final int i = find(toKey(feature));
+        if (i < 0) {
+            return null;
+        }
+        final boolean touched = (states[i] == TOUCHED);
+        if (sum_of_squared_gradients != null) {
+            final IWeightValue v;
+            if (sum_of_squared_delta_x != null) {
+                v = new WeightValueParamsF2(weights[i], sum_of_squared_gradients[i],
+                    sum_of_squared_delta_x[i]);
+            } else if (sum_of_gradients != null) {
+                v = new WeightValueParamsF2(weights[i], sum_of_squared_gradients[i],
+                    sum_of_gradients[i]);
+            } else {
+                v = new WeightValueParamsF1(weights[i], sum_of_squared_gradients[i]);
+            }
+            v.setTouched(touched);
+            return (T) v;
+        } else if (covars != null) {
+            return (T) new WeightValueWithCovar(weights[i], covars[i], touched);
+        } else {
+            return (T) new WeightValue(weights[i], touched);
+        }
+    }
+
+    @Override
+    public <T extends IWeightValue> void set(final Object feature, final T value) {
+        assert (feature != null);
+        assert (value != null);
+
+        if (keyType == UNKNOWN_KEY) {
+            detectKeyType(feature);
+        }
+        final int i = getOrAdd(toKey(feature));
+        final float weight = value.get();
+        weights[i] = weight;
+        float covar = 1.f;
+        final boolean hasCovar = value.hasCovariance();
+        if (hasCovar) {
+            covar = value.getCovariance();
+            covars[i] = covar;
+        }
+        if (sum_of_squared_gradients != null) {
+            sum_of_squared_gradients[i] = value.getSumOfSquaredGradients();
+        }
+        if (sum_of_squared_delta_x != null) {
+            sum_of_squared_delta_x[i] = value.getSumOfSquaredDeltaX();
+        }
+        if (sum_of_gradients != null) {
+            sum_of_gradients[i] = value.getSumOfGradients();
+        }
+        final boolean touched = value.isTouched();
+        states[i] = touched ? TOUCHED : FULL;
+        short clock = 0;
+        int delta = 0;
+        if (clocks != null && touched) {
+            clock = (short) (clocks[i] + 1);
+            clocks[i] = clock;
+            delta = deltaUpdates[i] + 1;
+            assert (delta > 0) : delta;
+            deltaUpdates[i] = (byte) delta;
+        }
+
+        if (onUpdate(feature, weight, covar, clock, delta, hasCovar)) {
+            deltaUpdates[i] = BYTE0;
+        }
+    }
+
+    @Override
+    public void delete(@Nonnull final Object feature) {
+        final int i = find(toKey(feature));
+        if (i < 0) {
+            return;
+        }
+        states[i] = REMOVED;
+        used--;
+        removed++;
+    }
+
+    @Override
+    public float getWeight(final Object feature) {
+        final int i = find(toKey(feature));
+        return (i < 0) ? 0.f : weights[i];
+    }
+
+    @Override
+    public float getCovariance(final Object feature) {
+        final int i = find(toKey(feature));
+        return (i < 0) ? 1.f : covars[i];
+    }
+
+    @Override
+    protected void _set(final Object feature, final float weight, final short clock) {
+        final int i = find(toKey(feature));
+        if (i < 0) {
+            logger.warn("Previous weight not found: " + feature);
+            throw new IllegalStateException("Previous weight not found " + feature);
+        }
+        weights[i] = weight;
+        clocks[i] = clock;
+        deltaUpdates[i] = BYTE0;
+    }
+
+    @Override
+    protected void _set(final Object feature, final float weight, final float covar,
+            final short clock) {
+        final int i = find(toKey(feature));
+        if (i < 0) {
+            logger.warn("Previous weight not found: " + feature);
+            throw new IllegalStateException("Previous weight not found: " + feature);
+        }
+        weights[i] = weight;
+        covars[i] = covar;
+        clocks[i] = clock;
+        deltaUpdates[i] = BYTE0;
+    }
+
+    @Override
+    public int size() {
+        return used;
+    }
+
+    @Override
+    public boolean contains(final Object feature) {
+        return find(toKey(feature)) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <K, V extends IWeightValue> IMapIterator<K, V> entries() {
+        return (IMapIterator<K, V>) new Itr();
+    }
+
+    static int keyHash(final long key) {
+        // MurmurHash3 fmix64
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return ((int) h) & 0x7fffffff;
+    }
+
+    private final class Itr implements IMapIterator<Object, IWeightValue> {
+
+        private int cursor;
+        private final WeightValueWithCovar tmpWeight;
+
+        private Itr() {
+            this.cursor = -1;
+            this.tmpWeight = new WeightValueWithCovar();
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (int i = cursor + 1; i < states.length; i++) {
+                if (states[i] == FULL || states[i] == TOUCHED) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int next() {
+            while (++cursor < states.length) {
+                if (states[cursor] == FULL || states[cursor] == TOUCHED) {
+                    return cursor;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public Object getKey() {
+            final long k = keys[cursor];
+            switch (keyType) {
+                case INT_WRITABLE_KEY:
+                    return new IntWritable((int) k);
+                case LONG_KEY:
+                    return Long.valueOf(k);
+                case LONG_WRITABLE_KEY:
+                    return new LongWritable(k);
+                default:
+                    return Integer.valueOf((int) k);
+            }
+        }
+
+        @Override
+        public IWeightValue getValue() {
+            final boolean touched = (states[cursor] == TOUCHED);
+            if (covars == null) {
+                return new WeightValue(weights[cursor], touched);
+            } else {
+                return new WeightValueWithCovar(weights[cursor], covars[cursor], touched);
+            }
+        }
+
+        @Override
+        public <T extends Copyable<IWeightValue>> void getValue(T probe) {
+            tmpWeight.value = weights[cursor];
+            if (covars != null) {
+                tmpWeight.setCovariance(covars[cursor]);
+            }
+            tmpWeight.setTouched(states[cursor] == TOUCHED);
+            probe.copyFrom(tmpWeight);
+        }
+
+    }
+
+}
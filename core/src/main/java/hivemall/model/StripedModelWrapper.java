@@ -0,0 +1,249 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.model;
+
+import hivemall.utils.collections.IMapIterator;
+import hivemall.utils.math.MathUtils;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A model wrapper for Hogwild-style training in multiple threads. Each feature is guarded by one
+ * of striped locks, and thus threads updating different features rarely contend. Updates that
+ * may change the structure of the model, i.e., inserting a new feature into a sparse model or
+ * expanding a dense model, take all the locks.
+ *
+ * A read-modify-write of a weight is not atomic as in Hogwild. Concurrent updates to the same
+ * feature may be lost.
+ */
+@ThreadSafe
+public final class StripedModelWrapper implements PredictionModel {
+
+    private final PredictionModel model;
+    private final Lock[] locks;
+    private final int mask;
+
+    public StripedModelWrapper(@Nonnull PredictionModel model, @Nonnegative int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Invalid stripes: " + stripes);
+        }
+        int size = 1 << MathUtils.bitsRequired(stripes - 1);
+        this.model = model;
+        this.locks = new Lock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+    }
+
+    @Nonnull
+    private Lock lockFor(final int hash) {
+        int h = hash ^ (hash >>> 16);
+        return locks[h & mask];
+    }
+
+    @Nonnull
+    private Lock lockFor(@Nonnull final Object feature) {
+        return lockFor(feature.hashCode());
+    }
+
+    private void lockAll() {
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+    // ------------------------------------------------------------
+    // Non-synchronized methods with care
+
+    public PredictionModel getModel() {
+        return model;
+    }
+
+    @Override
+    public ModelUpdateHandler getUpdateHandler() {
+        return model.getUpdateHandler();
+    }
+
+    @Override
+    public void configureMix(ModelUpdateHandler handler, boolean cancelMixRequest) {
+        model.configureMix(handler, cancelMixRequest);
+    }
+
+    @Override
+    public long getNumMixed() {
+        return model.getNumMixed();
+    }
+
+    @Override
+    public boolean hasCovariance() {
+        return model.hasCovariance();
+    }
+
+    @Override
+    public void configureParams(boolean sum_of_squared_gradients, boolean sum_of_squared_delta_x,
+            boolean sum_of_gradients) {
+        model.configureParams(sum_of_squared_gradients, sum_of_squared_delta_x, sum_of_gradients);
+    }
+
+    @Override
+    public void configureClock() {
+        model.configureClock();
+    }
+
+    @Override
+    public boolean hasClock() {
+        return model.hasClock();
+    }
+
+    @Override
+    public <K, V extends IWeightValue> IMapIterator<K, V> entries() {
+        return model.entries();
+    }
+
+    // ------------------------------------------------------------
+    // The below is synchronized methods
+
+    @Override
+    public void resetDeltaUpdates(int feature) {
+        final Lock lock = lockFor(feature);
+        try {
+            lock.lock();
+            model.resetDeltaUpdates(feature);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        try {
+            lockAll();
+            return model.size();
+        } finally {
+            unlockAll();
+        }
+    }
+
+    @Override
+    public boolean contains(Object feature) {
+        final Lock lock = lockFor(feature);
+        try {
+            lock.lock();
+            return model.contains(feature);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <T extends IWeightValue> T get(Object feature) {
+        final Lock lock = lockFor(feature);
+        try {
+            lock.lock();
+            return model.get(feature);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <T extends IWeightValue> void set(Object feature, T value) {
+        final Lock lock = lockFor(feature);
+        lock.lock();
+        try {
+            if (model.contains(feature)) {
+                model.set(feature, value);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            lockAll();
+            model.set(feature, value);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    @Override
+    public void delete(@Nonnull Object feature) {
+        try {
+            lockAll();
+            model.delete(feature);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    @Override
+    public float getWeight(Object feature) {
+        final Lock lock = lockFor(feature);
+        try {
+            lock.lock();
+            return model.getWeight(feature);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public float getCovariance(Object feature) {
+        final Lock lock = lockFor(feature);
+        try {
+            lock.lock();
+            return model.getCovariance(feature);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void set(@Nonnull Object feature, float weight, float covar, short clock) {
+        final Lock lock = lockFor(feature);
+        lock.lock();
+        try {
+            if (model.contains(feature)) {
+                model.set(feature, weight, covar, clock);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            lockAll();
+            model.set(feature, weight, covar, clock);
+        } finally {
+            unlockAll();
+        }
+    }
+
+}
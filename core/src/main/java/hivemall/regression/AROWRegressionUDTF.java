@@ -176,8 +176,6 @@ public class AROWRegressionUDTF extends RegressionBaseUDTF {
 
         @Override
         protected void train(@Nonnull final FeatureValue[] features, float target) {
-            preTrain(target);
-
             PredictionResult margin = calcScoreAndVariance(features);
             float predicted = margin.getScore();
 
@@ -190,8 +188,6 @@ public class AROWRegressionUDTF extends RegressionBaseUDTF {
             }
         }
 
-        protected void preTrain(float target) {}
-
         /**
          * |w^t - y| - epsilon
          */
@@ -207,6 +203,8 @@ public class AROWRegressionUDTF extends RegressionBaseUDTF {
     public static class AROWe2 extends AROWe {
 
         private OnlineVariance targetStdDev;
+        /** The stddev of the targets so far, read by the worker threads of -num_threads */
+        private volatile float stddev;
 
         @Override
         public StructObjectInspector initialize(ObjectInspector[] argOIs)
@@ -218,11 +216,15 @@ public class AROWRegressionUDTF extends RegressionBaseUDTF {
         @Override
         protected void preTrain(float target) {
             targetStdDev.handle(target);
+            this.stddev = (float) targetStdDev.stddev();
+        }
+
+        float getTargetStdDev() {
+            return stddev;
         }
 
         @Override
         protected float loss(float target, float predicted) {
-            float stddev = (float) targetStdDev.stddev();
             float e = epsilon * stddev;
             return LossFunctions.epsilonInsensitiveLoss(predicted, target, e);
         }
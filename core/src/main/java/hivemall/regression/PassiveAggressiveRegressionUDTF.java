@@ -97,8 +97,6 @@ public class PassiveAggressiveRegressionUDTF extends RegressionBaseUDTF {
 
     @Override
     protected void train(@Nonnull final FeatureValue[] features, float target) {
-        preTrain(target);
-
         PredictionResult margin = calcScoreAndNorm(features);
         float predicted = margin.getScore();
         float loss = loss(target, predicted);
@@ -113,8 +111,6 @@ public class PassiveAggressiveRegressionUDTF extends RegressionBaseUDTF {
         }
     }
 
-    protected void preTrain(float target) {}
-
     /**
      * |w^t - y| - epsilon
      */
@@ -138,6 +134,8 @@ public class PassiveAggressiveRegressionUDTF extends RegressionBaseUDTF {
     public static final class PA1a extends PassiveAggressiveRegressionUDTF {
 
         private OnlineVariance targetStdDev;
+        /** The stddev of the targets so far, read by the worker threads of -num_threads */
+        private volatile float stddev;
 
         @Override
         public StructObjectInspector initialize(ObjectInspector[] argOIs)
@@ -149,11 +147,15 @@ public class PassiveAggressiveRegressionUDTF extends RegressionBaseUDTF {
         @Override
         protected void preTrain(float target) {
             targetStdDev.handle(target);
+            this.stddev = (float) targetStdDev.stddev();
+        }
+
+        float getTargetStdDev() {
+            return stddev;
         }
 
         @Override
         protected float loss(float target, float predicted) {
-            float stddev = (float) targetStdDev.stddev();
             float e = epsilon * stddev;
             return LossFunctions.epsilonInsensitiveLoss(predicted, target, e);
         }
@@ -187,6 +189,8 @@ public class PassiveAggressiveRegressionUDTF extends RegressionBaseUDTF {
     public static final class PA2a extends PA2 {
 
         private OnlineVariance targetStdDev;
+        /** The stddev of the targets so far, read by the worker threads of -num_threads */
+        private volatile float stddev;
 
         @Override
         public StructObjectInspector initialize(ObjectInspector[] argOIs)
@@ -198,11 +202,15 @@ public class PassiveAggressiveRegressionUDTF extends RegressionBaseUDTF {
         @Override
         protected void preTrain(float target) {
             targetStdDev.handle(target);
+            this.stddev = (float) targetStdDev.stddev();
+        }
+
+        float getTargetStdDev() {
+            return stddev;
         }
 
         @Override
         protected float loss(float target, float predicted) {
-            float stddev = (float) targetStdDev.stddev();
             float e = epsilon * stddev;
             return LossFunctions.epsilonInsensitiveLoss(predicted, target, e);
         }
@@ -21,18 +21,16 @@ package hivemall.regression;
 import hivemall.LearnerBaseUDTF;
 import hivemall.model.FeatureValue;
 import hivemall.model.IWeightValue;
+import hivemall.model.MiniBatchAccumulator;
 import hivemall.model.PredictionModel;
 import hivemall.model.PredictionResult;
 import hivemall.model.WeightValue;
 import hivemall.model.WeightValue.WeightValueWithCovar;
 import hivemall.utils.collections.IMapIterator;
 import hivemall.utils.hadoop.HiveUtils;
-import hivemall.utils.lang.FloatAccumulator;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -67,7 +65,7 @@ public abstract class RegressionBaseUDTF extends LearnerBaseUDTF {
     protected int count;
 
     // The accumulated delta of each weight values.
-    protected transient Map<Object, FloatAccumulator> accumulated;
+    protected transient MiniBatchAccumulator accumulated;
     protected int sampled;
 
     @Override
@@ -102,6 +100,17 @@ public abstract class RegressionBaseUDTF extends LearnerBaseUDTF {
         return HiveUtils.asPrimitiveObjectInspector(featureRawOI);
     }
 
+    @Override
+    protected boolean supportsParallelTraining() {
+        return true;
+    }
+
+    @Override
+    protected boolean useIntegerFeatures() {
+        ObjectInspector featureRawOI = featureListOI.getListElementObjectInspector();
+        return HiveUtils.isIntOI(featureRawOI) || HiveUtils.isBigIntOI(featureRawOI);
+    }
+
     protected StructObjectInspector getReturnOI(ObjectInspector featureOutputOI) {
         ArrayList<String> fieldNames = new ArrayList<String>();
         ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
@@ -122,7 +131,7 @@ public abstract class RegressionBaseUDTF extends LearnerBaseUDTF {
     @Override
     public void process(Object[] args) throws HiveException {
         if (is_mini_batch && accumulated == null) {
-            this.accumulated = new HashMap<Object, FloatAccumulator>(1024);
+            this.accumulated = new MiniBatchAccumulator(1024);
         }
 
         List<?> features = (List<?>) featureListOI.getList(args[0]);
@@ -130,12 +139,23 @@ public abstract class RegressionBaseUDTF extends LearnerBaseUDTF {
         if (featureVector == null) {
             return;
         }
-        float target = PrimitiveObjectInspectorUtils.getFloat(args[1], targetOI);
+        final float target = PrimitiveObjectInspectorUtils.getFloat(args[1], targetOI);
         checkTargetValue(target);
 
         count++;
-
-        train(featureVector, target);
+        preTrain(target);
+
+        if (numThreads > 1) {
+            final FeatureValue[] x = featureVector;
+            runTraining(new Runnable() {
+                @Override
+                public void run() {
+                    train(x, target);
+                }
+            });
+        } else {
+            train(featureVector, target);
+        }
     }
 
     @Nullable
@@ -166,6 +186,12 @@ public abstract class RegressionBaseUDTF extends LearnerBaseUDTF {
 
     protected void checkTargetValue(float target) throws UDFArgumentException {}
 
+    /**
+     * Observes the target of each row in the order of input. It is called in the caller thread
+     * even when the row is trained by a worker thread of -num_threads.
+     */
+    protected void preTrain(float target) {}
+
     protected void train(@Nonnull final FeatureValue[] features, final float target) {
         float p = predict(features);
         update(features, target, p);
@@ -263,34 +289,13 @@ public abstract class RegressionBaseUDTF extends LearnerBaseUDTF {
             final Object x = features[i].getFeature();
             final float xi = features[i].getValueAsFloat();
             float delta = xi * coeff;
-
-            FloatAccumulator acc = accumulated.get(x);
-            if (acc == null) {
-                acc = new FloatAccumulator(delta);
-                accumulated.put(x, acc);
-            } else {
-                acc.add(delta);
-            }
+            accumulated.add(x, delta);
         }
         sampled++;
     }
 
     protected final void batchUpdate() {
-        if (accumulated.isEmpty()) {
-            this.sampled = 0;
-            return;
-        }
-
-        for (Map.Entry<Object, FloatAccumulator> e : accumulated.entrySet()) {
-            Object x = e.getKey();
-            FloatAccumulator v = e.getValue();
-            float delta = v.get();
-
-            float old_w = model.getWeight(x);
-            float new_w = old_w + delta;
-            model.set(x, new WeightValue(new_w));
-        }
-        accumulated.clear();
+        accumulated.flush(model);
         this.sampled = 0;
     }
 
@@ -313,12 +318,13 @@ public abstract class RegressionBaseUDTF extends LearnerBaseUDTF {
 
     @Override
     public final void close() throws HiveException {
-        super.close();
+        shutdownTrainer();
+        if (model != null && accumulated != null) { // Update model with accumulated delta
+            batchUpdate();
+            this.accumulated = null;
+        }
+        super.close(); // mix requests of the accumulated delta are sent until the mix client closes
         if (model != null) {
-            if (accumulated != null) { // Update model with accumulated delta
-                batchUpdate();
-                this.accumulated = null;
-            }
             int numForwarded = 0;
             if (useCovariance()) {
                 final WeightValueWithCovar probe = new WeightValueWithCovar();
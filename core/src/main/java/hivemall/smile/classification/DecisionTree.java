@@ -34,7 +34,10 @@ package hivemall.smile.classification;
 
 import hivemall.smile.data.Attribute;
 import hivemall.smile.data.Attribute.AttributeType;
+import hivemall.smile.data.DataMatrix;
+import hivemall.smile.data.FeatureBins;
 import hivemall.smile.utils.SmileExtUtils;
+import hivemall.smile.vm.CompiledTree;
 import hivemall.utils.collections.IntArrayList;
 import hivemall.utils.lang.ObjectUtils;
 import hivemall.utils.lang.StringUtils;
@@ -152,10 +155,11 @@ public final class DecisionTree implements Classifier<double[]> {
      */
     private final int _minLeafSize;
     /**
-     * The index of training values in ascending order. Note that only numeric attributes will be
-     * sorted.
+     * The bins of numeric attributes for histogram-based split finding, or null to find exact
+     * splits on sorted values.
      */
-    private final int[][] _order;
+    @Nullable
+    private final FeatureBins _bins;
 
     private final Random _rnd;
 
@@ -297,6 +301,20 @@ public final class DecisionTree implements Classifier<double[]> {
             }
         }
 
+        /**
+         * Appends this subtree to the builder in pre-order.
+         */
+        public void compile(@Nonnull final CompiledTree.Builder builder) {
+            if (trueChild == null && falseChild == null) {
+                builder.addLeaf(output);
+            } else {
+                final int node = builder.addSplit(splitFeature, splitFeatureType, splitValue);
+                trueChild.compile(builder);
+                builder.setFalseChild(node);
+                falseChild.compile(builder);
+            }
+        }
+
         public int opCodegen(final List<String> scripts, int depth) {
             int selfDepth = 0;
             final StringBuilder buf = new StringBuilder();
@@ -412,7 +430,7 @@ public final class DecisionTree implements Classifier<double[]> {
         /**
          * Training dataset.
          */
-        final double[][] x;
+        final DataMatrix x;
         /**
          * class labels.
          */
@@ -422,10 +440,21 @@ public final class DecisionTree implements Classifier<double[]> {
 
         final int depth;
 
+        /**
+         * The parent and the sibling of this node to derive histograms from.
+         */
+        @Nullable
+        TrainNode parent, sibling;
+        /**
+         * Class counts in the bins of each numeric attribute, cached for the children.
+         */
+        @Nullable
+        int[][] histograms;
+
         /**
          * Constructor.
          */
-        public TrainNode(Node node, double[][] x, int[] y, int[] bags, int depth) {
+        public TrainNode(Node node, DataMatrix x, int[] y, int[] bags, int depth) {
             this.node = node;
             this.x = x;
             this.y = y;
@@ -474,8 +503,8 @@ public final class DecisionTree implements Classifier<double[]> {
                 SmileExtUtils.shuffle(variableIndex, _rnd);
             }
 
-            final int[] samples = _hasNumericType ? SmileExtUtils.bagsToSamples(bags, x.length)
-                    : null;
+            final int[] samples = (_hasNumericType && _bins == null) ? SmileExtUtils.bagsToSamples(
+                bags, x.numRows()) : null;
             final int[] falseCount = new int[_k];
             for (int j = 0; j < _numVars; j++) {
                 Node split = findBestSplit(numSamples, count, falseCount, impurity,
@@ -529,7 +558,7 @@ public final class DecisionTree implements Classifier<double[]> {
 
                 for (int i = 0, size = bags.length; i < size; i++) {
                     int index = bags[i];
-                    int x_ij = (int) x[index][j];
+                    int x_ij = (int) x.get(index, j);
                     trueCount[x_ij][y[index]]++;
                 }
 
@@ -560,16 +589,52 @@ public final class DecisionTree implements Classifier<double[]> {
                         splitNode.falseChildOutput = Math.whichMax(falseCount);
                     }
                 }
+            } else if (_attributes[j].type == AttributeType.NUMERIC && _bins != null) {
+                final int[] histogram = histogram(j);
+                final int[] trueCount = new int[_k];
+
+                for (int b = 0, last = _bins.numBins(j) - 1; b < last; b++) {
+                    for (int q = 0, offset = b * _k; q < _k; q++) {
+                        trueCount[q] += histogram[offset + q];
+                    }
+
+                    final int tc = Math.sum(trueCount);
+                    final int fc = n - tc;
+
+                    // skip splitting this feature.
+                    if (tc < _minSplit || fc < _minSplit) {
+                        continue;
+                    }
+
+                    for (int q = 0; q < _k; q++) {
+                        falseCount[q] = count[q] - trueCount[q];
+                    }
+
+                    final double gain = impurity - (double) tc / n
+                            * impurity(trueCount, tc, _rule) - (double) fc / n
+                            * impurity(falseCount, fc, _rule);
+
+                    if (gain > splitNode.splitScore) {
+                        // new best split
+                        splitNode.splitFeature = j;
+                        splitNode.splitFeatureType = AttributeType.NUMERIC;
+                        splitNode.splitValue = _bins.splitValue(j, b);
+                        splitNode.splitScore = gain;
+                        splitNode.trueChildOutput = Math.whichMax(trueCount);
+                        splitNode.falseChildOutput = Math.whichMax(falseCount);
+                    }
+                }
             } else if (_attributes[j].type == AttributeType.NUMERIC) {
                 final int[] trueCount = new int[_k];
                 double prevx = Double.NaN;
                 int prevy = -1;
 
                 assert (samples != null);
-                for (final int i : _order[j]) {
+                for (int k = 0, size = x.numRows(); k < size; k++) {
+                    final int i = x.order(j, k);
                     final int sample = samples[i];
                     if (sample > 0) {
-                        final double x_ij = x[i][j];
+                        final double x_ij = x.get(i, j);
                         final int y_i = y[i];
 
                         if (Double.isNaN(prevx) || x_ij == prevx || y_i == prevy) {
@@ -621,6 +686,49 @@ public final class DecisionTree implements Classifier<double[]> {
             return splitNode;
         }
 
+        /**
+         * Returns the class counts in the bins of the numeric attribute j. When the parent has the
+         * histogram, it is derived by subtracting the histogram of the sibling, which is counted
+         * directly only if the sibling has fewer samples.
+         */
+        @Nonnull
+        private int[] histogram(final int j) {
+            if (histograms == null) {
+                this.histograms = new int[_attributes.length][];
+            }
+            int[] histogram = histograms[j];
+            if (histogram != null) {
+                return histogram;
+            }
+
+            final int[] parentHistogram = (parent == null || parent.histograms == null) ? null
+                    : parent.histograms[j];
+            if (parentHistogram != null) {
+                int[] siblingHistogram = (sibling.histograms == null) ? null
+                        : sibling.histograms[j];
+                if (siblingHistogram == null && sibling.bags != null
+                        && sibling.bags.length < bags.length) {
+                    siblingHistogram = sibling.histogram(j);
+                }
+                if (siblingHistogram != null) {
+                    histogram = new int[parentHistogram.length];
+                    for (int b = 0; b < histogram.length; b++) {
+                        histogram[b] = parentHistogram[b] - siblingHistogram[b];
+                    }
+                    histograms[j] = histogram;
+                    return histogram;
+                }
+            }
+
+            histogram = new int[_bins.numBins(j) * _k];
+            for (int i = 0, size = bags.length; i < size; i++) {
+                final int index = bags[i];
+                histogram[_bins.bin(index, j) * _k + y[index]]++;
+            }
+            histograms[j] = histogram;
+            return histogram;
+        }
+
         /**
          * Split the node into two children nodes. Returns true if split success.
          */
@@ -649,26 +757,48 @@ public final class DecisionTree implements Classifier<double[]> {
             node.trueChild = new Node(node.trueChildOutput);
             TrainNode trueChild = new TrainNode(node.trueChild, x, y, trueBags.toArray(), depth + 1);
             trueBags = null; // help GC for recursive call
+            node.falseChild = new Node(node.falseChildOutput);
+            TrainNode falseChild = new TrainNode(node.falseChild, x, y, falseBags.toArray(),
+                depth + 1);
+            falseBags = null; // help GC for recursive call
+            if (_bins != null) {
+                trueChild.parent = this;
+                trueChild.sibling = falseChild;
+                falseChild.parent = this;
+                falseChild.sibling = trueChild;
+            }
+
+            boolean trueSplit = false, falseSplit = false;
             if (tc >= _minSplit && trueChild.findBestSplit()) {
                 if (nextSplits != null) {
                     nextSplits.add(trueChild);
+                    trueSplit = true;
                 } else {
                     trueChild.split(null);
                 }
             }
-
-            node.falseChild = new Node(node.falseChildOutput);
-            TrainNode falseChild = new TrainNode(node.falseChild, x, y, falseBags.toArray(),
-                depth + 1);
-            falseBags = null; // help GC for recursive call
             if (fc >= _minSplit && falseChild.findBestSplit()) {
                 if (nextSplits != null) {
                     nextSplits.add(falseChild);
+                    falseSplit = true;
                 } else {
                     falseChild.split(null);
                 }
             }
 
+            // release histograms that are no longer used by children and siblings
+            if (nextSplits != null) {
+                this.histograms = null;
+            }
+            trueChild.parent = trueChild.sibling = null;
+            falseChild.parent = falseChild.sibling = null;
+            if (!trueSplit) {
+                trueChild.histograms = null;
+            }
+            if (!falseSplit) {
+                falseChild.histograms = null;
+            }
+
             _importance[node.splitFeature] += node.splitScore;
 
             return true;
@@ -685,7 +815,7 @@ public final class DecisionTree implements Classifier<double[]> {
                 final double splitValue = node.splitValue;
                 for (int i = 0, size = bags.length; i < size; i++) {
                     final int index = bags[i];
-                    if (x[index][splitFeature] == splitValue) {
+                    if (x.get(index, splitFeature) == splitValue) {
                         trueBags.add(index);
                         tc++;
                     } else {
@@ -697,7 +827,7 @@ public final class DecisionTree implements Classifier<double[]> {
                 final double splitValue = node.splitValue;
                 for (int i = 0, size = bags.length; i < size; i++) {
                     final int index = bags[i];
-                    if (x[index][splitFeature] <= splitValue) {
+                    if (x.get(index, splitFeature) <= splitValue) {
                         trueBags.add(index);
                         tc++;
                     } else {
@@ -792,6 +922,17 @@ public final class DecisionTree implements Classifier<double[]> {
             int numVars, int maxDepth, int maxLeafs, int minSplits, int minLeafSize,
             @Nullable int[] bags, @Nullable int[][] order, @Nonnull SplitRule rule,
             @Nullable smile.math.Random rand) {
+        this(attributes, DataMatrix.of(x, order), y, numVars, maxDepth, maxLeafs, minSplits,
+            minLeafSize, bags, rule, rand);
+    }
+
+    /**
+     * Constructor. Learns a classification tree on a {@link DataMatrix}. Numeric columns of x are
+     * sorted unless they are sorted already.
+     */
+    public DecisionTree(@Nullable Attribute[] attributes, @Nonnull DataMatrix x, @Nonnull int[] y,
+            int numVars, int maxDepth, int maxLeafs, int minSplits, int minLeafSize,
+            @Nullable int[] bags, @Nonnull SplitRule rule, @Nullable smile.math.Random rand) {
         checkArgument(x, y, numVars, maxDepth, maxLeafs, minSplits, minLeafSize);
 
         this._k = Math.max(y) + 1;
@@ -800,7 +941,7 @@ public final class DecisionTree implements Classifier<double[]> {
         }
 
         this._attributes = SmileExtUtils.attributeTypes(attributes, x);
-        if (attributes.length != x[0].length) {
+        if (attributes.length != x.numColumns()) {
             throw new IllegalArgumentException("-attrs option is invliad: "
                     + Arrays.toString(attributes));
         }
@@ -811,7 +952,10 @@ public final class DecisionTree implements Classifier<double[]> {
         this._minSplit = minSplits;
         this._minLeafSize = minLeafSize;
         this._rule = rule;
-        this._order = (order == null) ? SmileExtUtils.sort(_attributes, x) : order;
+        this._bins = x.getBins();
+        if (_bins == null) {
+            x.sort(_attributes);
+        }
         this._importance = new double[_attributes.length];
         this._rnd = (rand == null) ? new smile.math.Random() : rand;
 
@@ -857,13 +1001,13 @@ public final class DecisionTree implements Classifier<double[]> {
         }
     }
 
-    private static void checkArgument(@Nonnull double[][] x, @Nonnull int[] y, int numVars,
+    private static void checkArgument(@Nonnull DataMatrix x, @Nonnull int[] y, int numVars,
             int maxDepth, int maxLeafs, int minSplits, int minLeafSize) {
-        if (x.length != y.length) {
+        if (x.numRows() != y.length) {
             throw new IllegalArgumentException(String.format(
-                "The sizes of X and Y don't match: %d != %d", x.length, y.length));
+                "The sizes of X and Y don't match: %d != %d", x.numRows(), y.length));
         }
-        if (numVars <= 0 || numVars > x[0].length) {
+        if (numVars <= 0 || numVars > x.numColumns()) {
             throw new IllegalArgumentException(
                 "Invalid number of variables to split on at a node of the tree: " + numVars);
         }
@@ -21,6 +21,8 @@ package hivemall.smile.classification;
 import hivemall.UDTFWithOptions;
 import hivemall.smile.ModelType;
 import hivemall.smile.data.Attribute;
+import hivemall.smile.data.DataMatrix;
+import hivemall.smile.data.FeatureBins;
 import hivemall.smile.regression.RegressionTree;
 import hivemall.smile.utils.SmileExtUtils;
 import hivemall.smile.vm.StackMachine;
@@ -105,6 +107,10 @@ public final class GradientTreeBoostingClassifierUDTF extends UDTFWithOptions {
     private long _seed;
     private Attribute[] _attributes;
     private ModelType _outputType;
+    /**
+     * The maximum number of bins for histogram-based split finding, or 0 for exact split finding
+     */
+    private int _maxBins;
 
     @Nullable
     private Reporter _progressReporter;
@@ -136,6 +142,9 @@ public final class GradientTreeBoostingClassifierUDTF extends UDTFWithOptions {
                 + "(Q for quantitative variable and C for categorical variable. e.g., [Q,C,Q,C])");
         opts.addOption("output", "output_type", true,
             "The output type (serialization/ser or opscode/vm or javascript/js) [default: serialization]");
+        opts.addOption("bins", "max_bins", true,
+            "The maximum number of bins of numeric features for histogram-based split finding"
+                    + " (at most 255) [default: 0 (exact split finding)]");
         opts.addOption("disable_compression", false,
             "Whether to disable compression of the output script [default: false]");
         return opts;
@@ -151,6 +160,7 @@ public final class GradientTreeBoostingClassifierUDTF extends UDTFWithOptions {
         long seed = -1L;
         String output = "serialization";
         boolean compress = true;
+        int maxBins = 0;
 
         CommandLine cl = null;
         if (argOIs.length >= 3) {
@@ -172,6 +182,11 @@ public final class GradientTreeBoostingClassifierUDTF extends UDTFWithOptions {
             seed = Primitives.parseLong(cl.getOptionValue("seed"), seed);
             attrs = SmileExtUtils.resolveAttributes(cl.getOptionValue("attribute_types"));
             output = cl.getOptionValue("output", output);
+            maxBins = Primitives.parseInt(cl.getOptionValue("max_bins"), maxBins);
+            if (maxBins != 0 && (maxBins < 2 || maxBins > FeatureBins.MAX_BINS)) {
+                throw new UDFArgumentException("max_bins must be in [2, " + FeatureBins.MAX_BINS
+                        + "]: " + maxBins);
+            }
             if (cl.hasOption("disable_compression")) {
                 compress = false;
             }
@@ -188,6 +203,7 @@ public final class GradientTreeBoostingClassifierUDTF extends UDTFWithOptions {
         this._seed = seed;
         this._attributes = attrs;
         this._outputType = ModelType.resolve(output, compress);
+        this._maxBins = maxBins;
 
         return cl;
     }
@@ -324,7 +340,7 @@ public final class GradientTreeBoostingClassifierUDTF extends UDTFWithOptions {
             logger.info("k: " + 2 + ", numTrees: " + _numTrees + ", shirinkage: " + _eta
                     + ", subsample: " + _subsample + ", numVars: " + numVars + ", maxDepth: "
                     + _maxDepth + ", minSamplesSplit: " + _minSamplesSplit + ", maxLeafs: "
-                    + _maxLeafNodes + ", seed: " + _seed);
+                    + _maxLeafNodes + ", maxBins: " + _maxBins + ", seed: " + _seed);
         }
 
         final int numInstances = x.length;
@@ -340,7 +356,7 @@ public final class GradientTreeBoostingClassifierUDTF extends UDTFWithOptions {
             h[i] = intercept;
         }
 
-        final int[][] order = SmileExtUtils.sort(_attributes, x);
+        final DataMatrix matrix = newDataMatrix(x);
         final RegressionTree.NodeOutput output = new L2NodeOutput(response);
 
         final BitSet sampled = new BitSet(numInstances);
@@ -369,8 +385,8 @@ public final class GradientTreeBoostingClassifierUDTF extends UDTFWithOptions {
                 response[i] = 2.0d * y[i] / (1.d + Math.exp(2.d * y[i] * h[i]));
             }
 
-            RegressionTree tree = new RegressionTree(_attributes, x, response, numVars, _maxDepth,
-                _maxLeafNodes, _minSamplesSplit, _minSamplesLeaf, order, bag, output, rnd2);
+            RegressionTree tree = new RegressionTree(_attributes, matrix, response, numVars,
+                _maxDepth, _maxLeafNodes, _minSamplesSplit, _minSamplesLeaf, bag, output, rnd2);
 
             for (int i = 0; i < numInstances; i++) {
                 h[i] += _eta * tree.predict(x[i]);
@@ -395,6 +411,20 @@ public final class GradientTreeBoostingClassifierUDTF extends UDTFWithOptions {
         }
     }
 
+    /**
+     * Prepares the numeric attributes of x for split finding, sorted or binned.
+     */
+    @Nonnull
+    private DataMatrix newDataMatrix(@Nonnull final double[][] x) {
+        final DataMatrix matrix = DataMatrix.of(x);
+        if (_maxBins > 0) {
+            matrix.bin(_attributes, _maxBins);
+        } else {
+            matrix.sort(_attributes);
+        }
+        return matrix;
+    }
+
     /**
      * Train L-k tree boost.
      */
@@ -404,7 +434,8 @@ public final class GradientTreeBoostingClassifierUDTF extends UDTFWithOptions {
             logger.info("k: " + k + ", numTrees: " + _numTrees + ", shirinkage: " + _eta
                     + ", subsample: " + _subsample + ", numVars: " + numVars
                     + ", minSamplesSplit: " + _minSamplesSplit + ", maxDepth: " + _maxDepth
-                    + ", maxLeafs: " + _maxLeafNodes + ", seed: " + _seed);
+                    + ", maxLeafs: " + _maxLeafNodes + ", maxBins: " + _maxBins + ", seed: "
+                    + _seed);
         }
 
         final int numInstances = x.length;
@@ -414,7 +445,7 @@ public final class GradientTreeBoostingClassifierUDTF extends UDTFWithOptions {
         final double[][] p = new double[k][numInstances]; // posteriori probabilities.
         final double[][] response = new double[k][numInstances]; // pseudo response.
 
-        final int[][] order = SmileExtUtils.sort(_attributes, x);
+        final DataMatrix matrix = newDataMatrix(x);
         final RegressionTree.NodeOutput[] output = new LKNodeOutput[k];
         for (int i = 0; i < k; i++) {
             output[i] = new LKNodeOutput(response[i], k);
@@ -484,8 +515,8 @@ public final class GradientTreeBoostingClassifierUDTF extends UDTFWithOptions {
                     sampled.set(i);
                 }
 
-                RegressionTree tree = new RegressionTree(_attributes, x, response[j], numVars,
-                    _maxDepth, _maxLeafNodes, _minSamplesSplit, _minSamplesLeaf, order, bag,
+                RegressionTree tree = new RegressionTree(_attributes, matrix, response[j],
+                    numVars, _maxDepth, _maxLeafNodes, _minSamplesSplit, _minSamplesLeaf, bag,
                     output[j], rnd2);
                 trees[j] = tree;
 
@@ -22,6 +22,9 @@ import hivemall.UDTFWithOptions;
 import hivemall.smile.ModelType;
 import hivemall.smile.classification.DecisionTree.SplitRule;
 import hivemall.smile.data.Attribute;
+import hivemall.smile.data.DataMatrix;
+import hivemall.smile.data.FeatureBins;
+import hivemall.smile.data.MappedColumnarMatrix;
 import hivemall.smile.utils.SmileExtUtils;
 import hivemall.smile.utils.SmileTaskExecutor;
 import hivemall.smile.vm.StackMachine;
@@ -78,6 +81,8 @@ public final class RandomForestClassifierUDTF extends UDTFWithOptions {
     private PrimitiveObjectInspector labelOI;
 
     private List<double[]> featuresList;
+    @Nullable
+    private MappedColumnarMatrix.Builder featuresBuilder;
     private IntArrayList labels;
     /**
      * The number of trees for each task
@@ -101,6 +106,11 @@ public final class RandomForestClassifierUDTF extends UDTFWithOptions {
     private Attribute[] _attributes;
     private ModelType _outputType;
     private SplitRule _splitRule;
+    /**
+     * The maximum number of bins for histogram-based split finding, or 0 for exact split finding
+     */
+    private int _maxBins;
+    private boolean _outOfCore;
 
     @Nullable
     private Reporter _progressReporter;
@@ -129,8 +139,13 @@ public final class RandomForestClassifierUDTF extends UDTFWithOptions {
         opts.addOption("output", "output_type", true,
             "The output type (serialization/ser or opscode/vm or javascript/js) [default: serialization]");
         opts.addOption("rule", "split_rule", true, "Split algorithm [default: GINI, ENTROPY]");
+        opts.addOption("bins", "max_bins", true,
+            "The maximum number of bins of numeric features for histogram-based split finding"
+                    + " (at most 255) [default: 0 (exact split finding)]");
         opts.addOption("disable_compression", false,
             "Whether to disable compression of the output script [default: false]");
+        opts.addOption("out_of_core", false,
+            "Spill training examples into memory-mapped files instead of the heap [default: false]");
         return opts;
     }
 
@@ -144,6 +159,8 @@ public final class RandomForestClassifierUDTF extends UDTFWithOptions {
         String output = "serialization";
         SplitRule splitRule = SplitRule.GINI;
         boolean compress = true;
+        boolean outOfCore = false;
+        int maxBins = 0;
 
         CommandLine cl = null;
         if (argOIs.length >= 3) {
@@ -164,9 +181,15 @@ public final class RandomForestClassifierUDTF extends UDTFWithOptions {
             attrs = SmileExtUtils.resolveAttributes(cl.getOptionValue("attribute_types"));
             output = cl.getOptionValue("output", output);
             splitRule = SmileExtUtils.resolveSplitRule(cl.getOptionValue("split_rule", "GINI"));
+            maxBins = Primitives.parseInt(cl.getOptionValue("max_bins"), maxBins);
+            if (maxBins != 0 && (maxBins < 2 || maxBins > FeatureBins.MAX_BINS)) {
+                throw new UDFArgumentException("max_bins must be in [2, " + FeatureBins.MAX_BINS
+                        + "]: " + maxBins);
+            }
             if (cl.hasOption("disable_compression")) {
                 compress = false;
             }
+            outOfCore = cl.hasOption("out_of_core");
         }
 
         this._numTrees = trees;
@@ -179,6 +202,8 @@ public final class RandomForestClassifierUDTF extends UDTFWithOptions {
         this._attributes = attrs;
         this._outputType = ModelType.resolve(output, compress);
         this._splitRule = splitRule;
+        this._maxBins = maxBins;
+        this._outOfCore = outOfCore;
 
         return cl;
     }
@@ -200,7 +225,11 @@ public final class RandomForestClassifierUDTF extends UDTFWithOptions {
 
         processOptions(argOIs);
 
-        this.featuresList = new ArrayList<double[]>(1024);
+        if (_outOfCore) {
+            this.featuresBuilder = new MappedColumnarMatrix.Builder();
+        } else {
+            this.featuresList = new ArrayList<double[]>(1024);
+        }
         this.labels = new IntArrayList(1024);
 
         ArrayList<String> fieldNames = new ArrayList<String>(6);
@@ -230,7 +259,15 @@ public final class RandomForestClassifierUDTF extends UDTFWithOptions {
         double[] features = HiveUtils.asDoubleArray(args[0], featureListOI, featureElemOI);
         int label = PrimitiveObjectInspectorUtils.getInt(args[1], labelOI);
 
-        featuresList.add(features);
+        if (featuresBuilder != null) {
+            try {
+                featuresBuilder.add(features);
+            } catch (IOException e) {
+                throw new HiveException("Failed to spill a training example", e);
+            }
+        } else {
+            featuresList.add(features);
+        }
         labels.add(label);
     }
 
@@ -242,15 +279,33 @@ public final class RandomForestClassifierUDTF extends UDTFWithOptions {
                     "finishedTreeBuildTasks");
         reportProgress(_progressReporter);
 
-        int numExamples = featuresList.size();
+        int numExamples = labels.size();
         if (numExamples > 0) {
-            double[][] x = featuresList.toArray(new double[numExamples][]);
-            this.featuresList = null;
             int[] y = labels.toArray();
             this.labels = null;
 
+            final DataMatrix x;
+            if (featuresBuilder != null) {
+                try {
+                    x = featuresBuilder.build();
+                } catch (IOException e) {
+                    throw new HiveException("Failed to map training examples", e);
+                }
+                this.featuresBuilder = null;
+            } else {
+                double[][] rows = featuresList.toArray(new double[numExamples][]);
+                this.featuresList = null;
+                // Shuffle training samples
+                SmileExtUtils.shuffle(rows, y, _seed);
+                x = DataMatrix.of(rows);
+            }
+
             // run training
-            train(x, y);
+            try {
+                train(x, y);
+            } finally {
+                IOUtils.closeQuietly(x);
+            }
         }
 
         // clean up
@@ -277,35 +332,37 @@ public final class RandomForestClassifierUDTF extends UDTFWithOptions {
      * @param numVars The number of variables to pick up in each node.
      * @param seed The seed number for Random Forest
      */
-    private void train(@Nonnull final double[][] x, @Nonnull final int[] y) throws HiveException {
-        if (x.length != y.length) {
+    private void train(@Nonnull final DataMatrix x, @Nonnull final int[] y) throws HiveException {
+        final int numExamples = x.numRows();
+        if (numExamples != y.length) {
             throw new HiveException(String.format("The sizes of X and Y don't match: %d != %d",
-                x.length, y.length));
+                numExamples, y.length));
         }
         checkOptions();
 
-        // Shuffle training samples    
-        SmileExtUtils.shuffle(x, y, _seed);
-
         int[] labels = SmileExtUtils.classLables(y);
         Attribute[] attributes = SmileExtUtils.attributeTypes(_attributes, x);
-        int numInputVars = SmileExtUtils.computeNumInputVars(_numVars, x);
+        int numInputVars = SmileExtUtils.computeNumInputVars(_numVars, x.numColumns());
 
         if (logger.isInfoEnabled()) {
             logger.info("numTrees: " + _numTrees + ", numVars: " + numInputVars + ", maxDepth: "
                     + _maxDepth + ", minSamplesSplit: " + _minSamplesSplit + ", maxLeafs: "
-                    + _maxLeafNodes + ", splitRule: " + _splitRule + ", seed: " + _seed);
+                    + _maxLeafNodes + ", splitRule: " + _splitRule + ", maxBins: " + _maxBins
+                    + ", seed: " + _seed);
         }
 
-        final int numExamples = x.length;
         int[][] prediction = new int[numExamples][labels.length]; // placeholder for out-of-bag prediction
-        int[][] order = SmileExtUtils.sort(attributes, x);
+        if (_maxBins > 0) {
+            x.bin(attributes, _maxBins);
+        } else {
+            x.sort(attributes);
+        }
         AtomicInteger remainingTasks = new AtomicInteger(_numTrees);
         List<TrainingTask> tasks = new ArrayList<TrainingTask>();
         for (int i = 0; i < _numTrees; i++) {
             long s = (_seed == -1L) ? -1L : _seed + i;
-            tasks.add(new TrainingTask(this, i, attributes, x, y, numInputVars, order, prediction,
-                s, remainingTasks));
+            tasks.add(new TrainingTask(this, i, attributes, x, y, numInputVars, prediction, s,
+                remainingTasks));
         }
 
         MapredContext mapredContext = MapredContextAccessor.get();
@@ -367,16 +424,11 @@ public final class RandomForestClassifierUDTF extends UDTFWithOptions {
         /**
          * Training instances.
          */
-        private final double[][] _x;
+        private final DataMatrix _x;
         /**
          * Training sample labels.
          */
         private final int[] _y;
-        /**
-         * The index of training values in ascending order. Note that only numeric attributes will
-         * be sorted.
-         */
-        private final int[][] _order;
         /**
          * The number of variables to pick up in each node.
          */
@@ -392,14 +444,13 @@ public final class RandomForestClassifierUDTF extends UDTFWithOptions {
         private final AtomicInteger _remainingTasks;
 
         TrainingTask(RandomForestClassifierUDTF udtf, int taskId, Attribute[] attributes,
-                double[][] x, int[] y, int numVars, int[][] order, int[][] prediction, long seed,
+                DataMatrix x, int[] y, int numVars, int[][] prediction, long seed,
                 AtomicInteger remainingTasks) {
             this._udtf = udtf;
             this._taskId = taskId;
             this._attributes = attributes;
             this._x = x;
             this._y = y;
-            this._order = order;
             this._numVars = numVars;
             this._prediction = prediction;
             this._seed = seed;
@@ -412,7 +463,7 @@ public final class RandomForestClassifierUDTF extends UDTFWithOptions {
                 _seed).nextLong();
             final smile.math.Random rnd1 = new smile.math.Random(s);
             final smile.math.Random rnd2 = new smile.math.Random(rnd1.nextLong());
-            final int N = _x.length;
+            final int N = _x.numRows();
 
             // Training samples draw with replacement.
             final int[] bags = new int[N];
@@ -424,12 +475,13 @@ public final class RandomForestClassifierUDTF extends UDTFWithOptions {
             }
 
             DecisionTree tree = new DecisionTree(_attributes, _x, _y, _numVars, _udtf._maxDepth,
-                _udtf._maxLeafNodes, _udtf._minSamplesSplit, _udtf._minSamplesLeaf, bags, _order,
+                _udtf._maxLeafNodes, _udtf._minSamplesSplit, _udtf._minSamplesLeaf, bags,
                 _udtf._splitRule, rnd2);
 
             // out-of-bag prediction
+            final double[] row = new double[_x.numColumns()];
             for (int i = sampled.nextClearBit(0); i < N; i = sampled.nextClearBit(i + 1)) {
-                final int p = tree.predict(_x[i]);
+                final int p = tree.predict(_x.getRow(i, row));
                 synchronized (_prediction[i]) {
                     _prediction[i][p]++;
                 }
@@ -0,0 +1,149 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.smile.data;
+
+import hivemall.smile.utils.SmileExtUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Training examples of tree learners. Besides the values, a matrix holds the row indices of each
+ * numeric column in ascending order of the values once {@link #sort(Attribute[])} is called, or
+ * the quantile bins of the numeric columns once {@link #bin(Attribute[], int)} is called.
+ */
+public abstract class DataMatrix implements Closeable {
+
+    @Nullable
+    private FeatureBins bins;
+
+    public abstract int numRows();
+
+    public abstract int numColumns();
+
+    public abstract double get(@Nonnegative int i, @Nonnegative int j);
+
+    /**
+     * @param dst a buffer of {@link #numColumns()} elements
+     * @return the i-th row. The returned array might be shared and should not be modified.
+     */
+    @Nonnull
+    public double[] getRow(@Nonnegative final int i, @Nonnull final double[] dst) {
+        for (int j = 0, p = numColumns(); j < p; j++) {
+            dst[j] = get(i, j);
+        }
+        return dst;
+    }
+
+    /**
+     * Sorts the numeric columns that are not sorted yet.
+     */
+    public abstract void sort(@Nonnull Attribute[] attributes);
+
+    /**
+     * @return the row index of the k-th smallest value of the numeric column j
+     */
+    public abstract int order(@Nonnegative int j, @Nonnegative int k);
+
+    /**
+     * Bins the numeric columns for histogram-based split finding unless they are binned already.
+     */
+    public final synchronized void bin(@Nonnull final Attribute[] attributes, final int maxBins) {
+        if (bins == null) {
+            this.bins = FeatureBins.build(this, attributes, maxBins);
+        }
+    }
+
+    /**
+     * @return the bins of the numeric columns or null if not binned
+     */
+    @Nullable
+    public final synchronized FeatureBins getBins() {
+        return bins;
+    }
+
+    @Override
+    public void close() throws IOException {}
+
+    @Nonnull
+    public static DataMatrix of(@Nonnull double[][] x) {
+        return new RowMajorMatrix(x, null);
+    }
+
+    /**
+     * @param order the row indices of numeric columns in ascending order, or null to sort on
+     *        {@link #sort(Attribute[])}
+     */
+    @Nonnull
+    public static DataMatrix of(@Nonnull double[][] x, @Nullable int[][] order) {
+        return new RowMajorMatrix(x, order);
+    }
+
+    private static final class RowMajorMatrix extends DataMatrix {
+
+        @Nonnull
+        private final double[][] x;
+        @Nullable
+        private int[][] order;
+
+        RowMajorMatrix(@Nonnull double[][] x, @Nullable int[][] order) {
+            this.x = x;
+            this.order = order;
+        }
+
+        @Override
+        public int numRows() {
+            return x.length;
+        }
+
+        @Override
+        public int numColumns() {
+            return x[0].length;
+        }
+
+        @Override
+        public double get(final int i, final int j) {
+            return x[i][j];
+        }
+
+        @Override
+        public double[] getRow(final int i, final double[] dst) {
+            return x[i];
+        }
+
+        @Override
+        public synchronized void sort(@Nonnull final Attribute[] attributes) {
+            if (order != null) {
+                return;
+            }
+            this.order = SmileExtUtils.sort(attributes, x);
+        }
+
+        @Override
+        public int order(final int j, final int k) {
+            return order[j][k];
+        }
+
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.smile.data;
+
+import hivemall.smile.data.Attribute.AttributeType;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Quantile bins of numeric features for histogram-based split finding. Each value is replaced by
+ * the index of its bin so that a split search at a node only has to scan per-bin statistics.
+ * <p>
+ * The bin boundaries are the equi-depth quantiles of a sample of each column, as in
+ * {@link hivemall.ftvec.binning.BuildBinsUDAF}, where repeated quantiles are merged.
+ */
+public final class FeatureBins {
+
+    public static final int MAX_BINS = 255;
+    /** The number of values sampled from each column to find the quantiles */
+    private static final int SAMPLE_SIZE = 1 << 16;
+
+    private final int numRows;
+    /** The upper bound (inclusive) of each bin but the last one. null for nominal columns */
+    @Nonnull
+    private final double[][] cuts;
+    /**
+     * The threshold to split the bins up to b from the rest, in the middle of the values of the
+     * adjacent bins
+     */
+    @Nonnull
+    private final double[][] splitValues;
+    /** Unsigned bin index of each row */
+    @Nonnull
+    private final byte[][] bins;
+
+    private FeatureBins(int numRows, @Nonnull double[][] cuts, @Nonnull double[][] splitValues,
+            @Nonnull byte[][] bins) {
+        this.numRows = numRows;
+        this.cuts = cuts;
+        this.splitValues = splitValues;
+        this.bins = bins;
+    }
+
+    public int numRows() {
+        return numRows;
+    }
+
+    /**
+     * @return the number of bins of the numeric column j
+     */
+    public int numBins(@Nonnegative final int j) {
+        return cuts[j].length + 1;
+    }
+
+    public int bin(@Nonnegative final int i, @Nonnegative final int j) {
+        return bins[j][i] & 0xff;
+    }
+
+    /**
+     * @return the threshold t such that x <= t for the rows of the bins [0, b] and x > t for the
+     *         others
+     */
+    public double splitValue(@Nonnegative final int j, @Nonnegative final int b) {
+        return splitValues[j][b];
+    }
+
+    @Nonnull
+    public static FeatureBins build(@Nonnull final DataMatrix x,
+            @Nonnull final Attribute[] attributes, final int maxBins) {
+        if (maxBins < 2 || maxBins > MAX_BINS) {
+            throw new IllegalArgumentException("The number of bins must be in [2, " + MAX_BINS
+                    + "]: " + maxBins);
+        }
+        final int n = x.numRows();
+        final int p = x.numColumns();
+        final double[][] cuts = new double[p][];
+        final double[][] splitValues = new double[p][];
+        final byte[][] bins = new byte[p][];
+
+        final double[] sample = new double[Math.min(n, SAMPLE_SIZE)];
+        for (int j = 0; j < p; j++) {
+            if (attributes[j].type != AttributeType.NUMERIC) {
+                continue;
+            }
+            final double[] c = quantiles(x, j, sample, maxBins);
+            final int m = c.length + 1;
+            final double[] maxv = new double[m];
+            final double[] minv = new double[m];
+            Arrays.fill(maxv, Double.NEGATIVE_INFINITY);
+            Arrays.fill(minv, Double.POSITIVE_INFINITY);
+
+            final byte[] b = new byte[n];
+            for (int i = 0; i < n; i++) {
+                final double v = x.get(i, j);
+                final int bin = findBin(c, v);
+                b[i] = (byte) bin;
+                if (v > maxv[bin]) {
+                    maxv[bin] = v;
+                }
+                if (v < minv[bin]) {
+                    minv[bin] = v;
+                }
+            }
+
+            // the largest value up to each bin and the smallest value after each bin
+            for (int k = 1; k < m; k++) {
+                maxv[k] = Math.max(maxv[k], maxv[k - 1]);
+            }
+            for (int k = m - 2; k >= 0; k--) {
+                minv[k] = Math.min(minv[k], minv[k + 1]);
+            }
+            final double[] s = new double[m - 1];
+            for (int k = 0; k < m - 1; k++) {
+                double lower = maxv[k], upper = minv[k + 1];
+                if (Double.isInfinite(lower) || Double.isInfinite(upper)) {
+                    s[k] = c[k]; // either side is empty
+                } else {
+                    s[k] = (lower + upper) / 2.d;
+                }
+            }
+
+            cuts[j] = c;
+            splitValues[j] = s;
+            bins[j] = b;
+        }
+        return new FeatureBins(n, cuts, splitValues, bins);
+    }
+
+    /**
+     * @return the distinct quantiles of a sample of the column j, excluding the maximum
+     */
+    @Nonnull
+    private static double[] quantiles(@Nonnull final DataMatrix x, final int j,
+            @Nonnull final double[] sample, final int maxBins) {
+        final int n = x.numRows();
+        final int s = sample.length;
+        for (int t = 0; t < s; t++) {
+            int i = (int) ((long) t * n / s);
+            sample[t] = x.get(i, j);
+        }
+        Arrays.sort(sample);
+
+        final double[] cuts = new double[maxBins - 1];
+        int m = 0;
+        int distinct = 1;
+        for (int t = 1; t < s && distinct <= maxBins; t++) {
+            if (sample[t] != sample[t - 1]) {
+                distinct++;
+            }
+        }
+        if (distinct <= maxBins) {
+            // a bin for each distinct value
+            for (int t = 1; t < s; t++) {
+                if (sample[t] != sample[t - 1]) {
+                    cuts[m++] = sample[t - 1];
+                }
+            }
+        } else {
+            double prev = Double.NaN;
+            for (int q = 1; q < maxBins; q++) {
+                double v = sample[(int) ((long) q * s / maxBins) - 1];
+                if (v != prev && v != sample[s - 1]) { // skip repeated quantiles
+                    cuts[m++] = v;
+                    prev = v;
+                }
+            }
+        }
+        return Arrays.copyOf(cuts, m);
+    }
+
+    /**
+     * @return the number of cuts less than v
+     */
+    private static int findBin(@Nonnull final double[] cuts, final double v) {
+        int lo = 0, hi = cuts.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cuts[mid] < v) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.smile.data;
+
+import hivemall.smile.data.Attribute.AttributeType;
+import hivemall.utils.io.IOUtils;
+import hivemall.utils.io.NioSegment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import smile.sort.QuickSort;
+
+/**
+ * A {@link DataMatrix} whose values and sort orders are kept in temporary files and memory-mapped
+ * through {@link NioSegment}, so that the number of training examples is not bounded by the heap.
+ * <p>
+ * Values are stored as float in blocks of rows. Each block holds the values of a column
+ * contiguously so that a column is scanned sequentially within a block.
+ */
+public final class MappedColumnarMatrix extends DataMatrix {
+    private static final Log logger = LogFactory.getLog(MappedColumnarMatrix.class);
+
+    private static final int BLOCK_BYTES = 8 * 1024 * 1024;
+    /** The number of sorted row indices in a mapped window */
+    private static final int ORDER_SHIFT = 22;
+    private static final int ORDER_MASK = (1 << ORDER_SHIFT) - 1;
+
+    private final int numRows;
+    private final int numColumns;
+    /** log2 of the number of rows in a block */
+    private final int shift;
+    private final int mask;
+
+    @Nonnull
+    private final File dataFile;
+    /** Column-major values of each block */
+    private FloatBuffer[] blocks;
+
+    @Nullable
+    private NioSegment orderFile;
+    private long orderFilePos;
+    /** Sorted row indices of each numeric column in windows */
+    private IntBuffer[][] orders;
+
+    private MappedColumnarMatrix(@Nonnull File dataFile, int numRows, int numColumns, int shift,
+            @Nonnull FloatBuffer[] blocks) {
+        this.dataFile = dataFile;
+        this.numRows = numRows;
+        this.numColumns = numColumns;
+        this.shift = shift;
+        this.mask = (1 << shift) - 1;
+        this.blocks = blocks;
+        this.orderFile = null;
+        this.orderFilePos = 0L;
+        this.orders = new IntBuffer[numColumns][];
+    }
+
+    @Override
+    public int numRows() {
+        return numRows;
+    }
+
+    @Override
+    public int numColumns() {
+        return numColumns;
+    }
+
+    @Override
+    public double get(final int i, final int j) {
+        return blocks[i >>> shift].get((j << shift) + (i & mask));
+    }
+
+    @Override
+    public synchronized void sort(@Nonnull final Attribute[] attributes) {
+        final int n = numRows;
+        final float[] a = new float[n];
+        for (int j = 0; j < numColumns; j++) {
+            if (attributes[j].type != AttributeType.NUMERIC || orders[j] != null) {
+                continue;
+            }
+            final FloatBuffer[] blocks = this.blocks;
+            for (int i = 0; i < n; i++) {
+                a[i] = blocks[i >>> shift].get((j << shift) + (i & mask));
+            }
+            int[] index = QuickSort.sort(a);
+            try {
+                orders[j] = writeOrder(index);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to write the sort order of column " + j,
+                    e);
+            }
+        }
+    }
+
+    @Nonnull
+    private IntBuffer[] writeOrder(@Nonnull final int[] index) throws IOException {
+        NioSegment file = orderFile;
+        if (file == null) {
+            File f = File.createTempFile("hivemall_rf", ".order");
+            f.deleteOnExit();
+            file = new NioSegment(f);
+            this.orderFile = file;
+        }
+
+        final long start = orderFilePos;
+        final ByteBuffer buf = ByteBuffer.allocateDirect(Math.min(index.length, 1 << 16) * 4);
+        buf.order(ByteOrder.nativeOrder());
+        long pos = start;
+        for (int off = 0; off < index.length;) {
+            int len = Math.min(index.length - off, buf.capacity() / 4);
+            buf.clear();
+            buf.asIntBuffer().put(index, off, len);
+            buf.limit(len * 4);
+            file.write(pos, buf);
+            pos += len * 4;
+            off += len;
+        }
+        this.orderFilePos = pos;
+
+        final int numWindows = ((index.length - 1) >>> ORDER_SHIFT) + 1;
+        final IntBuffer[] windows = new IntBuffer[numWindows];
+        for (int w = 0; w < numWindows; w++) {
+            long from = start + ((long) w << ORDER_SHIFT) * 4L;
+            long size = Math.min(pos - from, (1L << ORDER_SHIFT) * 4L);
+            windows[w] = file.map(from, size).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+        return windows;
+    }
+
+    @Override
+    public int order(final int j, final int k) {
+        return orders[j][k >>> ORDER_SHIFT].get(k & ORDER_MASK);
+    }
+
+    /**
+     * Releases the mapped buffers and deletes the files.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        this.blocks = null;
+        this.orders = null;
+        if (orderFile != null) {
+            orderFile.close(true);
+            this.orderFile = null;
+        }
+        if (dataFile.exists()) {
+            dataFile.delete();
+        }
+    }
+
+    @Nonnull
+    public File getFile() {
+        return dataFile;
+    }
+
+    /**
+     * Writes rows into a temporary file in blocks and maps them on {@link #build()}.
+     */
+    @NotThreadSafe
+    public static final class Builder {
+
+        private final int blockBytes;
+
+        private int numColumns;
+        private int shift;
+        private int blockRows;
+
+        /** Column-major values of the current block */
+        private ByteBuffer block;
+        private int rows;
+        private int numBlocks;
+        private long numRows;
+
+        private NioSegment file;
+
+        public Builder() {
+            this(BLOCK_BYTES);
+        }
+
+        Builder(@Nonnegative int blockBytes) {
+            this.blockBytes = blockBytes;
+            this.numColumns = -1;
+        }
+
+        public int getNumRows() {
+            return (int) numRows;
+        }
+
+        public void add(@Nonnull final double[] row) throws IOException {
+            if (numColumns == -1) {
+                init(row.length);
+            } else if (row.length != numColumns) {
+                throw new IllegalArgumentException("Expected " + numColumns
+                        + " features but got " + row.length);
+            }
+            if (numRows == Integer.MAX_VALUE) {
+                throw new IllegalStateException("Too many rows: " + numRows);
+            }
+
+            final ByteBuffer block = this.block;
+            final int shift = this.shift;
+            final int r = rows;
+            for (int j = 0; j < row.length; j++) {
+                block.putFloat(((j << shift) + r) << 2, (float) row[j]);
+            }
+            numRows++;
+            if (++rows == blockRows) {
+                writeBlock();
+            }
+        }
+
+        private void init(final int p) throws IOException {
+            if (p == 0) {
+                throw new IllegalArgumentException("Empty features");
+            }
+            this.numColumns = p;
+            this.blockRows = Integer.highestOneBit(Math.max(1, blockBytes / (p * 4)));
+            if ((long) blockRows * p * 4L > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many features: " + p);
+            }
+            this.shift = Integer.numberOfTrailingZeros(blockRows);
+            this.block = ByteBuffer.allocateDirect(blockRows * p * 4);
+            block.order(ByteOrder.nativeOrder());
+
+            File f = File.createTempFile("hivemall_rf", ".cols");
+            f.deleteOnExit();
+            this.file = new NioSegment(f);
+            if (logger.isInfoEnabled()) {
+                logger.info("Spilling training examples into " + f.getAbsolutePath()
+                        + " in blocks of " + blockRows + " rows");
+            }
+        }
+
+        /**
+         * Writes the current block. The trailing part of the last block is left as is since it is
+         * never read.
+         */
+        private void writeBlock() throws IOException {
+            block.clear();
+            file.write((long) numBlocks * block.capacity(), block);
+            numBlocks++;
+            this.rows = 0;
+        }
+
+        @Nonnull
+        public MappedColumnarMatrix build() throws IOException {
+            if (numRows == 0) {
+                throw new IllegalStateException("No rows were added");
+            }
+            if (rows > 0) {
+                writeBlock();
+            }
+            final long blockSize = block.capacity();
+            this.block = null;
+
+            final FloatBuffer[] blocks = new FloatBuffer[numBlocks];
+            try {
+                for (int b = 0; b < numBlocks; b++) {
+                    blocks[b] = file.map(b * blockSize, blockSize)
+                                    .order(ByteOrder.nativeOrder())
+                                    .asFloatBuffer();
+                }
+            } catch (IOException e) {
+                file.close(true);
+                throw e;
+            } finally {
+                IOUtils.closeQuietly(file); // mappings remain valid after closing the channel
+            }
+            return new MappedColumnarMatrix(file.getFile(), (int) numRows, numColumns, shift,
+                blocks);
+        }
+
+    }
+
+}
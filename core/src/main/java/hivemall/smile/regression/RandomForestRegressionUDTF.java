@@ -21,6 +21,9 @@ package hivemall.smile.regression;
 import hivemall.UDTFWithOptions;
 import hivemall.smile.ModelType;
 import hivemall.smile.data.Attribute;
+import hivemall.smile.data.DataMatrix;
+import hivemall.smile.data.FeatureBins;
+import hivemall.smile.data.MappedColumnarMatrix;
 import hivemall.smile.utils.SmileExtUtils;
 import hivemall.smile.utils.SmileTaskExecutor;
 import hivemall.smile.vm.StackMachine;
@@ -80,6 +83,8 @@ public final class RandomForestRegressionUDTF extends UDTFWithOptions {
     private PrimitiveObjectInspector targetOI;
 
     private List<double[]> featuresList;
+    @Nullable
+    private MappedColumnarMatrix.Builder featuresBuilder;
     private DoubleArrayList targets;
     /**
      * The number of trees for each task
@@ -102,6 +107,11 @@ public final class RandomForestRegressionUDTF extends UDTFWithOptions {
     private long _seed;
     private Attribute[] _attributes;
     private ModelType _outputType;
+    /**
+     * The maximum number of bins for histogram-based split finding, or 0 for exact split finding
+     */
+    private int _maxBins;
+    private boolean _outOfCore;
 
     @Nullable
     private Reporter _progressReporter;
@@ -133,8 +143,13 @@ public final class RandomForestRegressionUDTF extends UDTFWithOptions {
                 + "(Q for quantitative variable and C for categorical variable. e.g., [Q,C,Q,C])");
         opts.addOption("output", "output_type", true,
             "The output type (serialization/ser or opscode/vm or javascript/js) [default: serialization]");
+        opts.addOption("bins", "max_bins", true,
+            "The maximum number of bins of numeric features for histogram-based split finding"
+                    + " (at most 255) [default: 0 (exact split finding)]");
         opts.addOption("disable_compression", false,
             "Whether to disable compression of the output script [default: false]");
+        opts.addOption("out_of_core", false,
+            "Spill training examples into memory-mapped files instead of the heap [default: false]");
         return opts;
     }
 
@@ -147,6 +162,8 @@ public final class RandomForestRegressionUDTF extends UDTFWithOptions {
         long seed = -1L;
         String output = "serialization";
         boolean compress = true;
+        boolean outOfCore = false;
+        int maxBins = 0;
 
         CommandLine cl = null;
         if (argOIs.length >= 3) {
@@ -166,9 +183,15 @@ public final class RandomForestRegressionUDTF extends UDTFWithOptions {
             seed = Primitives.parseLong(cl.getOptionValue("seed"), seed);
             attrs = SmileExtUtils.resolveAttributes(cl.getOptionValue("attribute_types"));
             output = cl.getOptionValue("output", output);
+            maxBins = Primitives.parseInt(cl.getOptionValue("max_bins"), maxBins);
+            if (maxBins != 0 && (maxBins < 2 || maxBins > FeatureBins.MAX_BINS)) {
+                throw new UDFArgumentException("max_bins must be in [2, " + FeatureBins.MAX_BINS
+                        + "]: " + maxBins);
+            }
             if (cl.hasOption("disable_compression")) {
                 compress = false;
             }
+            outOfCore = cl.hasOption("out_of_core");
         }
 
         this._numTrees = trees;
@@ -180,6 +203,8 @@ public final class RandomForestRegressionUDTF extends UDTFWithOptions {
         this._seed = seed;
         this._attributes = attrs;
         this._outputType = ModelType.resolve(output, compress);
+        this._outOfCore = outOfCore;
+        this._maxBins = maxBins;
 
         return cl;
     }
@@ -201,7 +226,11 @@ public final class RandomForestRegressionUDTF extends UDTFWithOptions {
 
         processOptions(argOIs);
 
-        this.featuresList = new ArrayList<double[]>(1024);
+        if (_outOfCore) {
+            this.featuresBuilder = new MappedColumnarMatrix.Builder();
+        } else {
+            this.featuresList = new ArrayList<double[]>(1024);
+        }
         this.targets = new DoubleArrayList(1024);
 
         ArrayList<String> fieldNames = new ArrayList<String>(5);
@@ -231,7 +260,15 @@ public final class RandomForestRegressionUDTF extends UDTFWithOptions {
         double[] features = HiveUtils.asDoubleArray(args[0], featureListOI, featureElemOI);
         double target = PrimitiveObjectInspectorUtils.getDouble(args[1], targetOI);
 
-        featuresList.add(features);
+        if (featuresBuilder != null) {
+            try {
+                featuresBuilder.add(features);
+            } catch (IOException e) {
+                throw new HiveException("Failed to spill a training example", e);
+            }
+        } else {
+            featuresList.add(features);
+        }
         targets.add(target);
     }
 
@@ -250,15 +287,33 @@ public final class RandomForestRegressionUDTF extends UDTFWithOptions {
 
         reportProgress(_progressReporter);
 
-        int numExamples = featuresList.size();
+        int numExamples = targets.size();
         if (numExamples > 0) {
-            double[][] x = featuresList.toArray(new double[numExamples][]);
-            this.featuresList = null;
             double[] y = targets.toArray();
             this.targets = null;
 
+            final DataMatrix x;
+            if (featuresBuilder != null) {
+                try {
+                    x = featuresBuilder.build();
+                } catch (IOException e) {
+                    throw new HiveException("Failed to map training examples", e);
+                }
+                this.featuresBuilder = null;
+            } else {
+                double[][] rows = featuresList.toArray(new double[numExamples][]);
+                this.featuresList = null;
+                // Shuffle training samples
+                SmileExtUtils.shuffle(rows, y, _seed);
+                x = DataMatrix.of(rows);
+            }
+
             // run training
-            train(x, y);
+            try {
+                train(x, y);
+            } finally {
+                IOUtils.closeQuietly(x);
+            }
         }
 
         // clean up
@@ -285,36 +340,37 @@ public final class RandomForestRegressionUDTF extends UDTFWithOptions {
      * @param _numVars The number of variables to pick up in each node.
      * @param _seed The seed number for Random Forest
      */
-    private void train(@Nonnull final double[][] x, @Nonnull final double[] y) throws HiveException {
-        if (x.length != y.length) {
+    private void train(@Nonnull final DataMatrix x, @Nonnull final double[] y) throws HiveException {
+        final int numExamples = x.numRows();
+        if (numExamples != y.length) {
             throw new HiveException(String.format("The sizes of X and Y don't match: %d != %d",
-                x.length, y.length));
+                numExamples, y.length));
         }
         checkOptions();
 
-        // Shuffle training samples 
-        SmileExtUtils.shuffle(x, y, _seed);
-
         Attribute[] attributes = SmileExtUtils.attributeTypes(_attributes, x);
-        int numInputVars = SmileExtUtils.computeNumInputVars(_numVars, x);
+        int numInputVars = SmileExtUtils.computeNumInputVars(_numVars, x.numColumns());
 
         if (logger.isInfoEnabled()) {
             logger.info("numTrees: " + _numTrees + ", numVars: " + numInputVars
                     + ", minSamplesSplit: " + _minSamplesSplit + ", maxDepth: " + _maxDepth
                     + ", maxLeafs: " + _maxLeafNodes + ", nodeCapacity: " + _minSamplesSplit
-                    + ", seed: " + _seed);
+                    + ", maxBins: " + _maxBins + ", seed: " + _seed);
         }
 
-        int numExamples = x.length;
         double[] prediction = new double[numExamples]; // placeholder for out-of-bag prediction
         int[] oob = new int[numExamples];
-        int[][] order = SmileExtUtils.sort(attributes, x);
+        if (_maxBins > 0) {
+            x.bin(attributes, _maxBins);
+        } else {
+            x.sort(attributes);
+        }
         AtomicInteger remainingTasks = new AtomicInteger(_numTrees);
         List<TrainingTask> tasks = new ArrayList<TrainingTask>();
         for (int i = 0; i < _numTrees; i++) {
             long s = (_seed == -1L) ? -1L : _seed + i;
-            tasks.add(new TrainingTask(this, i, attributes, x, y, numInputVars, order, prediction,
-                oob, s, remainingTasks));
+            tasks.add(new TrainingTask(this, i, attributes, x, y, numInputVars, prediction, oob,
+                s, remainingTasks));
         }
 
         MapredContext mapredContext = MapredContextAccessor.get();
@@ -373,16 +429,11 @@ public final class RandomForestRegressionUDTF extends UDTFWithOptions {
         /**
          * Training instances.
          */
-        private final double[][] _x;
+        private final DataMatrix _x;
         /**
          * Training sample labels.
          */
         private final double[] _y;
-        /**
-         * The index of training values in ascending order. Note that only numeric attributes will
-         * be sorted.
-         */
-        private final int[][] _order;
         /**
          * The number of variables to pick up in each node.
          */
@@ -402,14 +453,13 @@ public final class RandomForestRegressionUDTF extends UDTFWithOptions {
         private final AtomicInteger _remainingTasks;
 
         TrainingTask(RandomForestRegressionUDTF udtf, int taskId, Attribute[] attributes,
-                double[][] x, double[] y, int numVars, int[][] order, double[] prediction,
-                int[] oob, long seed, AtomicInteger remainingTasks) {
+                DataMatrix x, double[] y, int numVars, double[] prediction, int[] oob, long seed,
+                AtomicInteger remainingTasks) {
             this._udtf = udtf;
             this._taskId = taskId;
             this._attributes = attributes;
             this._x = x;
             this._y = y;
-            this._order = order;
             this._numVars = numVars;
             this._prediction = prediction;
             this._oob = oob;
@@ -423,7 +473,7 @@ public final class RandomForestRegressionUDTF extends UDTFWithOptions {
                 _seed).nextLong();
             final smile.math.Random rnd1 = new smile.math.Random(s);
             final smile.math.Random rnd2 = new smile.math.Random(rnd1.nextLong());
-            final int N = _x.length;
+            final int N = _x.numRows();
 
             // Training samples draw with replacement.
             final int[] bags = new int[N];
@@ -437,13 +487,14 @@ public final class RandomForestRegressionUDTF extends UDTFWithOptions {
             StopWatch stopwatch = new StopWatch();
             RegressionTree tree = new RegressionTree(_attributes, _x, _y, _numVars,
                 _udtf._maxDepth, _udtf._maxLeafNodes, _udtf._minSamplesSplit,
-                _udtf._minSamplesLeaf, _order, bags, rnd2);
+                _udtf._minSamplesLeaf, bags, null, rnd2);
             incrCounter(_udtf._treeConstuctionTimeCounter, stopwatch.elapsed(TimeUnit.SECONDS));
 
             // out-of-bag prediction
+            final double[] row = new double[_x.numColumns()];
             for (int i = sampled.nextClearBit(0); i < N; i = sampled.nextClearBit(i + 1)) {
-                double pred = tree.predict(_x[i]);
-                synchronized (_x[i]) {
+                double pred = tree.predict(_x.getRow(i, row));
+                synchronized (_prediction) {
                     _prediction[i] += pred;
                     _oob[i]++;
                 }
@@ -34,7 +34,10 @@ package hivemall.smile.regression;
 
 import hivemall.smile.data.Attribute;
 import hivemall.smile.data.Attribute.AttributeType;
+import hivemall.smile.data.DataMatrix;
+import hivemall.smile.data.FeatureBins;
 import hivemall.smile.utils.SmileExtUtils;
+import hivemall.smile.vm.CompiledTree;
 import hivemall.utils.collections.IntArrayList;
 import hivemall.utils.lang.ObjectUtils;
 import hivemall.utils.lang.StringUtils;
@@ -128,14 +131,15 @@ public final class RegressionTree implements Regression<double[]> {
      */
     private final int _minLeafSize;
     /**
-     * The number of input variables to be used to determine the decision at a node of the tree.
+     * The bins of numeric attributes for histogram-based split finding, or null to find exact
+     * splits on sorted values.
      */
-    private final int _numVars;
+    @Nullable
+    private final FeatureBins _bins;
     /**
-     * The index of training values in ascending order. Note that only numeric attributes will be
-     * sorted.
+     * The number of input variables to be used to determine the decision at a node of the tree.
      */
-    private final int[][] _order;
+    private final int _numVars;
 
     private final Random _rnd;
 
@@ -282,6 +286,20 @@ public final class RegressionTree implements Regression<double[]> {
             }
         }
 
+        /**
+         * Appends this subtree to the builder in pre-order.
+         */
+        public void compile(@Nonnull final CompiledTree.Builder builder) {
+            if (trueChild == null && falseChild == null) {
+                builder.addLeaf(output);
+            } else {
+                final int node = builder.addSplit(splitFeature, splitFeatureType, splitValue);
+                trueChild.compile(builder);
+                builder.setFalseChild(node);
+                falseChild.compile(builder);
+            }
+        }
+
         public int opCodegen(final List<String> scripts, int depth) {
             int selfDepth = 0;
             final StringBuilder buf = new StringBuilder();
@@ -405,7 +423,7 @@ public final class RegressionTree implements Regression<double[]> {
         /**
          * Training dataset.
          */
-        final double[][] x;
+        final DataMatrix x;
         /**
          * Training data response value.
          */
@@ -415,10 +433,22 @@ public final class RegressionTree implements Regression<double[]> {
 
         final int depth;
 
+        /**
+         * The parent and the sibling of this node to derive histograms from.
+         */
+        @Nullable
+        TrainNode parent, sibling;
+        /**
+         * Pairs of the sum of responses and the sample count in the bins of each numeric
+         * attribute, cached for the children.
+         */
+        @Nullable
+        double[][] histograms;
+
         /**
          * Constructor.
          */
-        public TrainNode(Node node, double[][] x, double[] y, int[] bags, int depth) {
+        public TrainNode(Node node, DataMatrix x, double[] y, int[] bags, int depth) {
             this.node = node;
             this.x = x;
             this.y = y;
@@ -478,8 +508,8 @@ public final class RegressionTree implements Regression<double[]> {
 
             // Loop through features and compute the reduction of squared error,
             // which is trueCount * trueMean^2 + falseCount * falseMean^2 - count * parentMean^2      
-            final int[] samples = _hasNumericType ? SmileExtUtils.bagsToSamples(bags, x.length)
-                    : null;
+            final int[] samples = (_hasNumericType && _bins == null) ? SmileExtUtils.bagsToSamples(
+                bags, x.numRows()) : null;
             for (int j = 0; j < _numVars; j++) {
                 Node split = findBestSplit(numSamples, sum, variables[j], samples);
                 if (split.splitScore > node.splitScore) {
@@ -516,7 +546,7 @@ public final class RegressionTree implements Regression<double[]> {
                     // For each true feature of this datum increment the
                     // sufficient statistics for the "true" branch to evaluate
                     // splitting on this feature.
-                    int index = (int) x[i][j];
+                    int index = (int) x.get(i, j);
                     trueSum[index] += y[i];
                     ++trueCount[index];
                 }
@@ -546,16 +576,51 @@ public final class RegressionTree implements Regression<double[]> {
                         split.falseChildOutput = falseMean;
                     }
                 }
+            } else if (_attributes[j].type == AttributeType.NUMERIC && _bins != null) {
+                final double[] histogram = histogram(j);
+                double trueSum = 0.0;
+                int trueCount = 0;
+
+                for (int b = 0, last = _bins.numBins(j) - 1; b < last; b++) {
+                    trueSum += histogram[2 * b];
+                    trueCount += (int) histogram[2 * b + 1];
+
+                    final double falseCount = n - trueCount;
+
+                    // If either side is empty, skip this feature.
+                    if (trueCount < _minSplit || falseCount < _minSplit) {
+                        continue;
+                    }
+
+                    // compute penalized means
+                    final double trueMean = trueSum / trueCount;
+                    final double falseMean = (sum - trueSum) / falseCount;
+
+                    final double gain = (trueCount * trueMean * trueMean + falseCount * falseMean
+                            * falseMean)
+                            - n * split.output * split.output;
+                    if (gain > split.splitScore) {
+                        // new best split
+                        split.splitFeature = j;
+                        split.splitFeatureType = AttributeType.NUMERIC;
+                        split.splitValue = _bins.splitValue(j, b);
+                        split.splitScore = gain;
+                        split.trueChildOutput = trueMean;
+                        split.falseChildOutput = falseMean;
+                    }
+                }
             } else if (_attributes[j].type == AttributeType.NUMERIC) {
                 double trueSum = 0.0;
                 int trueCount = 0;
                 double prevx = Double.NaN;
 
-                for (int i : _order[j]) {
+                for (int k = 0, size = x.numRows(); k < size; k++) {
+                    final int i = x.order(j, k);
                     final int sample = samples[i];
                     if (sample > 0) {
-                        if (Double.isNaN(prevx) || x[i][j] == prevx) {
-                            prevx = x[i][j];
+                        final double x_ij = x.get(i, j);
+                        if (Double.isNaN(prevx) || x_ij == prevx) {
+                            prevx = x_ij;
                             trueSum += sample * y[i];
                             trueCount += sample;
                             continue;
@@ -565,7 +630,7 @@ public final class RegressionTree implements Regression<double[]> {
 
                         // If either side is empty, skip this feature.
                         if (trueCount < _minSplit || falseCount < _minSplit) {
-                            prevx = x[i][j];
+                            prevx = x_ij;
                             trueSum += sample * y[i];
                             trueCount += sample;
                             continue;
@@ -585,13 +650,13 @@ public final class RegressionTree implements Regression<double[]> {
                             // new best split
                             split.splitFeature = j;
                             split.splitFeatureType = AttributeType.NUMERIC;
-                            split.splitValue = (x[i][j] + prevx) / 2;
+                            split.splitValue = (x_ij + prevx) / 2;
                             split.splitScore = gain;
                             split.trueChildOutput = trueMean;
                             split.falseChildOutput = falseMean;
                         }
 
-                        prevx = x[i][j];
+                        prevx = x_ij;
                         trueSum += sample * y[i];
                         trueCount += sample;
                     }
@@ -604,6 +669,51 @@ public final class RegressionTree implements Regression<double[]> {
             return split;
         }
 
+        /**
+         * Returns the sums of responses and the sample counts in the bins of the numeric attribute
+         * j. When the parent has the histogram, it is derived by subtracting the histogram of the
+         * sibling, which is computed directly only if the sibling has fewer samples.
+         */
+        @Nonnull
+        private double[] histogram(final int j) {
+            if (histograms == null) {
+                this.histograms = new double[_attributes.length][];
+            }
+            double[] histogram = histograms[j];
+            if (histogram != null) {
+                return histogram;
+            }
+
+            final double[] parentHistogram = (parent == null || parent.histograms == null) ? null
+                    : parent.histograms[j];
+            if (parentHistogram != null) {
+                double[] siblingHistogram = (sibling.histograms == null) ? null
+                        : sibling.histograms[j];
+                if (siblingHistogram == null && sibling.bags != null
+                        && sibling.bags.length < bags.length) {
+                    siblingHistogram = sibling.histogram(j);
+                }
+                if (siblingHistogram != null) {
+                    histogram = new double[parentHistogram.length];
+                    for (int b = 0; b < histogram.length; b++) {
+                        histogram[b] = parentHistogram[b] - siblingHistogram[b];
+                    }
+                    histograms[j] = histogram;
+                    return histogram;
+                }
+            }
+
+            histogram = new double[_bins.numBins(j) * 2];
+            for (int i = 0, size = bags.length; i < size; i++) {
+                final int index = bags[i];
+                final int b = _bins.bin(index, j) * 2;
+                histogram[b] += y[index];
+                histogram[b + 1] += 1.d;
+            }
+            histograms[j] = histogram;
+            return histogram;
+        }
+
         /**
          * Split the node into two children nodes. Returns true if split success.
          */
@@ -636,25 +746,47 @@ public final class RegressionTree implements Regression<double[]> {
             node.trueChild = new Node(node.trueChildOutput);
             this.trueChild = new TrainNode(node.trueChild, x, y, trueBags.toArray(), depth + 1);
             trueBags = null; // help GC for recursive call
+            node.falseChild = new Node(node.falseChildOutput);
+            this.falseChild = new TrainNode(node.falseChild, x, y, falseBags.toArray(), depth + 1);
+            falseBags = null; // help GC for recursive call
+            if (_bins != null) {
+                trueChild.parent = this;
+                trueChild.sibling = falseChild;
+                falseChild.parent = this;
+                falseChild.sibling = trueChild;
+            }
+
+            boolean trueSplit = false, falseSplit = false;
             if (tc >= _minSplit && trueChild.findBestSplit()) {
                 if (nextSplits != null) {
                     nextSplits.add(trueChild);
+                    trueSplit = true;
                 } else {
                     trueChild.split(null);
                 }
             }
-
-            node.falseChild = new Node(node.falseChildOutput);
-            this.falseChild = new TrainNode(node.falseChild, x, y, falseBags.toArray(), depth + 1);
-            falseBags = null; // help GC for recursive call
             if (fc >= _minSplit && falseChild.findBestSplit()) {
                 if (nextSplits != null) {
                     nextSplits.add(falseChild);
+                    falseSplit = true;
                 } else {
                     falseChild.split(null);
                 }
             }
 
+            // release histograms that are no longer used by children and siblings
+            if (nextSplits != null) {
+                this.histograms = null;
+            }
+            trueChild.parent = trueChild.sibling = null;
+            falseChild.parent = falseChild.sibling = null;
+            if (!trueSplit) {
+                trueChild.histograms = null;
+            }
+            if (!falseSplit) {
+                falseChild.histograms = null;
+            }
+
             _importance[node.splitFeature] += node.splitScore;
 
             return true;
@@ -671,7 +803,7 @@ public final class RegressionTree implements Regression<double[]> {
                 final double splitValue = node.splitValue;
                 for (int i = 0, size = bags.length; i < size; i++) {
                     final int index = bags[i];
-                    if (x[index][splitFeature] == splitValue) {
+                    if (x.get(index, splitFeature) == splitValue) {
                         trueBags.add(index);
                         tc++;
                     } else {
@@ -683,7 +815,7 @@ public final class RegressionTree implements Regression<double[]> {
                 final double splitValue = node.splitValue;
                 for (int i = 0, size = bags.length; i < size; i++) {
                     final int index = bags[i];
-                    if (x[index][splitFeature] <= splitValue) {
+                    if (x.get(index, splitFeature) <= splitValue) {
                         trueBags.add(index);
                         tc++;
                     } else {
@@ -736,10 +868,22 @@ public final class RegressionTree implements Regression<double[]> {
             @Nonnull double[] y, int numVars, int maxDepth, int maxLeafs, int minSplits,
             int minLeafSize, @Nullable int[][] order, @Nullable int[] bags,
             @Nullable NodeOutput output, @Nullable smile.math.Random rand) {
+        this(attributes, DataMatrix.of(x, order), y, numVars, maxDepth, maxLeafs, minSplits,
+            minLeafSize, bags, output, rand);
+    }
+
+    /**
+     * Constructor. Learns a regression tree on a {@link DataMatrix}. Numeric columns of x are
+     * sorted unless they are sorted already.
+     */
+    public RegressionTree(@Nullable Attribute[] attributes, @Nonnull DataMatrix x,
+            @Nonnull double[] y, int numVars, int maxDepth, int maxLeafs, int minSplits,
+            int minLeafSize, @Nullable int[] bags, @Nullable NodeOutput output,
+            @Nullable smile.math.Random rand) {
         checkArgument(x, y, numVars, maxDepth, maxLeafs, minSplits, minLeafSize);
 
         this._attributes = SmileExtUtils.attributeTypes(attributes, x);
-        if (_attributes.length != x[0].length) {
+        if (_attributes.length != x.numColumns()) {
             throw new IllegalArgumentException("-attrs option is invliad: "
                     + Arrays.toString(attributes));
         }
@@ -749,7 +893,10 @@ public final class RegressionTree implements Regression<double[]> {
         this._maxDepth = maxDepth;
         this._minSplit = minSplits;
         this._minLeafSize = minLeafSize;
-        this._order = (order == null) ? SmileExtUtils.sort(_attributes, x) : order;
+        this._bins = x.getBins();
+        if (_bins == null) {
+            x.sort(_attributes);
+        }
         this._importance = new double[_attributes.length];
         this._rnd = (rand == null) ? new smile.math.Random() : rand;
         this._nodeOutput = output;
@@ -802,13 +949,13 @@ public final class RegressionTree implements Regression<double[]> {
         }
     }
 
-    private static void checkArgument(@Nonnull double[][] x, @Nonnull double[] y, int numVars,
+    private static void checkArgument(@Nonnull DataMatrix x, @Nonnull double[] y, int numVars,
             int maxDepth, int maxLeafs, int minSplits, int minLeafSize) {
-        if (x.length != y.length) {
+        if (x.numRows() != y.length) {
             throw new IllegalArgumentException(String.format(
-                "The sizes of X and Y don't match: %d != %d", x.length, y.length));
+                "The sizes of X and Y don't match: %d != %d", x.numRows(), y.length));
         }
-        if (numVars <= 0 || numVars > x[0].length) {
+        if (numVars <= 0 || numVars > x.numColumns()) {
             throw new IllegalArgumentException(
                 "Invalid number of variables to split on at a node of the tree: " + numVars);
         }
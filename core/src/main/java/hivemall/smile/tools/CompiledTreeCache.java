@@ -0,0 +1,122 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.smile.tools;
+
+import hivemall.smile.vm.CompiledTree;
+import hivemall.utils.hashing.HashUtils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * A LRU cache of compiled trees shared by the UDF instances in a JVM. Trees are evicted in the
+ * least-recently-used order while the total bytes of the cached trees exceed the limit.
+ *
+ * Trees are keyed by model ID, and a cached tree is returned only for the same script, i.e., of the
+ * same {@link HashUtils#fingerprint(byte[], int, int)}. A model ID reused for another model in the
+ * same JVM is thus compiled again.
+ */
+@ThreadSafe
+final class CompiledTreeCache {
+
+    static final long DEFAULT_MAX_BYTES = 256L * 1024L * 1024L; // 256 MiB
+
+    private static final CompiledTreeCache INSTANCE = new CompiledTreeCache(DEFAULT_MAX_BYTES);
+
+    @Nonnull
+    private final LinkedHashMap<String, Entry> trees;
+    private long maxBytes;
+    private long totalBytes;
+
+    CompiledTreeCache(@Nonnegative long maxBytes) {
+        this.trees = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+        this.maxBytes = maxBytes;
+        this.totalBytes = 0L;
+    }
+
+    @Nonnull
+    static CompiledTreeCache getInstance() {
+        return INSTANCE;
+    }
+
+    synchronized void setMaxBytes(@Nonnegative long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    synchronized int size() {
+        return trees.size();
+    }
+
+    @Nullable
+    synchronized CompiledTree get(@Nonnull final String modelId, @Nonnull final Text script) {
+        Entry e = trees.get(modelId);
+        if (e == null || e.fingerprint != fingerprint(script)) {
+            return null;
+        }
+        return e.tree;
+    }
+
+    synchronized void put(@Nonnull final String modelId, @Nonnull final Text script,
+            @Nonnull final CompiledTree tree) {
+        Entry old = trees.put(modelId, new Entry(fingerprint(script), tree));
+        if (old != null) {
+            totalBytes -= old.tree.bytes();
+        }
+        totalBytes += tree.bytes();
+        evict();
+    }
+
+    private void evict() {
+        final Iterator<Entry> itor = trees.values().iterator();
+        // the most recently used tree is kept even if it exceeds the limit alone
+        while (totalBytes > maxBytes && trees.size() > 1) {
+            Entry e = itor.next();
+            itor.remove();
+            totalBytes -= e.tree.bytes();
+        }
+    }
+
+    private static long fingerprint(@Nonnull final Text script) {
+        return HashUtils.fingerprint(script.getBytes(), 0, script.getLength());
+    }
+
+    private static final class Entry {
+        final long fingerprint;
+        @Nonnull
+        final CompiledTree tree;
+
+        Entry(long fingerprint, @Nonnull CompiledTree tree) {
+            this.fingerprint = fingerprint;
+            this.tree = tree;
+        }
+    }
+
+}
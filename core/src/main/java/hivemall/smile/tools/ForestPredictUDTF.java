@@ -0,0 +1,361 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.smile.tools;
+
+import hivemall.UDTFWithOptions;
+import hivemall.smile.ModelType;
+import hivemall.smile.tools.TreePredictUDF.CompiledTreeEvaluator;
+import hivemall.smile.tools.TreePredictUDF.JavaSerializationEvaluator;
+import hivemall.smile.tools.TreePredictUDF.StackmachineEvaluator;
+import hivemall.smile.vm.CompiledTree;
+import hivemall.utils.hadoop.HadoopUtils;
+import hivemall.utils.hadoop.HiveUtils;
+import hivemall.utils.io.IOUtils;
+import hivemall.utils.lang.Primitives;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Predicts with all the trees of a random forest in one pass, instead of joining test rows with
+ * every tree and aggregating the results by <tt>rf_ensemble</tt>.
+ *
+ * The forest is read once from the output of <tt>train_randomforest_classifier</tt> or
+ * <tt>train_randomforest_regr</tt> stored as a text table, e.g., by
+ * <tt>add file hdfs:///user/hive/warehouse/rf_model</tt>. Input rows are buffered into blocks and
+ * evaluated tree by tree so that each tree stays in CPU caches across the rows of a block.
+ */
+@Description(
+        name = "forest_predict",
+        value = "_FUNC_(ANY rowid, array<double> features, const string options)"
+                + " - Returns a prediction result of all the trees of a random forest loaded from -model")
+public final class ForestPredictUDTF extends UDTFWithOptions {
+    private static final Log logger = LogFactory.getLog(ForestPredictUDTF.class);
+
+    private ObjectInspector rowIdOI;
+    private ListObjectInspector featureListOI;
+    private PrimitiveObjectInspector featureElemOI;
+
+    private String modelFile;
+    private boolean classification;
+    private boolean outputLeaves;
+    private int batchSize;
+
+    @Nullable
+    private CompiledTree[] trees;
+    /** The number of classes for classification */
+    private int numClasses;
+
+    @Nullable
+    private Object[] rowIds;
+    @Nullable
+    private double[][] features;
+    private int numRows;
+
+    @Override
+    protected Options getOptions() {
+        Options opts = new Options();
+        opts.addOption("model", true, "The path to the model table or its file on the local"
+                + " filesystem, e.g., a file added to the distributed cache");
+        opts.addOption("classification", false,
+            "Predict a class label by voting [default: regression]");
+        opts.addOption("leaves", "output_leaves", false,
+            "Output the indexes of the leaf nodes that a row reaches in each tree");
+        opts.addOption("batch", "batch_size", true,
+            "The number of rows to evaluate at a time [default: 128]");
+        return opts;
+    }
+
+    @Override
+    protected CommandLine processOptions(ObjectInspector[] argOIs) throws UDFArgumentException {
+        String modelFile = null;
+        boolean classification = false;
+        boolean outputLeaves = false;
+        int batchSize = 128;
+
+        CommandLine cl = null;
+        if (argOIs.length >= 3) {
+            String rawArgs = HiveUtils.getConstString(argOIs[2]);
+            cl = parseOptions(rawArgs);
+            modelFile = cl.getOptionValue("model");
+            classification = cl.hasOption("classification");
+            outputLeaves = cl.hasOption("output_leaves");
+            batchSize = Primitives.parseInt(cl.getOptionValue("batch_size"), batchSize);
+            if (batchSize < 1) {
+                throw new UDFArgumentException("batch_size must be positive: " + batchSize);
+            }
+        }
+        if (modelFile == null) {
+            throw new UDFArgumentException("-model is required");
+        }
+
+        this.modelFile = modelFile;
+        this.classification = classification;
+        this.outputLeaves = outputLeaves;
+        this.batchSize = batchSize;
+        return cl;
+    }
+
+    @Override
+    public StructObjectInspector initialize(ObjectInspector[] argOIs) throws UDFArgumentException {
+        if (argOIs.length != 3) {
+            throw new UDFArgumentException(
+                "_FUNC_ takes 3 arguments: ANY rowid, array<double> features, const string options");
+        }
+        this.rowIdOI = argOIs[0];
+        ListObjectInspector listOI = HiveUtils.asListOI(argOIs[1]);
+        this.featureListOI = listOI;
+        this.featureElemOI = HiveUtils.asDoubleCompatibleOI(listOI.getListElementObjectInspector());
+
+        processOptions(argOIs);
+
+        this.trees = null;
+        this.rowIds = new Object[batchSize];
+        this.features = new double[batchSize][];
+        this.numRows = 0;
+
+        final ArrayList<String> fieldNames = new ArrayList<String>();
+        final ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        fieldNames.add("rowid");
+        fieldOIs.add(ObjectInspectorUtils.getStandardObjectInspector(rowIdOI,
+            ObjectInspectorCopyOption.WRITABLE));
+        if (classification) {
+            fieldNames.add("label");
+            fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+            fieldNames.add("probability");
+            fieldOIs.add(PrimitiveObjectInspectorFactory.writableDoubleObjectInspector);
+            fieldNames.add("probabilities");
+            fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.writableDoubleObjectInspector));
+        } else {
+            fieldNames.add("predicted");
+            fieldOIs.add(PrimitiveObjectInspectorFactory.writableDoubleObjectInspector);
+        }
+        if (outputLeaves) {
+            fieldNames.add("leaves");
+            fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.writableIntObjectInspector));
+        }
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+    }
+
+    @Override
+    public void process(Object[] args) throws HiveException {
+        if (trees == null) {
+            loadForest();
+        }
+        Object arg1 = args[1];
+        if (arg1 == null) {
+            throw new HiveException("array<double> features was null");
+        }
+        rowIds[numRows] = ObjectInspectorUtils.copyToStandardObject(args[0], rowIdOI,
+            ObjectInspectorCopyOption.WRITABLE);
+        features[numRows] = HiveUtils.asDoubleArray(arg1, featureListOI, featureElemOI);
+        if (++numRows == batchSize) {
+            predictBatch();
+        }
+    }
+
+    private void loadForest() throws HiveException {
+        final List<CompiledTree> list = new ArrayList<CompiledTree>();
+        final File file = new File(modelFile);
+        if (!file.exists()) {
+            throw new HiveException("Model file does not exist: " + file.getAbsolutePath());
+        }
+        try {
+            loadTrees(file, classification, list);
+        } catch (IOException e) {
+            throw new HiveException("Failed to load a model: " + file.getAbsolutePath(), e);
+        }
+        if (list.isEmpty()) {
+            throw new HiveException("No tree was found in " + file.getAbsolutePath());
+        }
+
+        final CompiledTree[] trees = list.toArray(new CompiledTree[list.size()]);
+        if (classification) {
+            int maxLabel = 0;
+            for (CompiledTree tree : trees) {
+                maxLabel = Math.max(maxLabel, (int) tree.maxOutput());
+            }
+            this.numClasses = Math.max(2, maxLabel + 1);
+        }
+        this.trees = trees;
+        logger.info("Loaded " + trees.length + " trees from " + file.getAbsolutePath());
+    }
+
+    /**
+     * Loads the trees in lines of <tt>model_id, model_type, pred_model, ...</tt> delimited by
+     * '\001' (the default of Hive text tables) or tabs. The trees are compiled directly, not via
+     * {@link CompiledTreeCache}, as this UDTF holds all of them by itself.
+     */
+    private static void loadTrees(@Nonnull final File file, final boolean classification,
+            @Nonnull final List<CompiledTree> trees) throws IOException, HiveException {
+        final String name = file.getName();
+        if (name.endsWith(".crc") || name.startsWith(".") || name.startsWith("_")) {
+            return;
+        }
+        if (file.isDirectory()) {
+            final File[] files = file.listFiles();
+            Arrays.sort(files);
+            for (File f : files) {
+                loadTrees(f, classification, trees);
+            }
+            return;
+        }
+
+        final CompiledTreeEvaluator deserializer = new JavaSerializationEvaluator();
+        final CompiledTreeEvaluator compiler = new StackmachineEvaluator();
+        BufferedReader reader = null;
+        try {
+            reader = HadoopUtils.getBufferedReader(file);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final String[] fields = line.split("[\001\t]", 4);
+                if (fields.length < 3) {
+                    throw new HiveException("Illegal model line in " + file.getAbsolutePath()
+                            + ": " + line);
+                }
+                final ModelType type;
+                try {
+                    type = ModelType.resolve(Integer.parseInt(fields[1]));
+                } catch (NumberFormatException e) {
+                    throw new HiveException("Illegal model type: " + fields[1], e);
+                }
+                final Text script = new Text(fields[2]);
+
+                final CompiledTree tree;
+                switch (type) {
+                    case serialization:
+                    case serialization_compressed:
+                        tree = deserializer.compile(script, type.isCompressed(), classification);
+                        break;
+                    case opscode:
+                    case opscode_compressed:
+                        tree = compiler.compile(script, type.isCompressed(), classification);
+                        break;
+                    default:
+                        throw new HiveException("Unsupported model type: " + type);
+                }
+                trees.add(tree);
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+            IOUtils.closeQuietly(compiler);
+        }
+    }
+
+    private void predictBatch() throws HiveException {
+        final CompiledTree[] trees = this.trees;
+        final int numTrees = trees.length;
+        final int numRows = this.numRows;
+        final double[][] features = this.features;
+
+        // evaluate tree by tree to keep a tree in CPU caches across the rows
+        final int[][] leaves = new int[numRows][numTrees];
+        for (int t = 0; t < numTrees; t++) {
+            final CompiledTree tree = trees[t];
+            for (int i = 0; i < numRows; i++) {
+                leaves[i][t] = tree.leaf(features[i]);
+            }
+        }
+
+        final int numFields = (classification ? 4 : 2) + (outputLeaves ? 1 : 0);
+        final int[] votes = classification ? new int[numClasses] : null;
+        for (int i = 0; i < numRows; i++) {
+            final int[] leaf = leaves[i];
+            final Object[] forwardObjs = new Object[numFields];
+            forwardObjs[0] = rowIds[i];
+            int f = 1;
+            if (classification) {
+                Arrays.fill(votes, 0);
+                for (int t = 0; t < numTrees; t++) {
+                    votes[(int) trees[t].output(leaf[t])]++;
+                }
+                int label = 0;
+                final List<DoubleWritable> probabilities = new ArrayList<DoubleWritable>(
+                    numClasses);
+                for (int k = 0; k < numClasses; k++) {
+                    if (votes[k] > votes[label]) {
+                        label = k;
+                    }
+                    probabilities.add(new DoubleWritable(votes[k] / (double) numTrees));
+                }
+                forwardObjs[f++] = new IntWritable(label);
+                forwardObjs[f++] = new DoubleWritable(votes[label] / (double) numTrees);
+                forwardObjs[f++] = probabilities;
+            } else {
+                double sum = 0.d;
+                for (int t = 0; t < numTrees; t++) {
+                    sum += trees[t].output(leaf[t]);
+                }
+                forwardObjs[f++] = new DoubleWritable(sum / numTrees);
+            }
+            if (outputLeaves) {
+                final List<IntWritable> leafList = new ArrayList<IntWritable>(numTrees);
+                for (int t = 0; t < numTrees; t++) {
+                    leafList.add(new IntWritable(leaf[t]));
+                }
+                forwardObjs[f++] = leafList;
+            }
+            forward(forwardObjs);
+
+            rowIds[i] = null;
+            features[i] = null;
+        }
+        this.numRows = 0;
+    }
+
+    @Override
+    public void close() throws HiveException {
+        if (numRows > 0) {
+            predictBatch();
+        }
+        this.trees = null;
+        this.rowIds = null;
+        this.features = null;
+    }
+
+}
@@ -20,7 +20,7 @@ package hivemall.smile.tools;
 import hivemall.smile.ModelType;
 import hivemall.smile.classification.DecisionTree;
 import hivemall.smile.regression.RegressionTree;
-import hivemall.smile.vm.StackMachine;
+import hivemall.smile.vm.CompiledTree;
 import hivemall.smile.vm.VMRuntimeException;
 import hivemall.utils.codec.Base91;
 import hivemall.utils.codec.DeflateCodec;
@@ -65,6 +65,11 @@ import org.apache.hadoop.mapred.JobConf;
 @UDFType(deterministic = true, stateful = false)
 public final class TreePredictUDF extends GenericUDF {
 
+    /**
+     * The maximum bytes of the compiled trees cached in a JVM
+     */
+    public static final String CACHE_BYTES_KEY = "hivemall.tree_predict.cache_bytes";
+
     private boolean classification;
     private PrimitiveObjectInspector modelTypeOI;
     private StringObjectInspector stringOI;
@@ -85,6 +90,8 @@ public final class TreePredictUDF extends GenericUDF {
             if (tdJarVersion != null) {
                 this.support_javascript_eval = false;
             }
+            long maxBytes = conf.getLong(CACHE_BYTES_KEY, CompiledTreeCache.DEFAULT_MAX_BYTES);
+            CompiledTreeCache.getInstance().setMaxBytes(maxBytes);
         }
     }
 
@@ -202,69 +209,86 @@ public final class TreePredictUDF extends GenericUDF {
 
     }
 
-    static final class JavaSerializationEvaluator implements Evaluator {
+    /**
+     * Evaluates trees compiled into {@link CompiledTree}s, which are shared across the UDF
+     * instances in a JVM through {@link CompiledTreeCache}.
+     */
+    static abstract class CompiledTreeEvaluator implements Evaluator {
 
         @Nullable
         private String prevModelId = null;
-        private DecisionTree.Node cNode = null;
-        private RegressionTree.Node rNode = null;
+        @Nullable
+        private CompiledTree prevTree = null;
 
-        JavaSerializationEvaluator() {}
+        CompiledTreeEvaluator() {}
 
         @Override
         public Writable evaluate(@Nonnull String modelId, boolean compressed, @Nonnull Text script,
                 double[] features, boolean classification) throws HiveException {
+            CompiledTree tree = prevTree;
+            if (!modelId.equals(prevModelId)) {
+                final CompiledTreeCache cache = CompiledTreeCache.getInstance();
+                tree = cache.get(modelId, script);
+                if (tree == null) {
+                    tree = compile(script, compressed, classification);
+                    cache.put(modelId, script, tree);
+                }
+                this.prevModelId = modelId;
+                this.prevTree = tree;
+            }
+            assert (tree != null);
+
+            final double result = tree.predict(features);
             if (classification) {
-                return evaluateClassification(modelId, compressed, script, features);
+                return new IntWritable((int) result);
             } else {
-                return evaluteRegression(modelId, compressed, script, features);
+                return new DoubleWritable(result);
             }
         }
 
-        private IntWritable evaluateClassification(@Nonnull String modelId, boolean compressed,
-                @Nonnull Text script, double[] features) throws HiveException {
-            if (!modelId.equals(prevModelId)) {
-                this.prevModelId = modelId;
-                int length = script.getLength();
-                byte[] b = script.getBytes();
-                b = Base91.decode(b, 0, length);
-                this.cNode = DecisionTree.deserializeNode(b, b.length, compressed);
-            }
-            assert (cNode != null);
-            int result = cNode.predict(features);
-            return new IntWritable(result);
-        }
+        @Nonnull
+        protected abstract CompiledTree compile(@Nonnull Text script, boolean compressed,
+                boolean classification) throws HiveException;
 
-        private DoubleWritable evaluteRegression(@Nonnull String modelId, boolean compressed,
-                @Nonnull Text script, double[] features) throws HiveException {
-            if (!modelId.equals(prevModelId)) {
-                this.prevModelId = modelId;
-                int length = script.getLength();
-                byte[] b = script.getBytes();
-                b = Base91.decode(b, 0, length);
-                this.rNode = RegressionTree.deserializeNode(b, b.length, compressed);
-            }
-            assert (rNode != null);
-            double result = rNode.predict(features);
-            return new DoubleWritable(result);
+        @Override
+        public void close() throws IOException {
+            this.prevModelId = null;
+            this.prevTree = null;
         }
 
+    }
+
+    static final class JavaSerializationEvaluator extends CompiledTreeEvaluator {
+
+        JavaSerializationEvaluator() {}
+
         @Override
-        public void close() throws IOException {}
+        protected CompiledTree compile(@Nonnull Text script, boolean compressed,
+                boolean classification) throws HiveException {
+            int length = script.getLength();
+            byte[] b = script.getBytes();
+            b = Base91.decode(b, 0, length);
+
+            final CompiledTree.Builder builder = new CompiledTree.Builder();
+            if (classification) {
+                DecisionTree.deserializeNode(b, b.length, compressed).compile(builder);
+            } else {
+                RegressionTree.deserializeNode(b, b.length, compressed).compile(builder);
+            }
+            return builder.build();
+        }
 
     }
 
-    static final class StackmachineEvaluator implements Evaluator {
+    static final class StackmachineEvaluator extends CompiledTreeEvaluator {
 
-        private String prevModelId = null;
-        private StackMachine prevVM = null;
         private DeflateCodec codec = null;
 
         StackmachineEvaluator() {}
 
         @Override
-        public Writable evaluate(@Nonnull String modelId, boolean compressed, @Nonnull Text script,
-                double[] features, boolean classification) throws HiveException {
+        protected CompiledTree compile(@Nonnull Text script, boolean compressed,
+                boolean classification) throws HiveException {
             final String scriptStr;
             if (compressed) {
                 if (codec == null) {
@@ -283,41 +307,16 @@ public final class TreePredictUDF extends GenericUDF {
                 scriptStr = script.toString();
             }
 
-            final StackMachine vm;
-            if (modelId.equals(prevModelId)) {
-                vm = prevVM;
-            } else {
-                vm = new StackMachine();
-                try {
-                    vm.compile(scriptStr);
-                } catch (VMRuntimeException e) {
-                    throw new HiveException("failed to compile StackMachine", e);
-                }
-                this.prevModelId = modelId;
-                this.prevVM = vm;
-            }
-
             try {
-                vm.eval(features);
-            } catch (VMRuntimeException vme) {
-                throw new HiveException("failed to eval StackMachine", vme);
-            } catch (Throwable e) {
-                throw new HiveException("failed to eval StackMachine", e);
-            }
-
-            Double result = vm.getResult();
-            if (result == null) {
-                return null;
-            }
-            if (classification) {
-                return new IntWritable(result.intValue());
-            } else {
-                return new DoubleWritable(result.doubleValue());
+                return CompiledTree.compile(scriptStr);
+            } catch (VMRuntimeException e) {
+                throw new HiveException("failed to compile StackMachine", e);
             }
         }
 
         @Override
         public void close() throws IOException {
+            super.close();
             IOUtils.closeQuietly(codec);
         }
 
@@ -22,6 +22,7 @@ import hivemall.smile.data.Attribute;
 import hivemall.smile.data.Attribute.AttributeType;
 import hivemall.smile.data.Attribute.NominalAttribute;
 import hivemall.smile.data.Attribute.NumericAttribute;
+import hivemall.smile.data.DataMatrix;
 
 import java.util.Arrays;
 
@@ -93,6 +94,37 @@ public final class SmileExtUtils {
         return attributes;
     }
 
+    @Nonnull
+    public static Attribute[] attributeTypes(@Nullable Attribute[] attributes,
+            @Nonnull final DataMatrix x) {
+        if (attributes == null) {
+            int p = x.numColumns();
+            attributes = new Attribute[p];
+            for (int i = 0; i < p; i++) {
+                attributes[i] = new NumericAttribute(i);
+            }
+        } else {
+            int size = attributes.length;
+            for (int j = 0; j < size; j++) {
+                Attribute attr = attributes[j];
+                if (attr.type == AttributeType.NOMINAL) {
+                    if (attr.getSize() != -1) {
+                        continue;
+                    }
+                    int max_x = 0;
+                    for (int i = 0, n = x.numRows(); i < n; i++) {
+                        int x_ij = (int) x.get(i, j);
+                        if (x_ij > max_x) {
+                            max_x = x_ij;
+                        }
+                    }
+                    attr.setSize(max_x + 1);
+                }
+            }
+        }
+        return attributes;
+    }
+
     @Nonnull
     public static Attribute[] convertAttributeTypes(@Nonnull final smile.data.Attribute[] original) {
         final int size = original.length;
@@ -169,12 +201,15 @@ public final class SmileExtUtils {
     }
 
     public static int computeNumInputVars(final float numVars, final double[][] x) {
+        return computeNumInputVars(numVars, x[0].length);
+    }
+
+    public static int computeNumInputVars(final float numVars, final int dims) {
         final int numInputVars;
         if (numVars <= 0.f) {
-            int dims = x[0].length;
             numInputVars = (int) Math.ceil(Math.sqrt(dims));
         } else if (numVars > 0.f && numVars <= 1.f) {
-            numInputVars = (int) (numVars * x[0].length);
+            numInputVars = (int) (numVars * dims);
         } else {
             numInputVars = (int) numVars;
         }
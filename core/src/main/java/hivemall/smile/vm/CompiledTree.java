@@ -0,0 +1,277 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.smile.vm;
+
+import hivemall.smile.data.Attribute.AttributeType;
+import hivemall.utils.lang.StringUtils;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * A decision tree compiled into parallel arrays of nodes in pre-order. The true child of a split
+ * node immediately follows the node and the index of its false child is kept in
+ * {@link #falseChild}. Leaf nodes have a negative split feature and hold their output in
+ * {@link #value}.
+ */
+public final class CompiledTree {
+
+    private static final int LEAF = -1;
+
+    @Nonnull
+    private final int[] feature;
+    @Nonnull
+    private final boolean[] nominal;
+    /** split values of split nodes and outputs of leaf nodes */
+    @Nonnull
+    private final double[] value;
+    @Nonnull
+    private final int[] falseChild;
+
+    private CompiledTree(@Nonnull int[] feature, @Nonnull boolean[] nominal,
+            @Nonnull double[] value, @Nonnull int[] falseChild) {
+        this.feature = feature;
+        this.nominal = nominal;
+        this.value = value;
+        this.falseChild = falseChild;
+    }
+
+    public int size() {
+        return feature.length;
+    }
+
+    /**
+     * @return the approximate heap bytes of this tree
+     */
+    public long bytes() {
+        return 64L + feature.length * (4L + 1L + 8L + 4L);
+    }
+
+    public double predict(@Nonnull final double[] x) {
+        return value[leaf(x)];
+    }
+
+    /**
+     * @return the index of the leaf node that x reaches
+     */
+    public int leaf(@Nonnull final double[] x) {
+        final int[] feature = this.feature;
+        final double[] value = this.value;
+        int i = 0;
+        for (;;) {
+            final int j = feature[i];
+            if (j < 0) {
+                return i;
+            }
+            final boolean matched = nominal[i] ? x[j] == value[i] : x[j] <= value[i];
+            i = matched ? i + 1 : falseChild[i];
+        }
+    }
+
+    /**
+     * @return the output of the leaf node
+     */
+    public double output(@Nonnegative final int leaf) {
+        return value[leaf];
+    }
+
+    /**
+     * @return the maximum output of the leaf nodes
+     */
+    public double maxOutput() {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < feature.length; i++) {
+            if (feature[i] < 0 && value[i] > max) {
+                max = value[i];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Compiles an opcode script generated by <tt>predictOpCodegen</tt> of the tree classes.
+     */
+    @Nonnull
+    public static CompiledTree compile(@Nonnull final String script) throws VMRuntimeException {
+        final String[] ops = script.split(StackMachine.SEP);
+        final Builder builder = new Builder();
+        final int end = compile(ops, 0, builder);
+        if (end >= ops.length || !"call end".equals(ops[end])) {
+            throw new VMRuntimeException("Expected 'call end' at " + end + ": " + script);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the position next to the subtree at pc
+     */
+    private static int compile(@Nonnull final String[] ops, final int pc,
+            @Nonnull final Builder builder) throws VMRuntimeException {
+        final String push = operand(ops, pc, "push");
+        if (push.startsWith("x[") && push.endsWith("]")) {// push x[j]; push v; ifle|ifeq t
+            final int j;
+            try {
+                j = Integer.parseInt(push.substring(2, push.length() - 1));
+            } catch (NumberFormatException e) {
+                throw new VMRuntimeException("Illegal feature at " + pc + ": " + ops[pc]);
+            }
+            final double v = parseDouble(ops, pc + 1, operand(ops, pc + 1, "push"));
+            if (pc + 2 >= ops.length) {
+                throw new VMRuntimeException("Unexpected end of script at " + (pc + 2));
+            }
+            final String jump = ops[pc + 2];
+            final AttributeType type;
+            if (jump.startsWith("ifle ")) {
+                type = AttributeType.NUMERIC;
+            } else if (jump.startsWith("ifeq ")) {
+                type = AttributeType.NOMINAL;
+            } else {
+                throw new VMRuntimeException("Unexpected opcode at " + (pc + 2) + ": " + jump);
+            }
+            final int node = builder.addSplit(j, type, v);
+            final int falsePC = compile(ops, pc + 3, builder);
+            if (!StringUtils.isInt(jump.substring(5))
+                    || Integer.parseInt(jump.substring(5)) != falsePC) {
+                throw new VMRuntimeException("Unexpected jump at " + (pc + 2) + ": " + jump);
+            }
+            builder.setFalseChild(node);
+            return compile(ops, falsePC, builder);
+        } else {// push v; goto last
+            final double v = parseDouble(ops, pc, push);
+            if (pc + 1 >= ops.length || !"goto last".equals(ops[pc + 1])) {
+                throw new VMRuntimeException("Expected 'goto last' at " + (pc + 1));
+            }
+            builder.addLeaf(v);
+            return pc + 2;
+        }
+    }
+
+    @Nonnull
+    private static String operand(@Nonnull final String[] ops, final int pc,
+            @Nonnull final String opcode) throws VMRuntimeException {
+        if (pc >= ops.length) {
+            throw new VMRuntimeException("Unexpected end of script at " + pc);
+        }
+        final String op = ops[pc];
+        if (!op.startsWith(opcode) || op.length() <= opcode.length()
+                || op.charAt(opcode.length()) != ' ') {
+            throw new VMRuntimeException("Expected '" + opcode + "' at " + pc + ": " + op);
+        }
+        return op.substring(opcode.length() + 1);
+    }
+
+    private static double parseDouble(@Nonnull final String[] ops, final int pc,
+            @Nonnull final String s) throws VMRuntimeException {
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            throw new VMRuntimeException("Illegal value at " + pc + ": " + ops[pc]);
+        }
+    }
+
+    /**
+     * Appends nodes in pre-order: a split node is followed by its true subtree, then
+     * {@link #setFalseChild(int)} is called for it before its false subtree is appended.
+     */
+    public static final class Builder {
+
+        private int[] feature;
+        private boolean[] nominal;
+        private double[] value;
+        private int[] falseChild;
+        private int size;
+
+        public Builder() {
+            this(16);
+        }
+
+        public Builder(@Nonnegative int initSize) {
+            int capacity = Math.max(initSize, 1);
+            this.feature = new int[capacity];
+            this.nominal = new boolean[capacity];
+            this.value = new double[capacity];
+            this.falseChild = new int[capacity];
+            this.size = 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int addLeaf(final double output) {
+            return add(LEAF, false, output);
+        }
+
+        public int addSplit(@Nonnegative final int splitFeature,
+                @Nonnull final AttributeType splitFeatureType, final double splitValue) {
+            final boolean nominal;
+            switch (splitFeatureType) {
+                case NUMERIC:
+                    nominal = false;
+                    break;
+                case NOMINAL:
+                    nominal = true;
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported attribute type: "
+                            + splitFeatureType);
+            }
+            if (splitFeature < 0) {
+                throw new IllegalArgumentException("Illegal split feature: " + splitFeature);
+            }
+            return add(splitFeature, nominal, splitValue);
+        }
+
+        /**
+         * Sets the next node to be appended as the false child of the split node.
+         */
+        public void setFalseChild(@Nonnegative final int node) {
+            falseChild[node] = size;
+        }
+
+        private int add(final int j, final boolean nom, final double v) {
+            if (size == feature.length) {
+                int newCapacity = size * 2;
+                this.feature = Arrays.copyOf(feature, newCapacity);
+                this.nominal = Arrays.copyOf(nominal, newCapacity);
+                this.value = Arrays.copyOf(value, newCapacity);
+                this.falseChild = Arrays.copyOf(falseChild, newCapacity);
+            }
+            final int i = size++;
+            feature[i] = j;
+            nominal[i] = nom;
+            value[i] = v;
+            falseChild[i] = LEAF;
+            return i;
+        }
+
+        @Nonnull
+        public CompiledTree build() {
+            if (size == 0) {
+                throw new IllegalStateException("No node was added");
+            }
+            return new CompiledTree(Arrays.copyOf(feature, size), Arrays.copyOf(nominal, size),
+                Arrays.copyOf(value, size), Arrays.copyOf(falseChild, size));
+        }
+
+    }
+
+}
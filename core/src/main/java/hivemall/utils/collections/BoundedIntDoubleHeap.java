@@ -0,0 +1,132 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.utils.collections;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Keeps the K entries of the largest scores in a primitive min-heap, so that a candidate is
+ * compared with the smallest score kept in constant time.
+ */
+public final class BoundedIntDoubleHeap {
+
+    @Nonnegative
+    private final int maxSize;
+    @Nonnull
+    private final int[] keys;
+    @Nonnull
+    private final double[] scores;
+    private int size;
+
+    public BoundedIntDoubleHeap(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Illegal heap size: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.keys = new int[maxSize];
+        this.scores = new double[maxSize];
+        this.size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == maxSize;
+    }
+
+    /**
+     * @return the smallest score kept or -Infinity if the heap is not full
+     */
+    public double threshold() {
+        return size == maxSize ? scores[0] : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * @return true if the entry is kept
+     */
+    public boolean offer(final int key, final double score) {
+        if (size < maxSize) {
+            int i = size++;
+            // sift up
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (scores[parent] <= score) {
+                    break;
+                }
+                keys[i] = keys[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            keys[i] = key;
+            scores[i] = score;
+            return true;
+        }
+        if (score <= scores[0]) {
+            return false;
+        }
+        siftDown(key, score, size);
+        return true;
+    }
+
+    private void siftDown(final int key, final double score, final int size) {
+        int i = 0;
+        final int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && scores[right] < scores[child]) {
+                child = right;
+            }
+            if (score <= scores[child]) {
+                break;
+            }
+            keys[i] = keys[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        keys[i] = key;
+        scores[i] = score;
+    }
+
+    /**
+     * Moves the entries to the arrays in the descending order of scores and clears this heap.
+     * 
+     * @return the number of entries
+     */
+    public int drainDescending(@Nonnull final int[] dstKeys, @Nonnull final double[] dstScores) {
+        final int n = size;
+        for (int i = n - 1; i >= 0; i--) {
+            dstKeys[i] = keys[0];
+            dstScores[i] = scores[0];
+            int last = --size;
+            if (last > 0) {
+                siftDown(keys[last], scores[last], last);
+            }
+        }
+        return n;
+    }
+
+    public void clear() {
+        this.size = 0;
+    }
+
+}
@@ -61,7 +61,7 @@ public final class HadoopUtils {
         URI fileuri = file.toURI();
         Path path = new Path(fileuri);
 
-        Configuration conf = context.getJobConf();
+        Configuration conf = (context == null) ? new Configuration() : context.getJobConf();
         CompressionCodecFactory ccf = new CompressionCodecFactory(conf);
         CompressionCodec codec = ccf.getCodec(path);
 
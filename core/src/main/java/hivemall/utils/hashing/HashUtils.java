@@ -16,10 +16,26 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package hivemall.mf;
+package hivemall.utils.hashing;
 
-public interface RatingInitilizer {
+import java.util.zip.CRC32;
 
-    public Rating newRating(float v);
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+public final class HashUtils {
+
+    private HashUtils() {}
+
+    /**
+     * @return the length in the upper 32 bits and the CRC32 checksum of all the bytes in the lower
+     *         32 bits
+     */
+    public static long fingerprint(@Nonnull final byte[] b, @Nonnegative final int off,
+            @Nonnegative final int len) {
+        final CRC32 crc = new CRC32();
+        crc.update(b, off, len);
+        return ((long) len << 32) | crc.getValue();
+    }
 
 }
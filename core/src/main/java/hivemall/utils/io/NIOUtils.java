@@ -18,8 +18,13 @@
  */
 package hivemall.utils.io;
 
+import hivemall.utils.lang.UnsafeUtils;
+
 import java.io.EOFException;
 import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
@@ -114,4 +119,92 @@ public final class NIOUtils {
         return count;
     }
 
+    /**
+     * @return the limit of direct buffers given by -XX:MaxDirectMemorySize, which defaults to the
+     *         maximum heap size
+     */
+    public static long getMaxDirectMemory() {
+        final String prefix = "-XX:MaxDirectMemorySize=";
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (arg.startsWith(prefix)) {
+                return parseBytes(arg.substring(prefix.length()));
+            }
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * @return the bytes of direct buffers that can be allocated without exceeding the limit
+     */
+    public static long getAvailableDirectMemory() {
+        long used = 0L;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                used = pool.getMemoryUsed();
+                break;
+            }
+        }
+        return Math.max(0L, getMaxDirectMemory() - used);
+    }
+
+    /**
+     * @param size a size in bytes optionally followed by k, m, g, or t as the JVM options
+     */
+    static long parseBytes(@Nonnull final String size) {
+        final int last = size.length() - 1;
+        final long unit;
+        switch (Character.toLowerCase(size.charAt(last))) {
+            case 'k':
+                unit = 1L << 10;
+                break;
+            case 'm':
+                unit = 1L << 20;
+                break;
+            case 'g':
+                unit = 1L << 30;
+                break;
+            case 't':
+                unit = 1L << 40;
+                break;
+            default:
+                return Long.parseLong(size);
+        }
+        return Long.parseLong(size.substring(0, last)) * unit;
+    }
+
+    /**
+     * Frees the memory of a direct or mapped buffer now instead of when it is garbage collected.
+     * The buffer and its duplicates must never be accessed afterwards.
+     * 
+     * @return false if the buffer is not direct or the memory could not be freed
+     */
+    public static boolean release(@Nonnull final ByteBuffer buf) {
+        if (!buf.isDirect()) {
+            return false;
+        }
+        try {
+            final Object unsafe = UnsafeUtils.getUnsafe();
+            if (unsafe != null) {
+                try {
+                    Method invokeCleaner = unsafe.getClass().getMethod("invokeCleaner",
+                        ByteBuffer.class);
+                    invokeCleaner.invoke(unsafe, buf);
+                    return true;
+                } catch (NoSuchMethodException e) {
+                    // JDK 8 or before
+                }
+            }
+            final Method cleanerMethod = buf.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buf);
+            if (cleaner == null) {
+                return false;
+            }
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
 }
@@ -23,7 +23,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.NotThreadSafe;
@@ -69,6 +71,14 @@ public class NioSegment implements Segments {
         return NIOUtils.writeFully(channel, buf, filePos);
     }
 
+    /**
+     * Maps a region of the file into memory as read-only.
+     */
+    @Nonnull
+    public final MappedByteBuffer map(final long filePos, final long size) throws IOException {
+        return channel.map(MapMode.READ_ONLY, filePos, size);
+    }
+
     @Override
     public final void close() throws IOException {
         close(false);
@@ -39,6 +39,8 @@ public final class HalfFloat {
     public static final float MAX_FLOAT_INTEGER = 65520f;
     /** (2-2^-10) * 2^15 */
     public static final float MAX_FLOAT = 65504f;
+    /** 2^-14. Smaller magnitudes lose precision as denormals or flush to zero */
+    public static final float MIN_NORMAL = 6.1035156E-5f;
 
     /**
      * Smallest positive e for which HalfFloat (1.0 + e) != HalfFloat (1.0)
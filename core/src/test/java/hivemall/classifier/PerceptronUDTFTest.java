@@ -19,7 +19,16 @@
 package hivemall.classifier;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import hivemall.model.FeatureValue;
+import hivemall.model.MiniBatchAccumulator;
+import hivemall.model.OffHeapDenseModel;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
@@ -118,4 +127,92 @@ public class PerceptronUDTFTest {
         assertEquals(-1.f, udtf.model.get(word3.getFeature()).get(), 1e-5f);
         assertEquals(0.f, udtf.model.get(word4.getFeature()).get(), 1e-5f);
     }
+
+    @Test
+    public void testMiniBatchUpdate() throws UDFArgumentException {
+        PerceptronUDTF udtf = new PerceptronUDTF();
+        ObjectInspector stringOI = PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+        ListObjectInspector stringListOI = ObjectInspectorFactory.getStandardListObjectInspector(stringOI);
+        ObjectInspector param = ObjectInspectorUtils.getConstantObjectInspector(
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, "-mini_batch 2");
+        udtf.initialize(new ObjectInspector[] {stringListOI,
+                PrimitiveObjectInspectorFactory.javaIntObjectInspector, param});
+        udtf.accumulated = new MiniBatchAccumulator();
+
+        FeatureValue word1 = FeatureValue.parse("good");
+        FeatureValue word2 = FeatureValue.parse("opinion");
+        udtf.update(new FeatureValue[] {word1, word2}, 1, 0.f);
+
+        /* not applied until the mini-batch is filled */
+        assertNull(udtf.model.get(word1.getFeature()));
+
+        FeatureValue word3 = FeatureValue.parse("bad");
+        FeatureValue word4 = FeatureValue.parse("opinion");
+        udtf.update(new FeatureValue[] {word3, word4}, -1, 0.f);
+
+        /* deltas of a feature are averaged in a mini-batch */
+        assertEquals(1.f, udtf.model.get(word1.getFeature()).get(), 1e-5f);
+        assertEquals(-1.f, udtf.model.get(word3.getFeature()).get(), 1e-5f);
+        assertEquals(0.f, udtf.model.get(word4.getFeature()).get(), 1e-5f);
+        assertEquals(0, udtf.accumulated.size());
+    }
+
+    @Test
+    public void testMmapModel() throws IOException, UDFArgumentException {
+        File dir = File.createTempFile("hivemall_mmap", "");
+        dir.delete();
+        dir.mkdir();
+        File modelFile = new File(dir, "model.tsv");
+        File mmapFile = new File(dir, "model.bin");
+        String options = "-dense -dims 100 -loadmodel " + modelFile + " -mmap_model " + mmapFile;
+        try {
+            writeModel(modelFile, "1\u00010.5\n");
+            PerceptronUDTF udtf1 = newPerceptron(options);
+            assertFalse(((OffHeapDenseModel) udtf1.model).isMapped());
+            assertEquals(0.5f, udtf1.model.getWeight(1), 0.f);
+
+            PerceptronUDTF udtf2 = newPerceptron(options);
+            assertTrue(((OffHeapDenseModel) udtf2.model).isMapped());
+            assertEquals(0.5f, udtf2.model.getWeight(1), 0.f);
+
+            /* a file built from another model is not mapped but rebuilt */
+            writeModel(modelFile, "1\u0001-2.0\n2\u00011.0\n");
+            PerceptronUDTF udtf3 = newPerceptron(options);
+            assertFalse(((OffHeapDenseModel) udtf3.model).isMapped());
+            assertEquals(-2.f, udtf3.model.getWeight(1), 0.f);
+
+            PerceptronUDTF udtf4 = newPerceptron(options.replace("-dims 100", "-dims 200"));
+            assertFalse(((OffHeapDenseModel) udtf4.model).isMapped());
+
+            PerceptronUDTF udtf5 = newPerceptron(options.replace("-dims 100", "-dims 200"));
+            assertTrue(((OffHeapDenseModel) udtf5.model).isMapped());
+            assertEquals(1.f, udtf5.model.getWeight(2), 0.f);
+        } finally {
+            modelFile.delete();
+            mmapFile.delete();
+            dir.delete();
+        }
+    }
+
+    private static void writeModel(File file, String content) throws IOException {
+        long lastModified = file.lastModified();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        file.setLastModified(lastModified + 1000L);
+    }
+
+    private static PerceptronUDTF newPerceptron(String options) throws UDFArgumentException {
+        PerceptronUDTF udtf = new PerceptronUDTF();
+        ObjectInspector intOI = PrimitiveObjectInspectorFactory.javaIntObjectInspector;
+        ObjectInspector param = ObjectInspectorUtils.getConstantObjectInspector(
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, options);
+        udtf.initialize(new ObjectInspector[] {
+                ObjectInspectorFactory.getStandardListObjectInspector(intOI), intOI, param});
+        return udtf;
+    }
+
 }
@@ -0,0 +1,228 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.fm;
+
+import hivemall.fm.FactorizationMachineModel.VInitScheme;
+import hivemall.utils.lang.NumberUtils;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the per-factor computation of the FM interaction term with the row-wise kernels of
+ * {@link FactorizationMachineModel}. The per-factor benchmarks replicate predict() and
+ * trainTheta() of the versions before the row-wise kernels, which compute \sum_j V_jf x_j once
+ * per example and update V by a getV/setV per factor.
+ * 
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=hivemall.fm.FactorizationMachineModelBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class FactorizationMachineModelBenchmark {
+
+    private static final int NUM_FEATURES = 1 << 16;
+    private static final int NUM_NONZEROS = 40;
+    private static final int NUM_EXAMPLES = 256;
+
+    @Param({"8", "16", "32", "64"})
+    public int factors;
+
+    private FactorizationMachineModel model;
+    private Feature[][] examples;
+    private double[] sumVfX;
+    private double[] sumV2X2;
+    private int cursor;
+
+    @Setup
+    public void setup() throws HiveException {
+        FMHyperParameters params = new FMHyperParameters();
+        params.factors = factors;
+        params.numFeatures = NUM_FEATURES;
+        params.seed = 43L;
+        params.vInit = VInitScheme.random;
+        params.vInit.setMaxInitValue(1.f);
+        params.vInit.initRandom(factors, params.seed);
+        this.model = new FMArrayModel(params);
+
+        final Random rand = new Random(43L);
+        this.examples = new Feature[NUM_EXAMPLES][];
+        for (int n = 0; n < NUM_EXAMPLES; n++) {
+            final Feature[] x = new Feature[NUM_NONZEROS];
+            for (int j = 0; j < NUM_NONZEROS; j++) {
+                x[j] = new IntFeature(1 + rand.nextInt(NUM_FEATURES - 1), rand.nextDouble());
+            }
+            model.check(x);
+            model.predict(x); // initializes V
+            examples[n] = x;
+        }
+        this.sumVfX = new double[factors];
+        this.sumV2X2 = new double[factors];
+        this.cursor = 0;
+    }
+
+    @Nonnull
+    private Feature[] nextExample() {
+        final Feature[] x = examples[cursor];
+        this.cursor = (cursor + 1) % NUM_EXAMPLES;
+        return x;
+    }
+
+    @Benchmark
+    public double predictPerFactor() throws HiveException {
+        return predictPerFactor(nextExample());
+    }
+
+    @Benchmark
+    public double predictRowWise() throws HiveException {
+        return model.predict(nextExample(), sumVfX, sumV2X2);
+    }
+
+    @Benchmark
+    public double trainPerFactor() throws HiveException {
+        final Feature[] x = nextExample();
+        final double p = predictPerFactor(x);
+        final double dloss = model.dloss(p, 1.d);
+        final float eta = 0.001f;
+
+        model.updateW0(dloss, eta);
+        final double[] sumVfx = sumVfXPerFactor(x);
+        for (Feature xi : x) {
+            model.updateWi(dloss, xi, eta);
+            for (int f = 0, k = factors; f < k; f++) {
+                updateVPerFactor(dloss, xi, f, sumVfx[f], eta);
+            }
+        }
+        return p;
+    }
+
+    @Benchmark
+    public double trainRowWise() throws HiveException {
+        final Feature[] x = nextExample();
+        final double p = model.predict(x, sumVfX, sumV2X2);
+        final double dloss = model.dloss(p, 1.d);
+        final float eta = 0.001f;
+
+        model.updateW0(dloss, eta);
+        for (Feature xi : x) {
+            model.updateWi(dloss, xi, eta);
+            model.updateV(dloss, xi, sumVfX, eta);
+        }
+        return p;
+    }
+
+    @Benchmark
+    public double trainRowWiseAllocating() throws HiveException {
+        final Feature[] x = nextExample();
+        final double[] sumVfX = new double[factors];
+        final double p = model.predict(x, sumVfX);
+        final double dloss = model.dloss(p, 1.d);
+        final float eta = 0.001f;
+
+        model.updateW0(dloss, eta);
+        for (Feature xi : x) {
+            model.updateWi(dloss, xi, eta);
+            model.updateV(dloss, xi, sumVfX, eta);
+        }
+        return p;
+    }
+
+    private double predictPerFactor(@Nonnull final Feature[] x) throws HiveException {
+        double ret = model.getW0();
+        for (Feature e : x) {
+            ret += model.getW(e) * e.getValue();
+        }
+        for (int f = 0, k = factors; f < k; f++) {
+            double sumVjfXj = 0.d;
+            double sumV2X2 = 0.d;
+            for (Feature e : x) {
+                double vx = model.getV(e, f) * e.getValue();
+                sumVjfXj += vx;
+                sumV2X2 += (vx * vx);
+            }
+            ret += 0.5d * (sumVjfXj * sumVjfXj - sumV2X2);
+        }
+        if (!NumberUtils.isFinite(ret)) {
+            throw new HiveException("Detected " + ret + " in predict");
+        }
+        return ret;
+    }
+
+    @Nonnull
+    private double[] sumVfXPerFactor(@Nonnull final Feature[] x) {
+        final double[] ret = new double[factors];
+        for (int f = 0; f < factors; f++) {
+            double sum = 0.d;
+            for (Feature e : x) {
+                sum += model.getV(e, f) * e.getValue();
+            }
+            if (!NumberUtils.isFinite(sum)) {
+                throw new IllegalStateException("Got " + sum + " for sumV[" + f + "]X");
+            }
+            ret[f] = sum;
+        }
+        return ret;
+    }
+
+    private void updateVPerFactor(final double dloss, @Nonnull final Feature x, final int f,
+            final double sumViX, final float eta) {
+        final double Xi = x.getValue();
+        float Vif = model.getV(x, f);
+        double h = Xi * (sumViX - Vif * Xi);
+        float gradV = (float) (dloss * h);
+        float LambdaVf = model.getLambdaV(f);
+        float nextVif = Vif - eta * (gradV + 2.f * LambdaVf * Vif);
+        if (!NumberUtils.isFinite(nextVif)) {
+            throw new IllegalStateException("Got " + nextVif + " for next V" + f);
+        }
+        model.setV(x, f, nextVif);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder().include(
+            FactorizationMachineModelBenchmark.class.getSimpleName()).build();
+        new Runner(opt).run();
+    }
+
+}
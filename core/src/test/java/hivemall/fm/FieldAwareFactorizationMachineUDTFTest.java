@@ -97,30 +97,7 @@ public class FieldAwareFactorizationMachineUDTFTest {
                 if (input == null) {
                     break;
                 }
-                ArrayList<String> featureStrings = new ArrayList<String>();
-                ArrayList<StringFeature> features = new ArrayList<StringFeature>();
-
-                //make StringFeature for each word = data point
-                String remaining = input;
-                int wordCut = remaining.indexOf(' ');
-                while (wordCut != -1) {
-                    featureStrings.add(remaining.substring(0, wordCut));
-                    remaining = remaining.substring(wordCut + 1);
-                    wordCut = remaining.indexOf(' ');
-                }
-                int end = featureStrings.size();
-                double y = Double.parseDouble(featureStrings.get(0));
-                if (y == 0) {
-                    y = -1;//LibFFM data uses {0, 1}; Hivemall uses {-1, 1}
-                }
-                for (int wordNumber = 1; wordNumber < end; ++wordNumber) {
-                    String entireFeature = featureStrings.get(wordNumber);
-                    int featureCut = StringUtils.ordinalIndexOf(entireFeature, ":", 2);
-                    String feature = entireFeature.substring(0, featureCut);
-                    double value = Double.parseDouble(entireFeature.substring(featureCut + 1));
-                    features.add(new StringFeature(feature, value));
-                }
-                udtf.process(new Object[] {toStringArray(features), y});
+                udtf.process(parseLine(input));
             }
             cumul = udtf._cvState.getCumulativeLoss();
             loss = (cumul - loss) / lines;
@@ -131,6 +108,62 @@ public class FieldAwareFactorizationMachineUDTFTest {
         Assert.assertTrue("Last loss was greater than expected: " + loss, loss < lossThreshold);
     }
 
+    @Test
+    public void testParallelIterations() throws HiveException, IOException {
+        FieldAwareFactorizationMachineUDTF udtf = new FieldAwareFactorizationMachineUDTF();
+        ObjectInspector[] argOIs = new ObjectInspector[] {
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector),
+                PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                ObjectInspectorUtils.getConstantObjectInspector(
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                    "-classification -factors 10 -w0 -seed 43 -iters " + ITERATIONS
+                            + " -num_threads 4 -disable_cv")};
+        udtf.initialize(argOIs);
+
+        BufferedReader data = new BufferedReader(new InputStreamReader(
+            FieldAwareFactorizationMachineUDTFTest.class.getResourceAsStream("bigdata.tr.txt")));
+        int lines = 0;
+        String input;
+        while (lines < MAX_LINES && (input = data.readLine()) != null) {
+            udtf.process(parseLine(input));
+            lines++;
+        }
+        data.close();
+
+        udtf.runTrainingIteration(ITERATIONS);
+        Assert.assertEquals((long) lines * ITERATIONS, udtf._t);
+        double loss = udtf._cvState.getPreviousLoss() / lines;
+        println("loss of the last parallel iteration=" + loss);
+        Assert.assertTrue("Last loss was greater than expected: " + loss, loss < 0.30f);
+    }
+
+    private static Object[] parseLine(String input) {
+        ArrayList<String> featureStrings = new ArrayList<String>();
+        ArrayList<StringFeature> features = new ArrayList<StringFeature>();
+
+        //make StringFeature for each word = data point
+        String remaining = input;
+        int wordCut = remaining.indexOf(' ');
+        while (wordCut != -1) {
+            featureStrings.add(remaining.substring(0, wordCut));
+            remaining = remaining.substring(wordCut + 1);
+            wordCut = remaining.indexOf(' ');
+        }
+        int end = featureStrings.size();
+        double y = Double.parseDouble(featureStrings.get(0));
+        if (y == 0) {
+            y = -1;//LibFFM data uses {0, 1}; Hivemall uses {-1, 1}
+        }
+        for (int wordNumber = 1; wordNumber < end; ++wordNumber) {
+            String entireFeature = featureStrings.get(wordNumber);
+            int featureCut = StringUtils.ordinalIndexOf(entireFeature, ":", 2);
+            String feature = entireFeature.substring(0, featureCut);
+            double value = Double.parseDouble(entireFeature.substring(featureCut + 1));
+            features.add(new StringFeature(feature, value));
+        }
+        return new Object[] {toStringArray(features), y};
+    }
+
     private static String[] toStringArray(ArrayList<StringFeature> x) {
         final int size = x.size();
         final String[] ret = new String[size];
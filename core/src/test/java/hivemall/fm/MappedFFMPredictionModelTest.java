@@ -0,0 +1,187 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.fm;
+
+import hivemall.utils.buffer.HeapBuffer;
+import hivemall.utils.collections.Int2LongOpenHashTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MappedFFMPredictionModelTest {
+
+    @Test
+    public void testCreateAndMap() throws IOException, ClassNotFoundException {
+        final int factors = 4;
+        final int numFields = 10;
+        byte[] b = newModel(factors, numFields, 1000, 43L).serialize();
+
+        FFMPredictionModel expected = FFMPredictionModel.deserialize(b, b.length);
+        File file = File.createTempFile("hivemall_ffm", ".model");
+        file.deleteOnExit();
+        MappedFFMPredictionModel actual = MappedFFMPredictionModel.create(b, b.length, file);
+
+        Assert.assertEquals(expected.getW0(), actual.getW0(), 0.d);
+        Assert.assertEquals(factors, actual.getNumFactors());
+        Assert.assertEquals(expected.getNumFeatures(), actual.getNumFeatures());
+        Assert.assertEquals(numFields, actual.getNumFields());
+        Assert.assertEquals(expected.getActualNumFeatures(), actual.getActualNumFeatures());
+        Assert.assertEquals(file.length(), actual.bytes());
+
+        final float[] expectedV = new float[factors];
+        final float[] actualV = new float[factors];
+        for (int i = 0; i < 5000; i++) {
+            IntFeature x = new IntFeature(i, (short) (i % numFields), 1.d);
+            Assert.assertEquals(expected.getW(x), actual.getW(x), 0.f);
+            for (int field = 0; field < numFields; field++) {
+                boolean exists = expected.getV(x, field, expectedV);
+                Assert.assertEquals(exists, actual.getV(x, field, actualV));
+                if (exists) {
+                    Assert.assertArrayEquals(expectedV, actualV, 0.f);
+                }
+            }
+        }
+
+        // mapping the file again reads the same model
+        MappedFFMPredictionModel mapped = MappedFFMPredictionModel.map(file);
+        IntFeature x = new IntFeature(7, (short) 0, 1.d);
+        Assert.assertEquals(actual.getW(x), mapped.getW(x), 0.f);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMapIllegalFile() throws IOException {
+        File file = File.createTempFile("hivemall_ffm", ".model");
+        file.deleteOnExit();
+        MappedFFMPredictionModel.map(file);
+    }
+
+    @Test
+    public void testCacheEviction() throws IOException {
+        byte[] b = newModel(2, 4, 100, 31L).serialize();
+
+        FFMPredictionModelCache cache = new FFMPredictionModelCache(Long.MAX_VALUE);
+        MappedFFMPredictionModel m1 = cache.get("m1", b, b.length);
+        Assert.assertSame(m1, cache.get("m1", b, b.length));
+        final long bytes = m1.bytes();
+        cache.setMaxBytes(bytes * 2);
+
+        MappedFFMPredictionModel m2 = cache.get("m2", b, b.length);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertSame(m1, cache.get("m1")); // m2 is the least recently used
+
+        cache.get("m3", b, b.length);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(bytes * 2, cache.getTotalBytes());
+        Assert.assertNull(cache.get("m2"));
+        Assert.assertFalse(m2.getFile().exists());
+        Assert.assertNotNull(cache.get("m1"));
+
+        // a model larger than the limit is still cached alone
+        cache.setMaxBytes(1L);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertNotNull(cache.get("m1"));
+    }
+
+    @Test
+    public void testCacheReusedModelId() throws IOException, ClassNotFoundException {
+        byte[] b1 = newModel(2, 4, 100, 31L).serialize();
+        byte[] b2 = newModel(2, 4, 100, 43L).serialize();
+
+        // model IDs are task numbers, and thus the same for models of different tables
+        FFMPredictionModelCache cache = new FFMPredictionModelCache(Long.MAX_VALUE);
+        MappedFFMPredictionModel m1 = cache.get("0", b1, b1.length);
+        MappedFFMPredictionModel m2 = cache.get("0", b2, b2.length);
+        Assert.assertNotSame(m1, m2);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(m2.bytes(), cache.getTotalBytes());
+        Assert.assertSame(m2, cache.get("0", b2, b2.length));
+
+        FFMPredictionModel expected = FFMPredictionModel.deserialize(b2, b2.length);
+        for (int i = 0; i < 5000; i++) {
+            IntFeature x = new IntFeature(i, (short) (i % 4), 1.d);
+            Assert.assertEquals(expected.getW(x), m2.getW(x), 0.f);
+        }
+    }
+
+    @Test
+    public void testCacheConcurrentLoad() throws Exception {
+        final byte[] b = newModel(2, 4, 1000, 31L).serialize();
+        final FFMPredictionModelCache cache = new FFMPredictionModelCache(Long.MAX_VALUE);
+
+        final int numThreads = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(numThreads);
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<MappedFFMPredictionModel>> futures =
+                    new ArrayList<Future<MappedFFMPredictionModel>>();
+            for (int i = 0; i < numThreads; i++) {
+                futures.add(executor.submit(new Callable<MappedFFMPredictionModel>() {
+                    @Override
+                    public MappedFFMPredictionModel call() throws Exception {
+                        barrier.await();
+                        return cache.get("0", b, b.length);
+                    }
+                }));
+            }
+            // concurrent loads of the same model are done once
+            MappedFFMPredictionModel expected = futures.get(0).get();
+            for (Future<MappedFFMPredictionModel> f : futures) {
+                Assert.assertSame(expected, f.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(cache.get("0").bytes(), cache.getTotalBytes());
+    }
+
+    private static FFMPredictionModel newModel(int factors, int numFields, int numEntries,
+            long seed) {
+        final Random rand = new Random(seed);
+        final int entrySize = Entry.sizeOf(factors);
+        HeapBuffer buf = new HeapBuffer(HeapBuffer.DEFAULT_CHUNK_SIZE);
+        Int2LongOpenHashTable map = Int2LongOpenHashTable.newInstance();
+        final float[] V = new float[factors];
+        for (int i = 0; i < numEntries; i++) {
+            Entry e = new Entry(buf, factors, buf.allocate(entrySize));
+            e.setW(rand.nextFloat());
+            if (i % 5 != 0) { // some entries have W only
+                for (int f = 0; f < factors; f++) {
+                    V[f] = (float) rand.nextGaussian();
+                }
+                e.setV(V);
+            }
+            map.put(rand.nextInt(5000 * numFields), e.getOffset());
+        }
+        return new FFMPredictionModel(map, buf, 0.5d, factors, Feature.DEFAULT_NUM_FEATURES,
+            numFields);
+    }
+
+}
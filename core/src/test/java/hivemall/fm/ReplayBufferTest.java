@@ -0,0 +1,175 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.fm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.annotation.Nonnull;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.junit.Test;
+
+public class ReplayBufferTest {
+
+    @Test
+    public void testInMemory() throws HiveException {
+        ReplayBuffer buf = new ReplayBuffer(false);
+        List<Feature[]> xs = new ArrayList<Feature[]>();
+        List<Double> ys = new ArrayList<Double>();
+        Random rand = new Random(31L);
+        for (int i = 0; i < 1000; i++) {
+            Feature[] x = randomIntFeatures(rand, false, true);
+            double y = rand.nextGaussian();
+            buf.add(x, y);
+            xs.add(x);
+            ys.add(y);
+        }
+        assertEquals(1000L, buf.getNumExamples());
+
+        // replayed twice to check the buffer is rewound
+        assertReplay(buf, xs, ys);
+        assertReplay(buf, xs, ys);
+        assertNull(buf.getFile());
+        buf.close();
+    }
+
+    @Test
+    public void testSpill() throws HiveException {
+        ReplayBuffer buf = new ReplayBuffer(false, 4096, 512);
+        List<Feature[]> xs = new ArrayList<Feature[]>();
+        List<Double> ys = new ArrayList<Double>();
+        Random rand = new Random(43L);
+        for (int i = 0; i < 3000; i++) {
+            Feature[] x = randomIntFeatures(rand, i % 2 == 0, i % 3 == 0);
+            double y = rand.nextInt(2);
+            buf.add(x, y);
+            xs.add(x);
+            ys.add(y);
+        }
+        // an example larger than the memory buffer
+        Feature[] huge = new Feature[600];
+        for (int i = 0; i < huge.length; i++) {
+            huge[i] = new IntFeature(i, (short) (i % 7), 0.1d * i);
+        }
+        buf.add(huge, 1.d);
+        xs.add(huge);
+        ys.add(1.d);
+
+        assertReplay(buf, xs, ys);
+        assertTrue(buf.getNumBlocks() > 1);
+        File file = buf.getFile();
+        assertNotNull(file);
+        assertTrue(file.exists());
+        assertReplay(buf, xs, ys);
+
+        buf.close();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testStringFeatures() throws HiveException {
+        ReplayBuffer buf = new ReplayBuffer(true, 2048, 256);
+        List<Feature[]> xs = new ArrayList<Feature[]>();
+        List<Double> ys = new ArrayList<Double>();
+        Random rand = new Random(17L);
+        for (int i = 0; i < 500; i++) {
+            int len = 1 + rand.nextInt(5);
+            Feature[] x = new Feature[len];
+            for (int j = 0; j < len; j++) {
+                x[j] = new StringFeature("f" + rand.nextInt(50), (j == 0) ? 1.d : rand.nextFloat());
+            }
+            buf.add(x, i);
+            xs.add(x);
+            ys.add((double) i);
+        }
+        assertReplay(buf, xs, ys);
+        buf.close();
+    }
+
+    @Test
+    public void testPartitions() throws HiveException {
+        ReplayBuffer buf = new ReplayBuffer(false, 4096, 256);
+        for (int i = 0; i < 1000; i++) {
+            buf.add(new Feature[] {new IntFeature(i + 1, 1.d)}, i);
+        }
+        buf.flush();
+        assertTrue(buf.getNumBlocks() > 3);
+
+        final int[] counts = new int[1000];
+        for (int p = 0; p < 3; p++) {
+            buf.replay(new ReplayBuffer.ExampleHandler() {
+                @Override
+                public void handle(Feature[] x, double y) throws HiveException {
+                    assertEquals((int) y + 1, x[0].getFeatureIndex());
+                    counts[(int) y]++;
+                }
+            }, p, 3);
+        }
+        for (int c : counts) {
+            assertEquals(1, c);
+        }
+        buf.close();
+    }
+
+    @Nonnull
+    private static Feature[] randomIntFeatures(@Nonnull Random rand, boolean withFields,
+            boolean binary) {
+        int len = rand.nextInt(10);
+        Feature[] x = new Feature[len];
+        for (int j = 0; j < len; j++) {
+            short field = withFields ? (short) rand.nextInt(10) : (short) -1;
+            double v = binary ? 1.d : (j % 2 == 0 ? rand.nextDouble() : rand.nextFloat());
+            x[j] = new IntFeature(rand.nextInt(1000000), field, v);
+        }
+        return x;
+    }
+
+    private static void assertReplay(@Nonnull ReplayBuffer buf,
+            @Nonnull final List<Feature[]> xs, @Nonnull final List<Double> ys)
+            throws HiveException {
+        final int[] row = new int[1];
+        buf.replay(new ReplayBuffer.ExampleHandler() {
+            @Override
+            public void handle(Feature[] x, double y) throws HiveException {
+                int i = row[0]++;
+                Feature[] expected = xs.get(i);
+                assertEquals(expected.length, x.length);
+                for (int j = 0; j < x.length; j++) {
+                    assertEquals(expected[j].getFeature(), x[j].getFeature());
+                    if (expected[j] instanceof IntFeature) {
+                        assertEquals(expected[j].getField(), x[j].getField());
+                    }
+                    assertEquals(expected[j].getValue(), x[j].getValue(), 0.d);
+                }
+                assertEquals(ys.get(i).doubleValue(), y, 0.d);
+            }
+        });
+        assertEquals(xs.size(), row[0]);
+    }
+
+}
@@ -0,0 +1,334 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.knn.lsh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hivemall.knn.similarity.JaccardIndexUDF;
+import hivemall.utils.codec.Base91;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.Collector;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+public class MinHashSearchUDTFTest {
+
+    private static final int NUM_ITEMS = 1000;
+
+    @Test
+    public void testSearch() throws HiveException, IOException {
+        List<List<String>> items = randomItems(new Random(43L));
+        File index = writeIndexTable(items, "");
+        assertNearDuplicates(items, search(index, items, "-k 3"), 3);
+        assertNearDuplicates(items, search(index, items, "-k 3 -mmap"), 3);
+    }
+
+    @Test
+    public void testMappedIndexTableDeletedOnClose() throws HiveException, IOException {
+        List<List<String>> items = randomItems(new Random(43L));
+        File index = writeIndexTable(items, "");
+        final int numTempFiles = countTempIndexFiles();
+        assertNearDuplicates(items, search(index, items, "-k 3 -mmap"), 3);
+        assertEquals(numTempFiles, countTempIndexFiles());
+    }
+
+    private static int countTempIndexFiles() {
+        File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("hivemall_minhash") && name.endsWith(".idx");
+            }
+        });
+        return (files == null) ? 0 : files.length;
+    }
+
+    @Test
+    public void testExcludeSelf() throws HiveException, IOException {
+        List<List<String>> items = randomItems(new Random(31L));
+        File index = writeIndexTable(items, "-bands 20 -rows 3");
+        List<Object[]> results = search(index, items, "-k 2 -exclude_self");
+        for (Object[] row : results) {
+            int id = ((IntWritable) row[0]).get();
+            int item = ((IntWritable) row[1]).get();
+            assertTrue(id != item);
+            if (((IntWritable) row[2]).get() == 1) {
+                // the other of the pair of near duplicates
+                assertEquals(id ^ 1, item);
+            }
+        }
+    }
+
+    @Test
+    public void testRerank() throws HiveException, IOException {
+        List<List<String>> items = randomItems(new Random(11L));
+        File index = writeIndexTable(items, "-store_features");
+        List<Object[]> results = search(index, items, "-k 3 -rerank jaccard");
+        assertNearDuplicates(items, results, 3);
+
+        JaccardIndexUDF jaccard = new JaccardIndexUDF();
+        for (Object[] row : results) {
+            List<String> x = items.get(((IntWritable) row[0]).get());
+            List<String> y = items.get(((IntWritable) row[1]).get());
+            assertEquals(jaccard.evaluate(x, y).get(), ((DoubleWritable) row[3]).get(), 1E-6d);
+        }
+    }
+
+    @Test
+    public void testMappedIndexFile() throws HiveException, IOException {
+        List<List<String>> items = randomItems(new Random(7L));
+        MinHashIndex.Builder builder = new MinHashIndex.Builder(16, 4, false);
+        MinHasher hasher = new MinHasher(64, 1, false);
+        int[] signature = new int[64];
+        for (int i = 0; i < items.size(); i++) {
+            hasher.reset();
+            for (String f : items.get(i)) {
+                hasher.add(f, 1.f);
+            }
+            hasher.getSignatures(signature);
+            builder.add(i, signature, null);
+        }
+        File file = File.createTempFile("minhash_index", ".idx");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        out.write(builder.build());
+        out.close();
+
+        List<Object[]> expected = search(writeIndexTable(items, ""), items, "-k 2");
+        assertResults(expected, search(file, items, "-k 2"));
+        assertResults(expected, search(file, items, "-k 2 -mmap"));
+    }
+
+    @Test
+    public void testWeightedFeatures() throws HiveException, IOException {
+        List<List<String>> items = randomItems(new Random(5L));
+        List<List<String>> weighted = new ArrayList<List<String>>(items.size());
+        for (List<String> x : items) {
+            List<String> y = new ArrayList<String>(x.size());
+            for (String f : x) {
+                y.add(f + ":0.5");
+            }
+            weighted.add(y);
+        }
+        // features are hashed without weights, which are the same for all the features
+        File index = writeIndexTable(weighted, "");
+        List<Object[]> expected = search(writeIndexTable(items, ""), items, "-k 2");
+        assertResults(expected, search(index, items, "-k 2"));
+    }
+
+    @Test
+    public void testSignaturesOfMinhash() throws HiveException {
+        List<List<String>> items = randomItems(new Random(3L));
+        for (int i = 0; i < items.size(); i++) {
+            List<String> x = items.get(i);
+            x.set(0, x.get(0) + ":" + (i % 7 + 1) * 0.25f);
+        }
+        final ListObjectInspector featuresOI = ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+
+        MinHashIndexUDTF indexer = new MinHashIndexUDTF();
+        indexer.initialize(new ObjectInspector[] {
+                PrimitiveObjectInspectorFactory.javaIntObjectInspector,
+                featuresOI,
+                ObjectInspectorUtils.getConstantObjectInspector(
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector, "-bands 4 -rows 3")});
+        final List<MinHashIndex> indexes = new ArrayList<MinHashIndex>();
+        indexer.setCollector(new Collector() {
+            @Override
+            public void collect(Object input) throws HiveException {
+                byte[] b = Base91.decode(((Text) ((Object[]) input)[1]).toString().getBytes());
+                try {
+                    indexes.add(MinHashIndex.wrap(ByteBuffer.wrap(b)));
+                } catch (IOException e) {
+                    throw new HiveException(e);
+                }
+            }
+        });
+        for (int i = 0; i < items.size(); i++) {
+            indexer.process(new Object[] {i, items.get(i)});
+        }
+        indexer.close();
+        assertEquals(1, indexes.size());
+        final MinHashIndex index = indexes.get(0);
+        assertEquals(items.size(), index.size());
+
+        MinHashUDTF minhash = new MinHashUDTF();
+        minhash.initialize(new ObjectInspector[] {
+                PrimitiveObjectInspectorFactory.javaIntObjectInspector,
+                featuresOI,
+                ObjectInspectorUtils.getConstantObjectInspector(
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector, "-n 12 -k 1")});
+        final int[] signature = new int[12];
+        final int[] numHashes = new int[1];
+        minhash.setCollector(new Collector() {
+            @Override
+            public void collect(Object input) throws HiveException {
+                signature[numHashes[0]++] = ((IntWritable) ((Object[]) input)[0]).get();
+            }
+        });
+        for (int i = 0; i < items.size(); i++) {
+            numHashes[0] = 0;
+            minhash.process(new Object[] {i, items.get(i)});
+            assertEquals(12, numHashes[0]);
+            assertEquals(i, index.getItemId(i));
+            assertEquals(12, index.countMatches(i, signature));
+        }
+        minhash.close();
+    }
+
+    private static void assertResults(List<Object[]> expected, List<Object[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            for (int j = 0; j < 4; j++) {
+                assertEquals(expected.get(i)[j], actual.get(i)[j]);
+            }
+        }
+    }
+
+    private static void assertNearDuplicates(List<List<String>> items, List<Object[]> results,
+            int k) {
+        int found = 0;
+        int prev = -1;
+        for (Object[] row : results) {
+            int id = ((IntWritable) row[0]).get();
+            int item = ((IntWritable) row[1]).get();
+            int rank = ((IntWritable) row[2]).get();
+            if (id != prev) {
+                assertEquals(1, rank);
+                // an item itself
+                assertEquals(id, item);
+                assertEquals(1.d, ((DoubleWritable) row[3]).get(), 0.d);
+                prev = id;
+            } else {
+                assertTrue(rank <= k);
+                if (rank == 2 && item == (id ^ 1)) {
+                    found++;
+                }
+            }
+        }
+        // most of the near duplicates are found at the 2nd rank
+        assertTrue("found " + found, found > items.size() * 0.9);
+    }
+
+    /**
+     * Generates pairs of near duplicates, sharing 45 out of 50 features.
+     */
+    private static List<List<String>> randomItems(Random rnd) {
+        List<List<String>> items = new ArrayList<List<String>>(NUM_ITEMS);
+        for (int i = 0; i < NUM_ITEMS; i += 2) {
+            List<String> x = new ArrayList<String>();
+            for (int f = 0; f < 45; f++) {
+                x.add(Integer.toString(rnd.nextInt(100000)));
+            }
+            List<String> y = new ArrayList<String>(x);
+            for (int f = 0; f < 5; f++) {
+                x.add(Integer.toString(rnd.nextInt(100000)));
+                y.add(Integer.toString(rnd.nextInt(100000)));
+            }
+            items.add(x);
+            items.add(y);
+        }
+        return items;
+    }
+
+    /**
+     * Builds indexes in two tasks and writes them as a Hive text table.
+     */
+    private static File writeIndexTable(List<List<String>> items, String options)
+            throws HiveException, IOException {
+        File dir = File.createTempFile("minhash_index", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        for (int part = 0; part < 2; part++) {
+            final File file = new File(dir, "00000" + part + "_0");
+            file.deleteOnExit();
+            final Writer writer = new FileWriter(file);
+            MinHashIndexUDTF udtf = new MinHashIndexUDTF();
+            udtf.initialize(new ObjectInspector[] {
+                    PrimitiveObjectInspectorFactory.javaIntObjectInspector,
+                    ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector),
+                    ObjectInspectorUtils.getConstantObjectInspector(
+                        PrimitiveObjectInspectorFactory.javaStringObjectInspector, options)});
+            udtf.setCollector(new Collector() {
+                @Override
+                public void collect(Object input) throws HiveException {
+                    Object[] row = (Object[]) input;
+                    try {
+                        writer.write(row[0] + "\001" + ((Text) row[1]).toString() + "\n");
+                    } catch (IOException e) {
+                        throw new HiveException(e);
+                    }
+                }
+            });
+            for (int i = part; i < items.size(); i += 2) {
+                udtf.process(new Object[] {i, items.get(i)});
+            }
+            udtf.close();
+            writer.close();
+        }
+        return dir;
+    }
+
+    private static List<Object[]> search(File index, List<List<String>> items, String options)
+            throws HiveException {
+        MinHashSearchUDTF udtf = new MinHashSearchUDTF();
+        udtf.initialize(new ObjectInspector[] {
+                PrimitiveObjectInspectorFactory.writableIntObjectInspector,
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector),
+                ObjectInspectorUtils.getConstantObjectInspector(
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector, "-index "
+                            + index.getAbsolutePath() + " " + options)});
+        final List<Object[]> results = new ArrayList<Object[]>();
+        udtf.setCollector(new Collector() {
+            @Override
+            public void collect(Object input) throws HiveException {
+                Object[] row = (Object[]) input;
+                results.add(new Object[] {new IntWritable(((IntWritable) row[0]).get()),
+                        new IntWritable(((IntWritable) row[1]).get()),
+                        new IntWritable(((IntWritable) row[2]).get()),
+                        new DoubleWritable(((DoubleWritable) row[3]).get())});
+            }
+        });
+        for (int i = 0; i < items.size(); i++) {
+            udtf.process(new Object[] {new IntWritable(i), items.get(i)});
+        }
+        udtf.close();
+        return results;
+    }
+
+}
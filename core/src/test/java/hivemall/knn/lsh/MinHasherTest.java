@@ -0,0 +1,217 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.knn.lsh;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hivemall.utils.hashing.MurmurHash3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.Collector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+public class MinHasherTest {
+
+    @Test
+    public void testSameAsPriorityQueue() throws HiveException {
+        final Random rnd = new Random(43L);
+        final int numHashes = 7, keyGroups = 3;
+        final int[] seeds = MinHashIndex.newSeeds(numHashes);
+        final MinHasher hasher = new MinHasher(numHashes, keyGroups, false);
+        final int[] actual = new int[numHashes];
+        for (int t = 0; t < 200; t++) {
+            List<String> features = new ArrayList<String>();
+            List<Float> weights = new ArrayList<Float>();
+            hasher.reset();
+            for (int i = rnd.nextInt(30); i > 0; i--) {
+                String f = "f" + rnd.nextInt(1000);
+                float w = (t % 2 == 0) ? 1.f : rnd.nextInt(4) * 0.5f;
+                features.add(f);
+                weights.add(w);
+                if (rnd.nextBoolean()) {
+                    hasher.add(f, w);
+                } else {
+                    byte[] b = f.getBytes(StandardCharsets.UTF_8);
+                    hasher.add(b, 0, b.length, w);
+                }
+            }
+            hasher.getSignatures(actual);
+            assertArrayEquals(signatures(features, weights, seeds, keyGroups), actual);
+        }
+    }
+
+    @Test
+    public void testIntegerFeatures() throws HiveException {
+        final MinHasher hasher = new MinHasher(5, 2, false);
+        final int[] expected = new int[5], actual = new int[5];
+        for (long f : new long[] {0L, 7L, -15L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            hasher.reset();
+            hasher.add(Long.toString(f), 1.f);
+            hasher.getSignatures(expected);
+            hasher.reset();
+            hasher.add(f, 1.f);
+            hasher.getSignatures(actual);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testOnePermutation() throws HiveException {
+        final Random rnd = new Random(31L);
+        final int numBins = 128;
+        final MinHasher hasher = new MinHasher(numBins, 1, true);
+        final int[] sig1 = new int[numBins], sig2 = new int[numBins];
+        for (int t = 0; t < 20; t++) {
+            // sets of 40 features sharing 0 to 40 features
+            int shared = 2 * t;
+            Set<String> x = new HashSet<String>(), y = new HashSet<String>();
+            for (int i = 0; i < shared; i++) {
+                String f = Integer.toString(rnd.nextInt());
+                x.add(f);
+                y.add(f);
+            }
+            for (int i = shared; i < 40; i++) {
+                x.add(Integer.toString(rnd.nextInt()));
+                y.add(Integer.toString(rnd.nextInt()));
+            }
+            hasher.reset();
+            for (String f : x) {
+                hasher.add(f, 1.f);
+            }
+            hasher.getSignatures(sig1);
+            hasher.reset();
+            for (String f : y) {
+                hasher.add(f, 1.f);
+            }
+            hasher.getSignatures(sig2);
+
+            int matches = 0;
+            for (int i = 0; i < numBins; i++) {
+                if (sig1[i] == sig2[i]) {
+                    matches++;
+                }
+            }
+            Set<String> union = new HashSet<String>(x);
+            union.addAll(y);
+            double jaccard = (double) shared / union.size();
+            assertEquals(jaccard, (double) matches / numBins, 0.2d);
+        }
+    }
+
+    @Test
+    public void testMinHashUDTF() throws HiveException {
+        final MinHashUDTF udtf = new MinHashUDTF();
+        udtf.initialize(new ObjectInspector[] {
+                PrimitiveObjectInspectorFactory.javaIntObjectInspector,
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.writableStringObjectInspector),
+                ObjectInspectorUtils.getConstantObjectInspector(
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector, "-n 4 -k 2")});
+        final List<Integer> clusters = new ArrayList<Integer>();
+        udtf.setCollector(new Collector() {
+            @Override
+            public void collect(Object input) throws HiveException {
+                clusters.add(((IntWritable) ((Object[]) input)[0]).get());
+            }
+        });
+        List<Text> features = new ArrayList<Text>();
+        features.add(new Text("apple:2.0"));
+        features.add(new Text("banana"));
+        features.add(new Text("cherry:0.5"));
+        udtf.process(new Object[] {1, features});
+
+        List<String> names = new ArrayList<String>();
+        names.add("apple");
+        names.add("banana");
+        names.add("cherry");
+        List<Float> weights = new ArrayList<Float>();
+        weights.add(2.f);
+        weights.add(1.f);
+        weights.add(0.5f);
+        int[] expected = signatures(names, weights, MinHashIndex.newSeeds(4), 2);
+        assertEquals(4, clusters.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(expected[i], clusters.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testDensification() throws HiveException {
+        final MinHasher hasher = new MinHasher(64, 2, true);
+        final int[] sig = new int[64];
+        hasher.add("only", 1.f);
+        hasher.getSignatures(sig);
+        for (int i = 0; i < 64; i++) {
+            assertTrue(sig[i] != 0);
+            for (int j = 0; j < i; j++) {
+                assertTrue(sig[i] != sig[j]);
+            }
+        }
+        hasher.reset();
+        hasher.getSignatures(sig);
+        assertArrayEquals(new int[64], sig);
+    }
+
+    /**
+     * The signatures computed by a priority queue for each hash function.
+     */
+    private static int[] signatures(List<String> features, List<Float> weights, int[] seeds,
+            int keyGroups) {
+        final int[] hashes = new int[seeds.length];
+        final PriorityQueue<Integer> minhashes = new PriorityQueue<Integer>();
+        for (int i = 0; i < seeds.length; i++) {
+            float weightedMinHashValues = Float.MAX_VALUE;
+            for (int j = 0; j < features.size(); j++) {
+                int hashIndex = Math.abs(MurmurHash3.murmurhash3_x86_32(features.get(j),
+                    seeds[i]));
+                float w = weights.get(j);
+                float hashValue = (w == 0.f) ? Float.MAX_VALUE : hashIndex / w;
+                if (hashValue < weightedMinHashValues) {
+                    weightedMinHashValues = hashValue;
+                    minhashes.offer(hashIndex);
+                }
+            }
+            int result = 1;
+            if (minhashes.isEmpty()) {
+                result = 0;
+            }
+            for (int k = Math.min(minhashes.size(), keyGroups); k > 0; k--) {
+                result = (31 * result) + minhashes.poll();
+            }
+            hashes[i] = result & 0x7FFFFFFF;
+            minhashes.clear();
+        }
+        return hashes;
+    }
+
+}
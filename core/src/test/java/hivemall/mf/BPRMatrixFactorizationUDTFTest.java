@@ -109,6 +109,68 @@ public class BPRMatrixFactorizationUDTFTest {
         Assert.assertTrue("finishedIter: " + finishedIter, finishedIter < iterations);
     }
 
+    @Test
+    public void testMovielens1kParallel() throws HiveException, IOException {
+        final int iterations = 50;
+        BPRMatrixFactorizationUDTF bpr = new BPRMatrixFactorizationUDTF();
+
+        ObjectInspector intOI = PrimitiveObjectInspectorFactory.writableIntObjectInspector;
+        ObjectInspector param = ObjectInspectorUtils.getConstantObjectInspector(
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, new String(
+                "-factor 10 -num_threads 4 -seed 43 -iter " + iterations));
+        ObjectInspector[] argOIs = new ObjectInspector[] {intOI, intOI, intOI, param};
+
+        MapredContext mapredContext = MapredContextAccessor.create(true, null);
+        bpr.configure(mapredContext);
+        bpr.setCollector(new Collector() {
+            @Override
+            public void collect(Object args) throws HiveException {}
+        });
+        bpr.initialize(argOIs);
+
+        final IntWritable user = new IntWritable();
+        final IntWritable posItem = new IntWritable();
+        final IntWritable negItem = new IntWritable();
+        final Object[] args = new Object[] {user, posItem, negItem};
+
+        BufferedReader train = IOUtils.bufferedReader(getClass().getResourceAsStream("ml1k.train"));
+        String line;
+        int numExamples = 0;
+        while ((line = train.readLine()) != null) {
+            parseLine(line, user, posItem, negItem);
+            bpr.process(args);
+            numExamples++;
+        }
+        bpr.close();
+        int finishedIter = bpr.cvState.getCurrentIteration();
+        Assert.assertTrue("finishedIter: " + finishedIter, finishedIter < iterations);
+        Assert.assertEquals((long) numExamples * finishedIter, bpr.count);
+    }
+
+    @Test
+    public void testMovielens1kResidualFraction() throws IOException {
+        final int numThreads = 4;
+        final BlockScheduler blocks = new BlockScheduler(numThreads, 3, 43L);
+        final IntWritable user = new IntWritable();
+        final IntWritable posItem = new IntWritable();
+        final IntWritable negItem = new IntWritable();
+        final int[] record = new int[3];
+        BufferedReader train = IOUtils.bufferedReader(getClass().getResourceAsStream("ml1k.train"));
+        String line;
+        while ((line = train.readLine()) != null) {
+            parseLine(line, user, posItem, negItem);
+            record[0] = user.get();
+            record[1] = posItem.get();
+            record[2] = negItem.get();
+            blocks.add(record[0], record[1], record[2], record);
+        }
+        blocks.close();
+
+        // examples of which the items fall in different column blocks are trained in pair strata
+        double fraction = (double) blocks.getNumResidualRecords() / blocks.getNumRecords();
+        System.out.println("Fraction of examples across column blocks: " + fraction);
+        Assert.assertEquals((numThreads - 1) / (double) numThreads, fraction, 0.05d);
+    }
 
     private static void parseLine(@Nonnull String line, @Nonnull IntWritable user,
             @Nonnull IntWritable posItem, @Nonnull IntWritable negItem) {
@@ -0,0 +1,182 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.mf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.junit.Test;
+
+public class BlockSchedulerTest {
+
+    @Test
+    public void testStrata() throws HiveException {
+        final int numBlocks = 4;
+        final int numUsers = 100, numItems = 50;
+        final BlockScheduler blocks = new BlockScheduler(numBlocks, 2, 43L);
+        final int[] record = new int[2];
+        for (int u = 0; u < numUsers; u++) {
+            for (int i = 0; i < numItems; i++) {
+                record[0] = u;
+                record[1] = i;
+                blocks.add(u, i, record);
+            }
+        }
+        assertEquals(numUsers * numItems, blocks.getNumRecords());
+
+        int[] strata = blocks.strata(2);
+        int[] sorted = strata.clone();
+        Arrays.sort(sorted);
+        assertArrayEquals(new int[] {0, 1, 2, 3}, sorted);
+        assertArrayEquals(strata, blocks.strata(2));
+
+        final BitSet visited = new BitSet();
+        final CheckingWorker[] workers = new CheckingWorker[numBlocks];
+        for (int b = 0; b < numBlocks; b++) {
+            workers[b] = new CheckingWorker(visited, numItems);
+        }
+        try {
+            for (int stratum : strata) {
+                for (CheckingWorker w : workers) {
+                    w.users.clear();
+                    w.items.clear();
+                }
+                blocks.runStratum(stratum, workers);
+                // no user nor item is shared among the blocks of a stratum
+                Set<Integer> users = new HashSet<Integer>();
+                Set<Integer> items = new HashSet<Integer>();
+                for (CheckingWorker w : workers) {
+                    for (Integer u : w.users) {
+                        assertTrue(users.add(u));
+                    }
+                    for (Integer i : w.items) {
+                        assertTrue(items.add(i));
+                    }
+                }
+            }
+        } finally {
+            blocks.close();
+        }
+        assertEquals(numUsers * numItems, visited.cardinality());
+    }
+
+    @Test
+    public void testPairStrata() throws HiveException {
+        for (int numBlocks = 1; numBlocks <= 5; numBlocks++) {
+            testPairStrata(numBlocks);
+        }
+    }
+
+    private static void testPairStrata(final int numBlocks) throws HiveException {
+        final int numUsers = 30, numItems = 20;
+        final BlockScheduler blocks = new BlockScheduler(numBlocks, 3, 31L);
+        final int[] record = new int[3];
+        int numResiduals = 0;
+        for (int u = 0; u < numUsers; u++) {
+            for (int i = 0; i < numItems; i++) {
+                for (int j = 0; j < numItems; j++) {
+                    record[0] = u;
+                    record[1] = i;
+                    record[2] = j;
+                    blocks.add(u, i, j, record);
+                    if (blocks.columnBlock(i) != blocks.columnBlock(j)) {
+                        numResiduals++;
+                    }
+                }
+            }
+        }
+        assertEquals(numUsers * numItems * numItems, blocks.getNumRecords());
+        assertEquals(numResiduals, blocks.getNumResidualRecords());
+
+        // the pairs of a round share no column block and every pair is scheduled once
+        final Set<Integer> pairs = new HashSet<Integer>();
+        for (int[][] round : BlockScheduler.roundRobin(numBlocks)) {
+            final BitSet used = new BitSet();
+            for (int[] pair : round) {
+                assertTrue(pair[0] < pair[1]);
+                assertTrue(!used.get(pair[0]) && !used.get(pair[1]));
+                used.set(pair[0]);
+                used.set(pair[1]);
+                assertTrue(pairs.add(pair[0] * numBlocks + pair[1]));
+            }
+        }
+        assertEquals(numBlocks * (numBlocks - 1) / 2, pairs.size());
+
+        // a record across column blocks is processed once by the worker of its row block
+        final BitSet visited = new BitSet();
+        final BlockScheduler.Worker[] workers = new BlockScheduler.Worker[numBlocks];
+        for (int b = 0; b < numBlocks; b++) {
+            final int rowBlock = b;
+            workers[b] = new BlockScheduler.Worker() {
+                @Override
+                public void handle(@Nonnull int[] records, int offset) {
+                    int u = records[offset];
+                    int i = records[offset + 1];
+                    int j = records[offset + 2];
+                    assertEquals(rowBlock, blocks.rowBlock(u));
+                    assertTrue(blocks.columnBlock(i) != blocks.columnBlock(j));
+                    int index = (u * numItems + i) * numItems + j;
+                    synchronized (visited) {
+                        assertTrue(!visited.get(index));
+                        visited.set(index);
+                    }
+                }
+            };
+        }
+        try {
+            blocks.runPairStrata(workers);
+        } finally {
+            blocks.close();
+        }
+        assertEquals(numResiduals, visited.cardinality());
+    }
+
+    private static final class CheckingWorker implements BlockScheduler.Worker {
+        final BitSet visited;
+        final int numItems;
+        final Set<Integer> users = new HashSet<Integer>();
+        final Set<Integer> items = new HashSet<Integer>();
+
+        CheckingWorker(BitSet visited, int numItems) {
+            this.visited = visited;
+            this.numItems = numItems;
+        }
+
+        @Override
+        public void handle(@Nonnull int[] records, int offset) {
+            int u = records[offset];
+            int i = records[offset + 1];
+            users.add(u);
+            items.add(i);
+            synchronized (visited) {
+                visited.set(u * numItems + i);
+            }
+        }
+    }
+
+}
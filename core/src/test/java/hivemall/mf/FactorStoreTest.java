@@ -0,0 +1,76 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.mf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FactorStoreTest {
+
+    @Test
+    public void testPaging() {
+        final int factor = 3;
+        final FactorStore store = new FactorStore(factor, true, 16);
+        assertTrue(store.hasSumOfSquaredGradients());
+
+        final int n = 20000; // spans several pages
+        for (int i = 0; i < n; i++) {
+            int index = i * 7;
+            assertEquals(-1, store.find(index));
+            int slot = store.add(index);
+            assertEquals(i, slot);
+            float[] w = store.weights(slot);
+            int offset = store.offset(slot);
+            for (int k = 0; k < factor; k++) {
+                assertEquals(0.f, w[offset + k], 0.f);
+                w[offset + k] = index + k;
+            }
+            store.setBias(slot, -index);
+            store.sqgrads(slot)[store.biasOffset(slot)] = index;
+        }
+        assertEquals(n, store.size());
+
+        final float[] probe = new float[factor];
+        for (int i = 0; i < n; i++) {
+            int index = i * 7;
+            int slot = store.find(index);
+            assertEquals(i, slot);
+            store.copyTo(slot, probe);
+            for (int k = 0; k < factor; k++) {
+                assertEquals(index + k, probe[k], 0.f);
+            }
+            assertEquals(-index, store.getBias(slot), 0.f);
+            assertEquals(index, store.sqgrads(slot)[store.biasOffset(slot)], 0.f);
+        }
+        assertEquals(-1, store.find(1));
+    }
+
+    @Test
+    public void testNoSumOfSquaredGradients() {
+        FactorStore store = new FactorStore(2, false, 0);
+        assertFalse(store.hasSumOfSquaredGradients());
+        int slot = store.add(5);
+        assertEquals(slot, store.find(5));
+        assertEquals(2, store.biasOffset(slot) - store.offset(slot));
+    }
+
+}
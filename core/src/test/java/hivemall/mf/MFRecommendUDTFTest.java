@@ -0,0 +1,204 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.mf;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.Collector;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.junit.Test;
+
+public class MFRecommendUDTFTest {
+
+    private static final int NUM_ITEMS = 500;
+    private static final int FACTOR = 6;
+
+    @Test
+    public void testTopK() throws HiveException, IOException {
+        Random rnd = new Random(43L);
+        float[][] Q = randomFactors(NUM_ITEMS, rnd);
+        double[] Bi = randomBiases(NUM_ITEMS, rnd);
+        File model = writeMFModel(Q, Bi, 0.5d);
+        float[][] P = randomFactors(30, rnd);
+
+        assertTopK(P, Q, Bi, 0.5d, recommend(model, P, "-k 7 -batch 8"), 7);
+    }
+
+    @Test
+    public void testPruning() throws HiveException, IOException {
+        Random rnd = new Random(31L);
+        float[][] Q = randomFactors(NUM_ITEMS, rnd);
+        double[] Bi = randomBiases(NUM_ITEMS, rnd);
+        File model = writeMFModel(Q, Bi, 0.d);
+        float[][] P = randomFactors(30, rnd);
+
+        assertTopK(P, Q, Bi, 0.d, recommend(model, P, "-k 5 -pruning -batch 4"), 5);
+    }
+
+    @Test
+    public void testBPRModel() throws HiveException, IOException {
+        Random rnd = new Random(11L);
+        float[][] Q = randomFactors(NUM_ITEMS, rnd);
+        double[] Bi = randomBiases(NUM_ITEMS, rnd);
+
+        // idx, Pu, Qi, Bi delimited by tabs with arrays printed in brackets
+        File file = File.createTempFile("bprmf_model", ".txt");
+        file.deleteOnExit();
+        Writer writer = new FileWriter(file);
+        for (int i = 0; i < NUM_ITEMS; i++) {
+            StringBuilder buf = new StringBuilder();
+            buf.append(i).append("\t\\N\t[");
+            for (int k = 0; k < FACTOR; k++) {
+                if (k != 0) {
+                    buf.append(',');
+                }
+                buf.append(Q[i][k]);
+            }
+            buf.append("]\t").append(Bi[i]).append('\n');
+            writer.write(buf.toString());
+        }
+        writer.close();
+
+        float[][] P = randomFactors(10, rnd);
+        assertTopK(P, Q, Bi, 0.d, recommend(file, P, "-k 3 -pruning"), 3);
+    }
+
+    private static void assertTopK(float[][] P, float[][] Q, double[] Bi, double mu,
+            List<Object[]> results, int k) {
+        assertEquals(P.length * k, results.size());
+        for (int u = 0; u < P.length; u++) {
+            final double[] scores = new double[Q.length];
+            for (int i = 0; i < Q.length; i++) {
+                double s = mu + Bi[i];
+                for (int f = 0; f < FACTOR; f++) {
+                    s += (double) P[u][f] * Q[i][f];
+                }
+                scores[i] = s;
+            }
+            double[] sorted = scores.clone();
+            Arrays.sort(sorted);
+            for (int r = 0; r < k; r++) {
+                Object[] row = results.get(u * k + r);
+                assertEquals(u, ((IntWritable) row[0]).get());
+                assertEquals(r + 1, ((IntWritable) row[2]).get());
+                int item = ((IntWritable) row[1]).get();
+                double score = ((DoubleWritable) row[3]).get();
+                assertEquals(sorted[Q.length - 1 - r], score, 1E-6d);
+                assertEquals(scores[item], score, 1E-6d);
+            }
+        }
+    }
+
+    private static List<Object[]> recommend(File model, float[][] P, String options)
+            throws HiveException {
+        MFRecommendUDTF udtf = new MFRecommendUDTF();
+        udtf.initialize(new ObjectInspector[] {
+                PrimitiveObjectInspectorFactory.writableIntObjectInspector,
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaFloatObjectInspector),
+                ObjectInspectorUtils.getConstantObjectInspector(
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector, "-model "
+                            + model.getAbsolutePath() + " " + options)});
+        final List<Object[]> results = new ArrayList<Object[]>();
+        udtf.setCollector(new Collector() {
+            @Override
+            public void collect(Object input) throws HiveException {
+                Object[] row = (Object[]) input;
+                results.add(new Object[] {new IntWritable(((IntWritable) row[0]).get()),
+                        new IntWritable(((IntWritable) row[1]).get()),
+                        new IntWritable(((IntWritable) row[2]).get()),
+                        new DoubleWritable(((DoubleWritable) row[3]).get())});
+            }
+        });
+        for (int u = 0; u < P.length; u++) {
+            List<Float> Pu = new ArrayList<Float>(FACTOR);
+            for (float f : P[u]) {
+                Pu.add(f);
+            }
+            udtf.process(new Object[] {new IntWritable(u), Pu});
+        }
+        udtf.close();
+        return results;
+    }
+
+    private static File writeMFModel(float[][] Q, double[] Bi, double mu) throws IOException {
+        File dir = File.createTempFile("mf_model", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        // idx, Pu, Qi, Bu, Bi, mu in two files of a Hive text table
+        for (int part = 0; part < 2; part++) {
+            File file = new File(dir, "00000" + part + "_0");
+            file.deleteOnExit();
+            Writer writer = new FileWriter(file);
+            for (int i = part; i < Q.length; i += 2) {
+                StringBuilder buf = new StringBuilder();
+                buf.append(i).append("\001\\N\001");
+                for (int k = 0; k < FACTOR; k++) {
+                    if (k != 0) {
+                        buf.append('\002');
+                    }
+                    buf.append(Q[i][k]);
+                }
+                buf.append("\0010.1\001").append(Bi[i]).append('\001').append(mu).append('\n');
+                writer.write(buf.toString());
+            }
+            // a user without item factors
+            writer.write((Q.length + part) + "\0011\0022\0023\0024\0025\0026\001\\N\0010.1\001\\N\001"
+                    + mu + '\n');
+            writer.close();
+        }
+        return dir;
+    }
+
+    private static float[][] randomFactors(int n, Random rnd) {
+        float[][] m = new float[n][FACTOR];
+        for (int i = 0; i < n; i++) {
+            // skewed norms so that pruning takes effect
+            float scale = (i % 10 == 0) ? 2.f : 0.5f;
+            for (int k = 0; k < FACTOR; k++) {
+                m[i][k] = (float) rnd.nextGaussian() * scale;
+            }
+        }
+        return m;
+    }
+
+    private static double[] randomBiases(int n, Random rnd) {
+        double[] b = new double[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = rnd.nextGaussian() * 0.1d;
+        }
+        return b;
+    }
+
+}
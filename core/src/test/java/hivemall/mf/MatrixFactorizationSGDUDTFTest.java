@@ -343,4 +343,62 @@ public class MatrixFactorizationSGDUDTFTest {
         Assert.assertEquals(5, numCollected.intValue());
         Assert.assertFalse(tmpFile.exists());
     }
+
+    @Test
+    public void testParallelIterations() throws HiveException {
+        println("--------------------------\n testParallelIterations()");
+        float[][] rating = { {5, 3, 0, 1}, {4, 0, 0, 1}, {1, 1, 0, 5}, {1, 0, 0, 4}, {0, 1, 5, 4}};
+        double[][] predicted1 = trainInParallel(rating);
+        double[][] predicted2 = trainInParallel(rating);
+
+        for (int row = 0; row < rating.length; row++) {
+            for (int col = 0, size = rating[row].length; col < size; col++) {
+                print(rating[row][col] + "[" + predicted1[row][col] + "]\t");
+                Assert.assertEquals(rating[row][col], predicted1[row][col], 0.2d);
+                // deterministic for a seed
+                Assert.assertEquals(predicted1[row][col], predicted2[row][col], 0.d);
+            }
+            println();
+        }
+    }
+
+    private static double[][] trainInParallel(float[][] rating) throws HiveException {
+        OnlineMatrixFactorizationUDTF mf = new MatrixFactorizationSGDUDTF();
+
+        ObjectInspector intOI = PrimitiveObjectInspectorFactory.javaIntObjectInspector;
+        ObjectInspector floatOI = PrimitiveObjectInspectorFactory.javaFloatObjectInspector;
+        int iters = 100;
+        ObjectInspector param = ObjectInspectorUtils.getConstantObjectInspector(
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, new String(
+                "-factor 3 -disable_cv -num_threads 2 -seed 43 -iterations " + iters));
+        ObjectInspector[] argOIs = new ObjectInspector[] {intOI, intOI, floatOI, param};
+        MapredContext mrContext = MapredContextAccessor.create(true, null);
+        mf.configure(mrContext);
+        mf.initialize(argOIs);
+        Assert.assertEquals(2, mf.numThreads);
+
+        Object[] args = new Object[3];
+        int trainingExamples = 0;
+        for (int row = 0; row < rating.length; row++) {
+            for (int col = 0, size = rating[row].length; col < size; col++) {
+                args[0] = row;
+                args[1] = col;
+                args[2] = (float) rating[row][col];
+                mf.process(args);
+                trainingExamples++;
+            }
+        }
+        mf.runIterativeTraining(iters);
+        Assert.assertEquals(trainingExamples * iters, mf.count);
+
+        double[][] predicted = new double[rating.length][];
+        for (int row = 0; row < rating.length; row++) {
+            predicted[row] = new double[rating[row].length];
+            for (int col = 0, size = rating[row].length; col < size; col++) {
+                predicted[row][col] = mf.predict(row, col);
+            }
+        }
+        return predicted;
+    }
+
 }
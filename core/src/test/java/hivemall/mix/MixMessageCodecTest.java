@@ -0,0 +1,179 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.mix;
+
+import hivemall.mix.MixMessage.MixEventName;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MixMessageCodecTest {
+
+    @Test
+    public void testMessage() {
+        MixMessage msg = new MixMessage(MixEventName.average, new Text("f1"), 0.5f, 1.f,
+            (short) 3, 2);
+        msg.setGroupID("group1");
+
+        Object decoded = encodeAndDecode(msg);
+        Assert.assertTrue(decoded instanceof MixMessage);
+        MixMessage actual = (MixMessage) decoded;
+        Assert.assertEquals(MixEventName.average, actual.getEvent());
+        Assert.assertEquals(new Text("f1"), actual.getFeature());
+        Assert.assertEquals(0.5f, actual.getWeight(), 0.f);
+        Assert.assertEquals(1.f, actual.getCovariance(), 0.f);
+        Assert.assertEquals(3, actual.getClock());
+        Assert.assertEquals(2, actual.getDeltaUpdates());
+        Assert.assertFalse(actual.isCancelRequest());
+        Assert.assertEquals("group1", actual.getGroupID());
+    }
+
+    @Test
+    public void testBatch() {
+        MixMessageBatch batch = new MixMessageBatch(MixEventName.argminKLD, 2);
+        batch.setGroupID("group1");
+        batch.add(Integer.valueOf(1), 0.1f, 0.9f, (short) 1, 3, false);
+        batch.add(new Text("f2"), 0.2f, 0.8f, (short) -2, 127, false);
+        batch.add(new IntWritable(3), 0.3f, 0.7f, (short) 0, 1, true);
+
+        Object decoded = encodeAndDecode(batch);
+        Assert.assertTrue(decoded instanceof MixMessageBatch);
+        MixMessageBatch actual = (MixMessageBatch) decoded;
+        Assert.assertEquals(MixEventName.argminKLD, actual.getEvent());
+        Assert.assertEquals("group1", actual.getGroupID());
+        Assert.assertEquals(3, actual.size());
+
+        Assert.assertEquals(Integer.valueOf(1), actual.getFeature(0));
+        Assert.assertEquals(new Text("f2"), actual.getFeature(1));
+        Assert.assertEquals(new IntWritable(3), actual.getFeature(2));
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(batch.getWeight(i), actual.getWeight(i), 0.f);
+            Assert.assertEquals(batch.getCovariance(i), actual.getCovariance(i), 0.f);
+            Assert.assertEquals(batch.getClock(i), actual.getClock(i));
+            Assert.assertEquals(batch.getDeltaUpdates(i), actual.getDeltaUpdates(i));
+            Assert.assertEquals(batch.isCancelRequest(i), actual.isCancelRequest(i));
+        }
+    }
+
+    @Test
+    public void testCompactBatch() {
+        MixMessageBatch batch = new MixMessageBatch(MixEventName.argminKLD, 8);
+        batch.setGroupID("group1");
+        batch.setCompact(true);
+        batch.add(Integer.valueOf(-1), 0.5f, 0.25f, (short) 1, 3, false);
+        batch.add(new Text("f2"), -1.5f, 1.f, (short) -2, 127, false);
+        batch.add(new IntWritable(Integer.MAX_VALUE), 100000.f, 0.7f, (short) 300, 1, true);
+        batch.add(new LongWritable(Long.MIN_VALUE), 0.1f, Float.NaN, Short.MAX_VALUE, 0, false);
+        batch.add("f5", 2.f, 65504f, Short.MIN_VALUE, 64, true);
+        batch.add("f6", 1E-6f, 1E-8f, (short) 0, 1, false);
+
+        Object decoded = encodeAndDecode(batch);
+        Assert.assertTrue(decoded instanceof MixMessageBatch);
+        MixMessageBatch actual = (MixMessageBatch) decoded;
+        Assert.assertTrue(actual.isCompact());
+        Assert.assertEquals(MixEventName.argminKLD, actual.getEvent());
+        Assert.assertEquals("group1", actual.getGroupID());
+        Assert.assertEquals(batch.size(), actual.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Assert.assertEquals(batch.getFeature(i), actual.getFeature(i));
+            Assert.assertEquals(batch.getWeight(i), actual.getWeight(i),
+                Math.abs(batch.getWeight(i)) * 1E-3f);
+            Assert.assertEquals(batch.getClock(i), actual.getClock(i));
+            Assert.assertEquals(batch.getDeltaUpdates(i), actual.getDeltaUpdates(i));
+            Assert.assertEquals(batch.isCancelRequest(i), actual.isCancelRequest(i));
+        }
+        // not representable by a half-float
+        Assert.assertEquals(100000.f, actual.getWeight(2), 0.f);
+        Assert.assertTrue(Float.isNaN(actual.getCovariance(3)));
+        Assert.assertEquals(65504f, actual.getCovariance(4), 0.f);
+        // below the minimum normal of a half-float
+        Assert.assertEquals(1E-6f, actual.getWeight(5), 0.f);
+        Assert.assertEquals(1E-8f, actual.getCovariance(5), 0.f);
+    }
+
+    @Test
+    public void testForwardedBatch() {
+        MixMessageBatch batch = new MixMessageBatch(MixEventName.average, 2);
+        batch.setGroupID("group1");
+        batch.setCompact(true); // forwarded batches are always in the legacy format
+        batch.setForwarded(true);
+        batch.add(Integer.valueOf(1), 0.5f, 0.25f, (short) 1, 3, false);
+        batch.add(new Text("f2"), -1.5f, 1.f, (short) 2, 1, true);
+
+        Object decoded = encodeAndDecode(batch);
+        Assert.assertTrue(decoded instanceof MixMessageBatch);
+        MixMessageBatch actual = (MixMessageBatch) decoded;
+        Assert.assertTrue(actual.isForwarded());
+        Assert.assertFalse(actual.isCompact());
+        Assert.assertEquals("group1", actual.getGroupID());
+        Assert.assertEquals(2, actual.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Assert.assertEquals(batch.getFeature(i), actual.getFeature(i));
+            Assert.assertEquals(batch.getWeight(i), actual.getWeight(i), 0.f);
+            Assert.assertEquals(batch.getCovariance(i), actual.getCovariance(i), 0.f);
+            Assert.assertEquals(batch.isCancelRequest(i), actual.isCancelRequest(i));
+        }
+    }
+
+    @Test
+    public void testCompactBatchSize() {
+        MixMessageBatch batch = new MixMessageBatch(MixEventName.average, 1024);
+        batch.setGroupID("group1");
+        for (int i = 0; i < 1000; i++) {
+            batch.add(Integer.valueOf(i), 0.01f * i, 1.f, (short) i, 3, false);
+        }
+        int bytes = encode(batch).readableBytes();
+        batch.setCompact(true);
+        int compactBytes = encode(batch).readableBytes();
+        Assert.assertTrue("bytes: " + bytes + ", compactBytes: " + compactBytes,
+            compactBytes * 2 <= bytes);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBatchOverflow() {
+        MixMessageBatch batch = new MixMessageBatch(MixEventName.average, 1);
+        for (int i = 0; i <= MixMessageBatch.MAX_BATCH_SIZE; i++) {
+            batch.add(Integer.valueOf(i), 1.f, 1.f, (short) 0, 1, false);
+        }
+    }
+
+    private static ByteBuf encode(Object msg) {
+        EmbeddedChannel encoder = new EmbeddedChannel(new MixMessageEncoder());
+        Assert.assertTrue(encoder.writeOutbound(msg));
+        ByteBuf buf = (ByteBuf) encoder.readOutbound();
+        encoder.finish();
+        return buf;
+    }
+
+    private static Object encodeAndDecode(Object msg) {
+        ByteBuf buf = encode(msg);
+
+        EmbeddedChannel decoder = new EmbeddedChannel(new MixMessageDecoder());
+        Assert.assertTrue(decoder.writeInbound(buf));
+        Object decoded = decoder.readInbound();
+        decoder.finish();
+        return decoded;
+    }
+
+}
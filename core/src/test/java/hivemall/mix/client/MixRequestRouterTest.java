@@ -20,6 +20,10 @@ package hivemall.mix.client;
 
 import hivemall.mix.NodeInfo;
 
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Set;
+
 import org.junit.Test;
 import org.junit.Assert;
 
@@ -33,4 +37,65 @@ public class MixRequestRouterTest {
         Assert.assertEquals(3, nodes.length);
     }
 
+    @Test
+    public void testAddNode() {
+        MixRequestRouter router3 = new MixRequestRouter(nodes(3), 128, 1000L);
+        MixRequestRouter router4 = new MixRequestRouter(nodes(4), 128, 1000L);
+        final int numFeatures = 10000;
+        int moved = 0;
+        int[] counts = new int[4];
+        for (int i = 0; i < numFeatures; i++) {
+            Integer feature = Integer.valueOf(i);
+            NodeInfo before = router3.selectNode(feature);
+            NodeInfo after = router4.selectNode(feature);
+            if (!before.equals(after)) {
+                moved++;
+                Assert.assertEquals(11215, after.getPort()); // moved only to the new node
+            }
+            counts[after.getPort() - 11212]++;
+        }
+        // about a quarter of features is remapped
+        Assert.assertTrue("moved: " + moved, moved < numFeatures * 0.35);
+        for (int count : counts) {
+            Assert.assertTrue("count: " + count, count > numFeatures * 0.15);
+        }
+    }
+
+    @Test
+    public void testFailover() {
+        MixRequestRouter router = new MixRequestRouter(nodes(3), 128, 60000L);
+        for (int i = 0; i < 100; i++) {
+            String feature = "f" + i;
+            NodeInfo[] replicas = router.selectReplicas(feature, 3);
+            Assert.assertEquals(3, replicas.length);
+            Set<NodeInfo> distinct = new HashSet<NodeInfo>();
+            for (NodeInfo node : replicas) {
+                Assert.assertTrue(distinct.add(node));
+            }
+            Assert.assertEquals(replicas[0], router.selectNode(feature));
+
+            router.markDown(replicas[0]);
+            Assert.assertFalse(router.isAlive(replicas[0]));
+            Assert.assertEquals(replicas[1], router.selectNode(feature));
+            router.markDown(replicas[1]);
+            Assert.assertEquals(replicas[2], router.selectNode(feature));
+            router.markDown(replicas[2]);
+            Assert.assertEquals(replicas[0], router.selectNode(feature)); // all down
+
+            router.markUp(replicas[0]);
+            router.markUp(replicas[1]);
+            router.markUp(replicas[2]);
+            Assert.assertEquals(replicas[0], router.selectNode(feature));
+        }
+    }
+
+    private static NodeInfo[] nodes(int n) {
+        InetAddress addr = InetAddress.getLoopbackAddress();
+        NodeInfo[] nodes = new NodeInfo[n];
+        for (int i = 0; i < n; i++) {
+            nodes[i] = new NodeInfo(addr, 11212 + i);
+        }
+        return nodes;
+    }
+
 }
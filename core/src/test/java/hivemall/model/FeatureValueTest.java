@@ -21,6 +21,10 @@ package hivemall.model;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.hadoop.io.Text;
 import org.junit.Test;
 
 public class FeatureValueTest {
@@ -59,4 +63,46 @@ public class FeatureValueTest {
         FeatureValue.parse("ad_url:xxxxx");
     }
 
+    @Test
+    public void testParseText() {
+        FeatureValue probe = new FeatureValue();
+        FeatureValue.parse(new Text("\u5e83\u544a:-0.25"), probe);
+        assertEquals(new Text("\u5e83\u544a"), probe.getFeature());
+        assertEquals(-0.25d, probe.getValue(), 0.d);
+
+        FeatureValue.parse(new Text("891572"), probe);
+        assertEquals(new Text("891572"), probe.getFeature());
+        assertEquals(1.d, probe.getValue(), 0.d);
+
+        FeatureValue.parse(new Text("f:1.5E-3"), probe);
+        assertEquals(1.5E-3d, probe.getValue(), 0.d);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseTextExpectingNumberFormatException() {
+        FeatureValue.parse(new Text("ad_url:1.2.3"), new FeatureValue());
+    }
+
+    @Test
+    public void testParseDouble() {
+        final Random rand = new Random(43L);
+        final String[] samples = {"0", "-0", "+1", "1.", ".5", "0.000001", "123456789012345",
+                "1234567890123456", "3.14159265358979", "0.1000000000000000055511151231257827",
+                "-99999.99999", "NaN", "-Infinity", "1e10"};
+        for (String s : samples) {
+            assertParseDouble(s);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertParseDouble(Double.toString(rand.nextGaussian() * 1000.d));
+            assertParseDouble(Float.toString(rand.nextFloat()));
+            assertParseDouble(String.format(Locale.ROOT, "%.6f", rand.nextDouble()));
+        }
+    }
+
+    private static void assertParseDouble(String s) {
+        byte[] b = ("x:" + s).getBytes();
+        assertEquals(s, Double.doubleToLongBits(Double.parseDouble(s)),
+            Double.doubleToLongBits(FeatureValue.parseDouble(b, 2, b.length)));
+    }
+
 }
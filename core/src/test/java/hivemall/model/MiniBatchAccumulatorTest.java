@@ -0,0 +1,109 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+public class MiniBatchAccumulatorTest {
+
+    @Test
+    public void testAverage() {
+        final MiniBatchAccumulator acc = new MiniBatchAccumulator(4);
+        final Map<Integer, double[]> expected = new HashMap<Integer, double[]>();
+
+        final Random rand = new Random(43L);
+        for (int t = 0; t < 10000; t++) {
+            Integer k = Integer.valueOf(rand.nextInt(3000));
+            float delta = rand.nextFloat() - 0.5f;
+            acc.add(k, delta);
+            double[] e = expected.get(k);
+            if (e == null) {
+                expected.put(k, new double[] {delta, 1});
+            } else {
+                e[0] += delta;
+                e[1]++;
+            }
+        }
+
+        assertEquals(expected.size(), acc.size());
+        for (Map.Entry<Integer, double[]> e : expected.entrySet()) {
+            double[] v = e.getValue();
+            assertEquals((float) (v[0] / v[1]), acc.get(e.getKey()), 0.f);
+        }
+        assertEquals(0.f, acc.get(Integer.valueOf(-1)), 0.f);
+    }
+
+    @Test
+    public void testFlushInAscendingOrder() {
+        final List<Object> written = new ArrayList<Object>();
+        final PredictionModel delegate = new SparseModel(16, false);
+        final PredictionModel model = (PredictionModel) Proxy.newProxyInstance(
+            PredictionModel.class.getClassLoader(), new Class<?>[] {PredictionModel.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                        throws Throwable {
+                    if ("set".equals(method.getName())) {
+                        written.add(args[0]);
+                    }
+                    return method.invoke(delegate, args);
+                }
+            });
+
+        final MiniBatchAccumulator acc = new MiniBatchAccumulator();
+        final Random rand = new Random(43L);
+        for (int i = 0; i < 1000; i++) {
+            acc.add(Long.valueOf(rand.nextLong()), 1.f);
+        }
+        acc.add(Long.valueOf(3L), 2.f);
+        acc.add(Long.valueOf(3L), 4.f);
+        acc.flush(model);
+
+        assertTrue(acc.isEmpty());
+        assertEquals(1001, written.size());
+        for (int i = 1; i < written.size(); i++) {
+            long prev = ((Long) written.get(i - 1)).longValue();
+            long cur = ((Long) written.get(i)).longValue();
+            assertTrue(prev < cur);
+        }
+        assertEquals(3.f, model.getWeight(Long.valueOf(3L)), 0.f);
+
+        // reused for the next mini-batch
+        acc.add(Long.valueOf(3L), 1.f);
+        acc.add(new Text("f1"), 1.f);
+        assertEquals(2, acc.size());
+        acc.flush(model);
+        assertEquals(4.f, model.getWeight(Long.valueOf(3L)), 0.f);
+        assertEquals(1.f, model.getWeight(new Text("f1")), 0.f);
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import hivemall.model.WeightValue.WeightValueWithCovar;
+import hivemall.utils.collections.IMapIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class OffHeapDenseModelTest {
+
+    @Test
+    public void testGetSet() {
+        final int size = 1 << 12;
+
+        final OffHeapDenseModel model1 = new OffHeapDenseModel(16, true);
+        final DenseModel model2 = new DenseModel(16, true);
+
+        final Random rand = new Random(43L);
+        for (int t = 0; t < 1000; t++) {
+            int i = rand.nextInt(size);
+            IWeightValue w = new WeightValueWithCovar(rand.nextFloat(), rand.nextFloat());
+            model1.set(i, w);
+            model2.set(i, w);
+        }
+
+        assertEquals(model2.size(), model1.size());
+
+        IMapIterator<Integer, IWeightValue> itor = model1.entries();
+        while (itor.next() != -1) {
+            int k = itor.getKey();
+            IWeightValue v = itor.getValue();
+            assertEquals(model2.getWeight(k), v.get(), 0.f);
+            assertEquals(model2.getCovariance(k), v.getCovariance(), 0.f);
+        }
+    }
+
+    @Test
+    public void testSaveAndMap() throws IOException {
+        final OffHeapDenseModel model = new OffHeapDenseModel(100, true);
+        for (int i = 0; i < 100; i += 3) {
+            model.set(i, new WeightValueWithCovar(i * 0.5f, 0.1f));
+        }
+
+        File file = File.createTempFile("hivemall_model", ".bin");
+        file.deleteOnExit();
+        model.save(file, "dims=100, loadmodel=model.tsv");
+
+        OffHeapDenseModel mapped = OffHeapDenseModel.map(file);
+        assertTrue(mapped.isMapped());
+        assertEquals("dims=100, loadmodel=model.tsv", mapped.getSource());
+        assertTrue(mapped.hasCovariance());
+        assertEquals(model.size(), mapped.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(model.getWeight(i), mapped.getWeight(i), 0.f);
+            assertEquals(model.getCovariance(i), mapped.getCovariance(i), 0.f);
+        }
+
+        // updates are not written back to the file
+        mapped.set(3, new WeightValueWithCovar(-1.f, 1.f));
+        assertEquals(-1.f, mapped.getWeight(3), 0.f);
+        OffHeapDenseModel another = OffHeapDenseModel.map(file);
+        assertEquals(1.5f, another.getWeight(3), 0.f);
+
+        // expanding detaches the model from the file
+        mapped.set(1000, new WeightValueWithCovar(2.f, 0.5f));
+        assertFalse(mapped.isMapped());
+        assertEquals(-1.f, mapped.getWeight(3), 0.f);
+        assertEquals(2.f, mapped.getWeight(1000), 0.f);
+        assertEquals(1.f, mapped.getCovariance(999), 0.f);
+    }
+
+    @Test
+    public void testExpandReleasesBuffers() {
+        final int ndims = 1 << 20;
+        final long before = getDirectMemoryUsed();
+        final OffHeapDenseModel model = new OffHeapDenseModel(ndims - 1, true);
+        model.set(7, new WeightValueWithCovar(0.5f, 0.25f));
+        final long allocated = getDirectMemoryUsed() - before;
+        assertTrue("allocated " + allocated, allocated >= 2L * 4L * ndims);
+
+        // doubles the buffers of the weights and the covariances
+        model.set(ndims, new WeightValueWithCovar(2.f, 0.5f));
+        final long expanded = getDirectMemoryUsed() - before;
+        assertEquals(2L * allocated, expanded, 1024L);
+        assertEquals(0.5f, model.getWeight(7), 0.f);
+        assertEquals(0.25f, model.getCovariance(7), 0.f);
+        assertEquals(1.f, model.getCovariance(ndims - 1), 0.f);
+        assertEquals(2.f, model.getWeight(ndims), 0.f);
+    }
+
+    private static long getDirectMemoryUsed() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        throw new IllegalStateException("No direct buffer pool");
+    }
+
+    @Test(expected = IOException.class)
+    public void testMapIllegalFile() throws IOException {
+        File file = File.createTempFile("hivemall_model", ".bin");
+        file.deleteOnExit();
+        OffHeapDenseModel.map(file);
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import hivemall.model.WeightValue.WeightValueParamsF1;
+import hivemall.model.WeightValue.WeightValueWithCovar;
+import hivemall.utils.collections.IMapIterator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.io.LongWritable;
+import org.junit.Test;
+
+public class PrimitiveSparseModelTest {
+
+    @Test
+    public void testGetSet() {
+        final PrimitiveSparseModel model = new PrimitiveSparseModel(16, true);
+        final Map<Long, IWeightValue> expected = new HashMap<Long, IWeightValue>();
+
+        final Random rand = new Random(43L);
+        for (int t = 0; t < 10000; t++) {
+            Long k = Long.valueOf(Integer.MAX_VALUE + (long) rand.nextInt(5000));
+            IWeightValue w = new WeightValueWithCovar(rand.nextFloat(), rand.nextFloat());
+            model.set(k, w);
+            expected.put(k, w);
+            if (t % 10 == 0) {
+                Long d = Long.valueOf(Integer.MAX_VALUE + (long) rand.nextInt(5000));
+                model.delete(d);
+                expected.remove(d);
+            }
+        }
+
+        assertEquals(expected.size(), model.size());
+
+        int count = 0;
+        IMapIterator<Object, IWeightValue> itor = model.entries();
+        while (itor.next() != -1) {
+            Object k = itor.getKey();
+            assertTrue(k instanceof Long);
+            IWeightValue v = itor.getValue();
+            assertTrue(v.isTouched());
+            IWeightValue e = expected.get(k);
+            assertEquals(e.get(), v.get(), 0.f);
+            assertEquals(e.getCovariance(), v.getCovariance(), 0.f);
+            assertEquals(e.get(), model.getWeight(k), 0.f);
+            count++;
+        }
+        assertEquals(expected.size(), count);
+    }
+
+    @Test
+    public void testParams() {
+        final PrimitiveSparseModel model = new PrimitiveSparseModel(4, false);
+        model.configureParams(true, false, false);
+        for (int i = 0; i < 100; i++) {
+            model.set(new LongWritable(i), new WeightValueParamsF1(i, i * 2.f));
+        }
+        assertNull(model.get(new LongWritable(100)));
+        assertFalse(model.contains(new LongWritable(100)));
+        for (int i = 0; i < 100; i++) {
+            IWeightValue v = model.get(new LongWritable(i));
+            assertEquals(i, v.get(), 0.f);
+            assertEquals(i * 2.f, v.getSumOfSquaredGradients(), 0.f);
+        }
+        IMapIterator<Object, IWeightValue> itor = model.entries();
+        assertTrue(itor.next() != -1);
+        assertTrue(itor.getKey() instanceof LongWritable);
+    }
+
+    @Test
+    public void testUntouched() {
+        final PrimitiveSparseModel model = new PrimitiveSparseModel(4, false);
+        model.set(Integer.valueOf(1), new WeightValue(1.f, false)); // preloaded
+        model.set(Integer.valueOf(2), new WeightValue(2.f));
+
+        final WeightValue probe = new WeightValue();
+        IMapIterator<Object, IWeightValue> itor = model.entries();
+        int touched = 0;
+        while (itor.next() != -1) {
+            itor.getValue(probe);
+            if (probe.isTouched()) {
+                assertEquals(Integer.valueOf(2), itor.getKey());
+                touched++;
+            }
+        }
+        assertEquals(1, touched);
+    }
+
+}
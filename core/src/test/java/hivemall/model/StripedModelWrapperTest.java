@@ -0,0 +1,71 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.model;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+public class StripedModelWrapperTest {
+
+    @Test
+    public void testConcurrentUpdates() throws InterruptedException {
+        final int numThreads = 4;
+        final int numFeatures = 20000;
+        final PredictionModel model = new StripedModelWrapper(new SparseModel(16, false), 64);
+
+        final CountDownLatch latch = new CountDownLatch(numThreads);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int t = 0; t < numThreads; t++) {
+            final int offset = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = offset; i < numFeatures; i += numThreads) {
+                            Text f = new Text("f" + i);
+                            model.set(f, new WeightValue(1.f));
+                            float w = model.getWeight(f);
+                            model.set(f, new WeightValue(w + i));
+                            // shared features are updated by all the threads
+                            Text shared = new Text("s" + (i % 10));
+                            model.set(shared, new WeightValue(model.getWeight(shared) + 1.f));
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }.start();
+        }
+        latch.await();
+        assertEquals(null, failure.get());
+
+        assertEquals(numFeatures + 10, model.size());
+        for (int i = 0; i < numFeatures; i++) {
+            assertEquals(1.f + i, model.getWeight(new Text("f" + i)), 0.f);
+        }
+    }
+
+}
@@ -19,13 +19,22 @@
 package hivemall.regression;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.Collector;
 import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.FloatWritable;
 import org.junit.Test;
 
 public class AdaGradUDTFTest {
@@ -56,4 +65,50 @@ public class AdaGradUDTFTest {
                 labelOI});
         assertEquals("struct<feature:bigint,weight:float>", longListSOI.getTypeName());
     }
+
+    @Test
+    public void testParallelTraining() throws HiveException {
+        AdaGradUDTF udtf = new AdaGradUDTF();
+        ObjectInspector labelOI = PrimitiveObjectInspectorFactory.javaFloatObjectInspector;
+        ObjectInspector stringOI = PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+        ListObjectInspector stringListOI = ObjectInspectorFactory.getStandardListObjectInspector(stringOI);
+        ObjectInspector param = ObjectInspectorUtils.getConstantObjectInspector(
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, "-num_threads 4");
+        udtf.initialize(new ObjectInspector[] {stringListOI, labelOI, param});
+
+        final Map<String, Float> weights = new HashMap<String, Float>();
+        udtf.setCollector(new Collector() {
+            @Override
+            public void collect(Object input) throws HiveException {
+                Object[] row = (Object[]) input;
+                weights.put(row[0].toString(), ((FloatWritable) row[1]).get());
+            }
+        });
+
+        for (int i = 0; i < 10000; i++) {
+            String f = "f" + (i % 100);
+            if (i % 2 == 0) {
+                udtf.process(new Object[] {Arrays.asList("pos", f), 1.f});
+            } else {
+                udtf.process(new Object[] {Arrays.asList("neg", f), 0.f});
+            }
+        }
+        udtf.close();
+
+        assertEquals(102, weights.size());
+        assertTrue(weights.get("pos") > 0.f);
+        assertTrue(weights.get("neg") < 0.f);
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testParallelTrainingWithMiniBatch() throws UDFArgumentException {
+        AdaGradUDTF udtf = new AdaGradUDTF();
+        ObjectInspector labelOI = PrimitiveObjectInspectorFactory.javaFloatObjectInspector;
+        ObjectInspector intOI = PrimitiveObjectInspectorFactory.javaIntObjectInspector;
+        ListObjectInspector intListOI = ObjectInspectorFactory.getStandardListObjectInspector(intOI);
+        ObjectInspector param = ObjectInspectorUtils.getConstantObjectInspector(
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            "-num_threads 4 -mini_batch 10");
+        udtf.initialize(new ObjectInspector[] {intListOI, labelOI, param});
+    }
 }
@@ -0,0 +1,87 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.regression;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.Collector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.junit.Test;
+
+public class TargetStdDevTest {
+
+    @Test
+    public void testPA1aParallelTraining() throws HiveException {
+        float expected = train(new PassiveAggressiveRegressionUDTF.PA1a(), "");
+        assertEquals(expected, train(new PassiveAggressiveRegressionUDTF.PA1a(),
+            "-num_threads 4"), 0.f);
+    }
+
+    @Test
+    public void testPA2aParallelTraining() throws HiveException {
+        float expected = train(new PassiveAggressiveRegressionUDTF.PA2a(), "");
+        assertEquals(expected, train(new PassiveAggressiveRegressionUDTF.PA2a(),
+            "-num_threads 4"), 0.f);
+    }
+
+    @Test
+    public void testAROWe2ParallelTraining() throws HiveException {
+        float expected = train(new AROWRegressionUDTF.AROWe2(), "");
+        assertEquals(expected, train(new AROWRegressionUDTF.AROWe2(), "-num_threads 4"), 0.f);
+    }
+
+    /**
+     * @return the stddev of the targets observed by the learner
+     */
+    private static float train(RegressionBaseUDTF udtf, String options) throws HiveException {
+        udtf.initialize(new ObjectInspector[] {
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector),
+                PrimitiveObjectInspectorFactory.javaFloatObjectInspector,
+                ObjectInspectorUtils.getConstantObjectInspector(
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector, options)});
+        udtf.setCollector(new Collector() {
+            @Override
+            public void collect(Object input) throws HiveException {}
+        });
+
+        final Random rnd = new Random(43L);
+        for (int i = 0; i < 20000; i++) {
+            int f = rnd.nextInt(50);
+            float target = f * 0.1f + (float) rnd.nextGaussian();
+            udtf.process(new Object[] {Arrays.asList("f" + f, "bias"), target});
+        }
+        udtf.close();
+
+        if (udtf instanceof PassiveAggressiveRegressionUDTF.PA1a) {
+            return ((PassiveAggressiveRegressionUDTF.PA1a) udtf).getTargetStdDev();
+        } else if (udtf instanceof PassiveAggressiveRegressionUDTF.PA2a) {
+            return ((PassiveAggressiveRegressionUDTF.PA2a) udtf).getTargetStdDev();
+        } else {
+            return ((AROWRegressionUDTF.AROWe2) udtf).getTargetStdDev();
+        }
+    }
+
+}
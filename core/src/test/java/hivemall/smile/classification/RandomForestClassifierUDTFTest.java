@@ -27,6 +27,7 @@ import java.net.URL;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.Collector;
@@ -34,6 +35,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.IntWritable;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -85,4 +87,54 @@ public class RandomForestClassifierUDTFTest {
         Assert.assertEquals(49, count.getValue());
     }
 
+    @Test
+    public void testOutOfCore() throws HiveException {
+        runSynthetic("-trees 10 -seed 43 -out_of_core");
+    }
+
+    @Test
+    public void testMaxBins() throws HiveException {
+        runSynthetic("-trees 10 -seed 43 -max_bins 32");
+        runSynthetic("-trees 10 -seed 43 -max_bins 32 -out_of_core");
+    }
+
+    private static void runSynthetic(String options) throws HiveException {
+        RandomForestClassifierUDTF udtf = new RandomForestClassifierUDTF();
+        ObjectInspector param = ObjectInspectorUtils.getConstantObjectInspector(
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, options);
+        udtf.initialize(new ObjectInspector[] {
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector),
+                PrimitiveObjectInspectorFactory.javaIntObjectInspector, param});
+
+        final Random rand = new Random(43L);
+        final List<Double> xi = new ArrayList<Double>(4);
+        for (int i = 0; i < 500; i++) {
+            for (int j = 0; j < 4; j++) {
+                xi.add(j, rand.nextGaussian());
+            }
+            udtf.process(new Object[] {xi, xi.get(0) > 0.d ? 1 : 0});
+            xi.clear();
+        }
+
+        final MutableInt count = new MutableInt(0);
+        final MutableInt oobErrors = new MutableInt(0);
+        final MutableInt oobTests = new MutableInt(0);
+        Collector collector = new Collector() {
+            public void collect(Object input) throws HiveException {
+                Object[] forwardObjs = (Object[]) input;
+                oobErrors.addValue(((IntWritable) forwardObjs[4]).get());
+                oobTests.addValue(((IntWritable) forwardObjs[5]).get());
+                count.addValue(1);
+            }
+        };
+
+        udtf.setCollector(collector);
+        udtf.close();
+
+        Assert.assertEquals(10, count.getValue());
+        Assert.assertTrue(oobTests.getValue() > 0);
+        Assert.assertTrue("OOB error: " + oobErrors + "/" + oobTests,
+            oobErrors.getValue() < oobTests.getValue() * 0.1);
+    }
+
 }
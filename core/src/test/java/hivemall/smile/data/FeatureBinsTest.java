@@ -0,0 +1,112 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.smile.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hivemall.smile.classification.DecisionTree;
+import hivemall.smile.regression.RegressionTree;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FeatureBinsTest {
+
+    @Test
+    public void testQuantileBins() {
+        final int n = 10000;
+        final Random rand = new Random(43L);
+        final double[][] x = new double[n][2];
+        for (int i = 0; i < n; i++) {
+            x[i][0] = rand.nextGaussian();
+            x[i][1] = rand.nextInt(5);
+        }
+        Attribute[] attrs = new Attribute[] {new Attribute.NumericAttribute(0),
+                new Attribute.NumericAttribute(1)};
+        FeatureBins bins = FeatureBins.build(DataMatrix.of(x), attrs, 16);
+        assertEquals(n, bins.numRows());
+        assertEquals(16, bins.numBins(0));
+        assertEquals(5, bins.numBins(1));
+
+        final int[] counts = new int[16];
+        for (int i = 0; i < n; i++) {
+            counts[bins.bin(i, 0)]++;
+            assertEquals((int) x[i][1], bins.bin(i, 1));
+            for (int k = 0; k < n; k += 97) {
+                if (x[k][0] < x[i][0]) {
+                    assertTrue(bins.bin(k, 0) <= bins.bin(i, 0));
+                }
+            }
+        }
+        for (int b = 0; b < 16; b++) {// equi-depth
+            assertEquals(n / 16.d, counts[b], n / 64.d);
+        }
+        for (int b = 0; b < 4; b++) {
+            assertEquals(b + 0.5d, bins.splitValue(1, b), 0.d);
+        }
+    }
+
+    @Test
+    public void testLowCardinality() {
+        final int n = 500, p = 3;
+        final Random rand = new Random(43L);
+        final double[][] x = new double[n][p];
+        final double[] y = new double[n];
+        final int[] label = new int[n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < p; j++) {
+                x[i][j] = rand.nextInt(20);
+            }
+            y[i] = 2 * x[i][0] - x[i][1] + rand.nextInt(3);
+            label[i] = (x[i][0] + rand.nextInt(5) > 12) ? 1 : 0;
+        }
+        Attribute[] attrs = new Attribute[p];
+        for (int j = 0; j < p; j++) {
+            attrs[j] = new Attribute.NumericAttribute(j);
+        }
+
+        DataMatrix binned = DataMatrix.of(x);
+        binned.bin(attrs, FeatureBins.MAX_BINS);
+        DataMatrix sorted = DataMatrix.of(x);
+        sorted.sort(attrs);
+
+        RegressionTree rtree = new RegressionTree(attrs, binned, y, p, Integer.MAX_VALUE, 30, 5,
+            1, null, null, new smile.math.Random(1L));
+        RegressionTree rexpected = new RegressionTree(attrs, sorted, y, p, Integer.MAX_VALUE, 30,
+            5, 1, null, null, new smile.math.Random(1L));
+        DecisionTree ctree = new DecisionTree(attrs, binned, label, p, Integer.MAX_VALUE, 30, 5,
+            1, null, DecisionTree.SplitRule.GINI, new smile.math.Random(1L));
+        DecisionTree cexpected = new DecisionTree(attrs, sorted, label, p, Integer.MAX_VALUE, 30,
+            5, 1, null, DecisionTree.SplitRule.GINI, new smile.math.Random(1L));
+        int correct = 0, expectedCorrect = 0;
+        for (int i = 0; i < n; i++) {
+            assertEquals(rexpected.predict(x[i]), rtree.predict(x[i]), 1E-10d);
+            // exact split finding only tries boundaries between different labels
+            if (ctree.predict(x[i]) == label[i]) {
+                correct++;
+            }
+            if (cexpected.predict(x[i]) == label[i]) {
+                expectedCorrect++;
+            }
+        }
+        assertEquals(expectedCorrect, correct, n / 50);
+    }
+
+}
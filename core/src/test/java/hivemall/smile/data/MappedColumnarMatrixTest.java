@@ -0,0 +1,147 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.smile.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import hivemall.smile.regression.RegressionTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MappedColumnarMatrixTest {
+
+    @Test
+    public void testGet() throws IOException {
+        final int n = 1000, p = 7;
+        final double[][] x = randomMatrix(n, p, new Random(43L));
+
+        MappedColumnarMatrix.Builder builder = new MappedColumnarMatrix.Builder(64 * p * 4);
+        for (double[] row : x) {
+            builder.add(row);
+        }
+        MappedColumnarMatrix matrix = builder.build();
+        assertEquals(n, matrix.numRows());
+        assertEquals(p, matrix.numColumns());
+
+        final double[] row = new double[p];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < p; j++) {
+                assertEquals((float) x[i][j], matrix.get(i, j), 0.d);
+            }
+            matrix.getRow(i, row);
+            for (int j = 0; j < p; j++) {
+                assertEquals((float) x[i][j], row[j], 0.d);
+            }
+        }
+
+        File file = matrix.getFile();
+        assertTrue(file.exists());
+        matrix.close();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testSort() throws IOException {
+        final int n = 500, p = 3;
+        final Random rand = new Random(43L);
+        final double[][] x = randomMatrix(n, p, rand);
+        for (int i = 0; i < n; i++) {
+            x[i][1] = rand.nextInt(4);
+        }
+        Attribute[] attrs = new Attribute[] {new Attribute.NumericAttribute(0),
+                new Attribute.NominalAttribute(1), new Attribute.NumericAttribute(2)};
+
+        MappedColumnarMatrix matrix = build(x, 32 * p * 4);
+        matrix.sort(attrs);
+        DataMatrix expected = DataMatrix.of(toFloat(x));
+        expected.sort(attrs);
+
+        for (int j = 0; j < p; j += 2) {
+            double prev = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < n; k++) {
+                int i = matrix.order(j, k);
+                assertEquals(expected.order(j, k), i);
+                assertTrue(matrix.get(i, j) >= prev);
+                prev = matrix.get(i, j);
+            }
+        }
+        matrix.close();
+    }
+
+    @Test
+    public void testRegressionTree() throws IOException {
+        final int n = 300, p = 4;
+        final Random rand = new Random(43L);
+        final double[][] x = randomMatrix(n, p, rand);
+        final double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            y[i] = 3.d * x[i][0] - x[i][2] + rand.nextGaussian();
+        }
+        Attribute[] attrs = new Attribute[p];
+        for (int j = 0; j < p; j++) {
+            attrs[j] = new Attribute.NumericAttribute(j);
+        }
+
+        MappedColumnarMatrix matrix = build(x, 64 * p * 4);
+        double[][] expectedX = toFloat(x);
+        RegressionTree tree = new RegressionTree(attrs, matrix, y, p, Integer.MAX_VALUE, 20, 5,
+            1, null, null, new smile.math.Random(1L));
+        RegressionTree expected = new RegressionTree(attrs, DataMatrix.of(expectedX), y, p,
+            Integer.MAX_VALUE, 20, 5, 1, null, null, new smile.math.Random(1L));
+        for (int i = 0; i < n; i++) {
+            assertEquals(expected.predict(expectedX[i]), tree.predict(expectedX[i]), 0.d);
+        }
+        matrix.close();
+    }
+
+    private static MappedColumnarMatrix build(double[][] x, int blockBytes) throws IOException {
+        MappedColumnarMatrix.Builder builder = new MappedColumnarMatrix.Builder(blockBytes);
+        for (double[] row : x) {
+            builder.add(row);
+        }
+        return builder.build();
+    }
+
+    private static double[][] randomMatrix(int n, int p, Random rand) {
+        double[][] x = new double[n][p];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < p; j++) {
+                x[i][j] = rand.nextGaussian() * 100.d;
+            }
+        }
+        return x;
+    }
+
+    private static double[][] toFloat(double[][] x) {
+        double[][] dst = new double[x.length][];
+        for (int i = 0; i < x.length; i++) {
+            dst[i] = new double[x[i].length];
+            for (int j = 0; j < x[i].length; j++) {
+                dst[i][j] = (float) x[i][j];
+            }
+        }
+        return dst;
+    }
+
+}
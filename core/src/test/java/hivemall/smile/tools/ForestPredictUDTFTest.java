@@ -0,0 +1,214 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.smile.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hivemall.smile.classification.RandomForestClassifierUDTF;
+import hivemall.smile.regression.RandomForestRegressionUDTF;
+import hivemall.utils.lang.ArrayUtils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.Collector;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredJavaObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.junit.Test;
+
+public class ForestPredictUDTFTest {
+
+    @Test
+    public void testClassification() throws HiveException, IOException {
+        final double[][] x = randomMatrix(400, new Random(43L));
+        final int[] y = new int[x.length];
+        for (int i = 0; i < x.length; i++) {
+            y[i] = x[i][0] > 0.5d ? 2 : (x[i][1] > 0.d ? 1 : 0);
+        }
+        RandomForestClassifierUDTF rf = new RandomForestClassifierUDTF();
+        rf.initialize(new ObjectInspector[] {
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector),
+                PrimitiveObjectInspectorFactory.javaIntObjectInspector,
+                ObjectInspectorUtils.getConstantObjectInspector(
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                    "-trees 9 -seed 43 -output opscode")});
+        for (int i = 0; i < x.length; i++) {
+            rf.process(new Object[] {ArrayUtils.toList(x[i]), y[i]});
+        }
+        final File dir = trainForest(rf);
+
+        final int cachedTrees = CompiledTreeCache.getInstance().size();
+        final List<Object[]> results = predict(dir, "-classification -output_leaves -batch 16", x);
+        assertEquals(x.length, results.size());
+        // the trees are held by the UDTF, not by the shared cache
+        assertEquals(cachedTrees, CompiledTreeCache.getInstance().size());
+        int correct = 0;
+        for (int i = 0; i < x.length; i++) {
+            Object[] row = results.get(i);
+            assertEquals(i, ((IntWritable) row[0]).get());
+            int label = ((IntWritable) row[1]).get();
+            if (label == y[i]) {
+                correct++;
+            }
+            @SuppressWarnings("unchecked")
+            List<DoubleWritable> probabilities = (List<DoubleWritable>) row[3];
+            assertEquals(3, probabilities.size());
+            double sum = 0.d;
+            for (DoubleWritable p : probabilities) {
+                sum += p.get();
+            }
+            assertEquals(1.d, sum, 1E-10d);
+            assertEquals(probabilities.get(label).get(), ((DoubleWritable) row[2]).get(), 0.d);
+            assertEquals(9, ((List<?>) row[4]).size());
+        }
+        assertTrue("accuracy: " + correct + "/" + x.length, correct > x.length * 0.9);
+    }
+
+    @Test
+    public void testRegression() throws HiveException, IOException {
+        final double[][] x = randomMatrix(300, new Random(43L));
+        final double[] y = new double[x.length];
+        for (int i = 0; i < x.length; i++) {
+            y[i] = 2.d * x[i][0] - x[i][1];
+        }
+        RandomForestRegressionUDTF rf = new RandomForestRegressionUDTF();
+        rf.initialize(new ObjectInspector[] {
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector),
+                PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                ObjectInspectorUtils.getConstantObjectInspector(
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                    "-trees 5 -seed 43")});
+        for (int i = 0; i < x.length; i++) {
+            rf.process(new Object[] {ArrayUtils.toList(x[i]), y[i]});
+        }
+        final List<String[]> models = new ArrayList<String[]>();
+        final File dir = trainForest(rf, models);
+
+        final List<Object[]> results = predict(dir, "", x);
+        assertEquals(x.length, results.size());
+        for (int i = 0; i < x.length; i++) {
+            double expected = 0.d;
+            for (String[] model : models) {
+                expected += treePredict(model, x[i]);
+            }
+            expected /= models.size();
+            assertEquals(expected, ((DoubleWritable) results.get(i)[1]).get(), 1E-10d);
+        }
+    }
+
+    private static File trainForest(GenericUDTF rf) throws HiveException, IOException {
+        return trainForest(rf, new ArrayList<String[]>());
+    }
+
+    /**
+     * Writes the trees into a directory of a text table.
+     */
+    private static File trainForest(GenericUDTF rf, final List<String[]> models)
+            throws HiveException, IOException {
+        rf.setCollector(new Collector() {
+            public void collect(Object input) throws HiveException {
+                Object[] forwardObjs = (Object[]) input;
+                models.add(new String[] {forwardObjs[0].toString(), forwardObjs[1].toString(),
+                        forwardObjs[2].toString()});
+            }
+        });
+        rf.close();
+
+        File dir = File.createTempFile("hivemall_rf_model", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        for (int part = 0; part < 2; part++) {
+            File file = new File(dir, "00000" + part + "_0");
+            file.deleteOnExit();
+            Writer writer = new FileWriter(file);
+            for (int t = part; t < models.size(); t += 2) {
+                String[] model = models.get(t);
+                writer.write(model[0] + '\001' + model[1] + '\001' + model[2] + "\001[]\0010\0010\n");
+            }
+            writer.close();
+        }
+        return dir;
+    }
+
+    private static List<Object[]> predict(File dir, String options, double[][] x)
+            throws HiveException {
+        ForestPredictUDTF udtf = new ForestPredictUDTF();
+        udtf.initialize(new ObjectInspector[] {
+                PrimitiveObjectInspectorFactory.javaIntObjectInspector,
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector),
+                ObjectInspectorUtils.getConstantObjectInspector(
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                    "-model " + dir.getAbsolutePath() + " " + options)});
+        final List<Object[]> results = new ArrayList<Object[]>();
+        udtf.setCollector(new Collector() {
+            public void collect(Object input) throws HiveException {
+                results.add((Object[]) input);
+            }
+        });
+        for (int i = 0; i < x.length; i++) {
+            udtf.process(new Object[] {i, ArrayUtils.toList(x[i])});
+        }
+        udtf.close();
+        return results;
+    }
+
+    private static double treePredict(String[] model, double[] x) throws HiveException,
+            IOException {
+        TreePredictUDF udf = new TreePredictUDF();
+        udf.initialize(new ObjectInspector[] {
+                PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                PrimitiveObjectInspectorFactory.javaIntObjectInspector,
+                PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector),
+                ObjectInspectorUtils.getConstantObjectInspector(
+                    PrimitiveObjectInspectorFactory.javaBooleanObjectInspector, false)});
+        DeferredObject[] arguments = new DeferredObject[] {new DeferredJavaObject(model[0]),
+                new DeferredJavaObject(Integer.parseInt(model[1])),
+                new DeferredJavaObject(model[2]), new DeferredJavaObject(ArrayUtils.toList(x)),
+                new DeferredJavaObject(false)};
+        DoubleWritable result = (DoubleWritable) udf.evaluate(arguments);
+        udf.close();
+        return result.get();
+    }
+
+    private static double[][] randomMatrix(int n, Random rand) {
+        double[][] x = new double[n][3];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < 3; j++) {
+                x[i][j] = rand.nextGaussian();
+            }
+        }
+        return x;
+    }
+
+}
@@ -19,12 +19,15 @@
 package hivemall.smile.tools;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import hivemall.smile.ModelType;
 import hivemall.smile.classification.DecisionTree;
 import hivemall.smile.data.Attribute;
 import hivemall.smile.regression.RegressionTree;
 import hivemall.smile.utils.SmileExtUtils;
 import hivemall.smile.vm.StackMachine;
+import hivemall.utils.codec.Base91;
+import hivemall.utils.codec.DeflateCodec;
 import hivemall.utils.lang.ArrayUtils;
 
 import java.io.BufferedInputStream;
@@ -32,6 +35,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.text.ParseException;
+import java.util.Random;
 
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredJavaObject;
@@ -150,6 +154,81 @@ public class TreePredictUDFTest {
         }
     }
 
+    @Test
+    public void testCompiledTreeCache() throws HiveException, IOException {
+        final Random rand = new Random(43L);
+        final double[][] x = new double[200][2];
+        final double[] y1 = new double[x.length];
+        final double[] y2 = new double[x.length];
+        for (int i = 0; i < x.length; i++) {
+            x[i][0] = rand.nextGaussian();
+            x[i][1] = rand.nextGaussian();
+            y1[i] = x[i][0];
+            y2[i] = -3.d * x[i][1];
+        }
+        Attribute[] attrs = new Attribute[] {new Attribute.NumericAttribute(0),
+                new Attribute.NumericAttribute(1)};
+        RegressionTree tree1 = new RegressionTree(attrs, x, y1, 10);
+        RegressionTree tree2 = new RegressionTree(attrs, x, y2, 10);
+
+        final ModelType[] types = new ModelType[] {ModelType.serialization_compressed,
+                ModelType.opscode_compressed};
+        for (ModelType type : types) {
+            String script1 = getModel(tree1, type);
+            String script2 = getModel(tree2, type);
+            for (int i = 0; i < 10; i++) {
+                assertEquals(tree1.predict(x[i]), evalPredict(type, "model#1", script1, x[i]),
+                    0.d);
+                assertEquals(tree2.predict(x[i]), evalPredict(type, "model#2", script2, x[i]),
+                    0.d);
+                // a model ID reused for another model
+                assertEquals(tree2.predict(x[i]), evalPredict(type, "model#1", script2, x[i]),
+                    0.d);
+                assertEquals(tree1.predict(x[i]), evalPredict(type, "model#1", script1, x[i]),
+                    0.d);
+            }
+        }
+        CompiledTreeCache cache = CompiledTreeCache.getInstance();
+        assertTrue(cache.size() > 0);
+        long totalBytes = cache.getTotalBytes();
+        cache.setMaxBytes(0L);
+        assertEquals(1, cache.size());
+        assertTrue(cache.getTotalBytes() < totalBytes);
+        cache.setMaxBytes(CompiledTreeCache.DEFAULT_MAX_BYTES);
+    }
+
+    private static String getModel(RegressionTree tree, ModelType type) throws HiveException,
+            IOException {
+        byte[] b;
+        if (type == ModelType.opscode_compressed) {
+            DeflateCodec codec = new DeflateCodec(true, false);
+            b = codec.compress(tree.predictOpCodegen(StackMachine.SEP).getBytes());
+            codec.close();
+        } else {
+            b = tree.predictSerCodegen(true);
+        }
+        return new String(Base91.encode(b));
+    }
+
+    private static double evalPredict(ModelType type, String modelId, String script, double[] x)
+            throws HiveException, IOException {
+        TreePredictUDF udf = new TreePredictUDF();
+        udf.initialize(new ObjectInspector[] {
+                PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                PrimitiveObjectInspectorFactory.javaIntObjectInspector,
+                PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector),
+                ObjectInspectorUtils.getConstantObjectInspector(
+                    PrimitiveObjectInspectorFactory.javaBooleanObjectInspector, false)});
+        DeferredObject[] arguments = new DeferredObject[] {new DeferredJavaObject(modelId),
+                new DeferredJavaObject(type.getId()), new DeferredJavaObject(script),
+                new DeferredJavaObject(ArrayUtils.toList(x)), new DeferredJavaObject(false)};
+
+        DoubleWritable result = (DoubleWritable) udf.evaluate(arguments);
+        udf.close();
+        return result.get();
+    }
+
     private static int evalPredict(DecisionTree tree, double[] x) throws HiveException, IOException {
         String opScript = tree.predictOpCodegen(StackMachine.SEP);
         debugPrint(opScript);
@@ -0,0 +1,108 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.smile.vm;
+
+import static org.junit.Assert.assertEquals;
+import hivemall.smile.classification.DecisionTree;
+import hivemall.smile.data.Attribute;
+import hivemall.smile.regression.RegressionTree;
+
+import java.util.Random;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.junit.Test;
+
+public class CompiledTreeTest {
+
+    @Test
+    public void testClassification() throws HiveException, VMRuntimeException {
+        final double[][] x = randomMatrix(300, new Random(43L));
+        final int[] y = new int[x.length];
+        for (int i = 0; i < x.length; i++) {
+            y[i] = (x[i][0] > 0.d && x[i][2] != 1.d) ? 1 : 0;
+        }
+        DecisionTree tree = new DecisionTree(attributes(), x, y, 30);
+
+        byte[] b = tree.predictSerCodegen(true);
+        CompiledTree.Builder builder = new CompiledTree.Builder();
+        DecisionTree.deserializeNode(b, b.length, true).compile(builder);
+        CompiledTree fromNode = builder.build();
+        CompiledTree fromScript = CompiledTree.compile(tree.predictOpCodegen(StackMachine.SEP));
+        assertEquals(fromNode.size(), fromScript.size());
+
+        final double[][] test = randomMatrix(100, new Random(44L));
+        for (double[] xi : test) {
+            assertEquals(tree.predict(xi), (int) fromNode.predict(xi));
+            assertEquals(tree.predict(xi), (int) fromScript.predict(xi));
+        }
+    }
+
+    @Test
+    public void testRegression() throws HiveException, VMRuntimeException {
+        final double[][] x = randomMatrix(300, new Random(43L));
+        final double[] y = new double[x.length];
+        for (int i = 0; i < x.length; i++) {
+            y[i] = 2.d * x[i][0] - x[i][1] + (x[i][2] == 2.d ? 3.d : 0.d);
+        }
+        RegressionTree tree = new RegressionTree(attributes(), x, y, 30);
+
+        byte[] b = tree.predictSerCodegen(false);
+        CompiledTree.Builder builder = new CompiledTree.Builder();
+        RegressionTree.deserializeNode(b, b.length, false).compile(builder);
+        CompiledTree fromNode = builder.build();
+        CompiledTree fromScript = CompiledTree.compile(tree.predictOpCodegen(StackMachine.SEP));
+
+        final StackMachine vm = new StackMachine();
+        vm.compile(tree.predictOpCodegen(StackMachine.SEP));
+        final double[][] test = randomMatrix(100, new Random(44L));
+        for (double[] xi : test) {
+            vm.eval(xi);
+            assertEquals(vm.getResult().doubleValue(), fromScript.predict(xi), 0.d);
+            assertEquals(tree.predict(xi), fromNode.predict(xi), 0.d);
+        }
+    }
+
+    @Test
+    public void testLeafOnly() throws VMRuntimeException {
+        CompiledTree tree = CompiledTree.compile("push 1.5; goto last; call end");
+        assertEquals(1, tree.size());
+        assertEquals(1.5d, tree.predict(new double[0]), 0.d);
+    }
+
+    @Test(expected = VMRuntimeException.class)
+    public void testIllegalJump() throws VMRuntimeException {
+        CompiledTree.compile("push x[0]; push 1.0; ifle 7; push 1; goto last; push 0; goto last; call end");
+    }
+
+    private static Attribute[] attributes() {
+        return new Attribute[] {new Attribute.NumericAttribute(0),
+                new Attribute.NumericAttribute(1), new Attribute.NominalAttribute(2)};
+    }
+
+    private static double[][] randomMatrix(int n, Random rand) {
+        double[][] x = new double[n][3];
+        for (int i = 0; i < n; i++) {
+            x[i][0] = rand.nextGaussian();
+            x[i][1] = rand.nextGaussian();
+            x[i][2] = rand.nextInt(3);
+        }
+        return x;
+    }
+
+}
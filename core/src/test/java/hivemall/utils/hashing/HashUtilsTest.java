@@ -0,0 +1,45 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.utils.hashing;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HashUtilsTest {
+
+    @Test
+    public void testFingerprint() {
+        final byte[] b = new byte[100000];
+        new Random(43L).nextBytes(b);
+        final long fingerprint = HashUtils.fingerprint(b, 0, b.length);
+        Assert.assertEquals(fingerprint, HashUtils.fingerprint(b.clone(), 0, b.length));
+        Assert.assertEquals(b.length, fingerprint >>> 32);
+
+        // every byte counts even if the length is the same
+        for (int i = 0; i < b.length; i += 997) {
+            b[i]++;
+            Assert.assertNotEquals(fingerprint, HashUtils.fingerprint(b, 0, b.length));
+            b[i]--;
+        }
+        Assert.assertNotEquals(fingerprint, HashUtils.fingerprint(b, 1, b.length - 1));
+    }
+
+}
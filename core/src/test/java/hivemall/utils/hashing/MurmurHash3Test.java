@@ -18,6 +18,7 @@
  */
 package hivemall.utils.hashing;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 
 import org.junit.Test;
@@ -35,4 +36,33 @@ public class MurmurHash3Test {
         }
     }
 
+    @Test
+    public void testMurmurhash3Bytes() {
+        Random rand = new Random(43L);
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder buf = new StringBuilder();
+            for (int j = rand.nextInt(12); j > 0; j--) {
+                // ASCII, 2-byte, 3-byte characters and surrogate pairs
+                switch (rand.nextInt(4)) {
+                    case 0:
+                        buf.append((char) ('a' + rand.nextInt(26)));
+                        break;
+                    case 1:
+                        buf.append((char) (0x80 + rand.nextInt(0x780)));
+                        break;
+                    case 2:
+                        buf.append((char) (0x3040 + rand.nextInt(0x60)));
+                        break;
+                    default:
+                        buf.appendCodePoint(0x1F600 + rand.nextInt(0x50));
+                }
+            }
+            String s = buf.toString();
+            byte[] b = ("#" + s).getBytes(StandardCharsets.UTF_8);
+            int seed = rand.nextInt();
+            Assert.assertEquals(MurmurHash3.murmurhash3_x86_32(s, seed),
+                MurmurHash3.murmurhash3_x86_32(b, 1, b.length - 1, seed));
+        }
+    }
+
 }
@@ -24,6 +24,7 @@ public final class MixServerMetrics implements MixServerMetricsMBean {
     private long writeThroughput;
     private long lastReads;
     private long lastWrites;
+    private volatile long evictedPartialResults;
 
     public MixServerMetrics() {}
 
@@ -43,6 +44,10 @@ public final class MixServerMetrics implements MixServerMetricsMBean {
         this.lastWrites = lastWrites;
     }
 
+    public void incrEvictedPartialResults(long evicted) {
+        this.evictedPartialResults += evicted; // only updated by a sweeper thread
+    }
+
     @Override
     public long getReadThroughput() {
         return readThroughput;
@@ -63,4 +68,9 @@ public final class MixServerMetrics implements MixServerMetricsMBean {
         return lastWrites;
     }
 
+    @Override
+    public long getEvictedPartialResults() {
+        return evictedPartialResults;
+    }
+
 }
@@ -28,4 +28,6 @@ public interface MixServerMetricsMBean {
 
     long getLastWrites();
 
+    long getEvictedPartialResults();
+
 }
@@ -22,8 +22,10 @@ import hivemall.mix.MixEnv;
 import hivemall.mix.metrics.MetricsRegistry;
 import hivemall.mix.metrics.MixServerMetrics;
 import hivemall.mix.metrics.ThroughputCounter;
+import hivemall.mix.store.SessionSnapshot.SnapshotTask;
 import hivemall.mix.store.SessionStore;
 import hivemall.mix.store.SessionStore.IdleSessionSweeper;
+import hivemall.mix.store.SessionStore.MemoryBudgetSweeper;
 import hivemall.utils.lang.CommandLineUtils;
 import hivemall.utils.lang.Primitives;
 import io.netty.bootstrap.ServerBootstrap;
@@ -37,6 +39,7 @@ import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.util.SelfSignedCertificate;
 
+import java.io.File;
 import java.security.cert.CertificateException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -44,6 +47,7 @@ import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.net.ssl.SSLException;
 
 import org.apache.commons.cli.CommandLine;
@@ -61,6 +65,14 @@ public final class MixServer implements Runnable {
     private final short syncThreshold;
     private final long sessionTTLinSec;
     private final long sweepIntervalInSec;
+    private final float heapLimit;
+    private final long evictIntervalInSec;
+    @Nullable
+    private final File snapshotFile;
+    private final long snapshotIntervalInSec;
+    @Nullable
+    private final String cluster;
+    private final int numReplicas;
     private final boolean jmx;
     private volatile ServerState state;
 
@@ -74,6 +86,14 @@ public final class MixServer implements Runnable {
         this.syncThreshold = Primitives.parseShort(cl.getOptionValue("sync"), (short) 30);
         this.sessionTTLinSec = Primitives.parseLong(cl.getOptionValue("ttl"), 120L);
         this.sweepIntervalInSec = Primitives.parseLong(cl.getOptionValue("sweep"), 60L);
+        this.heapLimit = Primitives.parseFloat(cl.getOptionValue("heap_limit"), 0.f);
+        this.evictIntervalInSec = Primitives.parseLong(cl.getOptionValue("evict"), 10L);
+        String snapshotPath = cl.getOptionValue("snapshot");
+        this.snapshotFile = (snapshotPath == null) ? null : new File(snapshotPath);
+        this.snapshotIntervalInSec = Primitives.parseLong(cl.getOptionValue("snapshot_interval"),
+            60L);
+        this.cluster = cl.getOptionValue("cluster");
+        this.numReplicas = Primitives.parseInt(cl.getOptionValue("replicas"), 2);
         this.jmx = cl.hasOption("jmx");
         this.state = ServerState.INITIALIZING;
         // Print the configurations that this Mix server works with
@@ -100,6 +120,18 @@ public final class MixServer implements Runnable {
             "The TTL in sec that an idle session lives [default: 120 sec]");
         opts.addOption("sweep", "session_sweep_interval", true,
             "The interval in sec that the session expiry thread runs [default: 60 sec]");
+        opts.addOption("heap_limit", "heap_limit_ratio", true,
+            "Evict cold partial results when the tenured generation after GC exceeds this ratio of its max size [default: none (no eviction)]");
+        opts.addOption("evict", "evict_interval", true,
+            "The interval in sec that the partial result eviction thread runs [default: 10 sec]");
+        opts.addOption("snapshot", "snapshot_file", true,
+            "A file to periodically save session states and to restore them on startup [default: none]");
+        opts.addOption("snapshot_interval", true,
+            "The interval in sec that session states are saved [default: 60 sec]");
+        opts.addOption("cluster", true,
+            "Comma separated endpoints of all the mix servers to forward requests to replicas [default: none]");
+        opts.addOption("replicas", "num_replicas", true,
+            "The number of mix servers holding each feature in the cluster [default: 2]");
         opts.addOption("jmx", "metrics", false,
             "Toggle this option to enable monitoring metrics using JMX [default: false]");
         return opts;
@@ -109,8 +141,11 @@ public final class MixServer implements Runnable {
     public String toString() {
         return "[port=" + port + ", numWorkers=" + numWorkers + ", ssl=" + ssl + ", scale=" + scale
                 + ", syncThreshold=" + syncThreshold + ", sessionTTLinSec=" + sessionTTLinSec
-                + ", sweepIntervalInSec=" + sweepIntervalInSec + ", jmx=" + jmx + ", state="
-                + state + "]";
+                + ", sweepIntervalInSec=" + sweepIntervalInSec + ", heapLimit=" + heapLimit
+                + ", evictIntervalInSec=" + evictIntervalInSec + ", snapshotFile=" + snapshotFile
+                + ", snapshotIntervalInSec=" + snapshotIntervalInSec + ", cluster=" + cluster
+                + ", numReplicas=" + numReplicas + ", jmx=" + jmx
+                + ", state=" + state + "]";
     }
 
     public ServerState getState() {
@@ -150,21 +185,58 @@ public final class MixServer implements Runnable {
 
         // configure initializer
         SessionStore sessionStore = new SessionStore();
-        MixServerHandler msgHandler = new MixServerHandler(sessionStore, syncThreshold, scale);
+        final MixServerForwarder forwarder = (cluster == null) ? null : new MixServerForwarder(
+            cluster, port, numReplicas, ssl);
+        MixServerHandler msgHandler = new MixServerHandler(sessionStore, syncThreshold, scale,
+            forwarder);
         MixServerInitializer initializer = new MixServerInitializer(msgHandler, throughputCounter,
             sslCtx);
 
+        final SnapshotTask snapshotTask;
+        final ScheduledExecutorService snapshotWriter;
+        if (snapshotFile == null) {
+            snapshotTask = null;
+            snapshotWriter = null;
+        } else {
+            snapshotTask = new SnapshotTask(sessionStore, snapshotFile);
+            long restored = snapshotTask.restore();
+            if (restored >= 0L) {
+                logger.info("Restored " + restored + " partial results from " + snapshotFile);
+            }
+            snapshotWriter = Executors.newSingleThreadScheduledExecutor();
+        }
+
         Runnable cleanSessionTask = new IdleSessionSweeper(sessionStore, sessionTTLinSec * 1000L);
+        Runnable evictTask = (heapLimit > 0.f) ? new MemoryBudgetSweeper(sessionStore, heapLimit,
+            metrics) : null;
         ScheduledExecutorService idleSessionChecker = Executors.newScheduledThreadPool(1);
         try {
             // start idle session sweeper
             idleSessionChecker.scheduleAtFixedRate(cleanSessionTask, sessionTTLinSec + 10L,
                 sweepIntervalInSec, TimeUnit.SECONDS);
+            if (evictTask != null) {
+                // start memory budget sweeper
+                idleSessionChecker.scheduleWithFixedDelay(evictTask, evictIntervalInSec,
+                    evictIntervalInSec, TimeUnit.SECONDS);
+            }
+            if (snapshotWriter != null) {
+                // start snapshot writer
+                snapshotWriter.scheduleWithFixedDelay(snapshotTask, snapshotIntervalInSec,
+                    snapshotIntervalInSec, TimeUnit.SECONDS);
+            }
             // accept connections
             acceptConnections(initializer, port, numWorkers);
         } finally {
             // release threads
             idleSessionChecker.shutdownNow();
+            if (forwarder != null) {
+                logger.info(forwarder.toString());
+                forwarder.close();
+            }
+            if (snapshotWriter != null) {
+                snapshotWriter.shutdownNow();
+                snapshotTask.run(); // the last snapshot
+            }
             if (jmx) {
                 MetricsRegistry.unregisterMBeans(port);
             }
@@ -0,0 +1,283 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.mix.server;
+
+import hivemall.mix.MixMessage;
+import hivemall.mix.MixMessage.MixEventName;
+import hivemall.mix.MixMessageBatch;
+import hivemall.mix.MixMessageEncoder;
+import hivemall.mix.NodeInfo;
+import hivemall.mix.client.MixRequestRouter;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.net.ssl.SSLException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Forwards mix requests to the other mix servers holding replicas of the features, so that a
+ * replica can take over the partial results when clients fail over to it. Mix servers are placed
+ * on the same consistent hash ring as {@link MixRequestRouter} of clients.
+ *
+ * Forwarding is best effort. Requests to a replica that is not connected yet are discarded.
+ */
+@ThreadSafe
+public final class MixServerForwarder implements Closeable {
+    private static final Log logger = LogFactory.getLog(MixServerForwarder.class);
+
+    @Nonnull
+    private final MixRequestRouter router;
+    @Nonnull
+    private final NodeInfo[] cluster;
+    @Nullable
+    private final NodeInfo self;
+    private final int numReplicas;
+
+    @Nonnull
+    private final EventLoopGroup workers;
+    @Nonnull
+    private final Bootstrap bootstrap;
+    @Nonnull
+    private final ConcurrentMap<NodeInfo, Channel> channelMap;
+    /** Servers to which connections are being established */
+    @Nonnull
+    private final ConcurrentMap<NodeInfo, Boolean> connecting;
+
+    @Nonnull
+    private final AtomicLong numForwarded;
+    @Nonnull
+    private final AtomicLong numDiscarded;
+
+    /**
+     * @param clusterInfo comma separated endpoints of all the mix servers including this one
+     * @param port the port number of this mix server
+     */
+    public MixServerForwarder(@Nonnull String clusterInfo, int port,
+            @Nonnegative int numReplicas, boolean ssl) throws SSLException {
+        this(new MixRequestRouter(clusterInfo), port, numReplicas, ssl);
+    }
+
+    MixServerForwarder(@Nonnull MixRequestRouter router, int port, @Nonnegative int numReplicas,
+            boolean ssl) throws SSLException {
+        if (numReplicas < 1) {
+            throw new IllegalArgumentException("Invalid numReplicas: " + numReplicas);
+        }
+        this.router = router;
+        this.cluster = router.getAllNodes();
+        this.self = findSelf(cluster, port);
+        if (self == null) {
+            logger.warn("This mix server is not found in the cluster, and thus forwards requests to all the replicas");
+        }
+        this.numReplicas = numReplicas;
+        this.channelMap = new ConcurrentHashMap<NodeInfo, Channel>();
+        this.connecting = new ConcurrentHashMap<NodeInfo, Boolean>();
+        this.numForwarded = new AtomicLong(0L);
+        this.numDiscarded = new AtomicLong(0L);
+
+        final SslContext sslCtx = ssl
+                ? SslContext.newClientContext(InsecureTrustManagerFactory.INSTANCE) : null;
+        this.workers = new NioEventLoopGroup(1);
+        Bootstrap b = new Bootstrap();
+        b.group(workers);
+        b.option(ChannelOption.SO_KEEPALIVE, true);
+        b.option(ChannelOption.TCP_NODELAY, true);
+        b.channel(NioSocketChannel.class);
+        b.handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                ChannelPipeline pipeline = ch.pipeline();
+                if (sslCtx != null) {
+                    pipeline.addLast(sslCtx.newHandler(ch.alloc()));
+                }
+                pipeline.addLast(new MixMessageEncoder()); // no reply to forwarded requests
+            }
+        });
+        this.bootstrap = b;
+    }
+
+    @Nullable
+    private static NodeInfo findSelf(@Nonnull NodeInfo[] cluster, int port) {
+        for (NodeInfo node : cluster) {
+            if (node.getPort() == port && isLocalAddress(node.getAddress())) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isLocalAddress(@Nonnull InetAddress addr) {
+        if (addr.isLoopbackAddress() || addr.isAnyLocalAddress()) {
+            return true;
+        }
+        try {
+            return NetworkInterface.getByInetAddress(addr) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    @Nullable
+    NodeInfo getSelf() {
+        return self;
+    }
+
+    public long getNumForwarded() {
+        return numForwarded.get();
+    }
+
+    public long getNumDiscarded() {
+        return numDiscarded.get();
+    }
+
+    public void forward(@Nonnull MixMessage msg) {
+        if (msg.getDeltaUpdates() <= 0) {
+            return;
+        }
+        MixMessageBatch batch = new MixMessageBatch(msg.getEvent(), 1);
+        batch.setGroupID(msg.getGroupID());
+        batch.add(msg.getFeature(), msg.getWeight(), msg.getCovariance(), msg.getClock(),
+            msg.getDeltaUpdates(), msg.isCancelRequest());
+        forward(batch);
+    }
+
+    /**
+     * Forwards each request of the batch to the replicas of its feature other than this server.
+     * Must be called before mixing the batch because mixing overwrites the requests.
+     */
+    public void forward(@Nonnull final MixMessageBatch batch) {
+        if (batch.isForwarded() || cluster.length == 1) {
+            return;
+        }
+        final MixEventName event = batch.getEvent();
+        final int size = batch.size();
+        final Map<NodeInfo, MixMessageBatch> outgoing = new IdentityHashMap<NodeInfo, MixMessageBatch>(
+            numReplicas);
+        for (int i = 0; i < size; i++) {
+            final Object feature = batch.getFeature(i);
+            for (NodeInfo replica : router.selectReplicas(feature, numReplicas)) {
+                if (replica == self) {
+                    continue;
+                }
+                MixMessageBatch forwarded = outgoing.get(replica);
+                if (forwarded == null) {
+                    forwarded = new MixMessageBatch(event, size);
+                    forwarded.setGroupID(batch.getGroupID());
+                    forwarded.setForwarded(true);
+                    outgoing.put(replica, forwarded);
+                }
+                forwarded.add(feature, batch.getWeight(i), batch.getCovariance(i),
+                    batch.getClock(i), batch.getDeltaUpdates(i), batch.isCancelRequest(i));
+            }
+        }
+
+        for (Map.Entry<NodeInfo, MixMessageBatch> e : outgoing.entrySet()) {
+            final NodeInfo replica = e.getKey();
+            final MixMessageBatch forwarded = e.getValue();
+            final Channel ch = getChannel(replica);
+            if (ch == null) {
+                numDiscarded.getAndAdd(forwarded.size());
+                continue;
+            }
+            ch.writeAndFlush(forwarded).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        numForwarded.getAndAdd(forwarded.size());
+                    } else {
+                        numDiscarded.getAndAdd(forwarded.size());
+                        router.markDown(replica);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Never blocks. Starts connecting to the replica in the background if not connected.
+     *
+     * @return null if not connected yet
+     */
+    @Nullable
+    private Channel getChannel(@Nonnull final NodeInfo replica) {
+        final Channel ch = channelMap.get(replica);
+        if (ch != null && ch.isActive()) {
+            return ch;
+        }
+        if (!router.isAlive(replica) || connecting.putIfAbsent(replica, Boolean.TRUE) != null) {
+            return null;
+        }
+        bootstrap.connect(replica.getSocketAddress()).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    channelMap.put(replica, future.channel());
+                    router.markUp(replica);
+                } else {
+                    logger.warn("Failed to connect to a replica: " + replica, future.cause());
+                    router.markDown(replica);
+                }
+                connecting.remove(replica);
+            }
+        });
+        return null;
+    }
+
+    @Override
+    public void close() {
+        for (Channel ch : channelMap.values()) {
+            ch.close();
+        }
+        channelMap.clear();
+        workers.shutdownGracefully();
+    }
+
+    @Override
+    public String toString() {
+        return "MixServerForwarder [self=" + self + ", numReplicas=" + numReplicas
+                + ", numForwarded=" + numForwarded + ", numDiscarded=" + numDiscarded + "]";
+    }
+
+}
@@ -20,11 +20,14 @@ package hivemall.mix.server;
 
 import hivemall.mix.MixMessage;
 import hivemall.mix.MixMessage.MixEventName;
+import hivemall.mix.MixMessageBatch;
 import hivemall.mix.store.PartialArgminKLD;
 import hivemall.mix.store.PartialAverage;
 import hivemall.mix.store.PartialResult;
 import hivemall.mix.store.SessionObject;
 import hivemall.mix.store.SessionStore;
+import hivemall.mix.store.StripedPartialResultStore;
+import hivemall.mix.store.StripedPartialResultStore.Segment;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -33,32 +36,71 @@ import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 @Sharable
-public final class MixServerHandler extends SimpleChannelInboundHandler<MixMessage> {
+public final class MixServerHandler extends SimpleChannelInboundHandler<Object> {
 
     @Nonnull
     private final SessionStore sessionStore;
     private final int syncThreshold;
     private final float scale;
+    /** Forwards requests to replicas if the mix servers form a cluster */
+    @Nullable
+    private final MixServerForwarder forwarder;
 
     public MixServerHandler(@Nonnull SessionStore sessionStore, @Nonnegative int syncThreshold,
             @Nonnegative float scale) {
+        this(sessionStore, syncThreshold, scale, null);
+    }
+
+    public MixServerHandler(@Nonnull SessionStore sessionStore, @Nonnegative int syncThreshold,
+            @Nonnegative float scale, @Nullable MixServerForwarder forwarder) {
         super();
         this.sessionStore = sessionStore;
         this.syncThreshold = syncThreshold;
         this.scale = scale;
+        this.forwarder = forwarder;
+    }
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) throws Exception {
+        return (msg instanceof MixMessage) || (msg instanceof MixMessageBatch);
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, MixMessage msg) throws Exception {
+    protected void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof MixMessageBatch) {
+            onRequest(ctx, (MixMessageBatch) msg);
+        } else {
+            onRequest(ctx, (MixMessage) msg);
+        }
+    }
+
+    private void onRequest(@Nonnull ChannelHandlerContext ctx, @Nonnull MixMessage msg) {
         final MixEventName event = msg.getEvent();
         switch (event) {
             case average:
             case argminKLD: {
-                SessionObject session = getSession(msg);
-                PartialResult partial = getPartialResult(msg, session);
-                mix(ctx, msg, partial, session);
+                SessionObject session = getSession(msg.getGroupID());
+                session.incrRequest();
+                if (forwarder != null) {
+                    forwarder.forward(msg);
+                }
+                Object feature = msg.getFeature();
+                if (StripedPartialResultStore.isIntegerFeature(feature)) {
+                    StripedPartialResultStore store = session.getIntStore(event);
+                    mix(ctx, msg, store, session);
+                } else if (msg.isCancelRequest()) {
+                    // a cancel of an evicted partial result has nothing to cancel
+                    PartialResult partial = session.get().get(feature);
+                    if (partial != null) {
+                        mix(ctx, msg, partial, session);
+                    }
+                } else {
+                    PartialResult partial = getPartialResult(event, feature, session);
+                    mix(ctx, msg, partial, session);
+                }
                 break;
             }
             case closeGroup: {
@@ -78,25 +120,39 @@ public final class MixServerHandler extends SimpleChannelInboundHandler<MixMessa
         sessionStore.remove(groupId);
     }
 
+    private void onRequest(@Nonnull ChannelHandlerContext ctx, @Nonnull MixMessageBatch batch) {
+        final MixEventName event = batch.getEvent();
+        switch (event) {
+            case average:
+            case argminKLD: {
+                SessionObject session = getSession(batch.getGroupID());
+                session.incrRequest(batch.size());
+                if (forwarder != null) {
+                    forwarder.forward(batch); // before mixing overwrites the requests
+                }
+                mix(ctx, batch, session);
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unexpected event: " + event);
+        }
+    }
+
     @Nonnull
-    private SessionObject getSession(@Nonnull MixMessage msg) {
-        String groupID = msg.getGroupID();
+    private SessionObject getSession(@Nullable String groupID) {
         if (groupID == null) {
             throw new IllegalStateException("JobID is not set in the request message");
         }
-        SessionObject session = sessionStore.get(groupID);
-        session.incrRequest();
-        return session;
+        return sessionStore.get(groupID);
     }
 
     @Nonnull
-    private PartialResult getPartialResult(@Nonnull MixMessage msg, @Nonnull SessionObject session) {
+    private static PartialResult getPartialResult(@Nonnull MixEventName event,
+            @Nonnull Object feature, @Nonnull SessionObject session) {
         final ConcurrentMap<Object, PartialResult> map = session.get();
 
-        Object feature = msg.getFeature();
         PartialResult partial = map.get(feature);
         if (partial == null) {
-            final MixEventName event = msg.getEvent();
             switch (event) {
                 case average:
                     partial = new PartialAverage();
@@ -111,6 +167,8 @@ public final class MixServerHandler extends SimpleChannelInboundHandler<MixMessa
             if (existing != null) {
                 partial = existing;
             }
+        } else {
+            partial.touch();
         }
         return partial;
     }
@@ -158,4 +216,172 @@ public final class MixServerHandler extends SimpleChannelInboundHandler<MixMessa
         }
     }
 
+    private void mix(final ChannelHandlerContext ctx, final MixMessage requestMsg,
+            final StripedPartialResultStore store, final SessionObject session) {
+        final MixEventName event = requestMsg.getEvent();
+        final Object feature = requestMsg.getFeature();
+        final float weight = requestMsg.getWeight();
+        final float covar = requestMsg.getCovariance();
+        final short localClock = requestMsg.getClock();
+        final int deltaUpdates = requestMsg.getDeltaUpdates();
+        final boolean cancelRequest = requestMsg.isCancelRequest();
+
+        if (deltaUpdates <= 0) {
+            throw new IllegalArgumentException("Illegal deltaUpdates received: " + deltaUpdates);
+        }
+
+        final long key = StripedPartialResultStore.toKey(feature);
+        final Segment segment = store.segmentFor(key);
+        MixMessage responseMsg = null;
+        try {
+            segment.lock();
+
+            if (cancelRequest) {
+                // a cancel of an evicted partial result has nothing to cancel
+                final int i = segment.find(key);
+                if (i != -1) {
+                    segment.subtract(i, weight, covar, deltaUpdates, scale);
+                }
+            } else {
+                final int i = segment.getOrAdd(key);
+                int diffClock = segment.diffClock(i, localClock);
+                segment.add(i, weight, covar, deltaUpdates, scale);
+
+                if (diffClock >= syncThreshold) {// sync model if clock DIFF is above threshold
+                    float averagedWeight = segment.getWeight(i, scale);
+                    float meanCovar = segment.getCovariance(i, scale);
+                    short globalClock = segment.getClock(i);
+                    responseMsg = new MixMessage(event, feature, averagedWeight, meanCovar,
+                        globalClock, 0 /* deltaUpdates */);
+                }
+            }
+
+        } finally {
+            segment.unlock();
+        }
+
+        if (responseMsg != null) {
+            session.incrResponse();
+            ctx.writeAndFlush(responseMsg);
+        }
+    }
+
+    /**
+     * Applies all the requests in a batch and replies the synchronized models in one batch. No
+     * reply is sent for a batch forwarded from another mix server.
+     */
+    private void mix(final ChannelHandlerContext ctx, final MixMessageBatch requestBatch,
+            final SessionObject session) {
+        final MixEventName event = requestBatch.getEvent();
+        final int size = requestBatch.size();
+        final boolean reply = !requestBatch.isForwarded();
+
+        StripedPartialResultStore intStore = null;
+        MixMessageBatch responseBatch = null;
+        for (int i = 0; i < size; i++) {
+            final Object feature = requestBatch.getFeature(i);
+            final int deltaUpdates = requestBatch.getDeltaUpdates(i);
+            if (deltaUpdates <= 0) {
+                throw new IllegalArgumentException("Illegal deltaUpdates received: "
+                        + deltaUpdates);
+            }
+
+            final boolean sync;
+            if (StripedPartialResultStore.isIntegerFeature(feature)) {
+                if (intStore == null) {
+                    intStore = session.getIntStore(event);
+                }
+                sync = mix(requestBatch, i, intStore);
+            } else if (requestBatch.isCancelRequest(i)) {
+                // a cancel of an evicted partial result has nothing to cancel
+                PartialResult partial = session.get().get(feature);
+                sync = (partial != null) && mix(requestBatch, i, partial);
+            } else {
+                PartialResult partial = getPartialResult(event, feature, session);
+                sync = mix(requestBatch, i, partial);
+            }
+            if (sync && reply) {
+                if (responseBatch == null) {
+                    responseBatch = new MixMessageBatch(event, size);
+                    responseBatch.setCompact(requestBatch.isCompact()); // reply in kind
+                }
+                responseBatch.add(feature, requestBatch.getWeight(i),
+                    requestBatch.getCovariance(i), requestBatch.getClock(i), 0 /* deltaUpdates */,
+                    false);
+            }
+        }
+
+        if (responseBatch != null) {
+            session.incrResponse(responseBatch.size());
+            ctx.writeAndFlush(responseBatch);
+        }
+    }
+
+    /**
+     * Mixes the i-th request of the batch and, if the model needs to be synchronized, overwrites
+     * the weight, covariance, and clock of the request with the global ones.
+     * 
+     * @return true if the global model should be sent back
+     */
+    private boolean mix(final MixMessageBatch batch, final int i, final PartialResult partial) {
+        final float weight = batch.getWeight(i);
+        final float covar = batch.getCovariance(i);
+        final int deltaUpdates = batch.getDeltaUpdates(i);
+        try {
+            partial.lock();
+
+            if (batch.isCancelRequest(i)) {
+                partial.subtract(weight, covar, deltaUpdates, scale);
+                return false;
+            }
+            int diffClock = partial.diffClock(batch.getClock(i));
+            partial.add(weight, covar, deltaUpdates, scale);
+            if (diffClock < syncThreshold) {
+                return false;
+            }
+            // sync model if clock DIFF is above threshold
+            batch.set(i, partial.getWeight(scale), partial.getCovariance(scale),
+                partial.getClock());
+            return true;
+        } finally {
+            partial.unlock();
+        }
+    }
+
+    /**
+     * @see #mix(MixMessageBatch, int, PartialResult)
+     */
+    private boolean mix(final MixMessageBatch batch, final int i,
+            final StripedPartialResultStore store) {
+        final long key = StripedPartialResultStore.toKey(batch.getFeature(i));
+        final float weight = batch.getWeight(i);
+        final float covar = batch.getCovariance(i);
+        final int deltaUpdates = batch.getDeltaUpdates(i);
+        final Segment segment = store.segmentFor(key);
+        try {
+            segment.lock();
+
+            if (batch.isCancelRequest(i)) {
+                // a cancel of an evicted partial result has nothing to cancel
+                final int slot = segment.find(key);
+                if (slot != -1) {
+                    segment.subtract(slot, weight, covar, deltaUpdates, scale);
+                }
+                return false;
+            }
+            final int slot = segment.getOrAdd(key);
+            int diffClock = segment.diffClock(slot, batch.getClock(i));
+            segment.add(slot, weight, covar, deltaUpdates, scale);
+            if (diffClock < syncThreshold) {
+                return false;
+            }
+            // sync model if clock DIFF is above threshold
+            batch.set(i, segment.getWeight(slot, scale), segment.getCovariance(slot, scale),
+                segment.getClock(slot));
+            return true;
+        } finally {
+            segment.unlock();
+        }
+    }
+
 }
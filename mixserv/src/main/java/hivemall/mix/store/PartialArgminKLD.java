@@ -18,7 +18,10 @@
  */
 package hivemall.mix.store;
 
+import java.nio.ByteBuffer;
+
 import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
 import javax.annotation.concurrent.GuardedBy;
 
 public final class PartialArgminKLD extends PartialResult {
@@ -62,4 +65,18 @@ public final class PartialArgminKLD extends PartialResult {
         return (float) (sum_mean_div_covar / sum_inv_covar);
     }
 
+    @Override
+    protected void writeState(@Nonnull final ByteBuffer dst) {
+        dst.putDouble(sum_mean_div_covar);
+        dst.putFloat(sum_inv_covar);
+        dst.putShort(globalClock);
+    }
+
+    @Override
+    protected void readState(@Nonnull final ByteBuffer src) {
+        this.sum_mean_div_covar = src.getDouble();
+        this.sum_inv_covar = src.getFloat();
+        this.globalClock = src.getShort();
+    }
+
 }
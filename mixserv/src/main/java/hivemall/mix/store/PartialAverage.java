@@ -18,7 +18,10 @@
  */
 package hivemall.mix.store;
 
+import java.nio.ByteBuffer;
+
 import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
 import javax.annotation.concurrent.GuardedBy;
 
 public final class PartialAverage extends PartialResult {
@@ -66,4 +69,18 @@ public final class PartialAverage extends PartialResult {
         return (float) (scaledSumWeights / totalUpdates) * scale;
     }
 
+    @Override
+    protected void writeState(@Nonnull final ByteBuffer dst) {
+        dst.putDouble(scaledSumWeights);
+        dst.putInt(totalUpdates);
+        dst.putShort(globalClock);
+    }
+
+    @Override
+    protected void readState(@Nonnull final ByteBuffer src) {
+        this.scaledSumWeights = src.getDouble();
+        this.totalUpdates = src.getInt();
+        this.globalClock = src.getShort();
+    }
+
 }
@@ -21,18 +21,26 @@ package hivemall.mix.store;
 import hivemall.utils.lock.Lock;
 import hivemall.utils.lock.TTASLock;
 
+import java.nio.ByteBuffer;
+
 import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
 import javax.annotation.concurrent.GuardedBy;
 
 public abstract class PartialResult {
+    /** The number of bytes of a serialized state */
+    static final int STATE_BYTES = 8 + 4 + 2;
 
     private final Lock lock;
 
     @GuardedBy("lock()")
     protected short globalClock;
+    /** Whether accessed since the last eviction sweep. Races are benign */
+    private boolean touched;
 
     public PartialResult() {
         this.globalClock = 0;
+        this.touched = true;
         this.lock = new TTASLock();
     }
 
@@ -44,6 +52,23 @@ public abstract class PartialResult {
         lock.unlock();
     }
 
+    public final void touch() {
+        this.touched = true;
+    }
+
+    /**
+     * Gives a second chance to entries accessed since the last call.
+     * 
+     * @return true if not accessed since the last call
+     */
+    public final boolean clearTouched() {
+        if (touched) {
+            this.touched = false;
+            return false;
+        }
+        return true;
+    }
+
     public abstract void add(float localWeight, float covar, @Nonnegative int deltaUpdates,
             float scale);
 
@@ -52,6 +77,16 @@ public abstract class PartialResult {
 
     public abstract float getWeight(float scale);
 
+    /**
+     * Writes the state in {@link #STATE_BYTES} bytes. Must be called while holding the lock.
+     */
+    protected abstract void writeState(@Nonnull ByteBuffer dst);
+
+    /**
+     * Reads the state written by {@link #writeState(ByteBuffer)}.
+     */
+    protected abstract void readState(@Nonnull ByteBuffer src);
+
     public abstract float getCovariance(float scale);
 
     public final short getClock() {
@@ -18,10 +18,15 @@
  */
 package hivemall.mix.store;
 
+import hivemall.mix.MixMessage.MixEventName;
+
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
 @ThreadSafe
@@ -29,6 +34,8 @@ public final class SessionObject {
 
     @Nonnull
     private final ConcurrentMap<Object, PartialResult> object;
+    @Nullable
+    private volatile StripedPartialResultStore intObject;
     private volatile long lastAccessed; // being accessed by multiple threads
 
     private final AtomicLong num_requests;
@@ -48,6 +55,68 @@ public final class SessionObject {
         return object;
     }
 
+    /**
+     * @return a partial result store for integer features
+     */
+    @Nonnull
+    public StripedPartialResultStore getIntStore(@Nonnull MixEventName event) {
+        StripedPartialResultStore store = intObject;
+        if (store == null) {
+            synchronized (this) {
+                store = intObject;
+                if (store == null) {
+                    store = new StripedPartialResultStore(event);
+                    this.intObject = store;
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * @return a partial result store for integer features if created
+     */
+    @Nullable
+    public StripedPartialResultStore getIntStoreIfExists() {
+        return intObject;
+    }
+
+    /**
+     * Gives a second chance to partial results accessed since the last call, and evicts the
+     * others if required.
+     * 
+     * @return the number of evicted partial results
+     */
+    public long sweepUntouched(final boolean evict) {
+        long evicted = 0L;
+        final Iterator<Map.Entry<Object, PartialResult>> itor = object.entrySet().iterator();
+        while (itor.hasNext()) {
+            Map.Entry<Object, PartialResult> e = itor.next();
+            PartialResult partial = e.getValue();
+            if (partial.clearTouched() && evict) {
+                itor.remove();
+                evicted++;
+            }
+        }
+        final StripedPartialResultStore store = intObject;
+        if (store != null) {
+            evicted += store.sweepUntouched(evict);
+        }
+        return evicted;
+    }
+
+    /**
+     * @return the number of partial results in this session
+     */
+    public long size() {
+        long size = object.size();
+        final StripedPartialResultStore store = intObject;
+        if (store != null) {
+            size += store.size();
+        }
+        return size;
+    }
+
     /**
      * @return last accessed time in msec
      */
@@ -55,15 +124,28 @@ public final class SessionObject {
         return lastAccessed;
     }
 
+    void setLastAccessed(long lastAccessed) {
+        this.lastAccessed = lastAccessed;
+    }
+
     public void incrRequest() {
         this.lastAccessed = System.currentTimeMillis();
         num_requests.getAndIncrement();
     }
 
+    public void incrRequest(long requests) {
+        this.lastAccessed = System.currentTimeMillis();
+        num_requests.getAndAdd(requests);
+    }
+
     public void incrResponse() {
         num_responses.getAndIncrement();
     }
 
+    public void incrResponse(long responses) {
+        num_responses.getAndAdd(responses);
+    }
+
     public long getRequests() {
         return num_requests.get();
     }
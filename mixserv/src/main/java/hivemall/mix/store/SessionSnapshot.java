@@ -0,0 +1,408 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ * 
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.mix.store;
+
+import hivemall.mix.MixMessage.MixEventName;
+import hivemall.mix.store.StripedPartialResultStore.Segment;
+import hivemall.utils.io.IOUtils;
+import hivemall.utils.io.NIOUtils;
+import hivemall.utils.lang.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Saves and loads the partial results of a {@link SessionStore} in a compact binary format.
+ * 
+ * <pre>
+ * snapshot := MAGIC VERSION session* END
+ * session  := SESSION groupID(string) entry* END
+ * entry    := (AVERAGE|ARGMIN_KLD) feature state
+ *           | INT_STORE event(byte) (INT_ENTRY key(long) state)* END
+ * feature  := (TEXT|STRING) bytes(string)
+ * state    := double, int or float, short (see {@link PartialResult#writeState(ByteBuffer)})
+ * string   := length(int) UTF-8 bytes
+ * </pre>
+ */
+public final class SessionSnapshot {
+    private static final Log logger = LogFactory.getLog(SessionSnapshot.class);
+
+    private static final int MAGIC = 0x484d5353; // HMSS
+    private static final byte VERSION = 1;
+
+    private static final byte END = 0;
+    private static final byte SESSION = 1;
+    private static final byte AVERAGE = 2;
+    private static final byte ARGMIN_KLD = 3;
+    private static final byte INT_STORE = 4;
+    private static final byte INT_ENTRY = 5;
+
+    private static final byte TEXT_TYPE = 1;
+    private static final byte STRING_TYPE = 2;
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024; // 1MiB
+
+    private SessionSnapshot() {}
+
+    /**
+     * Writes a snapshot of the given session store. Each partial result is locked only while its
+     * state is copied to a buffer, and the snapshot replaces the given file atomically.
+     * 
+     * @return the number of saved partial results
+     */
+    public static long save(@Nonnull final SessionStore sessionStore, @Nonnull final File file)
+            throws IOException {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        final long entries;
+        final RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+        try {
+            raf.setLength(0L);
+            Writer writer = new Writer(raf.getChannel(), DEFAULT_BUFFER_SIZE);
+            entries = write(sessionStore, writer);
+            writer.flush();
+            raf.getChannel().force(false);
+        } finally {
+            IOUtils.closeQuietly(raf);
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        return entries;
+    }
+
+    private static long write(@Nonnull final SessionStore sessionStore,
+            @Nonnull final Writer writer) throws IOException {
+        final ByteBuffer buf = writer.buffer(5);
+        buf.putInt(MAGIC);
+        buf.put(VERSION);
+
+        long entries = 0L;
+        for (Map.Entry<String, SessionObject> e : sessionStore.getSessions().entrySet()) {
+            writer.buffer(1).put(SESSION);
+            writer.putBytes(StringUtils.getBytes(e.getKey()));
+
+            SessionObject sessionObj = e.getValue();
+            entries += writeEntries(sessionObj.get(), writer);
+            StripedPartialResultStore intStore = sessionObj.getIntStoreIfExists();
+            if (intStore != null) {
+                entries += writeEntries(intStore, writer);
+            }
+            writer.buffer(1).put(END);
+        }
+        writer.buffer(1).put(END);
+        return entries;
+    }
+
+    private static long writeEntries(@Nonnull final ConcurrentMap<Object, PartialResult> map,
+            @Nonnull final Writer writer) throws IOException {
+        long entries = 0L;
+        for (Map.Entry<Object, PartialResult> e : map.entrySet()) {
+            final Object feature = e.getKey();
+            final byte[] b;
+            final byte type;
+            if (feature instanceof Text) {
+                Text t = (Text) feature;
+                b = Arrays.copyOf(t.getBytes(), t.getLength());
+                type = TEXT_TYPE;
+            } else if (feature instanceof String) {
+                b = StringUtils.getBytes((String) feature);
+                type = STRING_TYPE;
+            } else {
+                logger.warn("Skipped an unexpected feature type: " + feature.getClass().getName());
+                continue;
+            }
+            final PartialResult partial = e.getValue();
+
+            ByteBuffer buf = writer.buffer(2);
+            buf.put((partial instanceof PartialArgminKLD) ? ARGMIN_KLD : AVERAGE);
+            buf.put(type);
+            writer.putBytes(b);
+            buf = writer.buffer(PartialResult.STATE_BYTES);
+            partial.lock();
+            try {
+                partial.writeState(buf);
+            } finally {
+                partial.unlock();
+            }
+            entries++;
+        }
+        return entries;
+    }
+
+    private static long writeEntries(@Nonnull final StripedPartialResultStore store,
+            @Nonnull final Writer writer) throws IOException {
+        ByteBuffer buf = writer.buffer(2);
+        buf.put(INT_STORE);
+        buf.put(store.getEvent().getID());
+
+        long entries = 0L;
+        for (Segment seg : store.getSegments()) {
+            // copy the segment so that I/O does not happen while holding the lock
+            final Segment copy;
+            seg.lock();
+            try {
+                copy = seg.copy();
+            } finally {
+                seg.unlock();
+            }
+            for (int i = 0, capacity = copy.capacity(); i < capacity; i++) {
+                if (!copy.isUsed(i)) {
+                    continue;
+                }
+                buf = writer.buffer(1 + 8 + PartialResult.STATE_BYTES);
+                buf.put(INT_ENTRY);
+                buf.putLong(copy.getKey(i));
+                copy.writeState(i, buf);
+                entries++;
+            }
+        }
+        writer.buffer(1).put(END);
+        return entries;
+    }
+
+    /**
+     * Loads partial results from a snapshot file by memory-mapping it.
+     * 
+     * @return the number of loaded partial results
+     */
+    public static long load(@Nonnull final File file, @Nonnull final SessionStore sessionStore)
+            throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot file is too large to map: " + size + " bytes");
+            }
+            final MappedByteBuffer buf = channel.map(MapMode.READ_ONLY, 0L, size);
+            return read(buf, sessionStore);
+        } finally {
+            IOUtils.closeQuietly(raf);
+        }
+    }
+
+    private static long read(@Nonnull final ByteBuffer src,
+            @Nonnull final SessionStore sessionStore) throws IOException {
+        if (src.remaining() < 5 || src.getInt() != MAGIC) {
+            throw new IOException("Not a session snapshot");
+        }
+        final byte version = src.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version: " + version);
+        }
+
+        final long now = System.currentTimeMillis();
+        long entries = 0L;
+        byte tag;
+        while ((tag = src.get()) != END) {
+            if (tag != SESSION) {
+                throw new IOException("Unexpected tag: " + tag);
+            }
+            String groupID = StringUtils.toString(getBytes(src));
+            SessionObject sessionObj = sessionStore.get(groupID);
+            sessionObj.setLastAccessed(now); // so as not to be swept as idle on startup
+            entries += readSession(src, sessionObj);
+        }
+        return entries;
+    }
+
+    private static long readSession(@Nonnull final ByteBuffer src,
+            @Nonnull final SessionObject sessionObj) throws IOException {
+        final ConcurrentMap<Object, PartialResult> map = sessionObj.get();
+        long entries = 0L;
+        byte tag;
+        while ((tag = src.get()) != END) {
+            switch (tag) {
+                case AVERAGE:
+                case ARGMIN_KLD: {
+                    Object feature = readFeature(src);
+                    PartialResult partial = (tag == AVERAGE) ? new PartialAverage()
+                            : new PartialArgminKLD();
+                    partial.readState(src);
+                    map.put(feature, partial);
+                    entries++;
+                    break;
+                }
+                case INT_STORE: {
+                    MixEventName event = MixEventName.resolve(src.get());
+                    entries += readIntStore(src, sessionObj.getIntStore(event));
+                    break;
+                }
+                default:
+                    throw new IOException("Unexpected tag: " + tag);
+            }
+        }
+        return entries;
+    }
+
+    private static long readIntStore(@Nonnull final ByteBuffer src,
+            @Nonnull final StripedPartialResultStore store) throws IOException {
+        long entries = 0L;
+        byte tag;
+        while ((tag = src.get()) != END) {
+            if (tag != INT_ENTRY) {
+                throw new IOException("Unexpected tag: " + tag);
+            }
+            long key = src.getLong();
+            Segment seg = store.segmentFor(key);
+            seg.lock();
+            try {
+                int i = seg.getOrAdd(key);
+                seg.readState(i, src);
+            } finally {
+                seg.unlock();
+            }
+            entries++;
+        }
+        return entries;
+    }
+
+    @Nonnull
+    private static Object readFeature(@Nonnull final ByteBuffer src) throws IOException {
+        final byte type = src.get();
+        final byte[] b = getBytes(src);
+        switch (type) {
+            case TEXT_TYPE:
+                return new Text(b);
+            case STRING_TYPE:
+                return StringUtils.toString(b);
+            default:
+                throw new IOException("Unexpected feature type: " + type);
+        }
+    }
+
+    @Nonnull
+    private static byte[] getBytes(@Nonnull final ByteBuffer src) {
+        final int length = src.getInt();
+        final byte[] b = new byte[length];
+        src.get(b);
+        return b;
+    }
+
+    /**
+     * A buffered writer that flushes a direct buffer to a file channel.
+     */
+    private static final class Writer {
+
+        @Nonnull
+        private final FileChannel channel;
+        @Nonnull
+        private final ByteBuffer buf;
+
+        Writer(@Nonnull FileChannel channel, @Nonnegative int bufferSize) {
+            this.channel = channel;
+            this.buf = ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        /**
+         * @return the buffer that has at least the requested bytes remaining
+         */
+        @Nonnull
+        ByteBuffer buffer(@Nonnegative final int bytes) throws IOException {
+            assert (bytes <= buf.capacity()) : bytes;
+            if (buf.remaining() < bytes) {
+                flush();
+            }
+            return buf;
+        }
+
+        void putBytes(@Nonnull final byte[] b) throws IOException {
+            buffer(4).putInt(b.length);
+            if (b.length <= buf.capacity()) {
+                buffer(b.length).put(b);
+            } else {
+                flush();
+                NIOUtils.writeFully(channel, ByteBuffer.wrap(b));
+            }
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            NIOUtils.writeFully(channel, buf);
+            buf.clear();
+        }
+    }
+
+    /**
+     * Periodically saves a snapshot of a session store.
+     */
+    @ThreadSafe
+    public static final class SnapshotTask implements Runnable {
+
+        @Nonnull
+        private final SessionStore sessionStore;
+        @Nonnull
+        private final File file;
+
+        public SnapshotTask(@Nonnull SessionStore sessionStore, @Nonnull File file) {
+            this.sessionStore = sessionStore;
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            final long startTime = System.currentTimeMillis();
+            final long entries;
+            try {
+                entries = save(sessionStore, file);
+            } catch (Throwable e) {
+                logger.error("Failed to save a session snapshot: " + file, e);
+                return;
+            }
+            if (logger.isInfoEnabled()) {
+                long elapsed = System.currentTimeMillis() - startTime;
+                logger.info("Saved " + entries + " partial results to " + file + " in "
+                        + elapsed + " msec");
+            }
+        }
+
+        /**
+         * @return the number of loaded partial results, or -1 if no snapshot exists
+         */
+        public long restore() {
+            if (!file.exists()) {
+                return -1L;
+            }
+            try {
+                return load(file, sessionStore);
+            } catch (Throwable e) {
+                logger.error("Failed to load a session snapshot: " + file, e);
+                return -1L;
+            }
+        }
+    }
+
+}
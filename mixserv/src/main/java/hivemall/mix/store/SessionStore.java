@@ -18,6 +18,12 @@
  */
 package hivemall.mix.store;
 
+import hivemall.mix.metrics.MixServerMetrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -26,6 +32,7 @@ import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
 import org.apache.commons.logging.Log;
@@ -33,7 +40,7 @@ import org.apache.commons.logging.LogFactory;
 
 @ThreadSafe
 public final class SessionStore {
-    private static final int EXPECTED_MODEL_SIZE = 4194305; /* 2^22+1=4194304+1=4194305 */
+    private static final int INITIAL_MODEL_SIZE = 1024; /* grows on demand */
     private static final Log logger = LogFactory.getLog(SessionStore.class);
 
     private final ConcurrentMap<String, SessionObject> sessions;
@@ -43,7 +50,7 @@ public final class SessionStore {
     }
 
     @Nonnull
-    private ConcurrentMap<String, SessionObject> getSessions() {
+    ConcurrentMap<String, SessionObject> getSessions() {
         return sessions;
     }
 
@@ -52,7 +59,7 @@ public final class SessionStore {
         SessionObject sessionObj = sessions.get(groupID);
         if (sessionObj == null) {
             ConcurrentMap<Object, PartialResult> map = new ConcurrentHashMap<Object, PartialResult>(
-                EXPECTED_MODEL_SIZE);
+                INITIAL_MODEL_SIZE);
             sessionObj = new SessionObject(map);
             SessionObject existing = sessions.putIfAbsent(groupID, sessionObj);
             if (existing != null) {
@@ -101,4 +108,88 @@ public final class SessionStore {
         }
     }
 
+    /**
+     * Evicts cold partial results when the usage of the tenured generation after the last GC
+     * exceeds the given ratio of its max size. Garbage not yet collected is thus not counted.
+     * Sessions are scanned only while over the limit, and every scan gives a second chance to
+     * partial results accessed since the previous scan and evicts the others (an approximation of
+     * LRU).
+     */
+    @ThreadSafe
+    public static final class MemoryBudgetSweeper implements Runnable {
+
+        private final ConcurrentMap<String, SessionObject> sessions;
+        private final float heapLimitRatio;
+        @Nullable
+        private final MemoryPoolMXBean tenuredPool;
+        @Nullable
+        private final MixServerMetrics metrics;
+
+        public MemoryBudgetSweeper(@Nonnull SessionStore sessionStore, float heapLimitRatio,
+                @Nullable MixServerMetrics metrics) {
+            if (heapLimitRatio <= 0.f || heapLimitRatio > 1.f) {
+                throw new IllegalArgumentException("heapLimitRatio must be in range (0,1]: "
+                        + heapLimitRatio);
+            }
+            this.sessions = sessionStore.getSessions();
+            this.heapLimitRatio = heapLimitRatio;
+            this.tenuredPool = getTenuredPool();
+            this.metrics = metrics;
+            if (tenuredPool == null) {
+                logger.warn("Partial results are never evicted as no tenured generation is found");
+            }
+        }
+
+        public void run() {
+            if (!isOverLimit()) {
+                return;
+            }
+            long evicted = 0L;
+            for (SessionObject sessionObj : sessions.values()) {
+                evicted += sessionObj.sweepUntouched(true);
+            }
+
+            if (evicted > 0L) {
+                if (metrics != null) {
+                    metrics.incrEvictedPartialResults(evicted);
+                }
+                if (logger.isInfoEnabled()) {
+                    logger.info("Evicted " + evicted
+                            + " cold partial results as the heap usage exceeds the limit");
+                }
+            }
+        }
+
+        private boolean isOverLimit() {
+            if (tenuredPool == null) {
+                return false;
+            }
+            MemoryUsage usage = tenuredPool.getCollectionUsage();
+            if (usage == null) {
+                return false;
+            }
+            long max = usage.getMax();
+            if (max <= 0L) {
+                return false; // undefined
+            }
+            long used = usage.getUsed();
+            return used > (long) (max * (double) heapLimitRatio);
+        }
+
+        /**
+         * @return the heap pool supporting both usage thresholds, which is only the tenured
+         *         generation, or null if not found
+         */
+        @Nullable
+        private static MemoryPoolMXBean getTenuredPool() {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+                        && pool.isCollectionUsageThresholdSupported()) {
+                    return pool;
+                }
+            }
+            return null;
+        }
+    }
+
 }
@@ -0,0 +1,526 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.mix.store;
+
+import hivemall.mix.MixMessage.MixEventName;
+import hivemall.utils.lock.Lock;
+import hivemall.utils.lock.TTASLock;
+import hivemall.utils.math.Primes;
+
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+
+/**
+ * A store of partial results for integer features. Partial results are kept in primitive
+ * parallel arrays of open-addressing hash tables, each of which is guarded by its own lock
+ * (lock striping), instead of a {@link PartialResult} object per feature.
+ */
+@ThreadSafe
+public final class StripedPartialResultStore {
+
+    private static final int DEFAULT_NUM_SEGMENTS = 64; // must be a power of two
+    private static final int DEFAULT_SEGMENT_SIZE = 67; // grows on demand
+
+    @Nonnull
+    private final MixEventName event;
+    @Nonnull
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    public StripedPartialResultStore(@Nonnull MixEventName event) {
+        this(event, DEFAULT_NUM_SEGMENTS, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public StripedPartialResultStore(@Nonnull MixEventName event, @Nonnegative int numSegments,
+            @Nonnegative int initSegmentSize) {
+        if (event != MixEventName.average && event != MixEventName.argminKLD) {
+            throw new IllegalArgumentException("Unexpected event: " + event);
+        }
+        if (numSegments < 1 || Integer.bitCount(numSegments) != 1) {
+            throw new IllegalArgumentException("numSegments must be a power of two: "
+                    + numSegments);
+        }
+        this.event = event;
+        final boolean argminKLD = (event == MixEventName.argminKLD);
+        final Segment[] segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = new Segment(initSegmentSize, argminKLD);
+        }
+        this.segments = segments;
+        this.segmentMask = numSegments - 1;
+    }
+
+    @Nonnull
+    public MixEventName getEvent() {
+        return event;
+    }
+
+    /**
+     * @return true if the given feature can be stored in {@link StripedPartialResultStore}
+     */
+    public static boolean isIntegerFeature(@Nonnull final Object feature) {
+        return (feature instanceof Integer) || (feature instanceof IntWritable)
+                || (feature instanceof Long) || (feature instanceof LongWritable);
+    }
+
+    public static long toKey(@Nonnull final Object feature) {
+        if (feature instanceof Integer) {
+            return ((Integer) feature).intValue();
+        } else if (feature instanceof IntWritable) {
+            return ((IntWritable) feature).get();
+        } else if (feature instanceof Long) {
+            return ((Long) feature).longValue();
+        } else if (feature instanceof LongWritable) {
+            return ((LongWritable) feature).get();
+        }
+        throw new IllegalArgumentException("Unexpected feature type: "
+                + feature.getClass().getName());
+    }
+
+    @Nonnull
+    public Segment segmentFor(final long key) {
+        int h = hash(key);
+        return segments[(h >>> 24) & segmentMask];
+    }
+
+    @Nonnull
+    Segment[] getSegments() {
+        return segments;
+    }
+
+    /**
+     * @return the number of features in this store
+     */
+    public int size() {
+        int total = 0;
+        for (Segment seg : segments) {
+            seg.lock();
+            try {
+                total += seg.size();
+            } finally {
+                seg.unlock();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Gives a second chance to features accessed since the last call, and evicts the others if
+     * required.
+     * 
+     * @return the number of evicted features
+     */
+    public int sweepUntouched(final boolean evict) {
+        int evicted = 0;
+        for (Segment seg : segments) {
+            seg.lock();
+            try {
+                evicted += seg.sweepUntouched(evict);
+            } finally {
+                seg.unlock();
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return the mixed weight, or NaN if the feature is not found
+     */
+    public float getWeight(final long key, final float scale) {
+        final Segment seg = segmentFor(key);
+        seg.lock();
+        try {
+            int i = seg.find(key);
+            if (i < 0) {
+                return Float.NaN;
+            }
+            return seg.getWeight(i, scale);
+        } finally {
+            seg.unlock();
+        }
+    }
+
+    /**
+     * @return the global clock, or 0 if the feature is not found
+     */
+    public short getClock(final long key) {
+        final Segment seg = segmentFor(key);
+        seg.lock();
+        try {
+            int i = seg.find(key);
+            if (i < 0) {
+                return 0;
+            }
+            return seg.getClock(i);
+        } finally {
+            seg.unlock();
+        }
+    }
+
+    private static int hash(final long key) {
+        // MurmurHash3 fmix64
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * An open-addressing hash table with double hashing that holds the partial results of a
+     * stripe of features. Every access must be guarded by {@link #lock()}. Slot indexes are only
+     * valid until the lock is released as {@link #getOrAdd(long)} may rehash the table.
+     */
+    public static final class Segment {
+
+        private static final byte FREE = 0;
+        private static final byte FULL = 1;
+        private static final byte REMOVED = 2;
+        /** FULL and accessed since the last eviction sweep */
+        private static final byte TOUCHED = 3;
+
+        private static final float LOAD_FACTOR = 0.7f;
+        private static final float GROW_FACTOR = 2.0f;
+
+        private final Lock lock;
+        private final boolean argminKLD;
+
+        @GuardedBy("lock()")
+        private int used;
+        @GuardedBy("lock()")
+        private int removed;
+        @GuardedBy("lock()")
+        private int threshold;
+
+        @GuardedBy("lock()")
+        private long[] keys;
+        @GuardedBy("lock()")
+        private byte[] states;
+        /** scaled sum of weights for average, sum of mean/covar for argminKLD */
+        @GuardedBy("lock()")
+        private double[] weights;
+        /** sum of 1/covar for argminKLD. null for average */
+        @GuardedBy("lock()")
+        private float[] covars;
+        /** total updates for average. null for argminKLD */
+        @GuardedBy("lock()")
+        private int[] totalUpdates;
+        @GuardedBy("lock()")
+        private short[] clocks;
+
+        Segment(@Nonnegative int size, boolean argminKLD) {
+            this.lock = new TTASLock();
+            this.argminKLD = argminKLD;
+            int actualSize = Primes.findLeastPrimeNumber(Math.max(size, 3));
+            allocate(actualSize);
+            this.used = 0;
+            this.removed = 0;
+        }
+
+        private Segment(@Nonnull Segment src) {
+            this.lock = new TTASLock();
+            this.argminKLD = src.argminKLD;
+            this.used = src.used;
+            this.removed = src.removed;
+            this.threshold = src.threshold;
+            this.keys = src.keys.clone();
+            this.states = src.states.clone();
+            this.weights = src.weights.clone();
+            if (argminKLD) {
+                this.covars = src.covars.clone();
+            } else {
+                this.totalUpdates = src.totalUpdates.clone();
+            }
+            this.clocks = src.clocks.clone();
+        }
+
+        private void allocate(final int capacity) {
+            this.keys = new long[capacity];
+            this.states = new byte[capacity];
+            this.weights = new double[capacity];
+            if (argminKLD) {
+                this.covars = new float[capacity];
+            } else {
+                this.totalUpdates = new int[capacity];
+            }
+            this.clocks = new short[capacity];
+            this.threshold = Math.round(capacity * LOAD_FACTOR);
+        }
+
+        public void lock() {
+            lock.lock();
+        }
+
+        public void unlock() {
+            lock.unlock();
+        }
+
+        public int size() {
+            return used;
+        }
+
+        /**
+         * @return the slot index of the key, or -1 if not found
+         */
+        public int find(final long key) {
+            final long[] keys = this.keys;
+            final byte[] states = this.states;
+            final int length = keys.length;
+
+            final int hash = keyHash(key);
+            int i = hash % length;
+            if (states[i] == FREE) {
+                return -1;
+            }
+            if (states[i] != REMOVED && keys[i] == key) {
+                return i;
+            }
+            final int decr = 1 + (hash % (length - 2));
+            for (;;) {
+                i -= decr;
+                if (i < 0) {
+                    i += length;
+                }
+                if (states[i] == FREE) {
+                    return -1;
+                }
+                if (states[i] != REMOVED && keys[i] == key) {
+                    return i;
+                }
+            }
+        }
+
+        /**
+         * @return the slot index of the key that is newly allocated if absent
+         */
+        public int getOrAdd(final long key) {
+            int i = find(key);
+            if (i >= 0) {
+                states[i] = TOUCHED;
+                return i;
+            }
+            if ((used + removed + 1) >= threshold) {
+                // grows, or shrinks after evictions, and purges removed slots
+                int newCapacity = Math.round((used + 1) * GROW_FACTOR / LOAD_FACTOR);
+                rehash(Primes.findLeastPrimeNumber(Math.max(3, newCapacity)));
+            }
+            i = findFreeSlot(keys, states, key);
+            if (states[i] == REMOVED) {
+                removed--;
+                weights[i] = 0.d;
+                if (argminKLD) {
+                    covars[i] = 0.f;
+                } else {
+                    totalUpdates[i] = 0;
+                }
+                clocks[i] = 0;
+            }
+            keys[i] = key;
+            states[i] = TOUCHED;
+            used++;
+            return i;
+        }
+
+        private static int findFreeSlot(final long[] keys, final byte[] states, final long key) {
+            final int length = keys.length;
+            final int hash = keyHash(key);
+            int i = hash % length;
+            if (states[i] == FREE || states[i] == REMOVED) {
+                return i;
+            }
+            final int decr = 1 + (hash % (length - 2));
+            for (;;) {
+                i -= decr;
+                if (i < 0) {
+                    i += length;
+                }
+                if (states[i] == FREE || states[i] == REMOVED) {
+                    return i;
+                }
+            }
+        }
+
+        /**
+         * @see StripedPartialResultStore#sweepUntouched(boolean)
+         * @return the number of evicted entries
+         */
+        public int sweepUntouched(final boolean evict) {
+            final byte[] states = this.states;
+            int evicted = 0;
+            for (int i = 0; i < states.length; i++) {
+                if (states[i] == TOUCHED) {
+                    states[i] = FULL;
+                } else if (states[i] == FULL && evict) {
+                    states[i] = REMOVED;
+                    evicted++;
+                }
+            }
+            this.used -= evicted;
+            this.removed += evicted;
+            return evicted;
+        }
+
+        private void rehash(final int newCapacity) {
+            final long[] oldKeys = keys;
+            final byte[] oldStates = states;
+            final double[] oldWeights = weights;
+            final float[] oldCovars = covars;
+            final int[] oldTotalUpdates = totalUpdates;
+            final short[] oldClocks = clocks;
+
+            allocate(newCapacity);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldStates[i] != FULL && oldStates[i] != TOUCHED) {
+                    continue;
+                }
+                long k = oldKeys[i];
+                int j = findFreeSlot(keys, states, k);
+                keys[j] = k;
+                states[j] = oldStates[i];
+                weights[j] = oldWeights[i];
+                if (argminKLD) {
+                    covars[j] = oldCovars[i];
+                } else {
+                    totalUpdates[j] = oldTotalUpdates[i];
+                }
+                clocks[j] = oldClocks[i];
+            }
+            this.removed = 0;
+        }
+
+        public void add(final int i, final float localWeight, final float covar,
+                @Nonnegative final int deltaUpdates, final float scale) {
+            assert (deltaUpdates > 0) : deltaUpdates;
+            if (argminKLD) {
+                weights[i] += (localWeight / covar) / scale;
+                covars[i] += (1.f / covar) / scale;
+            } else {
+                weights[i] += ((localWeight / scale) * deltaUpdates);
+                totalUpdates[i] += deltaUpdates; // note deltaUpdates is in range (0,127]
+            }
+            clocks[i] += deltaUpdates;
+        }
+
+        public void subtract(final int i, final float localWeight, final float covar,
+                @Nonnegative final int deltaUpdates, final float scale) {
+            if (argminKLD) {
+                weights[i] -= (localWeight / covar) / scale;
+                covars[i] -= (1.f / covar) / scale;
+            } else {
+                assert (deltaUpdates > 0) : deltaUpdates;
+                weights[i] -= ((localWeight / scale) * deltaUpdates);
+                totalUpdates[i] -= deltaUpdates;
+            }
+        }
+
+        public float getWeight(final int i, final float scale) {
+            if (argminKLD) {
+                return (float) (weights[i] / covars[i]);
+            } else {
+                return (float) (weights[i] / totalUpdates[i]) * scale;
+            }
+        }
+
+        public float getCovariance(final int i, final float scale) {
+            if (argminKLD) {
+                return 1.f / (covars[i] * scale);
+            } else {
+                return 1.f;
+            }
+        }
+
+        public short getClock(final int i) {
+            return clocks[i];
+        }
+
+        /**
+         * @return true if the i-th slot holds an entry
+         */
+        public boolean isUsed(final int i) {
+            return states[i] == FULL || states[i] == TOUCHED;
+        }
+
+        public int capacity() {
+            return keys.length;
+        }
+
+        public long getKey(final int i) {
+            return keys[i];
+        }
+
+        /**
+         * Writes the state of the i-th entry in the same layout as
+         * {@link PartialResult#writeState(ByteBuffer)}.
+         */
+        void writeState(final int i, @Nonnull final ByteBuffer dst) {
+            dst.putDouble(weights[i]);
+            if (argminKLD) {
+                dst.putFloat(covars[i]);
+            } else {
+                dst.putInt(totalUpdates[i]);
+            }
+            dst.putShort(clocks[i]);
+        }
+
+        void readState(final int i, @Nonnull final ByteBuffer src) {
+            weights[i] = src.getDouble();
+            if (argminKLD) {
+                covars[i] = src.getFloat();
+            } else {
+                totalUpdates[i] = src.getInt();
+            }
+            clocks[i] = src.getShort();
+        }
+
+        /**
+         * @return a copy of this segment that can be read without the lock
+         */
+        @Nonnull
+        Segment copy() {
+            return new Segment(this);
+        }
+
+        /**
+         * @see PartialResult#diffClock(short)
+         */
+        public int diffClock(final int i, final short localClock) {
+            final short globalClock = clocks[i];
+            short tempValue1 = globalClock;
+            tempValue1 -= localClock;
+            short tempValue2 = localClock;
+            tempValue2 -= globalClock;
+            return Math.min(Math.abs(tempValue1), Math.abs(tempValue2));
+        }
+
+        private static int keyHash(final long key) {
+            return hash(key) & 0x7fffffff;
+        }
+
+    }
+
+}
@@ -21,10 +21,12 @@ package hivemall.mix.server;
 import static org.mockito.Mockito.mock;
 import hivemall.mix.MixMessage;
 import hivemall.mix.MixMessage.MixEventName;
+import hivemall.mix.MixMessageBatch;
 import hivemall.mix.store.PartialAverage;
 import hivemall.mix.store.PartialResult;
 import hivemall.mix.store.SessionObject;
 import hivemall.mix.store.SessionStore;
+import hivemall.mix.store.StripedPartialResultStore;
 import hivemall.test.HivemallTestBase;
 import io.netty.channel.ChannelHandlerContext;
 
@@ -37,6 +39,7 @@ import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.Mockito;
 
 public final class MixServerHandlerTest extends HivemallTestBase {
 
@@ -83,6 +86,86 @@ public final class MixServerHandlerTest extends HivemallTestBase {
         mixMethod.invoke(handler, ctx, msg4, acc, sessionObj);
     }
 
+    @Test
+    public void MixBatchTest() throws Exception {
+        ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+        SessionStore session = new SessionStore();
+        MixServerHandler handler = new MixServerHandler(session, 1, 1.0f);
+
+        MixMessageBatch batch = new MixMessageBatch(MixEventName.average, 4);
+        batch.setGroupID("dummy");
+        batch.add(dummyFeature, 3.0f, 1.f, (short) 0, 1, false);
+        batch.add(dummyFeature, 5.0f, 1.f, (short) 0, 1, false);
+        batch.add(Integer.valueOf(1), 7.0f, 1.f, (short) 0, 1, false);
+        handler.channelRead0(ctx, batch);
+
+        SessionObject sessionObj = session.get("dummy");
+        Assert.assertEquals(3L, sessionObj.getRequests());
+        StripedPartialResultStore store = sessionObj.getIntStoreIfExists();
+        Assert.assertNotNull(store);
+        Assert.assertEquals(2, store.size());
+        Assert.assertEquals(2, store.getClock(0L));
+        Assert.assertEquals(4.0, store.getWeight(0L, 1.0f), 0.001);
+        Assert.assertEquals(1, store.getClock(1L));
+        Assert.assertEquals(7.0, store.getWeight(1L, 1.0f), 0.001);
+        Assert.assertTrue(sessionObj.get().isEmpty());
+
+        // the second request of dummyFeature exceeds the sync threshold
+        Assert.assertEquals(1L, sessionObj.getResponses());
+        Mockito.verify(ctx).writeAndFlush(Mockito.any(MixMessageBatch.class));
+    }
+
+    @Test
+    public void CancelEvictedTest() throws Exception {
+        ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+        SessionStore session = new SessionStore();
+        MixServerHandler handler = new MixServerHandler(session, 4, 1.0f);
+        final Integer intFeature = Integer.valueOf(1);
+        final String strFeature = "f1";
+
+        for (Object feature : new Object[] {intFeature, strFeature}) {
+            MixMessage msg = new MixMessage(MixEventName.argminKLD, feature, 3.0f, 0.5f,
+                (short) 1, 1);
+            msg.setGroupID("dummy");
+            handler.channelRead0(ctx, msg);
+        }
+        SessionObject sessionObj = session.get("dummy");
+        Assert.assertEquals(2, sessionObj.size());
+
+        // cold entries are evicted at the second sweep
+        sessionObj.sweepUntouched(true);
+        sessionObj.sweepUntouched(true);
+        Assert.assertEquals(0, sessionObj.size());
+
+        // late cancels of the evicted entries are ignored
+        for (Object feature : new Object[] {intFeature, strFeature}) {
+            MixMessage cancel = new MixMessage(MixEventName.argminKLD, feature, 3.0f, 0.5f, 1,
+                true);
+            cancel.setGroupID("dummy");
+            handler.channelRead0(ctx, cancel);
+        }
+        MixMessageBatch batch = new MixMessageBatch(MixEventName.argminKLD, 2);
+        batch.setGroupID("dummy");
+        batch.add(intFeature, 3.0f, 0.5f, (short) 0, 1, true);
+        batch.add(strFeature, 3.0f, 0.5f, (short) 0, 1, true);
+        handler.channelRead0(ctx, batch);
+        Assert.assertEquals(0, sessionObj.size());
+
+        // then, mixing starts from scratch
+        for (Object feature : new Object[] {intFeature, strFeature}) {
+            MixMessage msg = new MixMessage(MixEventName.argminKLD, feature, 5.0f, 0.5f,
+                (short) 1, 1);
+            msg.setGroupID("dummy");
+            handler.channelRead0(ctx, msg);
+        }
+        Assert.assertEquals(2, sessionObj.size());
+        StripedPartialResultStore store = sessionObj.getIntStoreIfExists();
+        Assert.assertEquals(5.0, store.getWeight(1L, 1.0f), 0.001);
+        PartialResult partial = sessionObj.get().get(strFeature);
+        Assert.assertEquals(5.0, partial.getWeight(1.0f), 0.001);
+        Assert.assertEquals(0.5, partial.getCovariance(1.0f), 0.001);
+    }
+
     private static class CauseMatcher extends TypeSafeMatcher<Throwable> {
 
         private final Class<? extends Throwable> type;
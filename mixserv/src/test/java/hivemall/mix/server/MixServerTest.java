@@ -18,11 +18,13 @@
  */
 package hivemall.mix.server;
 
+import hivemall.classifier.PerceptronUDTF;
 import hivemall.model.DenseModel;
 import hivemall.model.PredictionModel;
 import hivemall.model.SparseModel;
 import hivemall.model.WeightValue;
 import hivemall.mix.MixMessage.MixEventName;
+import hivemall.mix.client.AsyncMixSender.FullWindowPolicy;
 import hivemall.mix.client.MixClient;
 import hivemall.mix.server.MixServer.ServerState;
 import hivemall.test.HivemallTestBase;
@@ -30,6 +32,8 @@ import hivemall.utils.io.IOUtils;
 import hivemall.utils.lang.CommandLineUtils;
 import hivemall.utils.net.NetUtils;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -38,6 +42,12 @@ import java.util.concurrent.TimeUnit;
 import javax.annotation.Nonnegative;
 
 import org.apache.commons.cli.CommandLine;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.Collector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -296,15 +306,167 @@ public class MixServerTest extends HivemallTestBase {
         serverExec.shutdown();
     }
 
+    @Test
+    public void test2ClientsZeroOneSparseModelWithBatching() throws InterruptedException {
+        final int port = NetUtils.getAvailablePort();
+        CommandLine cl = CommandLineUtils.parseOptions(
+            new String[] {"-port", Integer.toString(port), "-sync_threshold", "30"},
+            MixServer.getOptions());
+        MixServer server = new MixServer(cl);
+        ExecutorService serverExec = Executors.newSingleThreadExecutor();
+        serverExec.submit(server);
+
+        waitForState(server, ServerState.RUNNING);
+
+        final ExecutorService clientsExec = Executors.newCachedThreadPool();
+        for (int i = 0; i < 2; i++) {
+            clientsExec.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        invokeClient01("test2ClientsZeroOneBatch", port, false, true, 64, false);
+                    } catch (InterruptedException e) {
+                        Assert.fail(e.getMessage());
+                    }
+                }
+            });
+        }
+        clientsExec.awaitTermination(30, TimeUnit.SECONDS);
+        clientsExec.shutdown();
+        serverExec.shutdown();
+    }
+
+    @Test
+    public void test2ClientsZeroOneSparseModelWithCompactFormat() throws InterruptedException {
+        final int port = NetUtils.getAvailablePort();
+        CommandLine cl = CommandLineUtils.parseOptions(
+            new String[] {"-port", Integer.toString(port), "-sync_threshold", "30"},
+            MixServer.getOptions());
+        MixServer server = new MixServer(cl);
+        ExecutorService serverExec = Executors.newSingleThreadExecutor();
+        serverExec.submit(server);
+
+        waitForState(server, ServerState.RUNNING);
+
+        final ExecutorService clientsExec = Executors.newCachedThreadPool();
+        for (int i = 0; i < 2; i++) {
+            final boolean compact = (i == 0); // mixes with a client using the legacy format
+            clientsExec.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        invokeClient01("test2ClientsZeroOneCompact", port, false, true, 64,
+                            compact);
+                    } catch (InterruptedException e) {
+                        Assert.fail(e.getMessage());
+                    }
+                }
+            });
+        }
+        clientsExec.awaitTermination(30, TimeUnit.SECONDS);
+        clientsExec.shutdown();
+        serverExec.shutdown();
+    }
+
+    @Test
+    public void test2ClientsZeroOneSparseModelWithAsyncSender() throws InterruptedException {
+        final int port = NetUtils.getAvailablePort();
+        CommandLine cl = CommandLineUtils.parseOptions(
+            new String[] {"-port", Integer.toString(port), "-sync_threshold", "30"},
+            MixServer.getOptions());
+        MixServer server = new MixServer(cl);
+        ExecutorService serverExec = Executors.newSingleThreadExecutor();
+        serverExec.submit(server);
+
+        waitForState(server, ServerState.RUNNING);
+
+        final ExecutorService clientsExec = Executors.newCachedThreadPool();
+        for (int i = 0; i < 2; i++) {
+            final FullWindowPolicy policy = (i == 0) ? FullWindowPolicy.block
+                    : FullWindowPolicy.coalesce;
+            clientsExec.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        invokeClient01("test2ClientsZeroOneAsync", port, false, false, 64, false,
+                            1024, policy);
+                    } catch (InterruptedException e) {
+                        Assert.fail(e.getMessage());
+                    }
+                }
+            });
+        }
+        clientsExec.awaitTermination(30, TimeUnit.SECONDS);
+        clientsExec.shutdown();
+        serverExec.shutdown();
+    }
+
+    @Test
+    public void testMiniBatchWithAsyncSender() throws HiveException, InterruptedException {
+        final int port = NetUtils.getAvailablePort();
+        CommandLine cl = CommandLineUtils.parseOptions(
+            new String[] {"-port", Integer.toString(port), "-sync_threshold", "3"},
+            MixServer.getOptions());
+        MixServer server = new MixServer(cl);
+        ExecutorService serverExec = Executors.newSingleThreadExecutor();
+        serverExec.submit(server);
+
+        waitForState(server, ServerState.RUNNING);
+
+        PerceptronUDTF udtf = new PerceptronUDTF();
+        ObjectInspector intOI = PrimitiveObjectInspectorFactory.javaIntObjectInspector;
+        String options = "-mini_batch 10 -mix localhost:" + port
+                + " -mix_session testMiniBatchWithAsyncSender -mix_threshold 1 -mix_async 16";
+        ObjectInspector optionOI = ObjectInspectorUtils.getConstantObjectInspector(
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, options);
+        udtf.initialize(new ObjectInspector[] {
+                ObjectInspectorFactory.getStandardListObjectInspector(intOI), intOI, optionOI});
+        final int[] numForwarded = new int[1];
+        udtf.setCollector(new Collector() {
+            public void collect(Object input) throws HiveException {
+                numForwarded[0]++;
+            }
+        });
+
+        final Random rand = new Random(43);
+        final List<Integer> features = new ArrayList<Integer>();
+        for (int i = 0; i < 1005; i++) { // leaves a partial mini-batch to be updated in close()
+            features.clear();
+            for (int j = 0; j < 3; j++) {
+                features.add(Integer.valueOf(rand.nextInt(10)));
+            }
+            udtf.process(new Object[] {features, Integer.valueOf(rand.nextBoolean() ? 1 : -1)});
+        }
+        // the accumulated delta is mixed before the async sender is closed
+        udtf.close();
+        Assert.assertTrue(numForwarded[0] > 0);
+
+        serverExec.shutdown();
+    }
+
     private static void invokeClient01(String groupId, int serverPort, boolean denseModel,
             boolean cancelMix) throws InterruptedException {
+        invokeClient01(groupId, serverPort, denseModel, cancelMix, 1, false);
+    }
+
+    private static void invokeClient01(String groupId, int serverPort, boolean denseModel,
+            boolean cancelMix, int batchSize, boolean compact) throws InterruptedException {
+        invokeClient01(groupId, serverPort, denseModel, cancelMix, batchSize, compact, 0, null);
+    }
+
+    private static void invokeClient01(String groupId, int serverPort, boolean denseModel,
+            boolean cancelMix, int batchSize, boolean compact, int asyncWindow,
+            FullWindowPolicy asyncPolicy) throws InterruptedException {
         PredictionModel model = denseModel ? new DenseModel(100, false) : new SparseModel(100,
             false);
         model.configureClock();
         MixClient client = null;
         try {
             client = new MixClient(MixEventName.average, groupId, "localhost:" + serverPort, false,
-                3, model);
+                3, batchSize, MixClient.DEFAULT_FLUSH_INTERVAL, compact, model);
+            if (asyncWindow > 0) {
+                client.configureAsync(asyncWindow, asyncPolicy);
+            }
             model.configureMix(client, cancelMix);
 
             final Random rand = new Random(43);
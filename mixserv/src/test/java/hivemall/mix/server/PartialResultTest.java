@@ -20,6 +20,8 @@ package hivemall.mix.server;
 
 import hivemall.mix.store.PartialResult;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -60,6 +62,12 @@ public class PartialResultTest {
             public float getCovariance(float scale) {
                 return 0.f;
             }
+
+            @Override
+            protected void writeState(ByteBuffer dst) {}
+
+            @Override
+            protected void readState(ByteBuffer src) {}
         };
 
         Assert.assertEquals(0, value.diffClock((short) 0));
@@ -153,6 +161,16 @@ public class PartialResultTest {
             throw new UnsupportedOperationException();
         }
 
+        @Override
+        protected void writeState(ByteBuffer dst) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void readState(ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+
     }
 
 }
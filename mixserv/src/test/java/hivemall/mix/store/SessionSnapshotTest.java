@@ -0,0 +1,129 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.mix.store;
+
+import hivemall.mix.MixMessage.MixEventName;
+import hivemall.mix.store.StripedPartialResultStore.Segment;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SessionSnapshotTest {
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        final float scale = 1.f;
+        SessionStore store = new SessionStore();
+
+        SessionObject avg = store.get("avg");
+        for (int i = 0; i < 100; i++) {
+            PartialResult partial = new PartialAverage();
+            partial.add(i, 1.f, 1 + (i % 3), scale);
+            avg.get().put(new Text("f" + i), partial);
+        }
+        StripedPartialResultStore avgIntStore = avg.getIntStore(MixEventName.average);
+        for (int i = 0; i < 1000; i++) {
+            add(avgIntStore, i, i * 0.5f, 0.5f, 1 + (i % 7), scale);
+        }
+
+        SessionObject kld = store.get("kld");
+        for (int i = 0; i < 100; i++) {
+            PartialResult partial = new PartialArgminKLD();
+            partial.add(i, 0.1f + i, 2, scale);
+            kld.get().put("f" + i, partial);
+        }
+        StripedPartialResultStore kldIntStore = kld.getIntStore(MixEventName.argminKLD);
+        for (long i = 0; i < 1000; i++) {
+            add(kldIntStore, Long.MAX_VALUE - i, -i, 0.1f + i, 3, scale);
+        }
+
+        File file = File.createTempFile("hivemall_snapshot", ".bin");
+        file.deleteOnExit();
+        Assert.assertEquals(2200L, SessionSnapshot.save(store, file));
+
+        SessionStore restored = new SessionStore();
+        Assert.assertEquals(2200L, SessionSnapshot.load(file, restored));
+        Assert.assertEquals(2, restored.getSessions().size());
+
+        SessionObject restoredAvg = restored.get("avg");
+        Assert.assertTrue(restoredAvg.getLastAccessed() > 0L);
+        assertEquals(avg.get(), restoredAvg.get(), scale);
+        assertEquals(avgIntStore, restoredAvg.getIntStoreIfExists(), 1000, scale);
+
+        SessionObject restoredKld = restored.get("kld");
+        assertEquals(kld.get(), restoredKld.get(), scale);
+        assertEquals(kldIntStore, restoredKld.getIntStoreIfExists(), 1000, scale);
+    }
+
+    @Test(expected = IOException.class)
+    public void testLoadIllegalFile() throws IOException {
+        File file = File.createTempFile("hivemall_snapshot", ".bin");
+        file.deleteOnExit();
+        SessionSnapshot.load(file, new SessionStore());
+    }
+
+    private static void add(StripedPartialResultStore store, long key, float weight,
+            float covar, int deltaUpdates, float scale) {
+        Segment seg = store.segmentFor(key);
+        seg.lock();
+        try {
+            int i = seg.getOrAdd(key);
+            seg.add(i, weight, covar, deltaUpdates, scale);
+        } finally {
+            seg.unlock();
+        }
+    }
+
+    private static void assertEquals(ConcurrentMap<Object, PartialResult> expected,
+            ConcurrentMap<Object, PartialResult> actual, float scale) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (Object feature : expected.keySet()) {
+            PartialResult e = expected.get(feature);
+            PartialResult a = actual.get(feature);
+            Assert.assertNotNull(feature.toString(), a);
+            Assert.assertEquals(e.getClass(), a.getClass());
+            Assert.assertEquals(e.getClock(), a.getClock());
+            Assert.assertEquals(e.getWeight(scale), a.getWeight(scale), 0.f);
+            Assert.assertEquals(e.getCovariance(scale), a.getCovariance(scale), 0.f);
+        }
+    }
+
+    private static void assertEquals(StripedPartialResultStore expected,
+            StripedPartialResultStore actual, int size, float scale) {
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(expected.getEvent(), actual.getEvent());
+        Assert.assertEquals(size, actual.size());
+        for (Segment seg : expected.getSegments()) {
+            for (int i = 0; i < seg.capacity(); i++) {
+                if (!seg.isUsed(i)) {
+                    continue;
+                }
+                long key = seg.getKey(i);
+                Assert.assertEquals(seg.getClock(i), actual.getClock(key));
+                Assert.assertEquals(seg.getWeight(i, scale), actual.getWeight(key, scale), 0.f);
+            }
+        }
+    }
+
+}
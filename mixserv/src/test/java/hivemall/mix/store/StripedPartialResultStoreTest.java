@@ -0,0 +1,158 @@
+/*
+ * Hivemall: Hive scalable Machine Learning Library
+ *
+ * Copyright (C) 2015 Makoto YUI
+ * Copyright (C) 2013-2015 National Institute of Advanced Industrial Science and Technology (AIST)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hivemall.mix.store;
+
+import hivemall.mix.MixMessage.MixEventName;
+import hivemall.mix.store.StripedPartialResultStore.Segment;
+
+import java.util.Random;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StripedPartialResultStoreTest {
+
+    @Test
+    public void testIntegerFeature() {
+        Assert.assertTrue(StripedPartialResultStore.isIntegerFeature(Integer.valueOf(1)));
+        Assert.assertTrue(StripedPartialResultStore.isIntegerFeature(new IntWritable(1)));
+        Assert.assertTrue(StripedPartialResultStore.isIntegerFeature(Long.valueOf(1L)));
+        Assert.assertTrue(StripedPartialResultStore.isIntegerFeature(new LongWritable(1L)));
+        Assert.assertFalse(StripedPartialResultStore.isIntegerFeature(new Text("1")));
+        Assert.assertFalse(StripedPartialResultStore.isIntegerFeature("1"));
+
+        Assert.assertEquals(-3L, StripedPartialResultStore.toKey(new IntWritable(-3)));
+        Assert.assertEquals(Long.MAX_VALUE,
+            StripedPartialResultStore.toKey(new LongWritable(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testAverage() {
+        compareWithPartialResults(MixEventName.average);
+    }
+
+    @Test
+    public void testArgminKLD() {
+        compareWithPartialResults(MixEventName.argminKLD);
+    }
+
+    @Test
+    public void testSweepUntouched() {
+        final float scale = 1.f;
+        StripedPartialResultStore store = new StripedPartialResultStore(MixEventName.average, 4,
+            3);
+        for (int f = 0; f < 1000; f++) {
+            addOnce(store, f, 1.f, scale);
+        }
+        // all features were touched, so none are evicted
+        Assert.assertEquals(0, store.sweepUntouched(true));
+        Assert.assertEquals(1000, store.size());
+
+        // aging without eviction
+        Assert.assertEquals(0, store.sweepUntouched(false));
+        Assert.assertEquals(1000, store.size());
+
+        // touch even features only
+        for (int f = 0; f < 1000; f += 2) {
+            addOnce(store, f, 1.f, scale);
+        }
+        Assert.assertEquals(500, store.sweepUntouched(true));
+        Assert.assertEquals(500, store.size());
+        for (int f = 0; f < 1000; f++) {
+            if (f % 2 == 0) {
+                Assert.assertEquals(2, store.getClock(f));
+            } else {
+                Assert.assertTrue(Float.isNaN(store.getWeight(f, scale)));
+            }
+        }
+
+        // evicted slots are reused with a fresh state
+        for (int f = 1; f < 1000; f += 2) {
+            addOnce(store, f, 3.f, scale);
+        }
+        Assert.assertEquals(1000, store.size());
+        for (int f = 1; f < 1000; f += 2) {
+            Assert.assertEquals(1, store.getClock(f));
+            Assert.assertEquals(3.f, store.getWeight(f, scale), 1E-5f);
+        }
+    }
+
+    private static void addOnce(StripedPartialResultStore store, long f, float weight,
+            float scale) {
+        Segment segment = store.segmentFor(f);
+        segment.lock();
+        try {
+            int i = segment.getOrAdd(f);
+            segment.add(i, weight, 1.f, 1, scale);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    private static void compareWithPartialResults(MixEventName event) {
+        final int numFeatures = 10000;
+        final float scale = 1.f;
+        // small segments to exercise rehashing
+        StripedPartialResultStore store = new StripedPartialResultStore(event, 4, 3);
+        PartialResult[] expected = new PartialResult[numFeatures];
+        for (int i = 0; i < numFeatures; i++) {
+            expected[i] = (event == MixEventName.average) ? new PartialAverage()
+                    : new PartialArgminKLD();
+        }
+
+        Random rand = new Random(43L);
+        for (int n = 0; n < 100000; n++) {
+            int f = rand.nextInt(numFeatures);
+            float weight = (float) rand.nextGaussian();
+            float covar = 0.1f + rand.nextFloat();
+            int deltaUpdates = 1 + rand.nextInt(5);
+            short localClock = (short) rand.nextInt(100);
+
+            PartialResult partial = expected[f];
+            Segment segment = store.segmentFor(f);
+            segment.lock();
+            try {
+                int i = segment.getOrAdd(f);
+                Assert.assertEquals(partial.diffClock(localClock),
+                    segment.diffClock(i, localClock));
+                segment.add(i, weight, covar, deltaUpdates, scale);
+                partial.add(weight, covar, deltaUpdates, scale);
+            } finally {
+                segment.unlock();
+            }
+        }
+
+        int numStored = 0;
+        for (int f = 0; f < numFeatures; f++) {
+            PartialResult partial = expected[f];
+            if (partial.getClock() == 0) {
+                Assert.assertTrue(Float.isNaN(store.getWeight(f, scale)));
+                continue;
+            }
+            numStored++;
+            Assert.assertEquals(partial.getClock(), store.getClock(f));
+            Assert.assertEquals(partial.getWeight(scale), store.getWeight(f, scale), 1E-5f);
+        }
+        Assert.assertEquals(numStored, store.size());
+    }
+
+}